@@ -11,6 +11,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 
+import tw.kaneshih.simpletool.utility.CircuitBreaker;
+import tw.kaneshih.simpletool.utility.CircuitOpenException;
 import tw.kaneshih.simpletool.utility.HttpUtil.Request;
 import tw.kaneshih.simpletool.utility.HttpUtil.Response;
 import tw.kaneshih.simpletool.utility.Validator;
@@ -23,6 +25,10 @@ public abstract class ApiTask<T> {
     public static final String ERROR_NETWORK = SYS_ERROR_PREFIX + "NETWORK";
     public static final String ERROR_INVALID_PARAM = SYS_ERROR_PREFIX + "INVALID_PARAM";
     public static final String ERROR_RESPONSE_FORMAT = SYS_ERROR_PREFIX + "RESPONSE_FORMAT";
+    /**
+     * Server was not called since it keeps failing, see {@link CircuitBreaker}
+     */
+    public static final String ERROR_CIRCUIT_OPEN = SYS_ERROR_PREFIX + "CIRCUIT_OPEN";
 
     // -- member fields --
     private ApiCallback<T> callback;
@@ -128,6 +134,10 @@ public abstract class ApiTask<T> {
 
     // -- functions for core --
     private static String getNetworkErrorCode(Response response) {
+        // noinspection ThrowableResultOfMethodCallIgnored
+        if (response.getThrowable() instanceof CircuitOpenException) {
+            return ERROR_CIRCUIT_OPEN;
+        }
         // noinspection ThrowableResultOfMethodCallIgnored
         if (response.getThrowable() != null) {
             return ERROR_NETWORK;
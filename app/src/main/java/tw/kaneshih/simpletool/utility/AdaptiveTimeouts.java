@@ -0,0 +1,253 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-host connect and read timeouts derived from latency seen so far, instead of a fixed value
+ * for every network. Each host keeps a histogram of connect time and of time to first byte; a
+ * timeout is the chosen percentile times a multiplier, clamped to bounds. Until a host has
+ * {@link #setMinSamples(int)} samples, the timeout of the request is used.
+ * <p>
+ * A try which timed out counts as a sample of the timeout value, so a slow network pushes
+ * timeouts up by itself. Install it with {@link HttpUtil#setAdaptiveTimeouts(AdaptiveTimeouts)};
+ * only requests without an explicit {@link HttpUtil.Request#setSocketTimeout(int)} /
+ * {@link HttpUtil.Request#setConnectionTimeout(int)} follow it.
+ */
+public final class AdaptiveTimeouts {
+    public static final double DEFAULT_PERCENTILE = 0.99;
+    public static final float DEFAULT_MULTIPLIER = 2f;
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+    public static final int DEFAULT_MIN_TIMEOUT = HttpUtil.TIMEOUT_VALID_MININUM;
+    public static final int DEFAULT_MAX_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_HOSTS = 32;
+
+    private static final String TAG = "AdaptiveTimeouts";
+
+    private double percentile = DEFAULT_PERCENTILE;
+    private float multiplier = DEFAULT_MULTIPLIER;
+    private int minSamples = DEFAULT_MIN_SAMPLES;
+    private int minConnectTimeout = DEFAULT_MIN_TIMEOUT;
+    private int maxConnectTimeout = DEFAULT_MAX_TIMEOUT;
+    private int minReadTimeout = DEFAULT_MIN_TIMEOUT;
+    private int maxReadTimeout = DEFAULT_MAX_TIMEOUT;
+    private int maxHosts = DEFAULT_MAX_HOSTS;
+
+    private final LinkedHashMap<String, Host> hosts = new LinkedHashMap<String, Host>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+            return size() > maxHosts;
+        }
+    };
+
+    private static final class Host {
+        private final LatencyHistogram connect = new LatencyHistogram();
+        private final LatencyHistogram firstByte = new LatencyHistogram();
+        // derived on every sample, 0 if not enough samples
+        private int connectTimeout;
+        private int readTimeout;
+    }
+
+    /**
+     * default is {@link #DEFAULT_PERCENTILE}
+     *
+     * @param percentile - 0.5 ~ 1, e.g. 0.99
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public synchronized AdaptiveTimeouts setPercentile(double percentile) throws IllegalArgumentException {
+        if (percentile < 0.5 || percentile > 1) {
+            throw new IllegalArgumentException("invalid percentile:" + percentile);
+        }
+        this.percentile = percentile;
+        updateAll();
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MULTIPLIER}
+     *
+     * @param multiplier - timeout is percentile times this, >= 1
+     * @return
+     * @throws IllegalArgumentException - if multiplier < 1
+     */
+    public synchronized AdaptiveTimeouts setMultiplier(float multiplier) throws IllegalArgumentException {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("invalid multiplier:" + multiplier);
+        }
+        this.multiplier = multiplier;
+        updateAll();
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MIN_SAMPLES}
+     *
+     * @param minSamples - samples a host needs before its timeouts are adapted
+     * @return
+     * @throws IllegalArgumentException - if minSamples < 1 or > {@link LatencyHistogram#MAX_WEIGHT} / 2
+     */
+    public synchronized AdaptiveTimeouts setMinSamples(int minSamples) throws IllegalArgumentException {
+        if (minSamples < 1 || minSamples > LatencyHistogram.MAX_WEIGHT / 2) {
+            throw new IllegalArgumentException("invalid min samples:" + minSamples);
+        }
+        this.minSamples = minSamples;
+        updateAll();
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MIN_TIMEOUT} ~ {@link #DEFAULT_MAX_TIMEOUT}
+     *
+     * @param min - unit is millisecond, >= {@link HttpUtil#TIMEOUT_VALID_MININUM}
+     * @param max - unit is millisecond, >= min
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public synchronized AdaptiveTimeouts setConnectTimeoutBounds(int min, int max) throws IllegalArgumentException {
+        if (min < HttpUtil.TIMEOUT_VALID_MININUM || max < min) {
+            throw new IllegalArgumentException("invalid connect timeout bounds:" + min + "~" + max);
+        }
+        this.minConnectTimeout = min;
+        this.maxConnectTimeout = max;
+        updateAll();
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MIN_TIMEOUT} ~ {@link #DEFAULT_MAX_TIMEOUT}
+     *
+     * @param min - unit is millisecond, >= {@link HttpUtil#TIMEOUT_VALID_MININUM}
+     * @param max - unit is millisecond, >= min
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public synchronized AdaptiveTimeouts setReadTimeoutBounds(int min, int max) throws IllegalArgumentException {
+        if (min < HttpUtil.TIMEOUT_VALID_MININUM || max < min) {
+            throw new IllegalArgumentException("invalid read timeout bounds:" + min + "~" + max);
+        }
+        this.minReadTimeout = min;
+        this.maxReadTimeout = max;
+        updateAll();
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_HOSTS}
+     *
+     * @param maxHosts - hosts kept, least recently used ones are dropped
+     * @return
+     * @throws IllegalArgumentException - if maxHosts < 1
+     */
+    public synchronized AdaptiveTimeouts setMaxHosts(int maxHosts) throws IllegalArgumentException {
+        if (maxHosts < 1) {
+            throw new IllegalArgumentException("invalid max hosts:" + maxHosts);
+        }
+        this.maxHosts = maxHosts;
+        return this;
+    }
+
+    /**
+     * @param hostKey - see {@link HttpConnectionPool#getHostKey(java.net.URL)}
+     * @param millis  - time to open a new connection, including DNS and TLS
+     */
+    public synchronized void recordConnect(String hostKey, long millis) {
+        Host host = getHost(hostKey);
+        host.connect.record(millis);
+        update(host);
+    }
+
+    /**
+     * @param hostKey
+     * @param millis  - time from request sent to first byte of response
+     */
+    public synchronized void recordFirstByte(String hostKey, long millis) {
+        Host host = getHost(hostKey);
+        host.firstByte.record(millis);
+        update(host);
+    }
+
+    /**
+     * @param hostKey
+     * @return derived connect timeout in millisecond, 0 if not enough samples yet
+     */
+    public synchronized int getConnectTimeout(String hostKey) {
+        Host host = hosts.get(hostKey);
+        return host != null ? host.connectTimeout : 0;
+    }
+
+    /**
+     * @param hostKey
+     * @return derived read timeout in millisecond, 0 if not enough samples yet
+     */
+    public synchronized int getReadTimeout(String hostKey) {
+        Host host = hosts.get(hostKey);
+        return host != null ? host.readTimeout : 0;
+    }
+
+    /**
+     * @param hostKey
+     * @param percentile - 0 ~ 1
+     * @return connect time at percentile in millisecond, 0 if no sample
+     */
+    public synchronized long getConnectPercentile(String hostKey, double percentile) {
+        Host host = hosts.get(hostKey);
+        return host != null ? host.connect.getPercentile(percentile) : 0;
+    }
+
+    /**
+     * @param hostKey
+     * @param percentile - 0 ~ 1
+     * @return time to first byte at percentile in millisecond, 0 if no sample
+     */
+    public synchronized long getFirstBytePercentile(String hostKey, double percentile) {
+        Host host = hosts.get(hostKey);
+        return host != null ? host.firstByte.getPercentile(percentile) : 0;
+    }
+
+    public synchronized void clear() {
+        hosts.clear();
+    }
+
+    private Host getHost(String hostKey) {
+        Host host = hosts.get(hostKey);
+        if (host == null) {
+            host = new Host();
+            hosts.put(hostKey, host);
+        }
+        return host;
+    }
+
+    private void updateAll() {
+        for (Host host : hosts.values()) {
+            update(host);
+        }
+    }
+
+    private void update(Host host) {
+        host.connectTimeout = derive(host.connect, minConnectTimeout, maxConnectTimeout);
+        host.readTimeout = derive(host.firstByte, minReadTimeout, maxReadTimeout);
+    }
+
+    private int derive(LatencyHistogram histogram, int min, int max) {
+        if (histogram.getCount() < minSamples) {
+            return 0;
+        }
+        long timeout = (long) (histogram.getPercentile(percentile) * multiplier);
+        return (int) Math.max(min, Math.min(max, timeout));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("AdaptiveTimeouts [percentile=" + percentile + ", multiplier="
+                + multiplier + ", minSamples=" + minSamples + ", connect=" + minConnectTimeout + "~"
+                + maxConnectTimeout + ", read=" + minReadTimeout + "~" + maxReadTimeout);
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            Host host = entry.getValue();
+            sb.append(", ").append(entry.getKey()).append("={connect=").append(host.connectTimeout)
+                    .append(" (").append(host.connect.getCount()).append(" samples), read=")
+                    .append(host.readTimeout).append(" (").append(host.firstByte.getCount()).append(" samples)}");
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,232 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Exponential backoff with full jitter: delay of n-th retry is random in [0, min(maxDelay,
+ * baseDelay * 2^(n-1))]. "Retry-After" from server is honored; if it asks for longer than
+ * maxDelay, the request is not retried at all instead of coming back too early.
+ * <p>
+ * Only retryable failures are retried:
+ * <ul>
+ * <li>status 408, 429, 500, 502, 503, 504</li>
+ * <li>network errors (connect failure, timeout, reset)</li>
+ * </ul>
+ * A non-idempotent request (POST, unless {@link HttpUtil.Request#setIdempotent(boolean)}) is
+ * only retried when it surely did not reach the server: connect failure, unknown host, or 429 /
+ * 503 which means server refused to handle it.
+ * <p>
+ * A retry budget, shared by all requests using this instance, stops retry storms when a backend
+ * is down: each retry costs one token, each success gives back {@link #setBudgetRefill(double)}
+ * token, no retry when it's empty.
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+    public static final long DEFAULT_BASE_DELAY = 200;
+    public static final long DEFAULT_MAX_DELAY = 10 * 1000;
+    public static final int DEFAULT_BUDGET = 10;
+    public static final double DEFAULT_BUDGET_REFILL = 0.1;
+
+    private static final String TAG = "BackoffRetryPolicy";
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private volatile long baseDelay = DEFAULT_BASE_DELAY;
+    private volatile long maxDelay = DEFAULT_MAX_DELAY;
+    private volatile double budgetRefill = DEFAULT_BUDGET_REFILL;
+    private int budget = DEFAULT_BUDGET;
+    private double budgetTokens = DEFAULT_BUDGET;
+
+    private final Random random = new Random();
+
+    /**
+     * default is {@link #DEFAULT_BASE_DELAY}
+     *
+     * @param delay - unit is millisecond
+     * @return
+     * @throws IllegalArgumentException - if delay < 1
+     */
+    public BackoffRetryPolicy setBaseDelay(long delay) throws IllegalArgumentException {
+        if (delay < 1) {
+            throw new IllegalArgumentException("invalid base delay:" + delay);
+        }
+        this.baseDelay = delay;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_DELAY}
+     *
+     * @param delay - unit is millisecond
+     * @return
+     * @throws IllegalArgumentException - if delay < 1
+     */
+    public BackoffRetryPolicy setMaxDelay(long delay) throws IllegalArgumentException {
+        if (delay < 1) {
+            throw new IllegalArgumentException("invalid max delay:" + delay);
+        }
+        this.maxDelay = delay;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_BUDGET}
+     *
+     * @param budget - max retry tokens
+     * @return
+     * @throws IllegalArgumentException - if budget < 0
+     */
+    public synchronized BackoffRetryPolicy setBudget(int budget) throws IllegalArgumentException {
+        if (budget < 0) {
+            throw new IllegalArgumentException("invalid budget:" + budget);
+        }
+        this.budget = budget;
+        this.budgetTokens = budget;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_BUDGET_REFILL}
+     *
+     * @param refill - tokens given back by one success
+     * @return
+     * @throws IllegalArgumentException - if refill < 0
+     */
+    public BackoffRetryPolicy setBudgetRefill(double refill) throws IllegalArgumentException {
+        if (refill < 0) {
+            throw new IllegalArgumentException("invalid budget refill:" + refill);
+        }
+        this.budgetRefill = refill;
+        return this;
+    }
+
+    public synchronized double getBudgetTokens() {
+        return budgetTokens;
+    }
+
+    @Override
+    public long getRetryDelay(HttpUtil.Request request, int attempt, int statusCode, Throwable throwable,
+                              String retryAfter) {
+        boolean isRetryable = request.isIdempotent()
+                ? isRetryable(statusCode, throwable)
+                : isSafeToRetry(statusCode, throwable);
+        if (!isRetryable) {
+            Logcat.d(TAG, "not retryable - status: " + statusCode + ", " + throwable);
+            return NO_RETRY;
+        }
+        long delay = parseRetryAfter(retryAfter);
+        if (delay > maxDelay) {
+            Logcat.d(TAG, "Retry-After too long: " + retryAfter);
+            return NO_RETRY;
+        }
+        if (!acquireBudget()) {
+            Logcat.d(TAG, "retry budget exhausted");
+            return NO_RETRY;
+        }
+
+        if (delay < 0) {
+            int shift = Math.min(attempt - 1, 30);
+            long ceiling = Math.min(maxDelay, baseDelay << shift);
+            delay = (long) (random.nextDouble() * ceiling);
+        }
+        return delay;
+    }
+
+    @Override
+    public synchronized void onSuccess(HttpUtil.Request request) {
+        budgetTokens = Math.min(budget, budgetTokens + budgetRefill);
+    }
+
+    private synchronized boolean acquireBudget() {
+        if (budgetTokens < 1) {
+            return false;
+        }
+        budgetTokens -= 1;
+        return true;
+    }
+
+    /**
+     * @param statusCode
+     * @return whether an idempotent request may succeed if tried again
+     */
+    protected boolean isRetryableStatus(int statusCode) {
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+            case HTTP_TOO_MANY_REQUESTS:
+            case HttpURLConnection.HTTP_INTERNAL_ERROR:
+            case HttpURLConnection.HTTP_BAD_GATEWAY:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+            case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param throwable
+     * @return whether it's a transient network error
+     */
+    protected boolean isRetryableThrowable(Throwable throwable) {
+        if (throwable instanceof SSLException) {
+            // certificate or protocol problem, won't be fixed by trying again
+            return false;
+        }
+        return throwable instanceof SocketException
+                || throwable instanceof InterruptedIOException
+                || throwable instanceof UnknownHostException;
+    }
+
+    private boolean isRetryable(int statusCode, Throwable throwable) {
+        if (statusCode > 0) {
+            return isRetryableStatus(statusCode);
+        }
+        return isRetryableThrowable(throwable);
+    }
+
+    /**
+     * for non-idempotent request, only when we're sure server did not handle it
+     */
+    private boolean isSafeToRetry(int statusCode, Throwable throwable) {
+        if (statusCode > 0) {
+            return statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HttpURLConnection.HTTP_UNAVAILABLE;
+        }
+        return throwable instanceof ConnectException
+                || throwable instanceof NoRouteToHostException
+                || throwable instanceof PortUnreachableException
+                || throwable instanceof UnknownHostException;
+    }
+
+    /**
+     * @param retryAfter - delay-seconds or HTTP-date
+     * @return millisecond, or -1 if absent or invalid
+     */
+    private static long parseRetryAfter(String retryAfter) {
+        if (Validator.isEmpty(retryAfter)) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            long seconds = Long.parseLong(retryAfter);
+            return seconds >= 0 ? seconds * 1000 : -1;
+        } catch (NumberFormatException e) {
+            // not delay-seconds, try HTTP-date
+        }
+        long date = HttpDate.parse(retryAfter);
+        return date != -1 ? Math.max(0, date - System.currentTimeMillis()) : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "BackoffRetryPolicy [baseDelay=" + baseDelay + ", maxDelay=" + maxDelay + ", budget=" + budget
+                + ", budgetTokens=" + getBudgetTokens() + ", budgetRefill=" + budgetRefill + "]";
+    }
+}
@@ -0,0 +1,59 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cancels transfers from another thread, e.g. when the user leaves the screen. The connection in
+ * flight is disconnected right away and a partial file is deleted, see
+ * {@link HttpUtil.Request#setCancellationToken(CancellationToken)} and
+ * {@link HttpUtil#getFileFromUrl(String, java.io.File, int, int, int, ProgressListener, CancellationToken)}.
+ * <p>
+ * One token can be shared by many transfers, which are then canceled together. Once canceled it
+ * stays canceled, transfers started with it afterwards fail right away.
+ */
+public final class CancellationToken {
+    private volatile boolean isCanceled;
+    private final CopyOnWriteArrayList<Runnable> actions = new CopyOnWriteArrayList<>();
+
+    public void cancel() {
+        if (isCanceled) {
+            return;
+        }
+        isCanceled = true;
+        for (Runnable action : actions) {
+            runQuietly(action);
+        }
+    }
+
+    public boolean isCanceled() {
+        return isCanceled;
+    }
+
+    /**
+     * @param action - run once canceled, right away if it's canceled already
+     */
+    void register(Runnable action) {
+        actions.add(action);
+        // cancel() may have missed it
+        if (isCanceled && actions.remove(action)) {
+            runQuietly(action);
+        }
+    }
+
+    void unregister(Runnable action) {
+        actions.remove(action);
+    }
+
+    private static void runQuietly(Runnable action) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CancellationToken [isCanceled=" + isCanceled + ", actions=" + actions.size() + "]";
+    }
+}
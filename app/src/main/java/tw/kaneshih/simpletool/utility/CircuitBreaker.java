@@ -0,0 +1,443 @@
+package tw.kaneshih.simpletool.utility;
+
+import android.support.annotation.IntDef;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-host circuit breaker of {@link HttpUtil}. When a host is down, requests to it would each
+ * wait for a full timeout (and retries) on a worker thread; once the host fails often enough the
+ * circuit opens and requests fail fast with {@link CircuitOpenException} instead.
+ * <ul>
+ * <li>{@link #STATE_CLOSED}: requests go through, the last {@link #setWindowSize(int)} results
+ * are kept; when at least {@link #setMinimumCalls(int)} of them are known and the failure rate
+ * reaches {@link #setFailureRateThreshold(float)}, the circuit opens</li>
+ * <li>{@link #STATE_OPEN}: requests are refused for {@link #setOpenDuration(long)}, then the
+ * circuit goes half-open</li>
+ * <li>{@link #STATE_HALF_OPEN}: up to {@link #setProbeCount(int)} requests go through as probes;
+ * when all of them succeed the circuit closes, one failure opens it again</li>
+ * </ul>
+ * A failure is a try without response (e.g. connect refused, timeout) or a 5xx response; other
+ * status codes mean the host is up. A fresh copy from {@link HttpCache} doesn't touch the host:
+ * it's served even while the circuit is open, and counts for nothing. Install it with
+ * {@link HttpUtil#setCircuitBreaker(CircuitBreaker)}, observe it with
+ * {@link #addListener(OnStateChangeListener)}.
+ */
+public final class CircuitBreaker {
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface State {
+    }
+
+    public static final float DEFAULT_FAILURE_RATE_THRESHOLD = 0.5f;
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+    public static final int DEFAULT_PROBE_COUNT = 1;
+    public static final int DEFAULT_MAX_HOSTS = 64;
+
+    private static final String TAG = "CircuitBreaker";
+
+    private float failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private long openDuration = DEFAULT_OPEN_DURATION;
+    private int probeCount = DEFAULT_PROBE_COUNT;
+    private int maxHosts = DEFAULT_MAX_HOSTS;
+
+    // guarded by this
+    private final LinkedHashMap<String, Host> hosts = new LinkedHashMap<String, Host>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+            return size() > maxHosts;
+        }
+    };
+
+    private final CopyOnWriteArrayList<OnStateChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong openedCount = new AtomicLong();
+
+    public interface OnStateChangeListener {
+        /**
+         * Called on the thread which caused the change, keep it short.
+         *
+         * @param hostKey - see {@link HttpConnectionPool#getHostKey(java.net.URL)}
+         * @param from    - {@link #STATE_CLOSED}, ...
+         * @param to
+         */
+        void onStateChanged(String hostKey, @State int from, @State int to);
+    }
+
+    private static final class Host {
+        @State
+        private int state = STATE_CLOSED;
+        // ring of the latest results, true is failure
+        private boolean[] window;
+        private int next;
+        private int count;
+        private int failureCount;
+        private long openedAt;
+        private int probesInFlight;
+        private int probeSuccessCount;
+
+        private Host(int windowSize) {
+            window = new boolean[windowSize];
+        }
+
+        private void resetWindow(int windowSize) {
+            if (window.length != windowSize) {
+                window = new boolean[windowSize];
+            }
+            next = 0;
+            count = 0;
+            failureCount = 0;
+        }
+
+        private void add(boolean isFailure) {
+            if (count == window.length) {
+                if (window[next]) {
+                    failureCount--;
+                }
+            } else {
+                count++;
+            }
+            window[next] = isFailure;
+            if (isFailure) {
+                failureCount++;
+            }
+            next = (next + 1) % window.length;
+        }
+    }
+
+    /**
+     * default is {@link #DEFAULT_FAILURE_RATE_THRESHOLD}
+     *
+     * @param threshold - 0 ~ 1, circuit opens when failures / results reaches it
+     * @return
+     * @throws IllegalArgumentException - if threshold <= 0 or > 1
+     */
+    public synchronized CircuitBreaker setFailureRateThreshold(float threshold) throws IllegalArgumentException {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("invalid failure rate threshold:" + threshold);
+        }
+        this.failureRateThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_WINDOW_SIZE}, results kept so far are dropped
+     *
+     * @param windowSize - latest results of a host the failure rate is computed from
+     * @return
+     * @throws IllegalArgumentException - if windowSize < 1
+     */
+    public synchronized CircuitBreaker setWindowSize(int windowSize) throws IllegalArgumentException {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("invalid window size:" + windowSize);
+        }
+        this.windowSize = windowSize;
+        for (Host host : hosts.values()) {
+            host.resetWindow(windowSize);
+        }
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MINIMUM_CALLS}
+     *
+     * @param minimumCalls - results needed before the failure rate is trusted, <= window size
+     * @return
+     * @throws IllegalArgumentException - if minimumCalls < 1
+     */
+    public synchronized CircuitBreaker setMinimumCalls(int minimumCalls) throws IllegalArgumentException {
+        if (minimumCalls < 1) {
+            throw new IllegalArgumentException("invalid minimum calls:" + minimumCalls);
+        }
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_OPEN_DURATION}
+     *
+     * @param duration - unit is millisecond, how long an open circuit refuses requests before
+     *                 letting probes through
+     * @return
+     * @throws IllegalArgumentException - if duration < 1
+     */
+    public synchronized CircuitBreaker setOpenDuration(long duration) throws IllegalArgumentException {
+        if (duration < 1) {
+            throw new IllegalArgumentException("invalid open duration:" + duration);
+        }
+        this.openDuration = duration;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_PROBE_COUNT}
+     *
+     * @param probeCount - requests let through when half-open, all must succeed to close
+     * @return
+     * @throws IllegalArgumentException - if probeCount < 1
+     */
+    public synchronized CircuitBreaker setProbeCount(int probeCount) throws IllegalArgumentException {
+        if (probeCount < 1) {
+            throw new IllegalArgumentException("invalid probe count:" + probeCount);
+        }
+        this.probeCount = probeCount;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_HOSTS}
+     *
+     * @param maxHosts - hosts kept, least recently used ones are dropped (closed again)
+     * @return
+     * @throws IllegalArgumentException - if maxHosts < 1
+     */
+    public synchronized CircuitBreaker setMaxHosts(int maxHosts) throws IllegalArgumentException {
+        if (maxHosts < 1) {
+            throw new IllegalArgumentException("invalid max hosts:" + maxHosts);
+        }
+        this.maxHosts = maxHosts;
+        return this;
+    }
+
+    /**
+     * @param listener
+     * @throws IllegalArgumentException - if listener is null
+     */
+    public void addListener(OnStateChangeListener listener) throws IllegalArgumentException {
+        if (Validator.isNull(listener)) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(OnStateChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Ask before sending a request. When true, the result must be reported by
+     * {@link #onSuccess(String)} or {@link #onFailure(String)}, or {@link #release(String)} if
+     * it was canceled.
+     *
+     * @param hostKey
+     * @return false if the request should fail fast
+     */
+    public boolean tryAcquire(String hostKey) {
+        boolean isPermitted;
+        int from;
+        int to;
+        synchronized (this) {
+            Host host = getHost(hostKey);
+            from = host.state;
+            if (host.state == STATE_OPEN && HttpTimings.nowMillis() - host.openedAt >= openDuration) {
+                host.state = STATE_HALF_OPEN;
+                host.probesInFlight = 0;
+                host.probeSuccessCount = 0;
+            }
+            if (host.state == STATE_CLOSED) {
+                isPermitted = true;
+            } else if (host.state == STATE_HALF_OPEN && host.probesInFlight + host.probeSuccessCount < probeCount) {
+                host.probesInFlight++;
+                isPermitted = true;
+            } else {
+                isPermitted = false;
+            }
+            to = host.state;
+        }
+        if (!isPermitted) {
+            rejectedCount.incrementAndGet();
+        }
+        notifyIfChanged(hostKey, from, to);
+        return isPermitted;
+    }
+
+    /**
+     * @param hostKey - the host answered
+     */
+    public void onSuccess(String hostKey) {
+        record(hostKey, false);
+    }
+
+    /**
+     * @param hostKey - the host didn't answer, or answered 5xx
+     */
+    public void onFailure(String hostKey) {
+        record(hostKey, true);
+    }
+
+    /**
+     * The request was canceled before the host answered, so it tells nothing about the host; a
+     * half-open circuit just gets its probe slot back.
+     *
+     * @param hostKey
+     */
+    public void release(String hostKey) {
+        synchronized (this) {
+            Host host = hosts.get(hostKey);
+            if (host != null && host.state == STATE_HALF_OPEN) {
+                host.probesInFlight = Math.max(0, host.probesInFlight - 1);
+            }
+        }
+    }
+
+    private void record(String hostKey, boolean isFailure) {
+        int from;
+        int to;
+        synchronized (this) {
+            Host host = getHost(hostKey);
+            from = host.state;
+            switch (host.state) {
+                case STATE_CLOSED:
+                    host.add(isFailure);
+                    if (host.count >= Math.min(minimumCalls, windowSize)
+                            && host.failureCount >= failureRateThreshold * host.count) {
+                        open(host);
+                    }
+                    break;
+                case STATE_HALF_OPEN:
+                    host.probesInFlight = Math.max(0, host.probesInFlight - 1);
+                    if (isFailure) {
+                        open(host);
+                    } else if (++host.probeSuccessCount >= probeCount) {
+                        host.state = STATE_CLOSED;
+                        host.resetWindow(windowSize);
+                    }
+                    break;
+                default:
+                    // started before the circuit opened, tells nothing new
+                    break;
+            }
+            to = host.state;
+        }
+        notifyIfChanged(hostKey, from, to);
+    }
+
+    private void open(Host host) {
+        host.state = STATE_OPEN;
+        host.openedAt = HttpTimings.nowMillis();
+        host.probesInFlight = 0;
+        host.probeSuccessCount = 0;
+        openedCount.incrementAndGet();
+    }
+
+    /**
+     * @param hostKey
+     * @return {@link #STATE_CLOSED}, ...; an open circuit past its duration is reported half-open
+     */
+    @State
+    public synchronized int getState(String hostKey) {
+        Host host = hosts.get(hostKey);
+        if (host == null) {
+            return STATE_CLOSED;
+        }
+        if (host.state == STATE_OPEN && HttpTimings.nowMillis() - host.openedAt >= openDuration) {
+            return STATE_HALF_OPEN;
+        }
+        return host.state;
+    }
+
+    /**
+     * Close the circuit of a host now, e.g. when network is back.
+     *
+     * @param hostKey
+     */
+    public void reset(String hostKey) {
+        int from;
+        synchronized (this) {
+            Host host = hosts.remove(hostKey);
+            if (host == null) {
+                return;
+            }
+            from = host.state;
+        }
+        notifyIfChanged(hostKey, from, STATE_CLOSED);
+    }
+
+    public void resetAll() {
+        String[] hostKeys;
+        synchronized (this) {
+            hostKeys = hosts.keySet().toArray(new String[hosts.size()]);
+        }
+        for (String hostKey : hostKeys) {
+            reset(hostKey);
+        }
+    }
+
+    /**
+     * @return requests refused so far
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return times a circuit opened so far
+     */
+    public long getOpenedCount() {
+        return openedCount.get();
+    }
+
+    public void resetStatistics() {
+        rejectedCount.set(0);
+        openedCount.set(0);
+    }
+
+    private Host getHost(String hostKey) {
+        Host host = hosts.get(hostKey);
+        if (host == null) {
+            host = new Host(windowSize);
+            hosts.put(hostKey, host);
+        }
+        return host;
+    }
+
+    private void notifyIfChanged(String hostKey, int from, int to) {
+        if (from == to) {
+            return;
+        }
+        Logcat.w(TAG, hostKey + ": " + getStateName(from) + " -> " + getStateName(to));
+        for (OnStateChangeListener listener : listeners) {
+            try {
+                listener.onStateChanged(hostKey, from, to);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static String getStateName(int state) {
+        switch (state) {
+            case STATE_OPEN:
+                return "OPEN";
+            case STATE_HALF_OPEN:
+                return "HALF_OPEN";
+            default:
+                return "CLOSED";
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("CircuitBreaker [failureRateThreshold=" + failureRateThreshold
+                + ", windowSize=" + windowSize + ", minimumCalls=" + minimumCalls + ", openDuration="
+                + openDuration + ", probeCount=" + probeCount + ", rejectedCount=" + rejectedCount
+                + ", openedCount=" + openedCount);
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            Host host = entry.getValue();
+            sb.append(", ").append(entry.getKey()).append("={").append(getStateName(host.state))
+                    .append(", failures=").append(host.failureCount).append("/").append(host.count).append("}");
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,22 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+
+/**
+ * {@link HttpUtil.Response#getThrowable()} of a request refused by {@link CircuitBreaker}
+ * without going to network, because its host keeps failing.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String hostKey;
+
+    public CircuitOpenException(String hostKey) {
+        super("circuit open - " + hostKey);
+        this.hostKey = hostKey;
+    }
+
+    public String getHostKey() {
+        return hostKey;
+    }
+}
@@ -0,0 +1,357 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Bounded LRU cache in front of another {@link DnsResolver}. The platform keeps a lookup for a
+ * few seconds only, so a connection opened a minute later pays the full lookup again; this keeps
+ * it for {@link #setTtl(long)}.
+ * <ul>
+ * <li>failed lookups are cached too, for {@link #setNegativeTtl(long)}</li>
+ * <li>a hit close to expiry ({@link #setRefreshAhead(long)}) is answered from cache and
+ * refreshed in background, so a busy host never waits for a lookup</li>
+ * <li>{@link #prefetch(String...)} resolves hosts in background, e.g. at startup</li>
+ * <li>concurrent lookups of the same host share one upstream lookup</li>
+ * </ul>
+ * Install it with {@link HttpUtil#setDnsResolver(DnsResolver)}.
+ */
+public final class DnsCache implements DnsResolver {
+    public static final int DEFAULT_MAX_SIZE = 64;
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL = 10 * 1000;
+    public static final long DEFAULT_REFRESH_AHEAD = 30 * 1000;
+
+    private static final String TAG = "DnsCache";
+
+    private static final int REFRESH_POOL_SIZE = 2;
+
+    private final DnsResolver upstream;
+    private final SingleFlight<InetAddress[]> lookups = new SingleFlight<>();
+
+    private volatile long ttl = DEFAULT_TTL;
+    private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+    private volatile long refreshAhead = DEFAULT_REFRESH_AHEAD;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    private final LinkedHashMap<String, Record> cache = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    private volatile ExecutorService refresher;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private static final class Record {
+        private final InetAddress[] addresses;
+        private final long expireAt;
+        private boolean isRefreshing;
+
+        private Record(InetAddress[] addresses, long expireAt) {
+            this.addresses = addresses;
+            this.expireAt = expireAt;
+        }
+    }
+
+    public DnsCache() {
+        this(DnsResolver.SYSTEM);
+    }
+
+    /**
+     * @param upstream - the resolver doing real lookups
+     * @throws IllegalArgumentException - if upstream is null
+     */
+    public DnsCache(DnsResolver upstream) throws IllegalArgumentException {
+        if (Validator.isNull(upstream)) {
+            throw new IllegalArgumentException("upstream is null");
+        }
+        this.upstream = upstream;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_SIZE}
+     *
+     * @param maxSize - max hosts kept
+     * @return
+     * @throws IllegalArgumentException - if maxSize < 1
+     */
+    public DnsCache setMaxSize(int maxSize) throws IllegalArgumentException {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("invalid max size:" + maxSize);
+        }
+        synchronized (cache) {
+            this.maxSize = maxSize;
+        }
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_TTL}
+     *
+     * @param ttl - unit is millisecond, how long a successful lookup is kept
+     * @return
+     * @throws IllegalArgumentException - if ttl < 1
+     */
+    public DnsCache setTtl(long ttl) throws IllegalArgumentException {
+        if (ttl < 1) {
+            throw new IllegalArgumentException("invalid ttl:" + ttl);
+        }
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_NEGATIVE_TTL}
+     *
+     * @param ttl - unit is millisecond, how long a failed lookup is kept, 0 to not keep
+     * @return
+     * @throws IllegalArgumentException - if ttl < 0
+     */
+    public DnsCache setNegativeTtl(long ttl) throws IllegalArgumentException {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("invalid negative ttl:" + ttl);
+        }
+        this.negativeTtl = ttl;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_REFRESH_AHEAD}
+     *
+     * @param time - unit is millisecond, a hit within this time before expiry starts a background
+     *             refresh; 0 to turn it off
+     * @return
+     * @throws IllegalArgumentException - if time < 0
+     */
+    public DnsCache setRefreshAhead(long time) throws IllegalArgumentException {
+        if (time < 0) {
+            throw new IllegalArgumentException("invalid refresh ahead:" + time);
+        }
+        this.refreshAhead = time;
+        return this;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return hits of cached failures, not counted in {@link #getHitCount()}
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return background refreshes started by refresh-ahead
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return (hits + negative hits) / all lookups, 0 if no lookup yet
+     */
+    public float getHitRatio() {
+        long hits = hitCount.get() + negativeHitCount.get();
+        long total = hits + missCount.get();
+        return total > 0 ? (float) hits / total : 0;
+    }
+
+    public void resetStatistics() {
+        hitCount.set(0);
+        negativeHitCount.set(0);
+        missCount.set(0);
+        refreshCount.set(0);
+    }
+
+    public void evictAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (Validator.isEmpty(host)) {
+            throw new UnknownHostException("empty host");
+        }
+        final String key = host.toLowerCase(Locale.US);
+        long now = HttpTimings.nowMillis();
+        boolean isRefresh = false;
+        Record entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.expireAt <= now) {
+                cache.remove(key);
+                entry = null;
+            }
+            if (entry != null && entry.addresses != null && !entry.isRefreshing
+                    && entry.expireAt - now <= refreshAhead) {
+                entry.isRefreshing = true;
+                isRefresh = true;
+            }
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return lookup(key);
+        }
+        if (isRefresh) {
+            refreshCount.incrementAndGet();
+            refreshInBackground(key);
+        }
+        if (entry.addresses == null) {
+            negativeHitCount.incrementAndGet();
+            throw new UnknownHostException(host + " (cached failure)");
+        }
+        hitCount.incrementAndGet();
+        return entry.addresses.clone();
+    }
+
+    /**
+     * Non-blocking, resolve hosts in background so the first connection doesn't wait for it.
+     * Hosts already cached are skipped.
+     *
+     * @param hosts
+     */
+    public void prefetch(String... hosts) {
+        if (hosts == null) {
+            return;
+        }
+        for (String host : hosts) {
+            if (Validator.isEmpty(host)) {
+                continue;
+            }
+            final String key = host.toLowerCase(Locale.US);
+            synchronized (cache) {
+                Record entry = cache.get(key);
+                if (entry != null && entry.expireAt > HttpTimings.nowMillis()) {
+                    continue;
+                }
+            }
+            getRefresher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(key);
+                    } catch (UnknownHostException e) {
+                        Logcat.w(TAG, "prefetch failed - " + key);
+                    }
+                }
+            });
+        }
+    }
+
+    private void refreshInBackground(final String key) {
+        getRefresher().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lookup(key);
+                } catch (UnknownHostException e) {
+                    // keep serving what we have until it expires
+                    Logcat.w(TAG, "refresh failed - " + key);
+                    synchronized (cache) {
+                        Record entry = cache.get(key);
+                        if (entry != null) {
+                            entry.isRefreshing = false;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Resolve by upstream and put the result into cache.
+     */
+    private InetAddress[] lookup(final String key) throws UnknownHostException {
+        try {
+            return lookups.execute(key, new Callable<InetAddress[]>() {
+                @Override
+                public InetAddress[] call() throws UnknownHostException {
+                    long start = HttpTimings.nowMillis();
+                    try {
+                        InetAddress[] addresses = upstream.resolve(key);
+                        if (addresses == null || addresses.length == 0) {
+                            throw new UnknownHostException(key);
+                        }
+                        put(key, new Record(addresses.clone(), HttpTimings.nowMillis() + ttl));
+                        Logcat.d(TAG, "resolved " + key + " in ms " + (HttpTimings.nowMillis() - start));
+                        return addresses;
+                    } catch (UnknownHostException e) {
+                        if (negativeTtl > 0) {
+                            put(key, new Record(null, HttpTimings.nowMillis() + negativeTtl));
+                        }
+                        throw e;
+                    }
+                }
+            }).clone();
+        } catch (UnknownHostException e) {
+            throw e;
+        } catch (Exception e) {
+            UnknownHostException error = new UnknownHostException(key);
+            error.initCause(e);
+            throw error;
+        }
+    }
+
+    private void put(String key, Record entry) {
+        synchronized (cache) {
+            Record old = cache.get(key);
+            // a refresh failure must not replace a good entry still in use
+            if (entry.addresses == null && old != null && old.addresses != null
+                    && old.expireAt > HttpTimings.nowMillis()) {
+                return;
+            }
+            cache.put(key, entry);
+        }
+    }
+
+    private ExecutorService getRefresher() {
+        if (refresher == null) {
+            synchronized (this) {
+                if (refresher == null) {
+                    final AtomicInteger index = new AtomicInteger();
+                    refresher = Executors.newFixedThreadPool(REFRESH_POOL_SIZE, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable r) {
+                            Thread t = new Thread(r, "DnsCacheRefresh-" + index.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return refresher;
+    }
+
+    @Override
+    public String toString() {
+        return "DnsCache [maxSize=" + maxSize + ", ttl=" + ttl + ", negativeTtl=" + negativeTtl + ", refreshAhead="
+                + refreshAhead + ", hitCount=" + hitCount + ", negativeHitCount=" + negativeHitCount
+                + ", missCount=" + missCount + ", refreshCount=" + refreshCount + "]";
+    }
+}
@@ -0,0 +1,28 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Hostname lookup used by HttpUtil connections, see {@link HttpUtil#setDnsResolver(DnsResolver)}.
+ */
+public interface DnsResolver {
+    /**
+     * The platform resolver, InetAddress.getAllByName().
+     */
+    DnsResolver SYSTEM = new DnsResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * Blocking.
+     *
+     * @param host
+     * @return non-empty
+     * @throws UnknownHostException - if host cannot be resolved
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
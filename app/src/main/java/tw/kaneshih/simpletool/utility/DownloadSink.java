@@ -0,0 +1,258 @@
+package tw.kaneshih.simpletool.utility;
+
+import android.support.annotation.IntDef;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How {@link HttpUtil#getFileFromUrl(String, File)} writes a response body into its file.
+ * <ul>
+ * <li>{@link #MODE_STREAM}: read into a large heap array, write it to the file (default)</li>
+ * <li>{@link #MODE_TRANSFER}: {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}
+ * straight from the body stream</li>
+ * <li>{@link #MODE_DIRECT_BUFFER}: fill a large direct buffer, then write it to the file in one
+ * call; direct buffers are kept and reused across downloads</li>
+ * </ul>
+ * The body of HttpURLConnection is an InputStream, so no mode avoids the copy into the heap;
+ * transferFrom and the channel wrapper move it in small chunks and add a copy, which is why
+ * {@link #MODE_STREAM} with a large buffer is the default.
+ * With {@link #setPreallocate(boolean)} the file is extended to the Content-Length up front and
+ * trimmed back to the bytes really written if the download stops early, so an interrupted part
+ * can still be resumed from its length.
+ * <p>
+ * Install it with {@link HttpUtil#setDownloadSink(DownloadSink)}.
+ */
+public final class DownloadSink {
+    public static final int MODE_STREAM = 0;
+    public static final int MODE_TRANSFER = 1;
+    public static final int MODE_DIRECT_BUFFER = 2;
+
+    @IntDef({MODE_STREAM, MODE_TRANSFER, MODE_DIRECT_BUFFER})
+    public @interface Mode {
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 4;
+
+    private static final String TAG = "DownloadSink";
+
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private volatile int mode = MODE_STREAM;
+    private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    private volatile boolean isPreallocate = false;
+    private volatile int maxPooledBuffers = DEFAULT_MAX_POOLED_BUFFERS;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pooledBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    /**
+     * default is {@link #MODE_STREAM}
+     *
+     * @param mode - {@link #MODE_STREAM}, {@link #MODE_TRANSFER} or {@link #MODE_DIRECT_BUFFER}
+     * @return
+     * @throws IllegalArgumentException - if mode is unknown
+     */
+    public DownloadSink setMode(@Mode int mode) throws IllegalArgumentException {
+        if (mode != MODE_STREAM && mode != MODE_TRANSFER && mode != MODE_DIRECT_BUFFER) {
+            throw new IllegalArgumentException("invalid mode:" + mode);
+        }
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_BUFFER_SIZE}, pooled direct buffers of another size are dropped
+     *
+     * @param bufferSize - unit is byte, bytes written to the file per call
+     * @return
+     * @throws IllegalArgumentException - if bufferSize < 4096
+     */
+    public DownloadSink setBufferSize(int bufferSize) throws IllegalArgumentException {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("invalid buffer size:" + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * default is false
+     *
+     * @param isPreallocate - whether to extend the file to Content-Length before writing
+     * @return
+     */
+    public DownloadSink setPreallocate(boolean isPreallocate) {
+        this.isPreallocate = isPreallocate;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_POOLED_BUFFERS}
+     *
+     * @param max - direct buffers kept for reuse, 0 to not keep any
+     * @return
+     * @throws IllegalArgumentException - if max < 0
+     */
+    public DownloadSink setMaxPooledBuffers(int max) throws IllegalArgumentException {
+        if (max < 0) {
+            throw new IllegalArgumentException("invalid max pooled buffers:" + max);
+        }
+        this.maxPooledBuffers = max;
+        return this;
+    }
+
+    @Mode
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return direct buffers kept for reuse now
+     */
+    public int getPooledCount() {
+        return pooledCount.get();
+    }
+
+    /**
+     * Read in to the end and write it into file. in is not closed.
+     *
+     * @param in            - body stream
+     * @param file
+     * @param isAppend      - false to start from an empty file
+     * @param contentLength - bytes expected from in, -1 if unknown
+     * @return bytes written
+     * @throws IOException - file keeps the bytes written so far, nothing after them
+     */
+    public long write(InputStream in, File file, boolean isAppend, long contentLength) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        long start = isAppend ? channel.size() : 0;
+        // end of bytes written so far, kept up to date in case the stream breaks
+        long[] position = {start};
+        boolean isComplete = false;
+        try {
+            if (!isAppend) {
+                channel.truncate(0);
+            }
+            if (isPreallocate && contentLength > 0) {
+                raf.setLength(start + contentLength);
+            }
+            switch (mode) {
+                case MODE_TRANSFER:
+                    transfer(in, channel, position);
+                    break;
+                case MODE_DIRECT_BUFFER:
+                    writeByDirectBuffer(in, channel, position);
+                    break;
+                case MODE_STREAM:
+                default:
+                    writeByStream(in, raf, position);
+                    break;
+            }
+            isComplete = true;
+            return position[0] - start;
+        } finally {
+            try {
+                // preallocated but not filled
+                if (channel.size() > position[0]) {
+                    channel.truncate(position[0]);
+                }
+                if (!isComplete) {
+                    Logcat.d(TAG, "stopped, " + (position[0] - start) + " bytes kept - " + file);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private void writeByStream(InputStream in, RandomAccessFile raf, long[] position) throws IOException {
+        raf.seek(position[0]);
+        byte[] buf = new byte[bufferSize];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            raf.write(buf, 0, len);
+            position[0] += len;
+        }
+    }
+
+    private void transfer(InputStream in, FileChannel channel, long[] position) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        while (true) {
+            // position is never past the end of file, transferFrom would do nothing there
+            long transferred = channel.transferFrom(source, position[0], bufferSize);
+            if (transferred <= 0) {
+                // transferFrom can't tell end of stream from an empty read, ask the stream
+                if (in.read() == -1) {
+                    return;
+                }
+                throw new IOException("unexpected byte after transfer ended");
+            }
+            position[0] += transferred;
+        }
+    }
+
+    private void writeByDirectBuffer(InputStream in, FileChannel channel, long[] position) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = obtainBuffer();
+        try {
+            boolean isEnd = false;
+            while (!isEnd) {
+                buffer.clear();
+                // fill it up, one file write per buffer
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) == -1) {
+                        isEnd = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position[0] += channel.write(buffer, position[0]);
+                }
+            }
+        } finally {
+            recycleBuffer(buffer);
+        }
+    }
+
+    private ByteBuffer obtainBuffer() {
+        int size = bufferSize;
+        ByteBuffer buffer;
+        while ((buffer = pooledBuffers.poll()) != null) {
+            pooledCount.decrementAndGet();
+            if (buffer.capacity() == size) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            // buffer size changed while it was in use
+            return;
+        }
+        if (pooledCount.incrementAndGet() > maxPooledBuffers) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        pooledBuffers.offer(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadSink [mode=" + mode + ", bufferSize=" + bufferSize + ", isPreallocate=" + isPreallocate
+                + ", maxPooledBuffers=" + maxPooledBuffers + ", pooledCount=" + pooledCount + "]";
+    }
+}
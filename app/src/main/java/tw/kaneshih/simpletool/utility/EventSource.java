@@ -0,0 +1,428 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Server-Sent Events ("text/event-stream") client built on {@link HttpUtil}: one long-lived GET
+ * whose body is parsed as it arrives, instead of polling with a new connection each time. Events
+ * are delivered to the {@link Listener} in order, on {@link #setCallbackExecutor(Executor)}.
+ * <p>
+ * When the stream ends or fails it reconnects by itself and sends "Last-Event-ID", so the server
+ * can go on from there. The reconnect delay is "retry" of the server or
+ * {@link #setReconnectDelay(long)}, doubled on every failure in a row up to
+ * {@link #setMaxReconnectDelay(long)}. It gives up on 204, on a 200 which is not
+ * "text/event-stream", or on an error status which won't change by trying again, e.g. 404.
+ * <p>
+ * The stream has its own thread and always uses HttpURLConnection, it doesn't go through the
+ * transport, scheduler, hedging or cache. A stream may be quiet for long, so there's no read
+ * timeout unless {@link HttpUtil.Request#setSocketTimeout(int)} was called; if it was, make it
+ * longer than the heartbeat of the server, or a quiet stream is taken as dead and reconnected.
+ */
+public final class EventSource {
+    public static final long DEFAULT_RECONNECT_DELAY = 3000;
+    public static final long DEFAULT_MAX_RECONNECT_DELAY = 60 * 1000;
+
+    private static final String TAG = "EventSource";
+
+    private static final String MEDIA_TYPE = "text/event-stream";
+
+    // even if server asks for less, or a broken server would be hammered
+    private static final long MIN_RECONNECT_DELAY = 100;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    public interface Listener {
+        /**
+         * Connected, events follow.
+         */
+        void onOpen(EventSource source);
+
+        void onEvent(EventSource source, Event event);
+
+        /**
+         * A connection failed, or its stream ended.
+         *
+         * @param source
+         * @param response       - status code and throwable of the connection
+         * @param reconnectDelay - millisecond until the next connection, -1 if it gives up and
+         *                       {@link #onClosed(EventSource)} follows
+         */
+        void onDisconnected(EventSource source, HttpUtil.Response response, long reconnectDelay);
+
+        /**
+         * After {@link #close()} or giving up, nothing is called after this.
+         */
+        void onClosed(EventSource source);
+    }
+
+    public static final class Event {
+        private final String id;
+        private final String type;
+        private final String data;
+
+        Event(String id, String type, String data) {
+            this.id = id;
+            this.type = type;
+            this.data = data;
+        }
+
+        /**
+         * @return id of this event or the one before it, "" if none
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return "event" field, "message" if not set
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return lines of "data" fields joined by LF
+         */
+        public String getData() {
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return "Event [id=" + id + ", type=" + type + ", data=" + data + "]";
+        }
+    }
+
+    private final HttpUtil.Request request;
+    private final Listener listener;
+    private final CancellationToken token = new CancellationToken();
+    private final Object lock = new Object();
+    private final Random random = new Random();
+
+    private volatile Executor callbackExecutor;
+    private volatile long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+    private volatile long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    private volatile String lastEventId = "";
+    private volatile boolean isConnected;
+
+    // guarded by lock
+    private boolean isOpened;
+    private boolean isClosed;
+
+    // of the stream thread
+    private ExecutorService ownExecutor;
+    private long serverRetry = -1;
+
+    /**
+     * @param request  - a GET, it's not changed; headers, SSL and timeouts of it are used, read
+     *                 timeout only if it was set
+     * @param listener
+     * @throws IllegalArgumentException - if request is not a GET or listener is null
+     */
+    public EventSource(HttpUtil.Request request, Listener listener) throws IllegalArgumentException {
+        if (Validator.isNull(request) || request.getMethod() != HttpUtil.Request.GET) {
+            throw new IllegalArgumentException("invalid request:" + request);
+        }
+        if (Validator.isNull(listener)) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        this.request = request;
+        this.listener = listener;
+    }
+
+    /**
+     * default is a background thread of its own
+     *
+     * @param executor - where {@link Listener} is called, should keep the order, e.g. a single
+     *                 thread
+     * @return
+     * @throws IllegalArgumentException - if executor is null
+     */
+    public EventSource setCallbackExecutor(Executor executor) throws IllegalArgumentException {
+        if (Validator.isNull(executor)) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        this.callbackExecutor = executor;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_RECONNECT_DELAY}, "retry" of the server overrides it
+     *
+     * @param delay - unit is millisecond
+     * @return
+     * @throws IllegalArgumentException - if delay < 1
+     */
+    public EventSource setReconnectDelay(long delay) throws IllegalArgumentException {
+        if (delay < 1) {
+            throw new IllegalArgumentException("invalid reconnect delay:" + delay);
+        }
+        this.reconnectDelay = delay;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_RECONNECT_DELAY}
+     *
+     * @param delay - unit is millisecond, cap of the backoff
+     * @return
+     * @throws IllegalArgumentException - if delay < 1
+     */
+    public EventSource setMaxReconnectDelay(long delay) throws IllegalArgumentException {
+        if (delay < 1) {
+            throw new IllegalArgumentException("invalid max reconnect delay:" + delay);
+        }
+        this.maxReconnectDelay = delay;
+        return this;
+    }
+
+    /**
+     * default is none; to resume from an id saved last time, sent with the first connection too
+     *
+     * @param id
+     * @return
+     */
+    public EventSource setLastEventId(String id) {
+        this.lastEventId = (id != null) ? id : "";
+        return this;
+    }
+
+    /**
+     * @return id to resume with, "" if none
+     */
+    public String getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * @return whether the stream is connected now
+     */
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * Start connecting, non-blocking. An instance is opened only once, later calls do nothing.
+     */
+    public void open() {
+        synchronized (lock) {
+            if (isOpened || isClosed) {
+                return;
+            }
+            isOpened = true;
+        }
+        if (callbackExecutor == null) {
+            ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread t = new Thread(r, "EventSourceCallback");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            callbackExecutor = ownExecutor;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runStream();
+            }
+        }, "EventSource");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Disconnect and stop reconnecting, {@link Listener#onClosed(EventSource)} follows if it was
+     * opened. Can be called from any thread.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            lock.notifyAll();
+        }
+        token.cancel();
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return isClosed;
+        }
+    }
+
+    private void runStream() {
+        int failureCount = 0;
+        while (!isClosed()) {
+            HttpUtil.Request req = request.copy();
+            req.replaceHeader("Accept", MEDIA_TYPE);
+            req.replaceHeader("Cache-Control", "no-cache");
+            req.replaceHeader("Last-Event-ID", Validator.isEmpty(lastEventId) ? null : lastEventId);
+            req.setTryCount(1)
+                    .setUseCache(false)
+                    .setCoalescing(false)
+                    .setHedging(false)
+                    .setCancellationToken(token)
+                    .setBodyConsumer(new ResponseBodyConsumer() {
+                        @Override
+                        public void onBody(int statusCode, InputStream in, long contentLength) throws IOException {
+                            if (statusCode == HttpURLConnection.HTTP_OK) {
+                                readStream(in);
+                            }
+                        }
+                    });
+            req.setConsumerMediaType(MEDIA_TYPE);
+            req.setStreamSocketTimeout(0);
+            Logcat.d(TAG, "connect - " + req.getUrl() + ", last event id " + lastEventId);
+            HttpUtil.Response response = req.executeStream();
+            boolean wasConnected = isConnected;
+            isConnected = false;
+
+            if (isClosed()) {
+                break;
+            }
+            int statusCode = response.getStatusCode();
+            // e.g. an error page or a login page of a proxy, which trying again won't change
+            boolean isWrongType = statusCode == HttpURLConnection.HTTP_OK
+                    && response.getThrowable() instanceof ProtocolException;
+            if (isWrongType || !isReconnectable(statusCode)) {
+                Logcat.w(TAG, "give up, status " + statusCode + ", " + response.getThrowable() + " - "
+                        + req.getUrl());
+                post(newDisconnectedCallback(response, -1));
+                break;
+            }
+            // a stream which worked is reconnected right after its delay
+            failureCount = wasConnected ? 0 : failureCount + 1;
+            long delay = getReconnectDelay(failureCount);
+            Logcat.d(TAG, "disconnected, status " + statusCode + ", reconnect after ms " + delay + " - "
+                    + req.getUrl());
+            post(newDisconnectedCallback(response, delay));
+            waitToReconnect(delay);
+        }
+        synchronized (lock) {
+            isClosed = true;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onClosed(EventSource.this);
+            }
+        });
+        if (ownExecutor != null) {
+            // callbacks posted so far still run
+            ownExecutor.shutdown();
+        }
+    }
+
+    private void readStream(InputStream in) throws IOException {
+        EventStreamParser parser = new EventStreamParser(in, lastEventId);
+        isConnected = true;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onOpen(EventSource.this);
+            }
+        });
+        try {
+            Event event;
+            while ((event = parser.next()) != null) {
+                lastEventId = event.getId();
+                final Event e = event;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onEvent(EventSource.this, e);
+                    }
+                });
+            }
+        } finally {
+            lastEventId = parser.getLastEventId();
+            if (parser.getRetry() >= 0) {
+                serverRetry = parser.getRetry();
+            }
+        }
+    }
+
+    /**
+     * @param failureCount - connections in a row which failed, 0 if the last one worked
+     * @return millisecond
+     */
+    private long getReconnectDelay(int failureCount) {
+        long base = Math.max(MIN_RECONNECT_DELAY, (serverRetry >= 0) ? serverRetry : reconnectDelay);
+        if (failureCount <= 1) {
+            return base;
+        }
+        long delay = Math.min(maxReconnectDelay, base << Math.min(failureCount - 1, 20));
+        // jitter, so clients cut off together don't come back together
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * @param statusCode - 0 if there's no response, e.g. network error
+     * @return
+     */
+    private static boolean isReconnectable(int statusCode) {
+        return statusCode == 0
+                || statusCode == HttpURLConnection.HTTP_OK
+                || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || statusCode == HTTP_TOO_MANY_REQUESTS
+                || statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    private void waitToReconnect(long delay) {
+        long end = HttpTimings.nowMillis() + delay;
+        synchronized (lock) {
+            long remaining = delay;
+            while (!isClosed && remaining > 0) {
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    isClosed = true;
+                    return;
+                }
+                remaining = end - HttpTimings.nowMillis();
+            }
+        }
+    }
+
+    private Runnable newDisconnectedCallback(final HttpUtil.Response response, final long delay) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                listener.onDisconnected(EventSource.this, response, delay);
+            }
+        };
+    }
+
+    private void post(final Runnable callback) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "EventSource [url=" + request.getUrl() + ", lastEventId=" + lastEventId + ", isConnected="
+                + isConnected + ", isClosed=" + isClosed() + "]";
+    }
+}
@@ -0,0 +1,200 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Incremental parser of "text/event-stream": lines are read as they arrive and an event is
+ * returned once its blank line is there, so only the event being built is kept in memory. Lines
+ * may end with CR, LF or CRLF. Used by one thread.
+ */
+final class EventStreamParser {
+    /**
+     * chars of one event, a larger one fails the stream
+     */
+    static final int MAX_EVENT_LENGTH = 1024 * 1024;
+
+    private static final String DEFAULT_TYPE = "message";
+
+    private final Reader reader;
+    private final char[] buffer = new char[1024];
+    private int position;
+    private int limit;
+    // last line ended with CR, a LF right after it belongs to that line
+    private boolean isSkipLF;
+    private boolean isStart = true;
+
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder data = new StringBuilder();
+    private String type;
+    private String idBuffer;
+    private String lastEventId;
+    private long retry = -1;
+
+    /**
+     * @param in          - body of the response
+     * @param lastEventId - of the previous connection, "" if none
+     */
+    EventStreamParser(InputStream in, String lastEventId) {
+        this.reader = new InputStreamReader(in, Charset.forName("UTF-8"));
+        this.idBuffer = lastEventId;
+        this.lastEventId = lastEventId;
+    }
+
+    /**
+     * Blocks until an event is complete.
+     *
+     * @return null at the end of the stream, an unfinished event is dropped
+     * @throws IOException
+     */
+    EventSource.Event next() throws IOException {
+        String l;
+        while ((l = readLine()) != null) {
+            if (l.length() == 0) {
+                EventSource.Event event = dispatch();
+                if (event != null) {
+                    return event;
+                }
+            } else {
+                processField(l);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return id of the last event, to resume with; "" if none
+     */
+    String getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * @return reconnect delay asked by the server in millisecond, -1 if none
+     */
+    long getRetry() {
+        return retry;
+    }
+
+    /**
+     * @return null if there's no data, e.g. only an id
+     */
+    private EventSource.Event dispatch() {
+        lastEventId = idBuffer;
+        String eventType = type;
+        type = null;
+        if (data.length() == 0) {
+            return null;
+        }
+        // the LF of the last data line
+        data.setLength(data.length() - 1);
+        String eventData = data.toString();
+        data.setLength(0);
+        return new EventSource.Event(lastEventId, Validator.isEmpty(eventType) ? DEFAULT_TYPE : eventType,
+                eventData);
+    }
+
+    private void processField(String l) throws IOException {
+        int colon = l.indexOf(':');
+        if (colon == 0) {
+            // comment, e.g. heartbeat of server
+            return;
+        }
+        String field;
+        String value;
+        if (colon < 0) {
+            field = l;
+            value = "";
+        } else {
+            field = l.substring(0, colon);
+            value = l.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+        }
+        if ("data".equals(field)) {
+            data.append(value).append('\n');
+            if (data.length() > MAX_EVENT_LENGTH) {
+                throw new IOException("event longer than " + MAX_EVENT_LENGTH);
+            }
+        } else if ("event".equals(field)) {
+            type = value;
+        } else if ("id".equals(field)) {
+            if (value.indexOf('\0') < 0) {
+                idBuffer = value;
+            }
+        } else if ("retry".equals(field)) {
+            if (isDigits(value)) {
+                try {
+                    retry = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        // other fields are ignored
+    }
+
+    /**
+     * @return line without its end, null at the end of the stream
+     * @throws IOException
+     */
+    private String readLine() throws IOException {
+        line.setLength(0);
+        while (true) {
+            if (position == limit) {
+                int count = reader.read(buffer, 0, buffer.length);
+                if (count < 0) {
+                    // a line without its end is dropped
+                    return null;
+                }
+                position = 0;
+                limit = count;
+                continue;
+            }
+            if (isSkipLF) {
+                isSkipLF = false;
+                if (buffer[position] == '\n') {
+                    position++;
+                    continue;
+                }
+            }
+            if (isStart) {
+                isStart = false;
+                if (buffer[position] == '\uFEFF') {
+                    position++;
+                    continue;
+                }
+            }
+            int start = position;
+            while (position < limit) {
+                char c = buffer[position++];
+                if (c == '\n' || c == '\r') {
+                    line.append(buffer, start, position - 1 - start);
+                    isSkipLF = (c == '\r');
+                    return line.toString();
+                }
+            }
+            line.append(buffer, start, position - start);
+            if (line.length() + data.length() > MAX_EVENT_LENGTH) {
+                throw new IOException("event longer than " + MAX_EVENT_LENGTH);
+            }
+        }
+    }
+
+    private static boolean isDigits(String value) {
+        if (value.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -123,6 +123,16 @@ public class FileUtil {
      * @return if success
      */
     public static boolean writeInputStreamToFile(InputStream in, File file) {
+        return writeInputStreamToFile(in, file, false);
+    }
+
+    /**
+     * @param in       - will be closed after job done
+     * @param file
+     * @param isAppend - whether or not to append an existing file
+     * @return if success
+     */
+    public static boolean writeInputStreamToFile(InputStream in, File file, boolean isAppend) {
         if (Validator.isNull(in)) {
             return false;
         }
@@ -133,7 +143,7 @@ public class FileUtil {
         boolean result = false;
         OutputStream out = null;
         try {
-            out = new FileOutputStream(file);
+            out = new FileOutputStream(file, isAppend);
             byte[] buf = new byte[4096];
             int len;
             while ((len = in.read(buf)) > 0) {
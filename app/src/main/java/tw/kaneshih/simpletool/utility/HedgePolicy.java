@@ -0,0 +1,238 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged GETs of {@link HttpUtil}, to cut the tail latency caused by a single stalled connection.
+ * If a GET has no response after the hedge delay, the same GET is sent once more; the first
+ * successful response wins and the other one is canceled.
+ * <p>
+ * The hedge delay of a host is the {@link #setPercentile(double)} of the latency of its primary
+ * tries, e.g. p95 means about 5% of requests get hedged. Hedges are left out: they only race a
+ * primary which is already late, so their times would drag the delay down. Until the host has
+ * {@link #setMinSamples(int)} samples, {@link #setDelay(long)} is used.
+ * <p>
+ * Hedges are paid from a budget, so a slow backend doesn't get twice the load: every request
+ * earns {@link #setBudget(double, int)} ratio of a hedge, saved up to the burst. Install it with
+ * {@link HttpUtil#setHedgePolicy(HedgePolicy)}; only requests with
+ * {@link HttpUtil.Request#setHedging(boolean)} are hedged.
+ */
+public final class HedgePolicy {
+    public static final long DEFAULT_DELAY = 1000;
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_BUDGET_BURST = 10;
+    public static final int DEFAULT_MAX_HOSTS = 32;
+
+    private static final String TAG = "HedgePolicy";
+
+    // below this a hedge is just a duplicate
+    private static final long MIN_DELAY = 10;
+
+    private long delay = DEFAULT_DELAY;
+    private double percentile = DEFAULT_PERCENTILE;
+    private int minSamples = DEFAULT_MIN_SAMPLES;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int budgetBurst = DEFAULT_BUDGET_BURST;
+    private int maxHosts = DEFAULT_MAX_HOSTS;
+
+    // guarded by this
+    private double budget = DEFAULT_BUDGET_BURST;
+    private final LinkedHashMap<String, LatencyHistogram> hosts = new LinkedHashMap<String, LatencyHistogram>(16,
+            0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LatencyHistogram> eldest) {
+            return size() > maxHosts;
+        }
+    };
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWonCount = new AtomicLong();
+    private final AtomicLong budgetExhaustedCount = new AtomicLong();
+
+    /**
+     * default is {@link #DEFAULT_DELAY}
+     *
+     * @param delay - unit is millisecond, hedge delay of hosts without enough samples
+     * @return
+     * @throws IllegalArgumentException - if delay < 10
+     */
+    public synchronized HedgePolicy setDelay(long delay) throws IllegalArgumentException {
+        if (delay < MIN_DELAY) {
+            throw new IllegalArgumentException("invalid delay:" + delay);
+        }
+        this.delay = delay;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_PERCENTILE}
+     *
+     * @param percentile - 0.5 ~ 1, or 0 to always use {@link #setDelay(long)}
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public synchronized HedgePolicy setPercentile(double percentile) throws IllegalArgumentException {
+        if (percentile != 0 && (percentile < 0.5 || percentile > 1)) {
+            throw new IllegalArgumentException("invalid percentile:" + percentile);
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MIN_SAMPLES}
+     *
+     * @param minSamples - latencies of a host needed before its percentile is trusted, >= 1
+     * @return
+     * @throws IllegalArgumentException - if minSamples < 1
+     */
+    public synchronized HedgePolicy setMinSamples(int minSamples) throws IllegalArgumentException {
+        if (minSamples < 1) {
+            throw new IllegalArgumentException("invalid min samples:" + minSamples);
+        }
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_BUDGET_RATIO} and {@link #DEFAULT_BUDGET_BURST}, i.e. at most
+     * about 10% extra requests
+     *
+     * @param ratio - hedges earned per request, 0 ~ 1
+     * @param burst - hedges which can be saved up, >= 1
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public synchronized HedgePolicy setBudget(double ratio, int burst) throws IllegalArgumentException {
+        if (ratio < 0 || ratio > 1 || burst < 1) {
+            throw new IllegalArgumentException("invalid budget:" + ratio + ", burst " + burst);
+        }
+        this.budgetRatio = ratio;
+        this.budgetBurst = burst;
+        this.budget = Math.min(budget, burst);
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_HOSTS}
+     *
+     * @param maxHosts - hosts whose latency is kept, least recently used ones are dropped
+     * @return
+     * @throws IllegalArgumentException - if maxHosts < 1
+     */
+    public synchronized HedgePolicy setMaxHosts(int maxHosts) throws IllegalArgumentException {
+        if (maxHosts < 1) {
+            throw new IllegalArgumentException("invalid max hosts:" + maxHosts);
+        }
+        this.maxHosts = maxHosts;
+        return this;
+    }
+
+    /**
+     * @param hostKey - see {@link HttpConnectionPool#getHostKey(java.net.URL)}
+     * @return millisecond a GET to host waits for its response before it's hedged
+     */
+    public synchronized long getHedgeDelay(String hostKey) {
+        LatencyHistogram histogram = hosts.get(hostKey);
+        if (percentile == 0 || histogram == null || histogram.getCount() < minSamples) {
+            return delay;
+        }
+        return Math.max(MIN_DELAY, histogram.getPercentile(percentile));
+    }
+
+    public synchronized void clear() {
+        hosts.clear();
+        budget = budgetBurst;
+    }
+
+    // -- statistics --
+
+    /**
+     * @return GETs which could be hedged
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return hedges sent
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * @return hedges whose response came first and was used
+     */
+    public long getHedgeWonCount() {
+        return hedgeWonCount.get();
+    }
+
+    /**
+     * @return GETs which were due a hedge but got none because the budget was used up
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhaustedCount.get();
+    }
+
+    public void resetStatistics() {
+        requestCount.set(0);
+        hedgeCount.set(0);
+        hedgeWonCount.set(0);
+        budgetExhaustedCount.set(0);
+    }
+
+    // -- for HttpUtil --
+
+    /**
+     * A GET is started, earn its part of the budget.
+     */
+    synchronized void onRequest() {
+        requestCount.incrementAndGet();
+        budget = Math.min(budgetBurst, budget + budgetRatio);
+    }
+
+    /**
+     * @return whether a hedge may be sent, it's paid if so
+     */
+    synchronized boolean tryHedge() {
+        if (budget < 1) {
+            budgetExhaustedCount.incrementAndGet();
+            Logcat.d(TAG, "no budget for hedge");
+            return false;
+        }
+        budget -= 1;
+        hedgeCount.incrementAndGet();
+        return true;
+    }
+
+    void onHedgeWon() {
+        hedgeWonCount.incrementAndGet();
+    }
+
+    /**
+     * @param hostKey
+     * @param millis  - how long the primary try took, or ran until its hedge won
+     */
+    synchronized void recordLatency(String hostKey, long millis) {
+        LatencyHistogram histogram = hosts.get(hostKey);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            hosts.put(hostKey, histogram);
+        }
+        histogram.record(millis);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HedgePolicy [delay=" + delay + ", percentile=" + percentile + ", minSamples=" + minSamples
+                + ", budget=" + budget + "/" + budgetBurst + " (+" + budgetRatio + "), requestCount=" + requestCount
+                + ", hedgeCount=" + hedgeCount + ", hedgeWonCount=" + hedgeWonCount
+                + ", budgetExhaustedCount=" + budgetExhaustedCount + ", hosts=" + hosts.keySet() + "]";
+    }
+}
@@ -0,0 +1,176 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * One GET and its hedge, see {@link HedgePolicy}. The request itself is the primary try; the hedge
+ * is a copy of it, so each of them can be canceled alone.
+ */
+final class HedgedGet {
+    private static final String TAG = "HedgedGet";
+
+    private final HttpUtil.Request primary;
+    private final HedgePolicy policy;
+    private final String hostKey;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private HttpTransport.Callback callback;
+    private long startTime;
+
+    // guarded by this
+    private HttpUtil.Request hedge;
+    private ScheduledFuture<?> hedgeTimer;
+    private int inFlightCount;
+    private boolean isDone;
+    private HttpUtil.Response result;
+
+    HedgedGet(HttpUtil.Request request, HedgePolicy policy) {
+        this.primary = request;
+        this.policy = policy;
+        this.hostKey = request.getHostKey();
+    }
+
+    /**
+     * Blocking, the primary try runs on the calling thread.
+     *
+     * @return response of the winner
+     */
+    HttpUtil.Response execute() {
+        start();
+        HttpUtil.Response response = HttpUtil.executeLimited(primary);
+        onResponse(primary, response);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelHedge();
+            return response;
+        }
+        return result;
+    }
+
+    /**
+     * Non-blocking.
+     *
+     * @param callback - gets response of the winner
+     */
+    void enqueue(HttpTransport.Callback callback) {
+        this.callback = callback;
+        start();
+        HttpUtil.enqueueLimited(primary, newCallback(primary, null));
+    }
+
+    private void start() {
+        policy.onRequest();
+        startTime = HttpTimings.now();
+        long delay = policy.getHedgeDelay(hostKey);
+        synchronized (this) {
+            inFlightCount = 1;
+            hedgeTimer = HttpTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendHedge();
+                }
+            }, delay);
+        }
+    }
+
+    private void sendHedge() {
+        HttpUtil.Request copy;
+        synchronized (this) {
+            if (isDone || primary.isCanceled() || !policy.tryHedge()) {
+                return;
+            }
+            copy = primary.copy();
+            hedge = copy;
+            inFlightCount++;
+        }
+        Logcat.d(TAG, "no response after ms " + (HttpTimings.now() - startTime) / 1000000 + ", hedge - "
+                + primary.getUrl());
+        // canceled by the token of the request too
+        HttpUtil.enqueueLimited(copy, newCallback(copy, copy.watchToken()));
+    }
+
+    private HttpTransport.Callback newCallback(final HttpUtil.Request request, final Runnable watch) {
+        return new HttpTransport.Callback() {
+            @Override
+            public void onResponse(HttpUtil.Response response) {
+                request.unwatchToken(watch);
+                HedgedGet.this.onResponse(request, response);
+            }
+        };
+    }
+
+    private void onResponse(HttpUtil.Request request, HttpUtil.Response response) {
+        boolean isSuccess = isSuccess(response);
+        HttpUtil.Request loser = null;
+        ScheduledFuture<?> timer;
+        synchronized (this) {
+            inFlightCount--;
+            if (request == primary) {
+                recordPrimary(isSuccess);
+            }
+            if (isDone) {
+                // the loser, canceled or just too late
+                return;
+            }
+            if (!isSuccess && inFlightCount > 0) {
+                // the other one may still make it
+                return;
+            }
+            isDone = true;
+            result = response;
+            timer = hedgeTimer;
+            if (inFlightCount > 0) {
+                loser = (request == primary) ? hedge : primary;
+            }
+        }
+        timer.cancel(false);
+        if (loser != null) {
+            loser.cancel();
+        }
+        if (isSuccess && request != primary) {
+            policy.onHedgeWon();
+            Logcat.d(TAG, "hedge won - " + primary.getUrl());
+        }
+        latch.countDown();
+        if (callback != null) {
+            callback.onResponse(response);
+        }
+    }
+
+    /**
+     * Latency of the host is learned from primary tries only. A hedge is raced against a primary
+     * already late, so its time would pull the delay down; a primary beaten by its hedge counts
+     * with the time it was canceled, which is less than it would have taken but still above the
+     * delay, so the percentile stays where it is.
+     */
+    private void recordPrimary(boolean isSuccess) {
+        long millis = (HttpTimings.now() - startTime) / 1000000;
+        if (isSuccess) {
+            policy.recordLatency(hostKey, millis);
+        } else if (isDone && result != null && isSuccess(result)) {
+            // the hedge won and canceled it
+            policy.recordLatency(hostKey, millis);
+        }
+    }
+
+    private void cancelHedge() {
+        HttpUtil.Request copy;
+        synchronized (this) {
+            isDone = true;
+            copy = hedge;
+            hedgeTimer.cancel(false);
+        }
+        if (copy != null) {
+            copy.cancel();
+        }
+    }
+
+    /**
+     * Any response from the server but 5xx, same as {@link CircuitBreaker}.
+     */
+    private static boolean isSuccess(HttpUtil.Response response) {
+        return response.getStatusCode() > 0 && response.getStatusCode() < 500;
+    }
+}
@@ -0,0 +1,286 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs many independent {@link HttpUtil.Request}s with at most N in flight at a time, e.g.
+ * <pre>
+ * List&lt;Response&gt; responses = new HttpBatch().setParallelism(8).setTimeout(10000)
+ *         .addAll(requests).execute();
+ * </pre>
+ * One failed request doesn't stop the rest, it just gets a {@link HttpUtil.Response} with
+ * {@link HttpUtil.Response#getThrowable()}. Requests go through
+ * {@link HttpUtil.Request#enqueue(HttpTransport.Callback)}, so the transport (and
+ * {@link RequestScheduler} if installed) may limit them further, e.g.
+ * {@link UrlConnectionTransport} runs at most its pool size at a time.
+ */
+public final class HttpBatch {
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final String TAG = "HttpBatch";
+
+    private final List<HttpUtil.Request> requests = new ArrayList<>();
+    private int parallelism = DEFAULT_PARALLELISM;
+    private long timeout = 0;
+
+    public interface Listener {
+        /**
+         * Called once per request as it completes, on a background thread of the transport.
+         *
+         * @param index    - position of the request in the batch
+         * @param request
+         * @param response - non-null
+         */
+        void onResponse(int index, HttpUtil.Request request, HttpUtil.Response response);
+
+        /**
+         * @param responses - all responses in the order of requests
+         */
+        void onComplete(List<HttpUtil.Response> responses);
+    }
+
+    /**
+     * default is {@link #DEFAULT_PARALLELISM}
+     *
+     * @param parallelism - max requests in flight at a time
+     * @return
+     * @throws IllegalArgumentException - if parallelism < 1
+     */
+    public HttpBatch setParallelism(int parallelism) throws IllegalArgumentException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("invalid parallelism:" + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * default is 0, no deadline
+     *
+     * @param timeout - unit is millisecond, for the whole batch; requests not done by then get a
+     *                {@link TimeoutException} and are canceled, requests not started yet are not
+     *                sent
+     * @return
+     * @throws IllegalArgumentException - if timeout < 0
+     */
+    public HttpBatch setTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("invalid timeout:" + timeout);
+        }
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param request
+     * @return
+     * @throws IllegalArgumentException - if request is null
+     */
+    public HttpBatch add(HttpUtil.Request request) throws IllegalArgumentException {
+        if (Validator.isNull(request)) {
+            throw new IllegalArgumentException("request is null");
+        }
+        requests.add(request);
+        return this;
+    }
+
+    /**
+     * @param requests
+     * @return
+     * @throws IllegalArgumentException - if requests is null or contains null
+     */
+    public HttpBatch addAll(Collection<HttpUtil.Request> requests) throws IllegalArgumentException {
+        if (Validator.isNull(requests)) {
+            throw new IllegalArgumentException("requests is null");
+        }
+        for (HttpUtil.Request request : requests) {
+            add(request);
+        }
+        return this;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Blocking.
+     *
+     * @return responses in the order of requests, none is null
+     */
+    public List<HttpUtil.Response> execute() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Run run = start(new Listener() {
+            @Override
+            public void onResponse(int index, HttpUtil.Request request, HttpUtil.Response response) {
+            }
+
+            @Override
+            public void onComplete(List<HttpUtil.Response> responses) {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            run.finish(e);
+        }
+        return run.getResponses();
+    }
+
+    /**
+     * Non-blocking, results are streamed to listener as they complete.
+     *
+     * @param listener
+     * @throws IllegalArgumentException - if listener is null
+     */
+    public void enqueue(Listener listener) throws IllegalArgumentException {
+        if (Validator.isNull(listener)) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        start(listener);
+    }
+
+    private Run start(Listener listener) {
+        Run run = new Run(new ArrayList<>(requests), parallelism, listener);
+        if (timeout > 0) {
+            run.deadline = HttpTimer.schedule(run, timeout);
+        }
+        run.launch();
+        return run;
+    }
+
+    /**
+     * State of one execution, the deadline task is itself.
+     */
+    private static final class Run implements Runnable {
+        private final List<HttpUtil.Request> requests;
+        private final int parallelism;
+        private final Listener listener;
+        private final HttpUtil.Response[] responses;
+        private ScheduledFuture<?> deadline;
+
+        // guarded by this
+        private int nextIndex;
+        private int inFlightCount;
+        private int doneCount;
+        private boolean isFinished;
+
+        private Run(List<HttpUtil.Request> requests, int parallelism, Listener listener) {
+            this.requests = requests;
+            this.parallelism = parallelism;
+            this.listener = listener;
+            this.responses = new HttpUtil.Response[requests.size()];
+        }
+
+        private void launch() {
+            while (true) {
+                final int index;
+                synchronized (this) {
+                    if (isFinished || nextIndex >= requests.size() || inFlightCount >= parallelism) {
+                        break;
+                    }
+                    index = nextIndex++;
+                    inFlightCount++;
+                }
+                try {
+                    requests.get(index).enqueue(new HttpTransport.Callback() {
+                        @Override
+                        public void onResponse(HttpUtil.Response response) {
+                            onDone(index, response);
+                        }
+                    });
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    onDone(index, HttpUtil.buildResponse(requests.get(index), 0, null, null, null, e, 0, null));
+                }
+            }
+            checkComplete();
+        }
+
+        private void onDone(int index, HttpUtil.Response response) {
+            synchronized (this) {
+                inFlightCount--;
+                if (isFinished || responses[index] != null) {
+                    // too late, the deadline took its place
+                    return;
+                }
+                responses[index] = response;
+                doneCount++;
+            }
+            try {
+                listener.onResponse(index, requests.get(index), response);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            launch();
+        }
+
+        private void checkComplete() {
+            synchronized (this) {
+                if (isFinished || doneCount < requests.size()) {
+                    return;
+                }
+                isFinished = true;
+            }
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            listener.onComplete(Collections.unmodifiableList(Arrays.asList(responses)));
+        }
+
+        @Override
+        public void run() {
+            Logcat.w(TAG, "deadline exceeded");
+            finish(new TimeoutException("batch deadline exceeded"));
+        }
+
+        /**
+         * Fill the rest with t, cancel those in flight and complete now.
+         */
+        private void finish(Throwable t) {
+            List<Integer> filled = new ArrayList<>();
+            int startedCount;
+            synchronized (this) {
+                if (isFinished) {
+                    return;
+                }
+                for (int i = 0; i < responses.length; i++) {
+                    if (responses[i] == null) {
+                        responses[i] = HttpUtil.buildResponse(requests.get(i), 0, null, null, null, t, 0, null);
+                        filled.add(i);
+                    }
+                }
+                doneCount = responses.length;
+                startedCount = nextIndex;
+                nextIndex = requests.size();
+            }
+            // or they keep a connection and a thread of the transport after the batch is over
+            for (int index : filled) {
+                if (index < startedCount) {
+                    requests.get(index).cancel();
+                }
+            }
+            for (int index : filled) {
+                try {
+                    listener.onResponse(index, requests.get(index), responses[index]);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+            checkComplete();
+        }
+
+        private synchronized List<HttpUtil.Response> getResponses() {
+            return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(responses)));
+        }
+    }
+}
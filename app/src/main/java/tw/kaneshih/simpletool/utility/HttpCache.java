@@ -0,0 +1,748 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU disk cache of GET responses, install it with
+ * {@link HttpUtil#setCache(HttpCache)}.
+ * <p>
+ * Freshness follows Cache-Control (max-age, no-cache, no-store, must-revalidate) and Expires,
+ * with the usual 10% heuristic of Last-Modified when neither is given. A stale entry with ETag or
+ * Last-Modified is revalidated with If-None-Match / If-Modified-Since; a 304 returns the cached
+ * body.
+ * <p>
+ * Entries are keyed by full URL (with query). Responses varying on request headers other than
+ * Accept-Encoding are not stored, and requests with Authorization or Cookie don't use the cache, so
+ * a response is never served to another user. The decoded body is stored, so compression doesn't
+ * matter. Response headers are stored too, except those of the transfer and Set-Cookie; a 304
+ * updates them.
+ */
+public final class HttpCache {
+    private static final String TAG = "HttpCache";
+
+    private static final String SUFFIX_META = ".0";
+    private static final String SUFFIX_BODY = ".1";
+    private static final String SUFFIX_TMP = ".tmp";
+
+    private static final String META_URL = "url";
+    private static final String META_RECEIVED_AT = "receivedAt";
+    private static final String META_ETAG = "ETag";
+    private static final String META_LAST_MODIFIED = "Last-Modified";
+    private static final String META_CACHE_CONTROL = "Cache-Control";
+    private static final String META_EXPIRES = "Expires";
+    private static final String META_DATE = "Date";
+    private static final String META_AGE = "Age";
+    private static final String META_CONTENT_TYPE = "Content-Type";
+    // "header.0" = "Name:value", ...
+    private static final String META_HEADER_PREFIX = "header.";
+
+    private static final String[] REVALIDATION_HEADERS = {
+            META_ETAG, META_LAST_MODIFIED, META_CACHE_CONTROL, META_EXPIRES, META_DATE, META_AGE
+    };
+
+    // of the transfer, not of the decoded body stored; cookies belong to the response they came in
+    private static final String[] UNSTORED_HEADERS = {
+            "Content-Encoding", "Content-Length", "Transfer-Encoding", "Connection", "Keep-Alive", "Set-Cookie",
+            "Set-Cookie2"
+    };
+
+    private final File directory;
+    private final long maxSize;
+
+    // key -> size on disk, in access order
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private boolean isInitialized;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+    private final AtomicLong revalidationHitCount = new AtomicLong();
+
+    /**
+     * A cached response.
+     */
+    public static final class Entry {
+        private final String key;
+        private final Properties meta;
+        private final File bodyFile;
+
+        private Entry(String key, Properties meta, File bodyFile) {
+            this.key = key;
+            this.meta = meta;
+            this.bodyFile = bodyFile;
+        }
+
+        public String getUrl() {
+            return meta.getProperty(META_URL);
+        }
+
+        public String getETag() {
+            return meta.getProperty(META_ETAG);
+        }
+
+        public String getLastModified() {
+            return meta.getProperty(META_LAST_MODIFIED);
+        }
+
+        public String getContentType() {
+            return meta.getProperty(META_CONTENT_TYPE);
+        }
+
+        /**
+         * @return headers of the stored response, in the order received
+         */
+        public Map<String, List<String>> getHeaders() {
+            return readHeaders(meta);
+        }
+
+        File getBodyFile() {
+            return bodyFile;
+        }
+
+        long getReceivedAt() {
+            try {
+                return Long.parseLong(meta.getProperty(META_RECEIVED_AT, "0"));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * @param now - epoch millisecond
+         * @return whether it can be used without asking server
+         */
+        public boolean isFresh(long now) {
+            String cacheControl = meta.getProperty(META_CACHE_CONTROL);
+            if (hasDirective(cacheControl, "no-cache")) {
+                return false;
+            }
+            return getAge(now) < getFreshnessLifetime();
+        }
+
+        /**
+         * @return whether a conditional request can be made
+         */
+        public boolean isRevalidatable() {
+            return !Validator.isEmpty(getETag()) || !Validator.isEmpty(getLastModified());
+        }
+
+        private long getAge(long now) {
+            long age = Math.max(0, now - getReceivedAt());
+            long ageHeader = parseSeconds(meta.getProperty(META_AGE));
+            if (ageHeader > 0) {
+                age += ageHeader * 1000;
+            }
+            return age;
+        }
+
+        private long getFreshnessLifetime() {
+            long maxAge = getDirectiveSeconds(meta.getProperty(META_CACHE_CONTROL), "max-age");
+            if (maxAge >= 0) {
+                return maxAge * 1000;
+            }
+            long date = HttpDate.parse(meta.getProperty(META_DATE));
+            long base = date != -1 ? date : getReceivedAt();
+            String expires = meta.getProperty(META_EXPIRES);
+            if (!Validator.isEmpty(expires)) {
+                // invalid Expires (e.g. "0") means already expired
+                long expiresAt = HttpDate.parse(expires);
+                return expiresAt != -1 ? Math.max(0, expiresAt - base) : 0;
+            }
+            long lastModified = HttpDate.parse(getLastModified());
+            if (lastModified != -1 && lastModified < base) {
+                return (base - lastModified) / 10;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [url=" + getUrl() + ", meta=" + meta + "]";
+        }
+    }
+
+    /**
+     * Writes a response body into cache while it's being read, see {@link #wrap(InputStream)}.
+     */
+    final class Editor {
+        private final String key;
+        private final Properties meta;
+        private final File tmpBody;
+        private final File tmpMeta;
+        private OutputStream out;
+        private boolean isEof;
+        private boolean isFailed;
+        private long written;
+        private boolean isDone;
+
+        private Editor(String key, Properties meta) throws IOException {
+            this.key = key;
+            this.meta = meta;
+            this.tmpBody = File.createTempFile(key, SUFFIX_BODY + SUFFIX_TMP, directory);
+            this.tmpMeta = File.createTempFile(key, SUFFIX_META + SUFFIX_TMP, directory);
+            this.out = new FileOutputStream(tmpBody);
+        }
+
+        /**
+         * @param in - decoded body
+         * @return stream to read instead of in, everything read is also written into cache
+         */
+        InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b == -1) {
+                        isEof = true;
+                    } else {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n == -1) {
+                        isEof = true;
+                    } else {
+                        write(b, off, n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // skipped bytes would be missing in cache
+                    isFailed = true;
+                    return in.skip(n);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (isFailed) {
+                return;
+            }
+            written += len;
+            if (written > maxSize) {
+                isFailed = true;
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                e.printStackTrace();
+                isFailed = true;
+            }
+        }
+
+        /**
+         * Commit if the whole body has been read, otherwise abort.
+         */
+        void commit() {
+            if (isDone) {
+                return;
+            }
+            if (!isEof || isFailed) {
+                abort();
+                return;
+            }
+            isDone = true;
+            boolean isClosed = closeOut();
+            if (isClosed && writeMeta(tmpMeta, meta)) {
+                HttpCache.this.commit(key, tmpMeta, tmpBody);
+            } else {
+                tmpBody.delete();
+                tmpMeta.delete();
+            }
+        }
+
+        void abort() {
+            if (isDone) {
+                return;
+            }
+            isDone = true;
+            closeOut();
+            tmpBody.delete();
+            tmpMeta.delete();
+        }
+
+        private boolean closeOut() {
+            try {
+                out.close();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param directory - used by this cache only, created if not exists
+     * @param maxSize   - unit is byte
+     * @throws IllegalArgumentException - if directory is null or maxSize < 1
+     */
+    public HttpCache(File directory, long maxSize) throws IllegalArgumentException {
+        if (Validator.isNull(directory)) {
+            throw new IllegalArgumentException("cache directory is null");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("invalid max size:" + maxSize);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getSize() {
+        initIfNeeded();
+        return size;
+    }
+
+    /**
+     * @return responses served from cache without network
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return requests that had no usable entry
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return conditional requests sent for stale entries
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * @return conditional requests answered by 304
+     */
+    public long getRevalidationHitCount() {
+        return revalidationHitCount.get();
+    }
+
+    public void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        revalidationCount.set(0);
+        revalidationHitCount.set(0);
+    }
+
+    void recordHit() {
+        hitCount.incrementAndGet();
+    }
+
+    void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        revalidationCount.incrementAndGet();
+    }
+
+    void recordRevalidationHit() {
+        revalidationHitCount.incrementAndGet();
+    }
+
+    private static String getKey(String url) {
+        return EncUtil.encrypt(url, "MD5");
+    }
+
+    /**
+     * @param url
+     * @return null if not cached
+     */
+    public synchronized Entry get(String url) {
+        initIfNeeded();
+        String key = getKey(url);
+        if (key == null || !lru.containsKey(key)) {
+            return null;
+        }
+        Properties meta = readMeta(new File(directory, key + SUFFIX_META));
+        File body = new File(directory, key + SUFFIX_BODY);
+        if (meta == null || !body.isFile() || !url.equals(meta.getProperty(META_URL))) {
+            removeByKey(key);
+            return null;
+        }
+        lru.get(key);
+        return new Entry(key, meta, body);
+    }
+
+    public synchronized void remove(String url) {
+        initIfNeeded();
+        String key = getKey(url);
+        if (key != null) {
+            removeByKey(key);
+        }
+    }
+
+    public synchronized void evictAll() {
+        initIfNeeded();
+        for (String key : new ArrayList<>(lru.keySet())) {
+            removeByKey(key);
+        }
+    }
+
+    /**
+     * @param url
+     * @param conn - a 200 response of GET
+     * @return null if the response should not be cached
+     */
+    Editor edit(String url, HttpURLConnection conn) {
+        String cacheControl = conn.getHeaderField(META_CACHE_CONTROL);
+        if (hasDirective(cacheControl, "no-store")) {
+            return null;
+        }
+        String vary = conn.getHeaderField("Vary");
+        if (!Validator.isEmpty(vary) && !"accept-encoding".equalsIgnoreCase(vary.trim())) {
+            return null;
+        }
+        if (conn.getContentLength() > maxSize) {
+            return null;
+        }
+        Properties meta = new Properties();
+        meta.setProperty(META_URL, url);
+        copyHeaders(meta, conn);
+        writeHeaders(meta, conn.getHeaderFields());
+        String contentType = conn.getHeaderField(META_CONTENT_TYPE);
+        if (contentType != null) {
+            meta.setProperty(META_CONTENT_TYPE, contentType);
+        }
+        Entry probe = new Entry(null, meta, null);
+        if (!probe.isFresh(System.currentTimeMillis()) && !probe.isRevalidatable()) {
+            // can never be used
+            return null;
+        }
+        String key = getKey(url);
+        if (key == null) {
+            return null;
+        }
+        synchronized (this) {
+            initIfNeeded();
+        }
+        try {
+            return new Editor(key, meta);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Refresh freshness info of entry from a 304 response.
+     *
+     * @param entry
+     * @param conn  - the 304 response
+     * @return updated entry
+     */
+    synchronized Entry update(Entry entry, HttpURLConnection conn) {
+        Properties meta = new Properties();
+        meta.putAll(entry.meta);
+        // Age of the old response doesn't apply to the new one
+        meta.remove(META_AGE);
+        copyHeaders(meta, conn);
+        Map<String, List<String>> headers = readHeaders(meta);
+        for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            if (name == null || isUnstored(name)) {
+                continue;
+            }
+            for (Iterator<String> it = headers.keySet().iterator(); it.hasNext(); ) {
+                if (name.equalsIgnoreCase(it.next())) {
+                    it.remove();
+                }
+            }
+            headers.put(name, header.getValue());
+        }
+        writeHeaders(meta, headers);
+        File metaFile = new File(directory, entry.key + SUFFIX_META);
+        File tmp = new File(directory, entry.key + SUFFIX_META + SUFFIX_TMP);
+        if (writeMeta(tmp, meta) && tmp.renameTo(metaFile)) {
+            return new Entry(entry.key, meta, entry.bodyFile);
+        }
+        tmp.delete();
+        return new Entry(entry.key, meta, entry.bodyFile);
+    }
+
+    private static void copyHeaders(Properties meta, HttpURLConnection conn) {
+        meta.setProperty(META_RECEIVED_AT, String.valueOf(System.currentTimeMillis()));
+        for (String name : REVALIDATION_HEADERS) {
+            String value = conn.getHeaderField(name);
+            if (value != null) {
+                meta.setProperty(name, value);
+            }
+        }
+    }
+
+    private static Map<String, List<String>> readHeaders(Properties meta) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        for (int i = 0; ; i++) {
+            String line = meta.getProperty(META_HEADER_PREFIX + i);
+            if (line == null) {
+                return headers;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon);
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<>();
+                headers.put(name, values);
+            }
+            values.add(line.substring(colon + 1));
+        }
+    }
+
+    /**
+     * @param meta
+     * @param headers - replace those in meta; the status line (null name) and
+     *                {@link #UNSTORED_HEADERS} are left out
+     */
+    private static void writeHeaders(Properties meta, Map<String, List<String>> headers) {
+        for (Iterator<Object> it = meta.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().toString().startsWith(META_HEADER_PREFIX)) {
+                it.remove();
+            }
+        }
+        int index = 0;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (name == null || isUnstored(name) || header.getValue() == null) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                meta.setProperty(META_HEADER_PREFIX + index++, name + ":" + value);
+            }
+        }
+    }
+
+    private static boolean isUnstored(String name) {
+        for (String unstored : UNSTORED_HEADERS) {
+            if (unstored.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void commit(String key, File tmpMeta, File tmpBody) {
+        File metaFile = new File(directory, key + SUFFIX_META);
+        File bodyFile = new File(directory, key + SUFFIX_BODY);
+        removeByKey(key);
+        if (!tmpBody.renameTo(bodyFile) || !tmpMeta.renameTo(metaFile)) {
+            tmpBody.delete();
+            tmpMeta.delete();
+            bodyFile.delete();
+            metaFile.delete();
+            return;
+        }
+        long entrySize = bodyFile.length() + metaFile.length();
+        lru.put(key, entrySize);
+        size += entrySize;
+        trimToSize();
+        Logcat.d(TAG, "commit " + key + ", size: " + size + "/" + maxSize);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            new File(directory, eldest.getKey() + SUFFIX_META).delete();
+            new File(directory, eldest.getKey() + SUFFIX_BODY).delete();
+        }
+    }
+
+    private void removeByKey(String key) {
+        Long entrySize = lru.remove(key);
+        if (entrySize != null) {
+            size -= entrySize;
+        }
+        new File(directory, key + SUFFIX_META).delete();
+        new File(directory, key + SUFFIX_BODY).delete();
+    }
+
+    /**
+     * Build LRU from disk, least recently modified first. Leftover temp files are removed.
+     */
+    private void initIfNeeded() {
+        if (isInitialized) {
+            return;
+        }
+        isInitialized = true;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logcat.e(TAG, "cannot create cache directory: " + directory);
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> metaFiles = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX_TMP)) {
+                file.delete();
+            } else if (name.endsWith(SUFFIX_META)) {
+                metaFiles.add(file);
+            }
+        }
+        Collections.sort(metaFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File metaFile : metaFiles) {
+            String name = metaFile.getName();
+            String key = name.substring(0, name.length() - SUFFIX_META.length());
+            File bodyFile = new File(directory, key + SUFFIX_BODY);
+            if (bodyFile.isFile()) {
+                long entrySize = bodyFile.length() + metaFile.length();
+                lru.put(key, entrySize);
+                size += entrySize;
+            } else {
+                metaFile.delete();
+            }
+        }
+        trimToSize();
+    }
+
+    private static Properties readMeta(File file) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            Properties meta = new Properties();
+            meta.load(in);
+            return meta;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static boolean writeMeta(File file, Properties meta) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            meta.store(out, null);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (Validator.isEmpty(cacheControl)) {
+            return false;
+        }
+        for (String token : cacheControl.split(",")) {
+            String name = token.trim();
+            int eq = name.indexOf('=');
+            if (eq != -1) {
+                name = name.substring(0, eq).trim();
+            }
+            if (directive.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return value in second, or -1 if absent or invalid
+     */
+    private static long getDirectiveSeconds(String cacheControl, String directive) {
+        if (Validator.isEmpty(cacheControl)) {
+            return -1;
+        }
+        for (String token : cacheControl.split(",")) {
+            int eq = token.indexOf('=');
+            if (eq != -1 && directive.equalsIgnoreCase(token.substring(0, eq).trim())) {
+                String value = token.substring(eq + 1).trim();
+                if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return parseSeconds(value);
+            }
+        }
+        return -1;
+    }
+
+    private static long parseSeconds(String value) {
+        if (Validator.isEmpty(value)) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds >= 0 ? seconds : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpCache [directory=" + directory + ", maxSize=" + maxSize + ", hitCount=" + hitCount + ", missCount="
+                + missCount + ", revalidationCount=" + revalidationCount + ", revalidationHitCount="
+                + revalidationHitCount + "]";
+    }
+}
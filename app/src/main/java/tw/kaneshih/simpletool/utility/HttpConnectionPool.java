@@ -0,0 +1,257 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-host keep-alive bookkeeping for {@link HttpUtil}.
+ * <p>
+ * HttpURLConnection owns the real sockets and puts them back to its own pool once a response is
+ * fully read and closed. This class keeps a mirror of that pool, one entry per socket we expect
+ * the platform to keep, so we can enforce our limits (idle count, idle timeout, requests per
+ * connection) by sending "Connection: close" when a socket should not be kept.
+ * <p>
+ * Entries are our own guess, not the sockets: the platform may still open a new socket for an
+ * entry, e.g. when the server closed the idle one. So {@link #getIdleHitCount()} counts requests
+ * which were allowed to reuse a socket, not sockets actually reused; for the latter look at
+ * {@link HttpTimings#getConnect()}, which is 0 on a reused socket.
+ * <p>
+ * Install it with {@link HttpUtil#setConnectionPool(HttpConnectionPool)}.
+ */
+public final class HttpConnectionPool {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+    public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+
+    private static final String TAG = "HttpConnectionPool";
+
+    private volatile int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+    private final Map<String, ArrayDeque<Connection>> idleConnections = new HashMap<>();
+
+    private final AtomicLong idleHitCount = new AtomicLong();
+    private final AtomicLong idleMissCount = new AtomicLong();
+
+    /**
+     * Entry of a keep-alive socket we expect the platform to hold, handed out by
+     * {@link #acquire(URL)} and given back by {@link #release(Connection, boolean)}.
+     */
+    public static final class Connection {
+        private final String hostKey;
+        private int requestCount;
+        private long idleSince;
+        private boolean wasIdle;
+
+        private Connection(String hostKey) {
+            this.hostKey = hostKey;
+        }
+
+        public String getHostKey() {
+            return hostKey;
+        }
+
+        /**
+         * @return how many requests this entry has carried, including the current one
+         */
+        public int getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * @return whether this entry came from the idle ones, i.e. the request may reuse a socket;
+         * the platform decides whether it really does
+         */
+        public boolean wasIdle() {
+            return wasIdle;
+        }
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_IDLE_CONNECTIONS}
+     *
+     * @param max - max idle connections kept per host
+     * @return
+     * @throws IllegalArgumentException - if max < 1
+     */
+    public HttpConnectionPool setMaxIdleConnections(int max) throws IllegalArgumentException {
+        if (max < 1) {
+            throw new IllegalArgumentException("invalid max idle connections:" + max);
+        }
+        this.maxIdleConnections = max;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_IDLE_TIMEOUT}
+     *
+     * @param timeout - unit is millisecond
+     * @return
+     * @throws IllegalArgumentException - if timeout < 1
+     */
+    public HttpConnectionPool setIdleTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("invalid idle timeout:" + timeout);
+        }
+        this.idleTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_REQUESTS_PER_CONNECTION}
+     *
+     * @param max - the max-th request of an entry sends "Connection: close", so the socket it went
+     *            on is closed after it
+     * @return
+     * @throws IllegalArgumentException - if max < 1
+     */
+    public HttpConnectionPool setMaxRequestsPerConnection(int max) throws IllegalArgumentException {
+        if (max < 1) {
+            throw new IllegalArgumentException("invalid max requests per connection:" + max);
+        }
+        this.maxRequestsPerConnection = max;
+        return this;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    /**
+     * @return acquires which found an idle entry of the host, see the class comment
+     */
+    public long getIdleHitCount() {
+        return idleHitCount.get();
+    }
+
+    /**
+     * @return acquires which found no idle entry, the platform opens a new socket for them
+     */
+    public long getIdleMissCount() {
+        return idleMissCount.get();
+    }
+
+    public void resetStatistics() {
+        idleHitCount.set(0);
+        idleMissCount.set(0);
+    }
+
+    static String getHostKey(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * @param url
+     * @return an idle entry of the same host if there's one, otherwise a new one
+     */
+    public Connection acquire(URL url) {
+        String hostKey = getHostKey(url);
+        Connection conn = null;
+        synchronized (idleConnections) {
+            ArrayDeque<Connection> queue = idleConnections.get(hostKey);
+            if (queue != null) {
+                evictExpired(queue, System.currentTimeMillis());
+                // most recently used first, it's the most likely one still alive
+                conn = queue.pollLast();
+                if (queue.isEmpty()) {
+                    idleConnections.remove(hostKey);
+                }
+            }
+        }
+        if (conn != null) {
+            conn.wasIdle = true;
+            idleHitCount.incrementAndGet();
+        } else {
+            conn = new Connection(hostKey);
+            idleMissCount.incrementAndGet();
+        }
+        conn.requestCount++;
+        Logcat.d(TAG, "acquire " + hostKey + " - was idle: " + conn.wasIdle + ", requests: " + conn.requestCount);
+        return conn;
+    }
+
+    /**
+     * @param conn
+     * @return whether the socket should be closed after current request
+     */
+    public boolean isLastRequest(Connection conn) {
+        return conn.requestCount >= maxRequestsPerConnection;
+    }
+
+    /**
+     * @param conn
+     * @param isReusable - false if the response was not fully drained, or server asked to close
+     */
+    public void release(Connection conn, boolean isReusable) {
+        if (Validator.isNull(conn)) {
+            return;
+        }
+        if (!isReusable || isLastRequest(conn)) {
+            return;
+        }
+        conn.idleSince = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            ArrayDeque<Connection> queue = idleConnections.get(conn.hostKey);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                idleConnections.put(conn.hostKey, queue);
+            }
+            evictExpired(queue, conn.idleSince);
+            while (queue.size() >= maxIdleConnections) {
+                queue.pollFirst();
+            }
+            queue.addLast(conn);
+        }
+    }
+
+    /**
+     * @param hostKey
+     * @return idle entries of the host, expired ones are not counted
+     */
+    public int getIdleCount(String hostKey) {
+        synchronized (idleConnections) {
+            ArrayDeque<Connection> queue = idleConnections.get(hostKey);
+            if (queue == null) {
+                return 0;
+            }
+            evictExpired(queue, System.currentTimeMillis());
+            return queue.size();
+        }
+    }
+
+    public void evictAll() {
+        synchronized (idleConnections) {
+            idleConnections.clear();
+        }
+    }
+
+    private void evictExpired(ArrayDeque<Connection> queue, long now) {
+        Iterator<Connection> it = queue.iterator();
+        while (it.hasNext()) {
+            if (now - it.next().idleSince > idleTimeout) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpConnectionPool [maxIdleConnections=" + maxIdleConnections + ", idleTimeout=" + idleTimeout
+                + ", maxRequestsPerConnection=" + maxRequestsPerConnection + ", idleHitCount=" + idleHitCount
+                + ", idleMissCount=" + idleMissCount + "]";
+    }
+}
@@ -0,0 +1,44 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HTTP-date (RFC 7231) parsing.
+ */
+final class HttpDate {
+    // preferred format first, then obsolete ones still seen in the wild
+    private static final String[] FORMATS = {
+            "EEE, dd MMM yyyy HH:mm:ss zzz",
+            "EEEE, dd-MMM-yy HH:mm:ss zzz",
+            "EEE MMM d HH:mm:ss yyyy"
+    };
+
+    private HttpDate() {
+    }
+
+    /**
+     * @param value
+     * @return epoch millisecond, or -1 if empty or invalid
+     */
+    static long parse(String value) {
+        if (Validator.isEmpty(value)) {
+            return -1;
+        }
+        value = value.trim();
+        for (String pattern : FORMATS) {
+            // SimpleDateFormat is not thread-safe
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            format.setLenient(false);
+            try {
+                return format.parse(value).getTime();
+            } catch (ParseException e) {
+                // try next format
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,48 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.support.annotation.NonNull;
+
+/**
+ * The timer thread shared by {@link HttpUtil} and its helpers for what must happen later without
+ * blocking a thread, e.g. deadline of {@link HttpBatch}, hedge of {@link HedgePolicy} or a request
+ * held back by {@link RateLimiter}. Tasks run one by one, so they should be short.
+ */
+final class HttpTimer {
+    private static volatile ScheduledExecutorService timer;
+
+    private HttpTimer() {
+    }
+
+    /**
+     * @param task
+     * @param delay - unit is millisecond
+     * @return to cancel task
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return getTimer().schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            synchronized (HttpTimer.class) {
+                if (timer == null) {
+                    timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable r) {
+                            Thread t = new Thread(r, "HttpTimer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,172 @@
+package tw.kaneshih.simpletool.utility;
+
+/**
+ * Where the time of one try went, see {@link HttpUtil.Response#getTimings()}. Measured with
+ * System.nanoTime(), so not affected by changes of wall clock. Unit of time is millisecond.
+ * <p>
+ * Phases follow each other: queue wait, connect (including DNS), TLS handshake, request write,
+ * time to first byte (server time plus one round trip), body transfer. A phase which didn't
+ * happen, e.g. connect and TLS on a reused keep-alive socket, is 0.
+ */
+public final class HttpTimings {
+    // set by socket factories when TLS handshake starts, on the thread doing the connect
+    private static final ThreadLocal<long[]> TLS_START = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private static final long ORIGIN = System.nanoTime() - 1;
+
+    private int attempt;
+    private long queueWait;
+    private long connect;
+    private long tls;
+    private long write;
+    private long firstByte;
+    private long body;
+    private long bytesSent;
+    private long bytesReceived;
+
+    /**
+     * @return which try these timings belong to, from 1; 0 if served without network
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public long getQueueWait() {
+        return queueWait;
+    }
+
+    public long getConnect() {
+        return connect;
+    }
+
+    public long getTls() {
+        return tls;
+    }
+
+    public long getWrite() {
+        return write;
+    }
+
+    public long getFirstByte() {
+        return firstByte;
+    }
+
+    public long getBody() {
+        return body;
+    }
+
+    /**
+     * @return sum of all phases
+     */
+    public long getTotal() {
+        return queueWait + connect + tls + write + firstByte + body;
+    }
+
+    /**
+     * @return bytes of request body sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return bytes of response body received, as on the wire (before decompression)
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    // -- for transports --
+
+    /**
+     * @return monotonic time in nanosecond, always > 0 so 0 can mean "not happened"
+     */
+    static long now() {
+        return System.nanoTime() - ORIGIN;
+    }
+
+    /**
+     * @return {@link #now()} in millisecond, for deadlines and expiry
+     */
+    static long nowMillis() {
+        return now() / 1000000;
+    }
+
+    private static long toMillis(long start, long end) {
+        return (start > 0 && end > start) ? (end - start) / 1000000 : 0;
+    }
+
+    void setAttempt(int attempt) {
+        this.attempt = attempt;
+    }
+
+    void setQueueWait(long queueWait) {
+        this.queueWait = queueWait;
+    }
+
+    /**
+     * @param start    - {@link #now()} before connect
+     * @param tlsStart - {@link #now()} when TLS handshake started, 0 if none
+     * @param end      - {@link #now()} after connect, including TLS
+     */
+    void setConnect(long start, long tlsStart, long end) {
+        if (tlsStart > 0) {
+            connect = toMillis(start, tlsStart);
+            tls = toMillis(tlsStart, end);
+        } else {
+            connect = toMillis(start, end);
+            tls = 0;
+        }
+    }
+
+    void setWrite(long start, long end) {
+        write = toMillis(start, end);
+    }
+
+    void setFirstByte(long start, long end) {
+        firstByte = toMillis(start, end);
+    }
+
+    void setBody(long start, long end) {
+        body = toMillis(start, end);
+    }
+
+    void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    static void clearTlsStart() {
+        TLS_START.get()[0] = 0;
+    }
+
+    static void markTlsStart() {
+        TLS_START.get()[0] = now();
+    }
+
+    /**
+     * @return what {@link #markTlsStart()} left on this thread since {@link #clearTlsStart()}, 0
+     * if nothing
+     */
+    static long takeTlsStart() {
+        long[] mark = TLS_START.get();
+        long start = mark[0];
+        mark[0] = 0;
+        return start;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpTimings [attempt=" + attempt + ", queueWait=" + queueWait + ", connect=" + connect + ", tls="
+                + tls + ", write=" + write + ", firstByte=" + firstByte + ", body=" + body + ", bytesSent="
+                + bytesSent + ", bytesReceived=" + bytesReceived + "]";
+    }
+}
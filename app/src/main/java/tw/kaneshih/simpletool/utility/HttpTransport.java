@@ -0,0 +1,33 @@
+package tw.kaneshih.simpletool.utility;
+
+/**
+ * Sends a {@link HttpUtil.Request} and builds its {@link HttpUtil.Response}, install one with
+ * {@link HttpUtil#setTransport(HttpTransport)} or {@link HttpUtil.Request#setTransport(HttpTransport)}.
+ *
+ * @see UrlConnectionTransport
+ * @see NioHttpTransport
+ */
+public interface HttpTransport {
+    interface Callback {
+        /**
+         * @param response - non-null
+         */
+        void onResponse(HttpUtil.Response response);
+    }
+
+    /**
+     * Blocking, including all tries of the request.
+     *
+     * @param request - query is already built
+     * @return non-null
+     */
+    HttpUtil.Response execute(HttpUtil.Request request);
+
+    /**
+     * Non-blocking, callback is called on a background thread of the transport.
+     *
+     * @param request  - query is already built
+     * @param callback
+     */
+    void enqueue(HttpUtil.Request request, Callback callback);
+}
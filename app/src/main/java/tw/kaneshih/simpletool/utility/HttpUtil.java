@@ -1,29 +1,36 @@
 package tw.kaneshih.simpletool.utility;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.http.conn.ssl.SSLSocketFactory;
 
@@ -38,15 +45,363 @@ public final class HttpUtil {
 
     public static final int TIMEOUT_VALID_MININUM = 3000;
 
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+    /**
+     * min interval between two calls of {@link ProgressListener}, unit is millisecond
+     */
+    public static final long PROGRESS_INTERVAL = 100;
+
     private static final String TAG = "HttpUtil";
 
     private static final String CRLF = "\r\n";
     private static final String TWO_HYPHENS = "--";
     private static final String BOUNDARY = "**********";
 
+    private static final int DRAIN_BUFFER_SIZE = 4 * 1024;
+    private static final int UPLOAD_BUFFER_SIZE = 8 * 1024;
+    private static final int DECODE_BUFFER_SIZE = 8 * 1024;
+
+    private static final int DOWNLOAD_RESUME_COUNT = 3;
+    private static final String DOWNLOAD_PART_SUFFIX = ".part";
+    private static final String DOWNLOAD_VALIDATOR_SUFFIX = ".validator";
+    static final int DOWNLOAD_COMPLETE = 0;
+    static final int DOWNLOAD_INTERRUPTED = 1;
+    static final int DOWNLOAD_FAILED = 2;
+    static final int DOWNLOAD_CANCELED = 3;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_DEFLATE = "deflate";
+
+    private static volatile HttpConnectionPool connectionPool;
+    private static final String[] KEEP_ALIVE_PROPERTIES = {"http.keepAlive", "http.maxConnections",
+            "http.keepAliveDuration"};
+    // values of KEEP_ALIVE_PROPERTIES before a pool was installed, guarded by itself
+    private static final Map<String, String> SAVED_KEEP_ALIVE_PROPERTIES = new HashMap<>();
+
+    private static final SslContextCache SSL_CONTEXT_CACHE = new SslContextCache();
+
+    private static volatile HttpCache httpCache;
+
+    private static final HttpTransport DEFAULT_TRANSPORT = new UrlConnectionTransport();
+    private static volatile HttpTransport transport = DEFAULT_TRANSPORT;
+    private static volatile RequestScheduler scheduler;
+    private static volatile DnsResolver dnsResolver = DnsResolver.SYSTEM;
+    private static volatile AdaptiveTimeouts adaptiveTimeouts;
+    private static volatile CircuitBreaker circuitBreaker;
+    private static volatile DownloadSink downloadSink = new DownloadSink();
+    private static volatile RateLimiter rateLimiter;
+    private static volatile HedgePolicy hedgePolicy;
+
+    // callers of each coalesced GET in flight, guarded by itself
+    private static final Map<String, SharedGet> COALESCED_GETS = new HashMap<>();
+    private static final AtomicLong COALESCED_GET_COUNT = new AtomicLong();
+    private static final SingleFlight<Boolean> COALESCED_DOWNLOADS = new SingleFlight<>();
+    // callers of each download in COALESCED_DOWNLOADS, guarded by itself
+    private static final Map<String, SharedTransfer> SHARED_DOWNLOADS = new HashMap<>();
+
     private HttpUtil() {
     }
 
+    /**
+     * Keep-alive is off by default: every request sends "Connection: close" and disconnects.
+     * Install a pool to keep sockets alive and reuse them for the same host.
+     * <p>
+     * Platform pool size/duration are read when the first connection is made, so call this
+     * before any request (e.g. in Application#onCreate).
+     *
+     * @param pool - null to turn keep-alive off, the platform properties set for the pool are
+     *             restored to what they were before
+     */
+    public static void setConnectionPool(HttpConnectionPool pool) {
+        synchronized (SAVED_KEEP_ALIVE_PROPERTIES) {
+            HttpConnectionPool previous = connectionPool;
+            if (pool != null) {
+                if (previous == null) {
+                    for (String key : KEEP_ALIVE_PROPERTIES) {
+                        SAVED_KEEP_ALIVE_PROPERTIES.put(key, System.getProperty(key));
+                    }
+                }
+                System.setProperty("http.keepAlive", "true");
+                System.setProperty("http.maxConnections", String.valueOf(pool.getMaxIdleConnections()));
+                System.setProperty("http.keepAliveDuration", String.valueOf(pool.getIdleTimeout()));
+            } else if (previous != null) {
+                previous.evictAll();
+                for (String key : KEEP_ALIVE_PROPERTIES) {
+                    String value = SAVED_KEEP_ALIVE_PROPERTIES.get(key);
+                    if (value != null) {
+                        System.setProperty(key, value);
+                    } else {
+                        System.clearProperty(key);
+                    }
+                }
+                SAVED_KEEP_ALIVE_PROPERTIES.clear();
+            }
+            connectionPool = pool;
+        }
+    }
+
+    /**
+     * @return null if keep-alive is off
+     */
+    public static HttpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * No response cache by default. Once installed, GET requests go through it unless
+     * {@link Request#setUseCache(boolean)} is false.
+     *
+     * @param cache - null to turn response cache off
+     */
+    public static void setCache(HttpCache cache) {
+        httpCache = cache;
+    }
+
+    /**
+     * @return null if response cache is off
+     */
+    public static HttpCache getCache() {
+        return httpCache;
+    }
+
+    /**
+     * default is {@link UrlConnectionTransport}
+     *
+     * @param httpTransport - null to use the default
+     */
+    public static void setTransport(HttpTransport httpTransport) {
+        transport = (httpTransport != null) ? httpTransport : DEFAULT_TRANSPORT;
+    }
+
+    public static HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * No admission control by default, every request goes to network right away. Once installed,
+     * requests and file downloads wait for a slot of it, see {@link Request#setPriority(int)}.
+     *
+     * @param requestScheduler - null to turn it off
+     */
+    public static void setScheduler(RequestScheduler requestScheduler) {
+        scheduler = requestScheduler;
+    }
+
+    /**
+     * @return null if admission control is off
+     */
+    public static RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * default is {@link DnsResolver#SYSTEM}. Used by connections we open ourselves, e.g.
+     * {@link NioHttpTransport}; HttpURLConnection always resolves by the platform.
+     *
+     * @param resolver - e.g. {@link DnsCache}, null to use the default
+     */
+    public static void setDnsResolver(DnsResolver resolver) {
+        dnsResolver = (resolver != null) ? resolver : DnsResolver.SYSTEM;
+    }
+
+    public static DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * Off by default, every request uses its own timeouts. Once installed, requests without
+     * explicit timeouts use the ones derived from latency of the host, see {@link AdaptiveTimeouts}.
+     *
+     * @param timeouts - null to turn it off
+     */
+    public static void setAdaptiveTimeouts(AdaptiveTimeouts timeouts) {
+        adaptiveTimeouts = timeouts;
+    }
+
+    /**
+     * @return null if adaptive timeouts are off
+     */
+    public static AdaptiveTimeouts getAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    /**
+     * Off by default. Once installed, requests to a host which keeps failing fail fast with
+     * {@link CircuitOpenException}, see {@link CircuitBreaker}.
+     *
+     * @param breaker - null to turn it off
+     */
+    public static void setCircuitBreaker(CircuitBreaker breaker) {
+        circuitBreaker = breaker;
+    }
+
+    /**
+     * @return null if circuit breaker is off
+     */
+    public static CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * default is a {@link DownloadSink} with its default settings
+     *
+     * @param sink - how file downloads are written, null to use a default one
+     */
+    public static void setDownloadSink(DownloadSink sink) {
+        downloadSink = (sink != null) ? sink : new DownloadSink();
+    }
+
+    public static DownloadSink getDownloadSink() {
+        return downloadSink;
+    }
+
+    /**
+     * No rate limit by default. Once installed, requests wait for its request limits, and bodies
+     * are slowed down to its upload / download limits, see {@link RateLimiter}.
+     *
+     * @param limiter - null to turn it off
+     */
+    public static void setRateLimiter(RateLimiter limiter) {
+        rateLimiter = limiter;
+    }
+
+    /**
+     * @return null if rate limit is off
+     */
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * No hedging by default. Once installed, GETs with {@link Request#setHedging(boolean)} are sent
+     * once more if they are slow to respond, see {@link HedgePolicy}.
+     *
+     * @param policy - null to turn it off
+     */
+    public static void setHedgePolicy(HedgePolicy policy) {
+        hedgePolicy = policy;
+    }
+
+    /**
+     * @return null if hedging is off
+     */
+    public static HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * @return how many GETs (with {@link Request#setCoalescing(boolean)}) and file downloads got
+     * the result of an identical call already in flight, instead of going to network
+     */
+    public static long getCoalescedCount() {
+        return COALESCED_GET_COUNT.get() + COALESCED_DOWNLOADS.getSharedCount();
+    }
+
+    /**
+     * @return the cache of SSLContext used by {@link Request#setSSLCertificate(String)}, for tuning
+     * and statistics
+     */
+    public static SslContextCache getSslContextCache() {
+        return SSL_CONTEXT_CACHE;
+    }
+
+    /**
+     * Same as {@link #preconnect(Request)} with a GET request of url, so without headers.
+     *
+     * @param url
+     * @return null if url is invalid or it failed
+     */
+    public static HttpTimings preconnect(String url) {
+        Request request;
+        try {
+            request = new Request(Request.GET).setUrl(url);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return preconnect(request);
+    }
+
+    /**
+     * Set up the connection the request will need before it's sent, e.g. when a screen opens:
+     * DNS lookup, TCP connect and TLS handshake (with the SSLContext of
+     * {@link Request#setSSLCertificate(String)} from {@link #getSslContextCache()}). A HEAD of
+     * the URL is sent so the socket carries one full exchange and goes back to the keep-alive
+     * pool, the next request to the host then skips all of it.
+     * <p>
+     * The HEAD carries the headers of the request, e.g. "Authorization", since a server may
+     * refuse a request without them and close the socket.
+     * <p>
+     * Blocking for up to the connection + socket timeout of the request, so call it on a
+     * background thread. Without {@link #setConnectionPool(HttpConnectionPool)} the socket is
+     * closed, only DNS and TLS session are warmed up.
+     *
+     * @param request - url, headers, timeouts and SSL settings are used
+     * @return timings of the setup, {@link HttpTimings#getConnect()} plus
+     * {@link HttpTimings#getTls()} is what the next request saves; null if it failed
+     */
+    public static HttpTimings preconnect(Request request) {
+        URL link;
+        try {
+            link = new URL(request.url);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // for our own connections, e.g. NioHttpTransport
+        try {
+            dnsResolver.resolve(link.getHost());
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        HttpTimings timings = new HttpTimings();
+        HttpURLConnection conn = null;
+        HttpConnectionPool.Connection pooled = null;
+        int statusCode = 0;
+        boolean isConnected = false;
+        Throwable throwable = null;
+        long start = HttpTimings.now();
+        try {
+            pooled = acquirePooledConnection(link);
+            conn = (HttpURLConnection) link.openConnection();
+            conn.setReadTimeout(request.getSocketTimeout());
+            conn.setConnectTimeout(request.getConnectionTimeout());
+            if (request.header != null) {
+                for (Entry<String, String> reqHeaders : request.header.entrySet()) {
+                    conn.setRequestProperty(reqHeaders.getKey(), reqHeaders.getValue());
+                }
+            }
+            conn.setRequestMethod("HEAD");
+            setConnectionSSL(conn, request);
+            setConnectionKeepAlive(conn, pooled);
+
+            HttpTimings.clearTlsStart();
+            conn.connect();
+            isConnected = true;
+            long time = HttpTimings.now();
+            timings.setConnect(start, HttpTimings.takeTlsStart(), time);
+            statusCode = conn.getResponseCode();
+            timings.setFirstByte(time, HttpTimings.now());
+            Logcat.d(TAG, "preconnected, connect " + timings.getConnect() + " ms, tls " + timings.getTls()
+                    + " ms - " + link);
+            return timings;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            throwable = e;
+            return null;
+        } finally {
+            recordLatency(request, timings, isConnected, statusCode, throwable, request.getConnectionTimeout(),
+                    request.getSocketTimeout());
+            if (conn != null) {
+                closeConnection(conn, pooled, statusCode, false);
+            }
+        }
+    }
+
     public static final class Request {
         public static final int GET = 0;
         public static final int POST = 1;
@@ -55,9 +410,36 @@ public final class HttpUtil {
         public @interface Method {
         }
 
+        /**
+         * user is waiting for it
+         */
+        public static final int PRIORITY_INTERACTIVE = 0;
+        /**
+         * likely needed soon, e.g. images of the list
+         */
+        public static final int PRIORITY_PREFETCH = 1;
+        /**
+         * nobody is waiting, e.g. sync, log upload
+         */
+        public static final int PRIORITY_BACKGROUND = 2;
+
+        @IntDef({PRIORITY_INTERACTIVE, PRIORITY_PREFETCH, PRIORITY_BACKGROUND})
+        public @interface Priority {
+        }
+
+        private static final int BODY_STRING = 0;
+        private static final int BODY_BYTES = 1;
+        private static final int BODY_FILE = 2;
+        private static final int BODY_CONSUMER = 3;
+
+        @IntDef({BODY_STRING, BODY_BYTES, BODY_FILE, BODY_CONSUMER})
+        private @interface BodyType {
+        }
+
         // basic
         private @Method int method;
         private String url;
+        private String hostKey;
         private String query;
         private Map<String, String> queryStore;
         private Map<String, String> header;
@@ -66,6 +448,10 @@ public final class HttpUtil {
         private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
         private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
         private int tryCount = DEFAULT_TRY_COUNT;
+        private boolean isSocketTimeoutSet = false;
+        private boolean isConnectionTimeoutSet = false;
+        private RetryPolicy retryPolicy;
+        private Boolean isIdempotent;
 
         // SSL
         private String sslCert;
@@ -73,11 +459,30 @@ public final class HttpUtil {
 
         // advanced
         private boolean isCollectHeader = false;
+        private boolean isAcceptCompression = false;
+        private boolean isCompressRequest = false;
+        private int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+        private boolean isUseCache = true;
+        private boolean isCoalescing = false;
+        private boolean isHedging = false;
+        private HttpTransport transport;
+        private @Priority int priority = PRIORITY_INTERACTIVE;
+        private RateLimiter rateLimiter;
+        private ProgressListener progressListener;
+        private CancellationToken cancellationToken;
 
         // multipart
-        private File file;
-        private String fileParamName;
-        private String fileContentType;
+        private List<FilePart> fileParts;
+
+        // response body
+        private @BodyType int bodyType = BODY_STRING;
+        private File bodyFile;
+        private ResponseBodyConsumer bodyConsumer;
+        private String consumerMediaType;
+
+        // to stop the try in flight from another thread
+        private volatile boolean isCanceled;
+        private volatile Runnable cancelAction;
 
         public Request(@Method int method) throws IllegalArgumentException {
             this.method = method;
@@ -96,6 +501,7 @@ public final class HttpUtil {
                 throw new IllegalArgumentException("invalid URL: " + url);
             }
             this.url = url;
+            this.hostKey = null;
             return this;
         }
 
@@ -167,6 +573,7 @@ public final class HttpUtil {
                 throw new IllegalArgumentException("invalid socket timeout:" + timeout);
             }
             this.socketTimeout = timeout;
+            this.isSocketTimeoutSet = true;
             return this;
         }
 
@@ -181,7 +588,8 @@ public final class HttpUtil {
             if (timeout < TIMEOUT_VALID_MININUM) {
                 throw new IllegalArgumentException("invalid connection timeout:" + timeout);
             }
-            this.socketTimeout = timeout;
+            this.connectionTimeout = timeout;
+            this.isConnectionTimeoutSet = true;
             return this;
         }
 
@@ -200,6 +608,43 @@ public final class HttpUtil {
             return this;
         }
 
+        /**
+         * Without a policy, we try again immediately after any failure, up to
+         * {@link #setTryCount(int)}.
+         *
+         * @param retryPolicy - can be null; we'll use this instance, share it between requests
+         *                    if it keeps state (e.g. retry budget of {@link BackoffRetryPolicy})
+         * @return
+         */
+        public Request setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * default is true for GET and false for POST
+         *
+         * @param isIdempotent - whether it's safe to send this request more than once
+         * @return
+         */
+        public Request setIdempotent(boolean isIdempotent) {
+            this.isIdempotent = isIdempotent;
+            return this;
+        }
+
+        public boolean isIdempotent() {
+            return isIdempotent != null ? isIdempotent : method == GET;
+        }
+
+        @Method
+        public int getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
         /**
          * @param cert
          * @return
@@ -236,102 +681,658 @@ public final class HttpUtil {
         }
 
         /**
-         * @param paramName
-         * @param contentType
-         * @param file        - we'll use this instance
+         * default is false; if true, we send "Accept-Encoding: gzip, deflate" and decode the
+         * body while reading, see {@link Response#getCompressedLength()}
+         *
+         * @param isAcceptCompression
          * @return
-         * @throws IllegalArgumentException - if method is GET, or paramName is empty, or contentType
-         *                                  is empty, or file is null, or has no read permission.
          */
-        public Request setFile(String paramName, String contentType, File file) throws IllegalArgumentException {
-            if (method == GET) {
-                throw new IllegalArgumentException("GET does not support file upload");
-            }
-            if (Validator.isEmpty(paramName)) {
-                throw new IllegalArgumentException("invalid param name: " + paramName);
-            }
-            if (Validator.isEmpty(contentType)) {
-                throw new IllegalArgumentException("invalid content type: " + contentType);
-            }
-            if (Validator.isNull(file) || !file.canRead()) {
-                throw new IllegalArgumentException("file is null or has no read permission: " + file);
-            }
-            this.fileParamName = paramName;
-            this.fileContentType = contentType;
-            this.file = file;
+        public Request setAcceptCompression(boolean isAcceptCompression) {
+            this.isAcceptCompression = isAcceptCompression;
             return this;
         }
 
-        private String getMultipartQuery() {
-            StringBuilder sb = new StringBuilder();
-            for (Entry<String, String> entry : queryStore.entrySet()) {
-                sb.append(TWO_HYPHENS + BOUNDARY + CRLF);
-                sb.append("Content-Disposition: form-data; name=\"").append(entry.getKey()).append("\"").append(CRLF).append(CRLF).append(entry.getValue()).append(CRLF);
-            }
-            return sb.toString();
+        /**
+         * default is false; if true, POST body of at least {@link #setCompressThreshold(int)}
+         * bytes is gzip-compressed while writing and sent with "Content-Encoding: gzip" (and
+         * chunked, as compressed length is unknown up front). Server must accept it.
+         *
+         * @param isCompressRequest
+         * @return
+         */
+        public Request setCompressRequest(boolean isCompressRequest) {
+            this.isCompressRequest = isCompressRequest;
+            return this;
         }
 
-        private String getQuery() {
-            StringBuilder sb = new StringBuilder();
-            for (Entry<String, String> entry : queryStore.entrySet()) {
-                sb.append(entry.getKey()).append("=").append(EncUtil.urlEncode(entry.getValue())).append("&");
-            }
-            if (sb.length() > 0) {
-                sb.deleteCharAt(sb.length() - 1);
+        /**
+         * default is {@link HttpUtil#DEFAULT_COMPRESS_THRESHOLD}, only matters with
+         * {@link #setCompressRequest(boolean)}
+         *
+         * @param threshold - unit is byte, smaller bodies are sent as is since gzip header and
+         *                  CPU cost outweigh the saving
+         * @return
+         * @throws IllegalArgumentException - if threshold < 0
+         */
+        public Request setCompressThreshold(int threshold) throws IllegalArgumentException {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("invalid compress threshold:" + threshold);
             }
-            return sb.toString();
+            this.compressThreshold = threshold;
+            return this;
         }
 
-        private String buildQuery() {
-            if (queryStore == null || queryStore.isEmpty()) {
-                return "";
-            }
-            if (file != null) {
-                return getMultipartQuery();
-            } else {
-                return getQuery();
-            }
+        /**
+         * default is true, only matters for GET when {@link HttpUtil#setCache(HttpCache)} is set. A
+         * request with Authorization or Cookie header never uses cache, its response is for one
+         * user only.
+         *
+         * @param isUseCache
+         * @return
+         */
+        public Request setUseCache(boolean isUseCache) {
+            this.isUseCache = isUseCache;
+            return this;
         }
 
-        public Response execute() {
-            query = buildQuery();
-            switch (method) {
-                case POST:
-                    return post(this);
-                case GET:
-                    return get(this);
-                default:
-                    return null;
-            }
+        /**
+         * default is false; if true, identical GETs in flight at the same time (same URL, query,
+         * headers and options) share one network call and get the same {@link Response}. Only
+         * for String (default) and byte[] body, don't modify the shared byte[]. A caller canceled
+         * by its token or {@link #cancel()} stops waiting alone, the call is canceled only when
+         * all callers are.
+         *
+         * @param isCoalescing
+         * @return
+         */
+        public Request setCoalescing(boolean isCoalescing) {
+            this.isCoalescing = isCoalescing;
+            return this;
         }
 
-        @Override
-        public String toString() {
-            return "Request [method=" + method + ", url=" + url + ", queryStore=" + queryStore + ", header=" + header
-                    + ", socketTimeout=" + socketTimeout + ", connectionTimeout=" + connectionTimeout + ", tryCount="
-                    + tryCount + ", sslCert=" + sslCert + ", hostnameVerifier=" + hostnameVerifier
-                    + ", isCollectHeader=" + isCollectHeader + ", file=" + file + ", fileParamName=" + fileParamName
-                    + ", fileContentType=" + fileContentType + "]";
+        /**
+         * default is false; if true, a GET without response after the hedge delay is sent once
+         * more and the first successful response wins, see {@link HedgePolicy}. Only matters when
+         * {@link HttpUtil#setHedgePolicy(HedgePolicy)} is used, and only for idempotent GETs with
+         * String (default) or byte[] body.
+         *
+         * @param isHedging
+         * @return
+         */
+        public Request setHedging(boolean isHedging) {
+            this.isHedging = isHedging;
+            return this;
         }
-    }
 
-    public final static class Response {
-        private int statusCode;
-        private String body;
-        private Map<String, List<String>> headers;
-        private String headerString;
-        private Throwable throwable;
+        /**
+         * default is null
+         *
+         * @param listener - progress of POST body upload, bytesTotal is -1 if the body is
+         *                 compressed; we'll use this instance
+         * @return
+         */
+        public Request setProgressListener(ProgressListener listener) {
+            this.progressListener = listener;
+            return this;
+        }
 
-        public List<String> getHeaderByKey(String key) {
-            if (Validator.isNull(headers) || Validator.isNull(key)) {
-                return null;
-            } else {
-                return headers.get(key);
-            }
+        /**
+         * default is null; once token is canceled, the connection in flight is disconnected, no
+         * more tries are made and the response has an {@link InterruptedIOException}. A body file
+         * (see {@link #setBodyFile(File)}) being written is deleted.
+         *
+         * @param token - we'll use this instance
+         * @return
+         */
+        public Request setCancellationToken(CancellationToken token) {
+            this.cancellationToken = token;
+            return this;
         }
 
-        public String getHeaders() {
-            if (headerString == null) {
+        /**
+         * default is {@link #PRIORITY_INTERACTIVE}, only matters when
+         * {@link HttpUtil#setScheduler(RequestScheduler)} is used
+         *
+         * @param priority - {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_PREFETCH} or
+         *                 {@link #PRIORITY_BACKGROUND}
+         * @return
+         * @throws IllegalArgumentException - if priority is not one of them
+         */
+        public Request setPriority(@Priority int priority) throws IllegalArgumentException {
+            if (priority < PRIORITY_INTERACTIVE || priority > PRIORITY_BACKGROUND) {
+                throw new IllegalArgumentException("invalid priority:" + priority);
+            }
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * default is null, which means {@link HttpUtil#getRateLimiter()}
+         *
+         * @param rateLimiter - we'll use this instance
+         * @return
+         */
+        public Request setRateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * default is null, which means {@link HttpUtil#getTransport()}
+         *
+         * @param transport - we'll use this instance
+         * @return
+         */
+        public Request setTransport(HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Replace all file parts with this one.
+         *
+         * @param paramName
+         * @param contentType
+         * @param file        - we'll use this instance
+         * @return
+         * @throws IllegalArgumentException - if method is GET, or paramName is empty, or contentType
+         *                                  is empty, or file is null, or has no read permission.
+         */
+        public Request setFile(String paramName, String contentType, File file) throws IllegalArgumentException {
+            FilePart part = new FilePart(paramName, contentType, file);
+            fileParts = new ArrayList<>();
+            fileParts.add(part);
+            return this;
+        }
+
+        /**
+         * Add one more file part, files are streamed from disk in the order they're added.
+         *
+         * @param paramName
+         * @param contentType
+         * @param file        - we'll use this instance
+         * @return
+         * @throws IllegalArgumentException - if method is GET, or paramName is empty, or contentType
+         *                                  is empty, or file is null, or has no read permission.
+         */
+        public Request addFile(String paramName, String contentType, File file) throws IllegalArgumentException {
+            FilePart part = new FilePart(paramName, contentType, file);
+            if (fileParts == null) {
+                fileParts = new ArrayList<>();
+            }
+            fileParts.add(part);
+            return this;
+        }
+
+        private final class FilePart {
+            private final String paramName;
+            private final String contentType;
+            private final File file;
+
+            private FilePart(String paramName, String contentType, File file) throws IllegalArgumentException {
+                if (method == GET) {
+                    throw new IllegalArgumentException("GET does not support file upload");
+                }
+                if (Validator.isEmpty(paramName)) {
+                    throw new IllegalArgumentException("invalid param name: " + paramName);
+                }
+                if (Validator.isEmpty(contentType)) {
+                    throw new IllegalArgumentException("invalid content type: " + contentType);
+                }
+                if (Validator.isNull(file) || !file.canRead()) {
+                    throw new IllegalArgumentException("file is null or has no read permission: " + file);
+                }
+                this.paramName = paramName;
+                this.contentType = contentType;
+                this.file = file;
+            }
+
+            private void writeHeader(RequestBodyWriter writer) throws IOException {
+                writer.writeUtf8(TWO_HYPHENS + BOUNDARY + CRLF + "Content-Disposition: form-data; name=\"")
+                        .writeUtf8(paramName)
+                        .writeUtf8("\"; filename=\"")
+                        .writeUtf8(file.getName())
+                        .writeUtf8("\"" + CRLF + "Content-Type: ")
+                        .writeUtf8(contentType)
+                        .writeUtf8(CRLF + "Content-Transfer-Encoding: binary" + CRLF + CRLF);
+            }
+
+            @Override
+            public String toString() {
+                return "FilePart [paramName=" + paramName + ", contentType=" + contentType + ", file=" + file + "]";
+            }
+        }
+
+        /**
+         * Keep response body as byte[], see {@link Response#getBodyBytes()}. Default is String
+         * decoded as UTF-8, see {@link Response#getBody()}.
+         *
+         * @return
+         */
+        public Request setBodyAsBytes() {
+            this.bodyType = BODY_BYTES;
+            this.bodyFile = null;
+            this.bodyConsumer = null;
+            return this;
+        }
+
+        /**
+         * Write response body to file directly, see {@link Response#getBodyFile()}.
+         *
+         * @param file - we'll use this instance
+         * @return
+         * @throws IllegalArgumentException - if file is null
+         */
+        public Request setBodyFile(File file) throws IllegalArgumentException {
+            if (Validator.isNull(file)) {
+                throw new IllegalArgumentException("body file is null");
+            }
+            this.bodyType = BODY_FILE;
+            this.bodyFile = file;
+            this.bodyConsumer = null;
+            return this;
+        }
+
+        /**
+         * Hand the live body stream to consumer, nothing is kept in {@link Response}. It's
+         * called on the requesting thread, once per try which got a response.
+         *
+         * @param consumer - we'll use this instance
+         * @return
+         * @throws IllegalArgumentException - if consumer is null
+         */
+        public Request setBodyConsumer(ResponseBodyConsumer consumer) throws IllegalArgumentException {
+            if (Validator.isNull(consumer)) {
+                throw new IllegalArgumentException("body consumer is null");
+            }
+            this.bodyType = BODY_CONSUMER;
+            this.bodyFile = null;
+            this.bodyConsumer = consumer;
+            return this;
+        }
+
+        private String getQuery() {
+            StringBuilder sb = new StringBuilder();
+            for (Entry<String, String> entry : queryStore.entrySet()) {
+                sb.append(entry.getKey()).append("=").append(EncUtil.urlEncode(entry.getValue())).append("&");
+            }
+            if (sb.length() > 0) {
+                sb.deleteCharAt(sb.length() - 1);
+            }
+            return sb.toString();
+        }
+
+        public Response execute() {
+            // built again on demand, queries may have changed since last time
+            query = null;
+            isCanceled = false;
+            Runnable watch = watchToken();
+            try {
+                Response cached = getFreshCached(this);
+                if (cached != null) {
+                    return cached;
+                }
+                if (method == GET && isCoalescing && isBodyInMemory()) {
+                    return coalescedGet(this);
+                }
+                return executeGuarded(this);
+            } finally {
+                unwatchToken(watch);
+            }
+        }
+
+        /**
+         * Like {@link #execute()} but doesn't block, callback is called on a background thread of
+         * the transport. Not coalesced.
+         *
+         * @param callback
+         * @throws IllegalArgumentException - if callback is null
+         */
+        public void enqueue(HttpTransport.Callback callback) throws IllegalArgumentException {
+            if (Validator.isNull(callback)) {
+                throw new IllegalArgumentException("callback is null");
+            }
+            query = null;
+            isCanceled = false;
+            final Runnable watch = watchToken();
+            if (watch == null) {
+                enqueueGuarded(this, callback);
+                return;
+            }
+            final HttpTransport.Callback target = callback;
+            enqueueGuarded(this, new HttpTransport.Callback() {
+                @Override
+                public void onResponse(Response response) {
+                    unwatchToken(watch);
+                    target.onResponse(response);
+                }
+            });
+        }
+
+        private HttpTransport getTransport() {
+            return (transport != null) ? transport : HttpUtil.getTransport();
+        }
+
+        /**
+         * @return null if rate limit is off
+         */
+        RateLimiter getRateLimiter() {
+            return (rateLimiter != null) ? rateLimiter : HttpUtil.getRateLimiter();
+        }
+
+        // -- for transports --
+
+        /**
+         * @return form-urlencoded query, for URL of GET or body of POST without file parts
+         */
+        String getBuiltQuery() {
+            if (query == null) {
+                query = (queryStore == null || queryStore.isEmpty()) ? "" : getQuery();
+            }
+            return query;
+        }
+
+        Map<String, String> getHeaderMap() {
+            return header;
+        }
+
+        /**
+         * @return read timeout to use, adaptive one if there is
+         */
+        int getSocketTimeout() {
+            AdaptiveTimeouts adaptive = adaptiveTimeouts;
+            if (adaptive != null && !isSocketTimeoutSet) {
+                int timeout = adaptive.getReadTimeout(getHostKey());
+                if (timeout > 0) {
+                    return timeout;
+                }
+            }
+            return socketTimeout;
+        }
+
+        /**
+         * @return connect timeout to use, adaptive one if there is
+         */
+        int getConnectionTimeout() {
+            AdaptiveTimeouts adaptive = adaptiveTimeouts;
+            if (adaptive != null && !isConnectionTimeoutSet) {
+                int timeout = adaptive.getConnectTimeout(getHostKey());
+                if (timeout > 0) {
+                    return timeout;
+                }
+            }
+            return connectionTimeout;
+        }
+
+        @Priority
+        int getPriority() {
+            return priority;
+        }
+
+        boolean isHedgeable() {
+            return isHedging && method == GET && isIdempotent() && isBodyInMemory();
+        }
+
+        /**
+         * Stop the try in flight, e.g. disconnect it, and don't try again.
+         */
+        void cancel() {
+            isCanceled = true;
+            Runnable action = cancelAction;
+            if (action != null) {
+                action.run();
+            }
+        }
+
+        boolean isCanceled() {
+            return isCanceled;
+        }
+
+        /**
+         * Cancel this request along with its {@link CancellationToken}.
+         *
+         * @return to pass to {@link #unwatchToken(Runnable)}, null if there's no token
+         */
+        Runnable watchToken() {
+            CancellationToken token = cancellationToken;
+            if (token == null) {
+                return null;
+            }
+            Runnable action = new Runnable() {
+                @Override
+                public void run() {
+                    cancel();
+                }
+            };
+            token.register(action);
+            return action;
+        }
+
+        void unwatchToken(Runnable action) {
+            CancellationToken token = cancellationToken;
+            if (action != null && token != null) {
+                token.unregister(action);
+            }
+        }
+
+        /**
+         * @param action - run by {@link #cancel()} while the try is in flight, null once it's over;
+         *               check {@link #isCanceled()} after setting it, it may be canceled already
+         */
+        void setCancelAction(Runnable action) {
+            cancelAction = action;
+        }
+
+        /**
+         * @return a request sent the same way, canceled on its own
+         */
+        Request copy() {
+            Request copy = new Request(method);
+            copy.url = url;
+            copy.hostKey = hostKey;
+            copy.query = query;
+            copy.queryStore = queryStore;
+            copy.header = header;
+            copy.socketTimeout = socketTimeout;
+            copy.connectionTimeout = connectionTimeout;
+            copy.tryCount = tryCount;
+            copy.isSocketTimeoutSet = isSocketTimeoutSet;
+            copy.isConnectionTimeoutSet = isConnectionTimeoutSet;
+            copy.retryPolicy = retryPolicy;
+            copy.isIdempotent = isIdempotent;
+            copy.sslCert = sslCert;
+            copy.hostnameVerifier = hostnameVerifier;
+            copy.isCollectHeader = isCollectHeader;
+            copy.isAcceptCompression = isAcceptCompression;
+            copy.isCompressRequest = isCompressRequest;
+            copy.compressThreshold = compressThreshold;
+            copy.isUseCache = isUseCache;
+            copy.isCoalescing = isCoalescing;
+            copy.isHedging = isHedging;
+            copy.transport = transport;
+            copy.priority = priority;
+            copy.rateLimiter = rateLimiter;
+            copy.progressListener = progressListener;
+            copy.cancellationToken = cancellationToken;
+            copy.fileParts = fileParts;
+            copy.bodyType = bodyType;
+            copy.bodyFile = bodyFile;
+            copy.bodyConsumer = bodyConsumer;
+            copy.consumerMediaType = consumerMediaType;
+            return copy;
+        }
+
+        /**
+         * Like {@link #addHeader(String, String)} but the headers shared with copies are left
+         * alone.
+         *
+         * @param key
+         * @param value - null to remove it
+         */
+        void replaceHeader(String key, String value) {
+            Map<String, String> map = (header != null) ? new HashMap<>(header) : new HashMap<String, String>();
+            if (value != null) {
+                map.put(key, value);
+            } else {
+                map.remove(key);
+            }
+            header = map;
+        }
+
+        /**
+         * For a long-lived stream, read timeout unless {@link #setSocketTimeout(int)} was called;
+         * adaptive one is not used either.
+         *
+         * @param timeout - unit is millisecond, 0 for none
+         */
+        void setStreamSocketTimeout(int timeout) {
+            if (!isSocketTimeoutSet) {
+                socketTimeout = timeout;
+                isSocketTimeoutSet = true;
+            }
+        }
+
+        /**
+         * Body of a 200 not of this type is not given to the consumer, the try fails with
+         * {@link ProtocolException} instead.
+         *
+         * @param mediaType - e.g. "text/event-stream", null for any
+         */
+        void setConsumerMediaType(String mediaType) {
+            this.consumerMediaType = mediaType;
+        }
+
+        /**
+         * Blocking, on the calling thread with HttpURLConnection whatever the transport is, and not
+         * scheduled, hedged or coalesced: for a long-lived stream, see {@link EventSource}.
+         *
+         * @return
+         */
+        Response executeStream() {
+            query = null;
+            isCanceled = false;
+            Runnable watch = watchToken();
+            try {
+                return executeWithUrlConnection(this);
+            } finally {
+                unwatchToken(watch);
+            }
+        }
+
+        String getHostKey() {
+            if (hostKey == null) {
+                hostKey = HttpUtil.getHostKey(url);
+            }
+            return hostKey;
+        }
+
+        int getTryCount() {
+            return tryCount;
+        }
+
+        boolean isAcceptCompression() {
+            return isAcceptCompression;
+        }
+
+        /**
+         * @param contentLength - of the uncompressed body, -1 if unknown
+         * @return whether body should be sent gzip-compressed
+         */
+        boolean isCompressBody(long contentLength) {
+            return isCompressRequest && (contentLength < 0 || contentLength >= compressThreshold);
+        }
+
+        boolean isCollectHeader() {
+            return isCollectHeader;
+        }
+
+        boolean hasFileParts() {
+            return fileParts != null;
+        }
+
+        /**
+         * @return whether body is read fully into memory, as String or byte[]
+         */
+        boolean isBodyInMemory() {
+            return bodyType == BODY_STRING || bodyType == BODY_BYTES;
+        }
+
+        /**
+         * @return whether {@link HttpCache} is used, see {@link #setUseCache(boolean)}
+         */
+        boolean isUseCache() {
+            if (!isUseCache) {
+                return false;
+            }
+            if (header != null) {
+                for (String key : header.keySet()) {
+                    if ("Authorization".equalsIgnoreCase(key) || "Cookie".equalsIgnoreCase(key)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        String getSSLCertificate() {
+            return sslCert;
+        }
+
+        /**
+         * @return everything that may change the response of GET
+         */
+        private String getCoalescingKey() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(method).append(' ').append(url).append('?').append(getBuiltQuery());
+            if (header != null) {
+                for (Entry<String, String> entry : new TreeMap<>(header).entrySet()) {
+                    sb.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+                }
+            }
+            sb.append('\n').append(bodyType).append(isAcceptCompression).append(isUseCache).append(isCollectHeader);
+            if (sslCert != null) {
+                sb.append('\n').append(sslCert);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "Request [method=" + method + ", url=" + url + ", queryStore=" + queryStore + ", header=" + header
+                    + ", socketTimeout=" + socketTimeout + ", connectionTimeout=" + connectionTimeout + ", tryCount="
+                    + tryCount + ", retryPolicy=" + retryPolicy + ", sslCert=" + sslCert + ", hostnameVerifier=" + hostnameVerifier
+                    + ", isCollectHeader=" + isCollectHeader + ", isAcceptCompression=" + isAcceptCompression
+                    + ", isCompressRequest=" + isCompressRequest + ", compressThreshold=" + compressThreshold
+                    + ", isUseCache=" + isUseCache + ", isCoalescing=" + isCoalescing + ", priority=" + priority
+                    + ", fileParts=" + fileParts + ", bodyType=" + bodyType
+                    + ", bodyFile=" + bodyFile + ", bodyConsumer=" + bodyConsumer + "]";
+        }
+    }
+
+    public final static class Response {
+        private int statusCode;
+        private String body;
+        private byte[] bodyBytes;
+        private File bodyFile;
+        private long compressedLength;
+        private long uncompressedLength;
+        private Map<String, List<String>> headers;
+        private String headerString;
+        private Throwable throwable;
+        private int attemptCount;
+        private boolean isFromCache;
+        private HttpTimings timings = new HttpTimings();
+
+        public List<String> getHeaderByKey(String key) {
+            if (Validator.isNull(headers) || Validator.isNull(key)) {
+                return null;
+            } else {
+                return headers.get(key);
+            }
+        }
+
+        public String getHeaders() {
+            if (headerString == null) {
                 if (headers != null) {
                     StringBuilder sb = new StringBuilder();
                     String key;
@@ -357,10 +1358,49 @@ public final class HttpUtil {
             return headerString;
         }
 
+        /**
+         * @return null unless body is kept as String (default)
+         */
         public String getBody() {
             return body;
         }
 
+        /**
+         * @return null unless {@link Request#setBodyAsBytes()}
+         */
+        public byte[] getBodyBytes() {
+            return bodyBytes;
+        }
+
+        /**
+         * @return read-only view of {@link #getBodyBytes()}, null unless {@link Request#setBodyAsBytes()}
+         */
+        public ByteBuffer getBodyBuffer() {
+            return bodyBytes != null ? ByteBuffer.wrap(bodyBytes).asReadOnlyBuffer() : null;
+        }
+
+        /**
+         * @return null unless {@link Request#setBodyFile(File)} and body is written completely
+         */
+        public File getBodyFile() {
+            return bodyFile;
+        }
+
+        /**
+         * @return body bytes read from network, same as {@link #getUncompressedLength()} if
+         * body is not compressed
+         */
+        public long getCompressedLength() {
+            return compressedLength;
+        }
+
+        /**
+         * @return body bytes after decoding
+         */
+        public long getUncompressedLength() {
+            return uncompressedLength;
+        }
+
         public int getStatusCode() {
             return statusCode;
         }
@@ -373,28 +1413,100 @@ public final class HttpUtil {
             return throwable;
         }
 
+        /**
+         * @return true if body comes from {@link HttpCache}, either fresh or revalidated by 304
+         */
+        public boolean isFromCache() {
+            return isFromCache;
+        }
+
+        /**
+         * @return how many tries were made, 1 if it succeeded (or gave up) at first try, 0 if
+         * served by {@link HttpCache} without network
+         */
+        public int getAttemptCount() {
+            return attemptCount;
+        }
+
+        /**
+         * @return how long the request waited for {@link RequestScheduler}, unit is millisecond
+         */
+        public long getQueueWaitTime() {
+            return timings.getQueueWait();
+        }
+
+        /**
+         * @return timings and byte counts of the last try, non-null
+         */
+        public HttpTimings getTimings() {
+            return timings;
+        }
+
+        private String getBodyDescription() {
+            if (bodyBytes != null) {
+                return "[" + bodyBytes.length + " bytes]";
+            } else if (bodyFile != null) {
+                return "[file: " + bodyFile + "]";
+            } else {
+                return body;
+            }
+        }
+
         @Override
         public String toString() {
             return "=== Response ["
                     + statusCode
-                    + "]===\n== Header ==\n"
+                    + "] attempts: "
+                    + attemptCount
+                    + " ===\n"
+                    + timings
+                    + "\n== Header ==\n"
                     + getHeaders()
                     + "\n== Body ==\n"
-                    + body
+                    + getBodyDescription()
                     + "\n====================="
                     + ((throwable != null) ? "\nThrowable: " + throwable.getClass().getName() + " -- "
                     + throwable.getMessage() + "\n=====================" : "");
         }
     }
 
+    /**
+     * A fresh copy doesn't touch the host, so it's looked up before the circuit breaker, rate
+     * limiter and scheduler: it's served while the circuit is open and doesn't count for it.
+     *
+     * @param req
+     * @return null if there's none
+     */
+    private static Response getFreshCached(Request req) {
+        HttpCache cache = req.isUseCache() ? httpCache : null;
+        if (cache == null || req.method != Request.GET) {
+            return null;
+        }
+        String url = getGetUrl(req);
+        HttpCache.Entry cached = cache.get(url);
+        if (cached == null || !cached.isFresh(System.currentTimeMillis())) {
+            return null;
+        }
+        Response response = readCachedResponse(req, cached);
+        if (response == null) {
+            cache.remove(url);
+            return null;
+        }
+        cache.recordHit();
+        return response;
+    }
+
+    /**
+     * @return url with the query of a GET
+     */
+    private static String getGetUrl(Request req) {
+        return req.url + "?" + req.getBuiltQuery();
+    }
+
     private static Response get(Request req) {
         URL link = null;
         try {
-            if (req.query != null) {
-                link = new URL(req.url + "?" + req.query);
-            } else {
-                link = new URL(req.url);
-            }
+            link = new URL(getGetUrl(req));
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -403,62 +1515,475 @@ public final class HttpUtil {
 
         Logcat.d(TAG, "Post - URL : " + link);
 
+        HttpCache cache = req.isUseCache() ? httpCache : null;
+        HttpCache.Entry cached = null;
+        if (cache != null) {
+            cached = cache.get(link.toString());
+            if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+                Response response = readCachedResponse(req, cached);
+                if (response != null) {
+                    cache.recordHit();
+                    return response;
+                }
+                cache.remove(link.toString());
+                cached = null;
+            }
+            if (cached != null && !cached.isRevalidatable()) {
+                cached = null;
+            }
+            if (cached == null) {
+                cache.recordMiss();
+            }
+        }
+
         HttpURLConnection conn = null;
+        HttpConnectionPool.Connection pooled = null;
         int tryCount = 0;
-        int statusCode = 0;
-        Map<String, List<String>> responseHeaders = null;
-        String result = null;
-        Throwable t = null;
+        Response response = null;
+        boolean isBodyConsumed = false;
+        String retryAfter = null;
 
         while (tryCount < req.tryCount) {
             Logcat.d(TAG, "GET - Try: " + (++tryCount) + "/" + req.tryCount);
-            if (tryCount > 1) {
-                statusCode = 0;
-                responseHeaders = null;
-                result = null;
-                t = null;
-            }
+            conn = null;
+            pooled = null;
+            response = new Response();
+            response.timings.setAttempt(tryCount);
+            isBodyConsumed = false;
+            retryAfter = null;
+            long start = HttpTimings.now();
+            long time = start;
+            boolean isConnected = false;
+            int readTimeout = req.getSocketTimeout();
+            int connectTimeout = req.getConnectionTimeout();
             try {
+                pooled = acquirePooledConnection(link);
                 conn = (HttpURLConnection) link.openConnection();
-                conn.setReadTimeout(req.socketTimeout);
-                conn.setConnectTimeout(req.connectionTimeout);
+                watchCancel(req, conn);
+                conn.setReadTimeout(readTimeout);
+                conn.setConnectTimeout(connectTimeout);
                 if (req.header != null) {
                     for (Entry<String, String> reqHeaders : req.header.entrySet()) {
                         conn.setRequestProperty(reqHeaders.getKey(), reqHeaders.getValue());
                     }
                 }
                 conn.setRequestMethod("GET");
+                setAcceptEncoding(conn, req);
+                if (cached != null) {
+                    setConditionalHeaders(conn, cached);
+                    cache.recordRevalidation();
+                }
 
                 setConnectionSSL(conn, req);
-                setConnectionNotKeepAliveIfNeeded(conn);
+                setConnectionKeepAlive(conn, pooled);
 
+                HttpTimings.clearTlsStart();
                 conn.connect();
-
-                statusCode = conn.getResponseCode();
+                isConnected = true;
+                time = HttpTimings.now();
+                response.timings.setConnect(start, HttpTimings.takeTlsStart(), time);
+
+                // request of GET is written here too
+                response.statusCode = conn.getResponseCode();
+                response.timings.setFirstByte(time, time = HttpTimings.now());
+                retryAfter = conn.getHeaderField("Retry-After");
                 if (req.isCollectHeader) {
-                    responseHeaders = conn.getHeaderFields();
+                    response.headers = conn.getHeaderFields();
                 }
-                result = StreamUtil.convertStreamToString(conn.getInputStream(), "UTF-8");
-
+                if (cached != null && response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    cache.recordRevalidationHit();
+                    cached = cache.update(cached, conn);
+                    response.statusCode = HttpURLConnection.HTTP_OK;
+                    readCachedBody(req, response, cached);
+                } else {
+                    HttpCache.Editor editor = (cache != null && response.statusCode == HttpURLConnection.HTTP_OK)
+                            ? cache.edit(link.toString(), conn) : null;
+                    isBodyConsumed = readBody(req, conn, response, editor);
+                }
+                response.timings.setBody(time, HttpTimings.now());
             } catch (Throwable e) {
                 e.printStackTrace();
-                t = e;
+                response.throwable = req.isCanceled() ? new InterruptedIOException("canceled") : e;
             } finally {
+                req.setCancelAction(null);
+                response.timings.setBytesReceived(response.isFromCache ? 0 : response.compressedLength);
+                recordLatency(req, response.timings, isConnected, response.statusCode, response.throwable,
+                        connectTimeout, readTimeout);
                 if (conn != null) {
-                    conn.disconnect();
+                    closeConnection(conn, pooled, response.statusCode, isBodyConsumed);
                 }
+            }
+            if (!shouldRetry(req, tryCount, response.statusCode, response.throwable, retryAfter)) {
+                break;
+            }
+        }
+
+        response.attemptCount = tryCount;
+        return response;
+    }
+
+    /**
+     * The HttpURLConnection implementation, see {@link UrlConnectionTransport}.
+     *
+     * @param req - query is already built
+     * @return
+     */
+    static Response executeWithUrlConnection(Request req) {
+        switch (req.method) {
+            case Request.POST:
+                return post(req);
+            case Request.GET:
+                return get(req);
+            default:
+                return null;
+        }
+    }
+
+    private static Response executeGuarded(Request req) {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            return executeHedged(req);
+        }
+        if (!breaker.tryAcquire(req.getHostKey())) {
+            return buildCircuitOpenResponse(req);
+        }
+        Response response = null;
+        try {
+            response = executeHedged(req);
+            return response;
+        } finally {
+            recordCircuit(breaker, req, response);
+        }
+    }
+
+    private static Response executeHedged(Request req) {
+        HedgePolicy policy = hedgePolicy;
+        if (policy == null || !req.isHedgeable()) {
+            return executeLimited(req);
+        }
+        return new HedgedGet(req, policy).execute();
+    }
 
-                if (statusCode == HttpURLConnection.HTTP_OK) {
-                    break;
+    static Response executeLimited(Request req) {
+        RateLimiter limiter = req.getRateLimiter();
+        if (limiter != null) {
+            long delay = limiter.reserveRequest(req.getHostKey(), req.priority);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Response response = new Response();
+                    response.throwable = new InterruptedIOException("interrupted while rate limited");
+                    return response;
                 }
             }
         }
+        return executeScheduled(req);
+    }
 
-        Response response = new Response();
-        response.statusCode = statusCode;
-        response.throwable = t;
-        response.headers = responseHeaders;
-        response.body = result;
+    private static Response executeScheduled(Request req) {
+        RequestScheduler requestScheduler = scheduler;
+        if (requestScheduler == null) {
+            return req.getTransport().execute(req);
+        }
+        RequestScheduler.Ticket ticket;
+        try {
+            ticket = requestScheduler.acquire(req.getHostKey(), req.priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Response response = new Response();
+            response.throwable = new InterruptedIOException("interrupted while waiting for scheduler");
+            return response;
+        }
+        try {
+            Response response = req.getTransport().execute(req);
+            if (response != null) {
+                response.timings.setQueueWait(ticket.getWaitTime());
+            }
+            return response;
+        } finally {
+            requestScheduler.release(ticket);
+        }
+    }
+
+    private static void enqueueGuarded(final Request req, final HttpTransport.Callback callback) {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            enqueueHedged(req, callback);
+            return;
+        }
+        if (!breaker.tryAcquire(req.getHostKey())) {
+            callback.onResponse(buildCircuitOpenResponse(req));
+            return;
+        }
+        enqueueHedged(req, new HttpTransport.Callback() {
+            @Override
+            public void onResponse(Response response) {
+                recordCircuit(breaker, req, response);
+                callback.onResponse(response);
+            }
+        });
+    }
+
+    private static Response buildCircuitOpenResponse(Request req) {
+        Logcat.w(TAG, "circuit open, fail fast - " + req.url);
+        return buildResponse(req, 0, null, null, null, new CircuitOpenException(req.getHostKey()), 0, null);
+    }
+
+    /**
+     * No response or 5xx is a failure of the host, anything else means it's up. A canceled request
+     * without response, or a response from {@link HttpCache} without network, is neither.
+     */
+    private static void recordCircuit(CircuitBreaker breaker, Request req, Response response) {
+        Throwable t = (response != null) ? response.throwable : null;
+        int statusCode = (response != null) ? response.statusCode : 0;
+        if (response != null && response.isFromCache && response.attemptCount == 0) {
+            // e.g. fresh copy of an enqueued request; a half-open probe it took is given back
+            breaker.release(req.getHostKey());
+        } else if (statusCode >= 500) {
+            breaker.onFailure(req.getHostKey());
+        } else if (statusCode != 0) {
+            breaker.onSuccess(req.getHostKey());
+        } else if (req.isCanceled() || isCanceled(t)) {
+            breaker.release(req.getHostKey());
+        } else {
+            breaker.onFailure(req.getHostKey());
+        }
+    }
+
+    private static boolean isCanceled(Throwable t) {
+        // interrupted by caller, not a fault of the host
+        return t instanceof InterruptedIOException && !(t instanceof SocketTimeoutException);
+    }
+
+    private static void enqueueHedged(Request req, HttpTransport.Callback callback) {
+        HedgePolicy policy = hedgePolicy;
+        if (policy == null || !req.isHedgeable()) {
+            enqueueLimited(req, callback);
+            return;
+        }
+        new HedgedGet(req, policy).enqueue(callback);
+    }
+
+    static void enqueueLimited(final Request req, final HttpTransport.Callback callback) {
+        RateLimiter limiter = req.getRateLimiter();
+        long delay = (limiter != null) ? limiter.reserveRequest(req.getHostKey(), req.priority) : 0;
+        if (delay <= 0) {
+            enqueueScheduled(req, callback);
+            return;
+        }
+        // no thread is held while waiting
+        HttpTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueueScheduled(req, callback);
+            }
+        }, delay);
+    }
+
+    private static void enqueueScheduled(final Request req, final HttpTransport.Callback callback) {
+        final RequestScheduler requestScheduler = scheduler;
+        if (requestScheduler == null) {
+            req.getTransport().enqueue(req, callback);
+            return;
+        }
+        requestScheduler.schedule(req.getHostKey(), req.priority, new RequestScheduler.OnAdmittedListener() {
+            @Override
+            public void onAdmitted(final RequestScheduler.Ticket ticket) {
+                req.getTransport().enqueue(req, new HttpTransport.Callback() {
+                    @Override
+                    public void onResponse(Response response) {
+                        requestScheduler.release(ticket);
+                        response.timings.setQueueWait(ticket.getWaitTime());
+                        callback.onResponse(response);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Let {@link Request#cancel()} disconnect conn from another thread.
+     *
+     * @throws InterruptedIOException - if req is canceled already
+     */
+    private static void watchCancel(Request req, final HttpURLConnection conn) throws InterruptedIOException {
+        req.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                conn.disconnect();
+            }
+        });
+        if (req.isCanceled()) {
+            throw new InterruptedIOException("canceled");
+        }
+    }
+
+    /**
+     * Let the token of monitor disconnect conn from another thread.
+     *
+     * @return to unregister once done, null if there's no token
+     */
+    private static Runnable watchToken(TransferMonitor monitor, final HttpURLConnection conn) {
+        CancellationToken token = (monitor != null) ? monitor.getToken() : null;
+        if (token == null) {
+            return null;
+        }
+        Runnable disconnect = new Runnable() {
+            @Override
+            public void run() {
+                conn.disconnect();
+            }
+        };
+        token.register(disconnect);
+        return disconnect;
+    }
+
+    private static OutputStream limitUpload(Request req, OutputStream out) {
+        RateLimiter limiter = req.getRateLimiter();
+        return (limiter != null) ? limiter.limitUpload(out, req.getHostKey(), req.priority) : out;
+    }
+
+    private static InputStream limitDownload(Request req, InputStream in) {
+        RateLimiter limiter = req.getRateLimiter();
+        return (limiter != null) ? limiter.limitDownload(in, req.getHostKey(), req.priority) : in;
+    }
+
+    /**
+     * Feed {@link AdaptiveTimeouts} with one try.
+     *
+     * @param req
+     * @param timings
+     * @param isConnected    - whether connect succeeded
+     * @param statusCode     - 0 if no response received
+     * @param t              - can be null
+     * @param connectTimeout - the connect timeout used by the try
+     * @param readTimeout    - the read timeout used by the try
+     */
+    static void recordLatency(Request req, HttpTimings timings, boolean isConnected, int statusCode, Throwable t,
+                              int connectTimeout, int readTimeout) {
+        AdaptiveTimeouts adaptive = adaptiveTimeouts;
+        if (adaptive == null) {
+            return;
+        }
+        String hostKey = req.getHostKey();
+        if (!isConnected) {
+            // a timeout says latency is at least that much
+            if (t instanceof SocketTimeoutException) {
+                adaptive.recordConnect(hostKey, connectTimeout);
+            }
+            return;
+        }
+        // 0 means a reused socket, nothing to learn
+        long connect = timings.getConnect() + timings.getTls();
+        if (connect > 0) {
+            adaptive.recordConnect(hostKey, connect);
+        }
+        if (statusCode > 0) {
+            adaptive.recordFirstByte(hostKey, timings.getFirstByte());
+        } else if (t instanceof SocketTimeoutException) {
+            adaptive.recordFirstByte(hostKey, readTimeout);
+        }
+    }
+
+    /**
+     * @param contentType - e.g. "text/event-stream; charset=utf-8", can be null
+     * @param mediaType
+     * @return whether contentType without parameters is mediaType, ignoring case
+     */
+    private static boolean isMediaType(String contentType, String mediaType) {
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        return ((end < 0) ? contentType : contentType.substring(0, end)).trim().equalsIgnoreCase(mediaType);
+    }
+
+    private static String getHostKey(String url) {
+        try {
+            return HttpConnectionPool.getHostKey(new URL(url));
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * The first caller runs the GET for all, see {@link SharedGet}. Each caller can give up by
+     * its token or {@link Request#cancel()}, the GET is canceled only when all of them have.
+     */
+    private static Response coalescedGet(Request req) {
+        String key = req.getCoalescingKey();
+        // stands for this caller in the group
+        final CancellationToken callerToken = new CancellationToken();
+        req.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                callerToken.cancel();
+            }
+        });
+        if (req.isCanceled()) {
+            callerToken.cancel();
+        }
+        SharedGet shared;
+        SharedTransfer.Caller caller;
+        boolean isOwner = false;
+        synchronized (COALESCED_GETS) {
+            shared = COALESCED_GETS.get(key);
+            if (shared == null || shared.isCanceled()) {
+                shared = new SharedGet();
+                COALESCED_GETS.put(key, shared);
+                isOwner = true;
+            }
+            caller = shared.join(req.progressListener, callerToken);
+        }
+        try {
+            Response response;
+            if (isOwner) {
+                response = runSharedGet(req, key, shared);
+            } else {
+                COALESCED_GET_COUNT.incrementAndGet();
+                response = shared.await(callerToken);
+            }
+            if (response == null || callerToken.isCanceled()) {
+                // this caller gave up, the others still get the response
+                return buildResponse(req, 0, null, null, null, new InterruptedIOException("canceled"), 0, null);
+            }
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return buildResponse(req, 0, null, null, null,
+                    new InterruptedIOException("interrupted while waiting for coalesced GET"), 0, null);
+        } finally {
+            req.setCancelAction(null);
+            shared.leave(caller);
+        }
+    }
+
+    /**
+     * Run a copy of req for all callers of shared, with the progress listener and token of it.
+     */
+    private static Response runSharedGet(Request req, String key, SharedGet shared) {
+        Request sharedReq = req.copy();
+        sharedReq.progressListener = shared.getTransfer();
+        sharedReq.cancellationToken = shared.getTransfer().getToken();
+        Response response = null;
+        Runnable watch = sharedReq.watchToken();
+        try {
+            response = executeGuarded(sharedReq);
+        } catch (RuntimeException e) {
+            // e.g. a broken transport; callers get a failed response as on any other path
+            e.printStackTrace();
+            response = buildResponse(req, 0, null, null, null, e, 0, null);
+        } finally {
+            sharedReq.unwatchToken(watch);
+            synchronized (COALESCED_GETS) {
+                if (COALESCED_GETS.get(key) == shared) {
+                    COALESCED_GETS.remove(key);
+                }
+            }
+            shared.finish(response);
+        }
         return response;
     }
 
@@ -473,42 +1998,51 @@ public final class HttpUtil {
         assert link != null;
 
         Logcat.d(TAG, "Post - URL : " + req.url);
-        Logcat.d(TAG, "Post - Params : " + req.query);
+        Logcat.d(TAG, "Post - Params : " + req.queryStore);
 
-        byte[] fileData = (req.file != null) ? FileUtil.convertFileToByteArray(req.file) : null;
+        boolean isMultipart = req.fileParts != null;
+        long contentLength = getPostContentLength(req);
+        boolean isCompress = req.isCompressBody(contentLength);
+        TransferMonitor monitor = TransferMonitor.of(req.progressListener, req.cancellationToken);
 
         HttpURLConnection conn = null;
+        HttpConnectionPool.Connection pooled = null;
         int tryCount = 0;
 
-        DataOutputStream writer = null;
-        int statusCode = 0;
-        Map<String, List<String>> responseHeaders = null;
-        String result = null;
-        Throwable t = null;
-
-        long time;
+        OutputStream bodyOut = null;
+        Response response = null;
+        boolean isBodyConsumed = false;
+        String retryAfter = null;
 
         while (tryCount < req.tryCount) {
             Logcat.d(TAG, "Post - Try: " + (++tryCount) + "/" + req.tryCount);
-            if (tryCount > 1) {
-                writer = null;
-                statusCode = 0;
-                responseHeaders = null;
-                result = null;
-                t = null;
-            }
+            conn = null;
+            pooled = null;
+            bodyOut = null;
+            response = new Response();
+            response.timings.setAttempt(tryCount);
+            isBodyConsumed = false;
+            retryAfter = null;
+            long start = HttpTimings.now();
+            long time = start;
+            boolean isConnected = false;
+            int readTimeout = req.getSocketTimeout();
+            int connectTimeout = req.getConnectionTimeout();
             try {
+                pooled = acquirePooledConnection(link);
                 conn = (HttpURLConnection) link.openConnection();
-                conn.setReadTimeout(req.socketTimeout);
-                conn.setConnectTimeout(req.connectionTimeout);
+                watchCancel(req, conn);
+                conn.setReadTimeout(readTimeout);
+                conn.setConnectTimeout(connectTimeout);
                 conn.setDoInput(true);
                 conn.setDoOutput(true);
-                conn.setChunkedStreamingMode(0);
+                setStreamingMode(conn, isCompress ? -1 : contentLength);
                 conn.setUseCaches(false);
                 conn.setRequestMethod("POST");
+                setAcceptEncoding(conn, req);
 
                 conn.setRequestProperty("Charset", "UTF-8");
-                if (fileData != null) {
+                if (isMultipart) {
                     conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
                 } else {
                     conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
@@ -519,75 +2053,440 @@ public final class HttpUtil {
                         conn.setRequestProperty(reqHeaders.getKey(), reqHeaders.getValue());
                     }
                 }
+                if (isCompress) {
+                    conn.setRequestProperty("Content-Encoding", ENCODING_GZIP);
+                }
 
                 setConnectionSSL(conn, req);
-                setConnectionNotKeepAliveIfNeeded(conn);
+                setConnectionKeepAlive(conn, pooled);
 
-                time = System.currentTimeMillis();
+                HttpTimings.clearTlsStart();
                 conn.connect();
-                Logcat.d(TAG, "Post - CONNECT OK, ms " + (System.currentTimeMillis() - time));
-
-                time = System.currentTimeMillis();
-                writer = new DataOutputStream(conn.getOutputStream());
-                writer.writeBytes(req.query);
-                if (fileData != null) {
-                    Logcat.d(TAG, "Post - File length: " + fileData.length);
-                    writer.writeBytes(TWO_HYPHENS + BOUNDARY + CRLF);
-                    writer.writeBytes("Content-Disposition: form-data; name=\"" + req.fileParamName + "\"; filename=\""
-                            + req.file.getName() + "\"" + CRLF);
-                    writer.writeBytes("Content-Type: " + req.fileContentType + CRLF);
-                    writer.writeBytes("Content-Transfer-Encoding: binary" + CRLF);
-                    writer.writeBytes(CRLF);
-                    writer.write(fileData);
-                    writer.writeBytes(CRLF);
-                    writer.writeBytes(TWO_HYPHENS + BOUNDARY + TWO_HYPHENS);
+                isConnected = true;
+                time = HttpTimings.now();
+                response.timings.setConnect(start, HttpTimings.takeTlsStart(), time);
+
+                CountingOutputStream wireOut = new CountingOutputStream(limitUpload(req, conn.getOutputStream()));
+                bodyOut = isCompress ? new GZIPOutputStream(wireOut, UPLOAD_BUFFER_SIZE) : wireOut;
+                OutputStream monitoredOut = bodyOut;
+                if (monitor != null) {
+                    monitor.reset(0, isCompress ? -1 : contentLength);
+                    monitoredOut = monitor.wrap(bodyOut);
                 }
+                RequestBodyWriter writer = new RequestBodyWriter(monitoredOut);
+                writePostBody(req, writer);
                 writer.flush();
-                Logcat.d(TAG, "Post - WRITE PARAMS OK, ms " + (System.currentTimeMillis() - time));
+                if (monitor != null) {
+                    monitor.finish();
+                }
+                // also finishes gzip; the stream is done once the response is read, close it first
+                bodyOut.close();
+                bodyOut = null;
+                response.timings.setBytesSent(wireOut.getCount());
+                if (isCompress) {
+                    Logcat.d(TAG, "Post - Compressed: " + contentLength + " -> " + wireOut.getCount());
+                }
+                response.timings.setWrite(time, time = HttpTimings.now());
 
-                time = System.currentTimeMillis();
-                statusCode = conn.getResponseCode();
-                if (statusCode == HttpURLConnection.HTTP_OK) {
+                response.statusCode = conn.getResponseCode();
+                response.timings.setFirstByte(time, time = HttpTimings.now());
+                retryAfter = conn.getHeaderField("Retry-After");
+                if (response.statusCode == HttpURLConnection.HTTP_OK) {
                     if (req.isCollectHeader) {
-                        responseHeaders = conn.getHeaderFields();
+                        response.headers = conn.getHeaderFields();
                     }
-                    result = StreamUtil.convertStreamToString(conn.getInputStream(), "UTF-8");
-                    Logcat.d(TAG, "Post - READ RESPONSE OK, ms " + (System.currentTimeMillis() - time));
+                    isBodyConsumed = readBody(req, conn, response, null);
+                    response.timings.setBody(time, HttpTimings.now());
                 }
+                Logcat.d(TAG, "Post - " + response.timings);
             } catch (Throwable e) {
                 e.printStackTrace();
-                t = e;
+                response.throwable = req.isCanceled() ? new InterruptedIOException("canceled") : e;
             } finally {
-                if (writer != null) {
+                req.setCancelAction(null);
+                response.timings.setBytesReceived(response.compressedLength);
+                recordLatency(req, response.timings, isConnected, response.statusCode, response.throwable,
+                        connectTimeout, readTimeout);
+                if (bodyOut != null) {
                     try {
-                        writer.close();
+                        bodyOut.close();
                     } catch (Throwable e) {
                         e.printStackTrace();
                     }
                 }
                 if (conn != null) {
-                    conn.disconnect();
+                    closeConnection(conn, pooled, response.statusCode, isBodyConsumed);
                 }
             }
-            if (statusCode == HttpURLConnection.HTTP_OK) {
+            if (!shouldRetry(req, tryCount, response.statusCode, response.throwable, retryAfter)) {
                 break;
             }
         } // == end of while-loop ==
 
+        response.attemptCount = tryCount;
+        return response;
+    }
+
+    /**
+     * Read body in the way asked by {@link Request}, the connection is closed only after this.
+     *
+     * @param req
+     * @param conn
+     * @param response - body goes here
+     * @param editor   - can be null; if not, body is also written into cache
+     * @return whether the body stream has been read to the end and closed
+     * @throws IOException
+     */
+    private static boolean readBody(Request req, HttpURLConnection conn, Response response, HttpCache.Editor editor)
+            throws IOException {
+        if (req.bodyType == Request.BODY_CONSUMER && req.consumerMediaType != null
+                && response.statusCode == HttpURLConnection.HTTP_OK
+                && !isMediaType(conn.getContentType(), req.consumerMediaType)) {
+            throw new ProtocolException("unexpected content type: " + conn.getContentType());
+        }
+        CountingInputStream wireIn = new CountingInputStream(limitDownload(req, conn.getInputStream()));
+        String encoding = req.isAcceptCompression ? conn.getContentEncoding() : null;
+        InputStream decoded = decodeBody(wireIn, encoding);
+        CountingInputStream in = (decoded == wireIn) ? wireIn : new CountingInputStream(decoded);
+        long contentLength = (decoded == wireIn) ? conn.getContentLength() : -1;
+        try {
+            boolean isBodyConsumed = readBody(req, response, (editor != null) ? editor.wrap(in) : in, contentLength);
+            if (editor != null) {
+                editor.commit();
+            }
+            return isBodyConsumed;
+        } finally {
+            if (editor != null) {
+                editor.abort();
+            }
+            response.compressedLength = wireIn.getCount();
+            response.uncompressedLength = in.getCount();
+        }
+    }
+
+    /**
+     * @param req
+     * @param response      - body goes here
+     * @param in            - decoded body
+     * @param contentLength - -1 if unknown
+     * @return whether in has been read to the end and closed
+     * @throws IOException
+     */
+    private static boolean readBody(Request req, Response response, InputStream in, long contentLength)
+            throws IOException {
+        switch (req.bodyType) {
+            case Request.BODY_BYTES:
+                response.bodyBytes = StreamUtil.convertStreamToByteArray(in, (int) Math.min(contentLength, Integer.MAX_VALUE));
+                return true;
+            case Request.BODY_FILE:
+                if (!FileUtil.writeInputStreamToFile(in, req.bodyFile)) {
+                    if (req.isCanceled()) {
+                        req.bodyFile.delete();
+                    }
+                    throw new IOException("write body to file failed: " + req.bodyFile);
+                }
+                response.bodyFile = req.bodyFile;
+                return true;
+            case Request.BODY_CONSUMER:
+                req.bodyConsumer.onBody(response.statusCode, in, contentLength);
+                // what the consumer left is drained when the connection is closed
+                return false;
+            case Request.BODY_STRING:
+            default:
+                response.body = StreamUtil.convertStreamToString(in, "UTF-8");
+                return true;
+        }
+    }
+
+    /**
+     * @param req
+     * @param entry
+     * @return null if cached body cannot be read
+     */
+    private static Response readCachedResponse(Request req, HttpCache.Entry entry) {
+        Response response = new Response();
+        response.statusCode = HttpURLConnection.HTTP_OK;
+        try {
+            readCachedBody(req, response, entry);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        response.attemptCount = 0;
+        return response;
+    }
+
+    private static void readCachedBody(Request req, Response response, HttpCache.Entry entry) throws IOException {
+        InputStream in = new FileInputStream(entry.getBodyFile());
+        try {
+            long length = entry.getBodyFile().length();
+            readBody(req, response, in, length);
+            response.uncompressedLength = length;
+            response.isFromCache = true;
+            if (req.isCollectHeader) {
+                // those of the stored response, updated by a 304 if any
+                response.headers = entry.getHeaders();
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void setConditionalHeaders(HttpURLConnection conn, HttpCache.Entry entry) {
+        if (!Validator.isEmpty(entry.getETag())) {
+            conn.setRequestProperty("If-None-Match", entry.getETag());
+        }
+        if (!Validator.isEmpty(entry.getLastModified())) {
+            conn.setRequestProperty("If-Modified-Since", entry.getLastModified());
+        }
+    }
+
+    private static void setAcceptEncoding(HttpURLConnection conn, Request req) {
+        // once we set it, platform stops decoding gzip by itself, we do it in decodeBody()
+        if (req.isAcceptCompression) {
+            conn.setRequestProperty("Accept-Encoding", ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+        }
+    }
+
+    /**
+     * @param in
+     * @param encoding - value of "Content-Encoding", can be null
+     * @return decoding stream, or in itself if not encoded
+     * @throws IOException
+     */
+    private static InputStream decodeBody(InputStream in, String encoding) throws IOException {
+        if (Validator.isEmpty(encoding)) {
+            return in;
+        }
+        encoding = encoding.trim();
+        if (ENCODING_GZIP.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in, DECODE_BUFFER_SIZE);
+        }
+        if (ENCODING_DEFLATE.equalsIgnoreCase(encoding)) {
+            // "deflate" should be zlib wrapped, but some servers send raw deflate
+            BufferedInputStream bin = new BufferedInputStream(in, DECODE_BUFFER_SIZE);
+            bin.mark(2);
+            int cmf = bin.read();
+            int flg = bin.read();
+            bin.reset();
+            boolean isZlib = cmf != -1 && flg != -1 && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            final Inflater inflater = new Inflater(!isZlib);
+            return new InflaterInputStream(bin, inflater, DECODE_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        return in;
+    }
+
+    /**
+     * Also waits for the retry delay, if any.
+     *
+     * @param req
+     * @param tryCount   - tries done so far
+     * @param statusCode - 0 if no response received
+     * @param t          - can be null
+     * @param retryAfter - value of "Retry-After" response header, can be null
+     * @return whether to try again
+     */
+    private static boolean shouldRetry(Request req, int tryCount, int statusCode, Throwable t, String retryAfter) {
+        long delay = getRetryDelay(req, tryCount, statusCode, t, retryAfter);
+        if (delay < 0) {
+            return false;
+        }
+        if (delay > 0) {
+            Logcat.d(TAG, "retry after ms " + delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Non-blocking part of {@link #shouldRetry(Request, int, int, Throwable, String)}.
+     *
+     * @return delay before next try in millisecond, or {@link RetryPolicy#NO_RETRY}
+     */
+    static long getRetryDelay(Request req, int tryCount, int statusCode, Throwable t, String retryAfter) {
+        RetryPolicy policy = req.retryPolicy;
+        if (statusCode == HttpURLConnection.HTTP_OK) {
+            if (policy != null) {
+                policy.onSuccess(req);
+            }
+            return RetryPolicy.NO_RETRY;
+        }
+        if (tryCount >= req.tryCount || req.isCanceled()) {
+            return RetryPolicy.NO_RETRY;
+        }
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && breaker.getState(req.getHostKey()) == CircuitBreaker.STATE_OPEN) {
+            // other requests found the host down meanwhile
+            return RetryPolicy.NO_RETRY;
+        }
+        if (policy == null) {
+            return 0;
+        }
+        long delay = policy.getRetryDelay(req, tryCount, statusCode, t, retryAfter);
+        return delay < 0 ? RetryPolicy.NO_RETRY : delay;
+    }
+
+    /**
+     * Build a response from a body fully received in memory, in the way asked by
+     * {@link Request}. For transports other than HttpURLConnection.
+     *
+     * @param req
+     * @param statusCode      - 0 if no response received
+     * @param headers         - can be null
+     * @param body            - raw body as received, can be null
+     * @param contentEncoding - can be null
+     * @param t               - can be null
+     * @param attemptCount
+     * @param timings         - can be null
+     * @return non-null
+     */
+    static Response buildResponse(Request req, int statusCode, Map<String, List<String>> headers, byte[] body,
+                                  String contentEncoding, Throwable t, int attemptCount, HttpTimings timings) {
         Response response = new Response();
+        if (timings != null) {
+            response.timings = timings;
+        }
         response.statusCode = statusCode;
         response.throwable = t;
-        response.headers = responseHeaders;
-        response.body = result;
+        response.attemptCount = attemptCount;
+        if (req.isCollectHeader) {
+            response.headers = headers;
+        }
+        // same as HttpURLConnection: body of POST is only read for 200
+        boolean isReadBody = (req.method == Request.GET) ? (statusCode >= 200 && statusCode < 400)
+                : (statusCode == HttpURLConnection.HTTP_OK);
+        if (t == null && body != null && isReadBody) {
+            CountingInputStream wireIn = new CountingInputStream(new ByteArrayInputStream(body));
+            CountingInputStream in = wireIn;
+            try {
+                InputStream decoded = decodeBody(wireIn, req.isAcceptCompression ? contentEncoding : null);
+                in = (decoded == wireIn) ? wireIn : new CountingInputStream(decoded);
+                readBody(req, response, in, (decoded == wireIn) ? body.length : -1);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                response.throwable = e;
+            } finally {
+                response.compressedLength = wireIn.getCount();
+                response.uncompressedLength = in.getCount();
+            }
+        }
         return response;
     }
 
+    /**
+     * @param req
+     * @return exact length of POST body, or -1 if it can't be known up front
+     */
+    private static long getPostContentLength(Request req) {
+        if (req.fileParts != null) {
+            for (Request.FilePart part : req.fileParts) {
+                if (part.file.length() <= 0 && !part.file.isFile()) {
+                    return -1;
+                }
+            }
+        }
+        // the same writes, only counted
+        RequestBodyWriter counter = RequestBodyWriter.measure();
+        try {
+            writePostBody(req, counter);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return counter.getCount();
+    }
+
+    /**
+     * Body of POST: form-urlencoded, or multipart if there are file parts. Also used to measure
+     * its length, so the two never disagree.
+     *
+     * @param req
+     * @param writer
+     * @throws IOException
+     */
+    private static void writePostBody(Request req, RequestBodyWriter writer) throws IOException {
+        Map<String, String> fields = req.queryStore;
+        if (req.fileParts == null) {
+            if (fields == null) {
+                return;
+            }
+            boolean isFirst = true;
+            for (Entry<String, String> entry : fields.entrySet()) {
+                if (!isFirst) {
+                    writer.writeUtf8("&");
+                }
+                isFirst = false;
+                writer.writeUtf8(entry.getKey()).writeUtf8("=").writeUrlEncoded(entry.getValue());
+            }
+            return;
+        }
+        if (fields != null) {
+            for (Entry<String, String> entry : fields.entrySet()) {
+                writer.writeUtf8(TWO_HYPHENS + BOUNDARY + CRLF + "Content-Disposition: form-data; name=\"")
+                        .writeUtf8(entry.getKey())
+                        .writeUtf8("\"" + CRLF + CRLF)
+                        .writeUtf8(entry.getValue())
+                        .writeUtf8(CRLF);
+            }
+        }
+        for (Request.FilePart part : req.fileParts) {
+            part.writeHeader(writer);
+            writer.writeFile(part.file).writeUtf8(CRLF);
+        }
+        writer.writeUtf8(TWO_HYPHENS + BOUNDARY + TWO_HYPHENS);
+    }
+
+    /**
+     * @param content
+     * @return content gzip-compressed, for transports which need the length up front
+     * @throws IOException
+     */
+    static byte[] compressBody(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(32, content.length / 4));
+        GZIPOutputStream out = new GZIPOutputStream(bytes, UPLOAD_BUFFER_SIZE);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void setStreamingMode(HttpURLConnection conn, long contentLength) {
+        if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+            conn.setFixedLengthStreamingMode((int) contentLength);
+        } else if (contentLength >= 0 && Build.VERSION.SDK_INT >= 19) {
+            conn.setFixedLengthStreamingMode(contentLength);
+        } else {
+            conn.setChunkedStreamingMode(0);
+        }
+    }
+
     private static void setConnectionSSL(HttpURLConnection conn, Request req) {
         if (conn instanceof HttpsURLConnection) {
-            SSLContext sslContext = getSSLContextWithCert(req.sslCert);
-            if (!Validator.isNull(sslContext)) {
-                ((HttpsURLConnection) conn).setSSLSocketFactory(sslContext.getSocketFactory());
+            javax.net.ssl.SSLSocketFactory socketFactory = SSL_CONTEXT_CACHE.getSocketFactory(req.sslCert);
+            if (Validator.isNull(socketFactory)) {
+                socketFactory = SSL_CONTEXT_CACHE.getDefaultSocketFactory();
             }
+            ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
             if (!Validator.isNull(req.hostnameVerifier)) {
                 ((HttpsURLConnection) conn).setHostnameVerifier(req.hostnameVerifier);
             } else {
@@ -602,47 +2501,95 @@ public final class HttpUtil {
         }
     }
 
-    private static SSLContext getSSLContextWithCert(String cert) {
-        if (Validator.isEmpty(cert)) {
+    /**
+     * @param link
+     * @return null if keep-alive is off
+     */
+    static HttpConnectionPool.Connection acquirePooledConnection(URL link) {
+        HttpConnectionPool pool = connectionPool;
+        if (pool == null) {
             return null;
         }
-        ByteArrayInputStream in = new ByteArrayInputStream(cert.getBytes());
-        CertificateFactory cf;
+        return pool.acquire(link);
+    }
+
+    static void setConnectionKeepAlive(HttpURLConnection conn, HttpConnectionPool.Connection pooled) {
+        HttpConnectionPool pool = connectionPool;
+        if (pool == null || pooled == null || pool.isLastRequest(pooled)) {
+            setConnectionNotKeepAliveIfNeeded(conn);
+        } else {
+            conn.setRequestProperty("Connection", "keep-alive");
+        }
+    }
+
+    /**
+     * Keep-alive off: disconnect. Keep-alive on: drain what's left of the response so the socket
+     * can go back to the pool, or disconnect if it can't be reused.
+     *
+     * @param conn
+     * @param pooled         - null if keep-alive is off
+     * @param statusCode     - 0 if no response was received
+     * @param isBodyConsumed - whether the body stream has been read to the end and closed
+     */
+    static void closeConnection(HttpURLConnection conn, HttpConnectionPool.Connection pooled,
+                                int statusCode, boolean isBodyConsumed) {
+        HttpConnectionPool pool = connectionPool;
+        if (pool == null || pooled == null) {
+            conn.disconnect();
+            return;
+        }
+        boolean isReusable = statusCode > 0
+                && !"close".equalsIgnoreCase(conn.getHeaderField("Connection"))
+                && (isBodyConsumed || drainResponse(conn));
+        pool.release(pooled, isReusable);
+        if (!isReusable) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Give up the connection without draining, e.g. when the rest of a large body is not wanted.
+     */
+    static void abortConnection(HttpURLConnection conn, HttpConnectionPool.Connection pooled) {
+        HttpConnectionPool pool = connectionPool;
+        if (pool != null && pooled != null) {
+            pool.release(pooled, false);
+        }
+        conn.disconnect();
+    }
+
+    /**
+     * @param conn
+     * @return true if the body (or error body) has been read to the end and closed
+     */
+    private static boolean drainResponse(HttpURLConnection conn) {
+        InputStream in;
+        try {
+            in = conn.getInputStream();
+        } catch (IOException e) {
+            in = conn.getErrorStream();
+        }
+        if (in == null) {
+            return true;
+        }
+        boolean isDrained = false;
         try {
-            cf = CertificateFactory.getInstance("X.509");
-            Certificate ca = cf.generateCertificate(in);
-            Logcat.d(TAG, "initSslFromCert - ca=" + ((X509Certificate) ca).getSubjectDN());
-
-            String keyStoreType = KeyStore.getDefaultType();
-            KeyStore keyStore = KeyStore.getInstance(keyStoreType);
-            keyStore.load(null, null);
-            keyStore.setCertificateEntry("ca", ca);
-
-            String tmfAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance(tmfAlgorithm);
-            tmf.init(keyStore);
-
-            SSLContext context = SSLContext.getInstance("TLS");
-            context.init(null, tmf.getTrustManagers(), null);
-            return context;
-        } catch (CertificateException e) {
-            e.printStackTrace();
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            byte[] buf = new byte[DRAIN_BUFFER_SIZE];
+            // noinspection StatementWithEmptyBody
+            while (in.read(buf) != -1) {
+            }
+            isDrained = true;
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (KeyManagementException e) {
-            e.printStackTrace();
         } finally {
             try {
                 in.close();
             } catch (IOException e) {
                 e.printStackTrace();
+                isDrained = false;
             }
         }
-        return null;
+        return isDrained;
     }
 
     /**
@@ -660,6 +2607,10 @@ public final class HttpUtil {
     }
 
     /**
+     * Download goes to "file.part" first and is renamed to file only when complete (checked
+     * against Content-Length), so file never exists half-written. If the connection drops, the
+     * part is kept and the download is resumed with Range / If-Range, here or by the next call.
+     *
      * @param url               - cannot be empty
      * @param file              - cannot be null; we won't start download if no write
      *                          permission
@@ -671,6 +2622,44 @@ public final class HttpUtil {
      * return false if there's invalid argument
      */
     public static boolean getFileFromUrl(String url, File file, int socketTimeout, int connectionTimeout) {
+        return getFileFromUrl(url, file, socketTimeout, connectionTimeout, Request.PRIORITY_PREFETCH);
+    }
+
+    /**
+     * Same as {@link #getFileFromUrl(String, File, int, int)}, with the priority used by
+     * {@link #setScheduler(RequestScheduler)}; default is {@link Request#PRIORITY_PREFETCH}.
+     *
+     * @param url
+     * @param file
+     * @param socketTimeout
+     * @param connectionTimeout
+     * @param priority          - {@link Request#PRIORITY_INTERACTIVE}, ...
+     * @return
+     */
+    public static boolean getFileFromUrl(String url, File file, int socketTimeout, int connectionTimeout,
+                                         @Request.Priority int priority) {
+        return getFileFromUrl(url, file, socketTimeout, connectionTimeout, priority, null, null);
+    }
+
+    /**
+     * Same as {@link #getFileFromUrl(String, File, int, int, int)}, with progress and
+     * cancellation. Identical downloads in flight share one transfer: its progress goes to the
+     * listener of every caller, and it's stopped only once every caller has canceled. A caller
+     * who cancels while others still want the file gets false when the shared transfer ends.
+     *
+     * @param url
+     * @param file
+     * @param socketTimeout
+     * @param connectionTimeout
+     * @param priority
+     * @param listener          - can be null
+     * @param token             - can be null; once canceled, the connection is disconnected, the
+     *                          partial download is deleted and false is returned
+     * @return
+     */
+    public static boolean getFileFromUrl(String url, File file, int socketTimeout, int connectionTimeout,
+                                         @Request.Priority int priority, ProgressListener listener,
+                                         CancellationToken token) {
         if (Validator.isEmpty(url)) {
             return false;
         }
@@ -681,29 +2670,297 @@ public final class HttpUtil {
             return false;
         }
 
-        boolean isSuccess = false;
+        final URL link;
+        try {
+            link = new URL(url);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        // concurrent downloads into the same file would corrupt it, let them share one
+        final String key = url + "\n" + file.getAbsolutePath();
+        final File target = file;
+        final int readTimeout = socketTimeout;
+        final int connectTimeout = connectionTimeout;
+        final int downloadPriority = priority;
+        SharedTransfer shared;
+        SharedTransfer.Caller caller;
+        synchronized (SHARED_DOWNLOADS) {
+            shared = SHARED_DOWNLOADS.get(key);
+            if (shared == null || shared.isCanceled()) {
+                shared = new SharedTransfer();
+                SHARED_DOWNLOADS.put(key, shared);
+            }
+            caller = shared.join(listener, token);
+        }
+        final TransferMonitor monitor = new TransferMonitor(shared, shared.getToken());
+        try {
+            boolean isDone = COALESCED_DOWNLOADS.execute(key, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws InterruptedException {
+                    String hostKey = HttpConnectionPool.getHostKey(link);
+                    RateLimiter limiter = rateLimiter;
+                    if (limiter != null) {
+                        long delay = limiter.reserveRequest(hostKey, downloadPriority);
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                    }
+                    RequestScheduler requestScheduler = scheduler;
+                    if (requestScheduler == null) {
+                        return downloadFile(link, target, readTimeout, connectTimeout, downloadPriority, monitor);
+                    }
+                    RequestScheduler.Ticket ticket = requestScheduler.acquire(hostKey, downloadPriority);
+                    try {
+                        return downloadFile(link, target, readTimeout, connectTimeout, downloadPriority, monitor);
+                    } finally {
+                        requestScheduler.release(ticket);
+                    }
+                }
+            });
+            // the file may be there, but this caller gave up on it
+            return isDone && (token == null || !token.isCanceled());
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            synchronized (SHARED_DOWNLOADS) {
+                if (shared.leave(caller) == 0 && SHARED_DOWNLOADS.get(key) == shared) {
+                    SHARED_DOWNLOADS.remove(key);
+                }
+            }
+        }
+    }
+
+    private static boolean downloadFile(URL link, File file, int socketTimeout, int connectionTimeout,
+                                        int priority, TransferMonitor monitor) {
+        File partFile = getPartFile(file);
+        for (int i = 0; i < DOWNLOAD_RESUME_COUNT; i++) {
+            int result = (monitor != null && monitor.isCanceled()) ? DOWNLOAD_CANCELED
+                    : downloadPart(link, file, socketTimeout, connectionTimeout, priority, monitor);
+            if (result == DOWNLOAD_COMPLETE) {
+                return commitDownload(file);
+            }
+            if (result == DOWNLOAD_FAILED) {
+                return false;
+            }
+            if (result == DOWNLOAD_CANCELED) {
+                Logcat.d(TAG, "download canceled - " + link);
+                deletePart(file);
+                return false;
+            }
+            Logcat.d(TAG, "download interrupted, " + partFile.length() + " bytes kept - " + link);
+        }
+        return false;
+    }
+
+    /**
+     * Partial download of file, kept for resuming until it's complete.
+     */
+    private static File getPartFile(File file) {
+        return new File(file.getPath() + DOWNLOAD_PART_SUFFIX);
+    }
+
+    /**
+     * Validator (ETag or Last-Modified) of the partial download, used by If-Range.
+     */
+    private static File getPartValidatorFile(File file) {
+        return new File(file.getPath() + DOWNLOAD_PART_SUFFIX + DOWNLOAD_VALIDATOR_SUFFIX);
+    }
+
+    private static void deletePart(File file) {
+        getPartFile(file).delete();
+        getPartValidatorFile(file).delete();
+    }
+
+    /**
+     * Download into part file, resume with Range / If-Range if there's already a part.
+     *
+     * @return {@link #DOWNLOAD_COMPLETE}, {@link #DOWNLOAD_INTERRUPTED} (worth resuming),
+     * {@link #DOWNLOAD_FAILED} or {@link #DOWNLOAD_CANCELED}
+     */
+    private static int downloadPart(URL link, File file, int socketTimeout, int connectionTimeout, int priority,
+                                    TransferMonitor monitor) {
+        File partFile = getPartFile(file);
+        File validatorFile = getPartValidatorFile(file);
+        long offset = partFile.isFile() ? partFile.length() : 0;
+        String validator = (offset > 0 && validatorFile.isFile()) ? FileUtil.getStringFromFile(validatorFile, null) : null;
+        if (offset > 0 && Validator.isEmpty(validator)) {
+            // can't make sure the part belongs to the same content
+            deletePart(file);
+            offset = 0;
+        }
+
+        int result = DOWNLOAD_FAILED;
         HttpURLConnection urlConnection = null;
-        int statusCode;
+        HttpConnectionPool.Connection pooled = null;
+        int statusCode = 0;
+        boolean isBodyConsumed = false;
+        Runnable disconnect = null;
         try {
-            URL link = new URL(url);
+            pooled = acquirePooledConnection(link);
             urlConnection = (HttpURLConnection) link.openConnection();
+            disconnect = watchToken(monitor, urlConnection);
             urlConnection.setReadTimeout(socketTimeout);
             urlConnection.setConnectTimeout(connectionTimeout);
-            setConnectionNotKeepAliveIfNeeded(urlConnection);
+            // byte ranges must refer to the bytes we store
+            urlConnection.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                urlConnection.setRequestProperty("Range", "bytes=" + offset + "-");
+                urlConnection.setRequestProperty("If-Range", validator);
+            }
+            setConnectionKeepAlive(urlConnection, pooled);
             urlConnection.connect();
 
             statusCode = urlConnection.getResponseCode();
-            if (statusCode == HttpURLConnection.HTTP_OK) {
-                isSuccess = FileUtil.writeInputStreamToFile(urlConnection.getInputStream(), file);
+            long total;
+            boolean isAppend;
+            if (statusCode == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                long[] range = parseContentRange(urlConnection.getHeaderField("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    deletePart(file);
+                    abortConnection(urlConnection, pooled);
+                    urlConnection = null;
+                    return DOWNLOAD_INTERRUPTED;
+                }
+                total = range[2];
+                isAppend = true;
+            } else if (statusCode == HttpURLConnection.HTTP_OK) {
+                // fresh start: no part yet, or server ignored Range / If-Range didn't match
+                total = parseContentLength(urlConnection.getHeaderField("Content-Length"));
+                isAppend = false;
+                savePartValidator(validatorFile, urlConnection);
+            } else if (statusCode == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                deletePart(file);
+                return DOWNLOAD_INTERRUPTED;
+            } else {
+                return DOWNLOAD_FAILED;
+            }
+
+            InputStream in = urlConnection.getInputStream();
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null) {
+                in = limiter.limitDownload(in, HttpConnectionPool.getHostKey(link), priority);
+            }
+            if (monitor != null) {
+                monitor.reset(isAppend ? offset : 0, total);
+                in = monitor.wrap(in);
+            }
+            try {
+                downloadSink.write(in, partFile, isAppend, (total >= 0) ? total - (isAppend ? offset : 0) : -1);
+                isBodyConsumed = true;
+                if (monitor != null) {
+                    monitor.finish();
+                }
+            } catch (IOException e) {
+                // connection lost, what's written is kept for resuming
+                e.printStackTrace();
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            long length = partFile.length();
+            if (!isBodyConsumed && monitor != null && monitor.isCanceled()) {
+                result = DOWNLOAD_CANCELED;
+            } else if (!isBodyConsumed) {
+                result = DOWNLOAD_INTERRUPTED;
+            } else if (total >= 0 && length != total) {
+                Logcat.w(TAG, "download length mismatch: " + length + "/" + total + " - " + link);
+                if (length > total) {
+                    deletePart(file);
+                }
+                result = DOWNLOAD_INTERRUPTED;
+            } else {
+                result = DOWNLOAD_COMPLETE;
             }
         } catch (Throwable e) {
             e.printStackTrace();
+            // connection lost, part (if any) is kept for resuming
+            result = (monitor != null && monitor.isCanceled()) ? DOWNLOAD_CANCELED : DOWNLOAD_INTERRUPTED;
         } finally {
+            if (disconnect != null) {
+                monitor.getToken().unregister(disconnect);
+            }
             if (urlConnection != null) {
-                urlConnection.disconnect();
+                closeConnection(urlConnection, pooled, statusCode, isBodyConsumed);
+            }
+        }
+        return result;
+    }
+
+    private static void savePartValidator(File validatorFile, HttpURLConnection conn) {
+        // weak ETag is not allowed by If-Range
+        String validator = conn.getHeaderField("ETag");
+        if (Validator.isEmpty(validator) || validator.startsWith("W/")) {
+            validator = conn.getHeaderField("Last-Modified");
+        }
+        if (Validator.isEmpty(validator)) {
+            validatorFile.delete();
+        } else {
+            FileUtil.writeToFile(validator, validatorFile, false);
+        }
+    }
+
+    /**
+     * Rename the complete part to target, so target never exists half-written.
+     */
+    private static boolean commitDownload(File file) {
+        File partFile = getPartFile(file);
+        if (!partFile.renameTo(file)) {
+            // some file systems don't replace an existing file
+            file.delete();
+            if (!partFile.renameTo(file)) {
+                Logcat.e(TAG, "cannot rename " + partFile + " to " + file);
+                return false;
             }
         }
+        getPartValidatorFile(file).delete();
+        return true;
+    }
+
+    /**
+     * @param value - e.g. "bytes 100-199/1000", total can be "*"
+     * @return {first, last, total}, total is -1 if unknown; null if invalid
+     */
+    static long[] parseContentRange(String value) {
+        if (Validator.isEmpty(value)) {
+            return null;
+        }
+        value = value.trim();
+        if (!value.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash == -1 || slash == -1 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(value.substring("bytes ".length(), dash).trim());
+            long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String totalString = value.substring(slash + 1).trim();
+            long total = "*".equals(totalString) ? -1 : Long.parseLong(totalString);
+            return new long[]{first, last, total};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-        return isSuccess;
+    /**
+     * @return -1 if absent or invalid
+     */
+    private static long parseContentLength(String value) {
+        if (Validator.isEmpty(value)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 }
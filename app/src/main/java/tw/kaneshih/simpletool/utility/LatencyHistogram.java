@@ -0,0 +1,63 @@
+package tw.kaneshih.simpletool.utility;
+
+/**
+ * Log-scale histogram of latency in millisecond: 4 buckets per power of 2 (about 19% wide each),
+ * from 1 ms to about 2 minutes. Old samples fade out: once {@link #MAX_WEIGHT} is reached all
+ * counts are halved, so the histogram follows the network as it changes. Not thread-safe.
+ */
+final class LatencyHistogram {
+    static final int MAX_WEIGHT = 1000;
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKET_COUNT = 17 * BUCKETS_PER_DOUBLING + 1;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private int total;
+
+    void record(long millis) {
+        counts[indexOf(millis)]++;
+        total++;
+        if (total >= MAX_WEIGHT) {
+            total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] >>= 1;
+                total += counts[i];
+            }
+        }
+    }
+
+    int getCount() {
+        return total;
+    }
+
+    /**
+     * @param percentile - 0 ~ 1
+     * @return upper bound of the bucket holding the percentile, 0 if empty
+     */
+    long getPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    private static int indexOf(long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        int index = (int) Math.ceil(Math.log(millis) / Math.log(2) * BUCKETS_PER_DOUBLING);
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    private static long upperBoundOf(int index) {
+        return (long) Math.ceil(Math.pow(2, (double) index / BUCKETS_PER_DOUBLING));
+    }
+}
@@ -0,0 +1,1234 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.support.annotation.NonNull;
+
+/**
+ * HTTP/1.1 over non-blocking SocketChannels: all requests in flight share one selector thread
+ * instead of holding a thread each, so hundreds of concurrent requests don't need hundreds of
+ * threads.
+ * <p>
+ * Handles plain http GET and form POST with String or byte[] body, including retry, keep-alive,
+ * chunked body and redirect of GET. Anything else (https, multipart, file or stream body, GET
+ * while {@link HttpUtil#setCache(HttpCache)} is used) goes to the fallback transport.
+ * <p>
+ * Body is kept in memory until complete, so it's meant for API calls, not for large downloads.
+ */
+public final class NioHttpTransport implements HttpTransport {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    private static final String TAG = "NioHttpTransport";
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int RESOLVER_POOL_SIZE = 2;
+
+    private static final int BODY_NONE = 0;
+    private static final int BODY_LENGTH = 1;
+    private static final int BODY_CHUNKED = 2;
+    private static final int BODY_UNTIL_CLOSE = 3;
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_DATA_END = 2;
+    private static final int CHUNK_TRAILER = 3;
+
+    private final HttpTransport fallback;
+    private volatile Executor callbackExecutor;
+    private volatile ExecutorService resolver;
+    private volatile int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private final Object lock = new Object();
+    private EventLoop loop;
+
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    public NioHttpTransport() {
+        this(new UrlConnectionTransport());
+    }
+
+    /**
+     * @param fallback - for requests we don't handle
+     * @throws IllegalArgumentException - if fallback is null
+     */
+    public NioHttpTransport(HttpTransport fallback) throws IllegalArgumentException {
+        if (Validator.isNull(fallback)) {
+            throw new IllegalArgumentException("fallback is null");
+        }
+        this.fallback = fallback;
+    }
+
+    /**
+     * default is a single background thread
+     *
+     * @param executor - where {@link Callback} of {@link #enqueue(HttpUtil.Request, Callback)} runs
+     * @return
+     * @throws IllegalArgumentException - if executor is null
+     */
+    public NioHttpTransport setCallbackExecutor(Executor executor) throws IllegalArgumentException {
+        if (Validator.isNull(executor)) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        this.callbackExecutor = executor;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_IDLE_CONNECTIONS}
+     *
+     * @param max - max idle connections kept per host
+     * @return
+     * @throws IllegalArgumentException - if max < 0
+     */
+    public NioHttpTransport setMaxIdleConnections(int max) throws IllegalArgumentException {
+        if (max < 0) {
+            throw new IllegalArgumentException("invalid max idle connections:" + max);
+        }
+        this.maxIdleConnections = max;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_IDLE_TIMEOUT}
+     *
+     * @param timeout - unit is millisecond
+     * @return
+     * @throws IllegalArgumentException - if timeout < 1
+     */
+    public NioHttpTransport setIdleTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("invalid idle timeout:" + timeout);
+        }
+        this.idleTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * @return how many sockets have been opened
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    /**
+     * @return how many requests went on an idle keep-alive socket
+     */
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    /**
+     * @return how many requests went to the fallback transport
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    public void resetStatistics() {
+        connectCount.set(0);
+        reuseCount.set(0);
+        fallbackCount.set(0);
+    }
+
+    /**
+     * Fail all requests in flight and close all sockets. The transport can still be used after,
+     * a new selector thread is started on demand.
+     */
+    public void shutdown() {
+        EventLoop old;
+        synchronized (lock) {
+            old = loop;
+            loop = null;
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    @Override
+    public HttpUtil.Response execute(HttpUtil.Request request) {
+        if (!isSupported(request)) {
+            fallbackCount.incrementAndGet();
+            return fallback.execute(request);
+        }
+        Call call = new Call(request, null);
+        watchCancel(call);
+        EventLoop current = submit(call);
+        long timeout = request.getConnectionTimeout() + request.getSocketTimeout();
+        try {
+            // the loop completes every call it has, even when it dies; this is in case one got lost
+            while (!call.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                if (current.isClosed) {
+                    call.isCanceled = true;
+                    return HttpUtil.buildResponse(request, 0, null, null, null,
+                            new IOException("transport is shut down"), call.attemptCount, null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            call.isCanceled = true;
+            return HttpUtil.buildResponse(request, 0, null, null, null,
+                    new InterruptedIOException("interrupted"), call.attemptCount, null);
+        }
+        return call.buildResponse();
+    }
+
+    @Override
+    public void enqueue(HttpUtil.Request request, Callback callback) {
+        if (!isSupported(request)) {
+            fallbackCount.incrementAndGet();
+            fallback.enqueue(request, callback);
+            return;
+        }
+        Call call = new Call(request, callback);
+        watchCancel(call);
+        submit(call);
+    }
+
+    /**
+     * Let {@link HttpUtil.Request#cancel()} abort call, the selector thread does it on wakeup.
+     */
+    private void watchCancel(final Call call) {
+        call.req.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                call.isCanceled = true;
+                synchronized (lock) {
+                    if (loop != null && loop.selector != null) {
+                        // checkTimers() aborts it
+                        loop.selector.wakeup();
+                    }
+                }
+            }
+        });
+        if (call.req.isCanceled()) {
+            call.isCanceled = true;
+        }
+    }
+
+    private boolean isSupported(HttpUtil.Request req) {
+        if (req.hasFileParts() || !Validator.isEmpty(req.getSSLCertificate())) {
+            return false;
+        }
+        if (!req.isBodyInMemory()) {
+            return false;
+        }
+        if (req.getMethod() == HttpUtil.Request.GET) {
+            if (req.isUseCache() && HttpUtil.getCache() != null) {
+                return false;
+            }
+        } else if (req.getMethod() != HttpUtil.Request.POST) {
+            return false;
+        }
+        String url = req.getUrl();
+        return url != null && url.regionMatches(true, 0, "http://", 0, 7);
+    }
+
+    /**
+     * @return the loop call went to
+     */
+    private EventLoop submit(final Call call) {
+        synchronized (lock) {
+            if (loop == null) {
+                loop = new EventLoop();
+            }
+            final EventLoop current = loop;
+            current.post(new Runnable() {
+                @Override
+                public void run() {
+                    current.start(call);
+                }
+            });
+            return current;
+        }
+    }
+
+    private Executor getCallbackExecutor() {
+        if (callbackExecutor == null) {
+            synchronized (lock) {
+                if (callbackExecutor == null) {
+                    callbackExecutor = Executors.newSingleThreadExecutor(newThreadFactory("NioHttpTransportCallback"));
+                }
+            }
+        }
+        return callbackExecutor;
+    }
+
+    private ExecutorService getResolver() {
+        if (resolver == null) {
+            synchronized (lock) {
+                if (resolver == null) {
+                    resolver = Executors.newFixedThreadPool(RESOLVER_POOL_SIZE, newThreadFactory("NioHttpTransportDns"));
+                }
+            }
+        }
+        return resolver;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        final AtomicInteger index = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread t = new Thread(r, name + "-" + index.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * One request, through all its tries and redirects. Fields are touched by the selector thread
+     * only, until it's completed.
+     */
+    private final class Call {
+        private final HttpUtil.Request req;
+        private final Callback callback;
+        private final CountDownLatch latch;
+        private volatile boolean isCanceled;
+        private boolean isDelivered;
+
+        private URL url;
+        private String hostKey;
+        private InetSocketAddress address;
+        private int attemptCount;
+        private int redirectCount;
+        private boolean isStaleRetried;
+        private long wakeAt;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean isReused;
+        private ByteBuffer out;
+        private long deadline;
+
+        // response of current try
+        private byte[] headerBuf;
+        private int headerLength;
+        private boolean isHeaderDone;
+        private int statusCode;
+        private Map<String, List<String>> headers;
+        private boolean isKeepAlive;
+        private int bodyMode;
+        private long bodyRemaining;
+        private ByteArrayOutputStream body;
+        private int chunkState;
+        private StringBuilder chunkLine;
+        private boolean isReceiving;
+
+        // timings of current try, HttpTimings.now() of each event, 0 if not happened
+        private long startTime;
+        private long connectedTime;
+        private long writtenTime;
+        private long firstByteTime;
+        private long doneTime;
+        private long bytesSent;
+
+        // result
+        private Throwable throwable;
+
+        private Call(HttpUtil.Request req, Callback callback) {
+            this.req = req;
+            this.callback = callback;
+            this.latch = (callback == null) ? new CountDownLatch(1) : null;
+        }
+
+        private void resetResponse() {
+            headerBuf = null;
+            headerLength = 0;
+            isHeaderDone = false;
+            statusCode = 0;
+            headers = null;
+            isKeepAlive = false;
+            bodyMode = BODY_NONE;
+            bodyRemaining = 0;
+            body = null;
+            chunkState = CHUNK_SIZE;
+            chunkLine = null;
+            isReceiving = false;
+            throwable = null;
+            startTime = HttpTimings.now();
+            connectedTime = 0;
+            writtenTime = 0;
+            firstByteTime = 0;
+            doneTime = 0;
+            bytesSent = 0;
+        }
+
+        private String getHeader(String name) {
+            if (headers == null) {
+                return null;
+            }
+            for (Entry<String, List<String>> entry : headers.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                    return entry.getValue().get(entry.getValue().size() - 1);
+                }
+            }
+            return null;
+        }
+
+        private HttpTimings getTimings() {
+            HttpTimings timings = new HttpTimings();
+            timings.setAttempt(attemptCount);
+            timings.setConnect(startTime, 0, connectedTime);
+            timings.setWrite(connectedTime, writtenTime);
+            timings.setFirstByte(writtenTime, firstByteTime);
+            timings.setBody(firstByteTime, doneTime);
+            timings.setBytesSent(writtenTime > 0 ? bytesSent : 0);
+            timings.setBytesReceived(body != null ? body.size() : 0);
+            return timings;
+        }
+
+        private HttpUtil.Response buildResponse() {
+            return HttpUtil.buildResponse(req, statusCode, headers, (body != null) ? body.toByteArray() : null,
+                    getHeader("Content-Encoding"), throwable, attemptCount, getTimings());
+        }
+    }
+
+    private static final class IdleChannel {
+        private final String hostKey;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final long idleSince;
+
+        private IdleChannel(String hostKey, SocketChannel channel, SelectionKey key, long idleSince) {
+            this.hostKey = hostKey;
+            this.channel = channel;
+            this.key = key;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /**
+     * The selector thread, with the state it owns.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean isShutdown;
+        // stopped and all its calls failed, whatever the reason
+        private volatile boolean isClosed;
+
+        private final Set<Call> activeCalls = new HashSet<>();
+        private final PriorityQueue<Call> delayedCalls = new PriorityQueue<>(11, new Comparator<Call>() {
+            @Override
+            public int compare(Call lhs, Call rhs) {
+                return lhs.wakeAt < rhs.wakeAt ? -1 : (lhs.wakeAt == rhs.wakeAt ? 0 : 1);
+            }
+        });
+        private final Map<String, ArrayDeque<IdleChannel>> idleChannels = new HashMap<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private EventLoop() {
+            Selector s = null;
+            try {
+                s = Selector.open();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            selector = s;
+            Thread thread = new Thread(this, "NioHttpTransport");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void post(Runnable task) {
+            tasks.add(task);
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        private void shutdown() {
+            isShutdown = true;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isShutdown && selector != null) {
+                    runTasks();
+                    long timeout = checkTimers();
+                    selector.select(timeout);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handleKey(key);
+                    }
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+            } finally {
+                close();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * @return how long select() may block, 0 means forever
+         */
+        private long checkTimers() {
+            long now = HttpTimings.nowMillis();
+            while (!delayedCalls.isEmpty() && delayedCalls.peek().wakeAt <= now) {
+                startAttempt(delayedCalls.poll());
+            }
+            long next = Long.MAX_VALUE;
+            if (!delayedCalls.isEmpty()) {
+                next = delayedCalls.peek().wakeAt;
+            }
+            for (Call call : new ArrayList<>(activeCalls)) {
+                if (call.isCanceled) {
+                    abort(call);
+                } else if (call.channel != null && call.deadline <= now) {
+                    boolean isConnecting = call.key != null && (call.key.interestOps() & SelectionKey.OP_CONNECT) != 0;
+                    onFailure(call, new SocketTimeoutException(isConnecting ? "connect timed out" : "Read timed out"));
+                } else if (call.channel != null) {
+                    next = Math.min(next, call.deadline);
+                }
+            }
+            if (!idleChannels.isEmpty()) {
+                evictIdle(now);
+                next = Math.min(next, now + idleTimeout);
+            }
+            return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+        }
+
+        private void start(Call call) {
+            if (isShutdown) {
+                call.throwable = new IOException("transport is shut down");
+                deliver(call);
+                return;
+            }
+            try {
+                String query = call.req.getBuiltQuery();
+                if (call.req.getMethod() == HttpUtil.Request.GET && !Validator.isEmpty(query)) {
+                    setUrl(call, new URL(call.req.getUrl() + "?" + query));
+                } else {
+                    setUrl(call, new URL(call.req.getUrl()));
+                }
+            } catch (MalformedURLException e) {
+                e.printStackTrace();
+                call.throwable = e;
+                deliver(call);
+                return;
+            }
+            activeCalls.add(call);
+            startAttempt(call);
+        }
+
+        private void setUrl(Call call, URL url) {
+            String hostKey = HttpConnectionPool.getHostKey(url);
+            if (!hostKey.equals(call.hostKey)) {
+                call.address = null;
+            }
+            call.url = url;
+            call.hostKey = hostKey;
+        }
+
+        private void startAttempt(Call call) {
+            call.attemptCount++;
+            Logcat.d(TAG, "Try: " + call.attemptCount + "/" + call.req.getTryCount() + " - " + call.url);
+            send(call);
+        }
+
+        private void send(Call call) {
+            if (call.isCanceled) {
+                abort(call);
+                return;
+            }
+            call.resetResponse();
+            try {
+                call.out = ByteBuffer.wrap(buildRequest(call));
+            } catch (IOException e) {
+                e.printStackTrace();
+                call.throwable = e;
+                complete(call);
+                return;
+            }
+            IdleChannel idle = pollIdle(call.hostKey);
+            if (idle != null) {
+                reuseCount.incrementAndGet();
+                call.channel = idle.channel;
+                call.key = idle.key;
+                call.isReused = true;
+                call.connectedTime = call.startTime;
+                call.key.attach(call);
+                call.key.interestOps(SelectionKey.OP_WRITE);
+                call.deadline = getDeadline(call.req.getSocketTimeout());
+                return;
+            }
+            call.isReused = false;
+            if (call.address == null) {
+                resolve(call);
+                return;
+            }
+            connect(call);
+        }
+
+        private void resolve(final Call call) {
+            final URL url = call.url;
+            final EventLoop self = this;
+            getResolver().execute(new Runnable() {
+                @Override
+                public void run() {
+                    InetSocketAddress address = null;
+                    Throwable error = null;
+                    try {
+                        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+                        address = new InetSocketAddress(HttpUtil.getDnsResolver().resolve(url.getHost())[0], port);
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+                    final InetSocketAddress resolved = address;
+                    final Throwable failure = error;
+                    self.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failure != null) {
+                                onFailure(call, failure);
+                            } else {
+                                call.address = resolved;
+                                connect(call);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void connect(Call call) {
+            if (call.isCanceled) {
+                abort(call);
+                return;
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connectCount.incrementAndGet();
+                call.channel = channel;
+                if (channel.connect(call.address)) {
+                    call.connectedTime = HttpTimings.now();
+                    call.key = channel.register(selector, SelectionKey.OP_WRITE, call);
+                    call.deadline = getDeadline(call.req.getSocketTimeout());
+                } else {
+                    call.key = channel.register(selector, SelectionKey.OP_CONNECT, call);
+                    call.deadline = getDeadline(call.req.getConnectionTimeout());
+                }
+            } catch (IOException e) {
+                if (call.channel == null) {
+                    closeQuietly(channel);
+                }
+                onFailure(call, e);
+            }
+        }
+
+        private long getDeadline(int timeout) {
+            return timeout > 0 ? HttpTimings.nowMillis() + timeout : Long.MAX_VALUE;
+        }
+
+        private void handleKey(SelectionKey key) {
+            Object attachment = key.attachment();
+            if (attachment instanceof IdleChannel) {
+                // an idle socket is readable only when server closed it
+                IdleChannel idle = (IdleChannel) attachment;
+                ArrayDeque<IdleChannel> queue = idleChannels.get(idle.hostKey);
+                if (queue != null) {
+                    queue.remove(idle);
+                    if (queue.isEmpty()) {
+                        idleChannels.remove(idle.hostKey);
+                    }
+                }
+                closeQuietly(idle.channel);
+                return;
+            }
+            Call call = (Call) attachment;
+            if (!key.isValid()) {
+                onFailure(call, new ClosedChannelException());
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    call.channel.finishConnect();
+                    call.connectedTime = HttpTimings.now();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    call.deadline = getDeadline(call.req.getSocketTimeout());
+                }
+                if (key.isValid() && key.isWritable()) {
+                    call.channel.write(call.out);
+                    if (!call.out.hasRemaining()) {
+                        call.writtenTime = HttpTimings.now();
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    call.deadline = getDeadline(call.req.getSocketTimeout());
+                }
+                if (key.isValid() && key.isReadable()) {
+                    readBuffer.clear();
+                    int n = call.channel.read(readBuffer);
+                    if (n < 0) {
+                        onEof(call);
+                    } else if (n > 0) {
+                        if (!call.isReceiving) {
+                            call.isReceiving = true;
+                            call.firstByteTime = HttpTimings.now();
+                        }
+                        call.deadline = getDeadline(call.req.getSocketTimeout());
+                        if (onBytes(call, readBuffer.array(), 0, n)) {
+                            onResponse(call);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                onFailure(call, e);
+            }
+        }
+
+        /**
+         * @return whether response is complete
+         */
+        private boolean onBytes(Call call, byte[] b, int off, int len) throws IOException {
+            if (!call.isHeaderDone) {
+                if (call.headerBuf == null) {
+                    call.headerBuf = new byte[Math.max(len, 1024)];
+                } else if (call.headerLength + len > call.headerBuf.length) {
+                    byte[] grown = new byte[Math.max(call.headerBuf.length * 2, call.headerLength + len)];
+                    System.arraycopy(call.headerBuf, 0, grown, 0, call.headerLength);
+                    call.headerBuf = grown;
+                }
+                System.arraycopy(b, off, call.headerBuf, call.headerLength, len);
+                int searchFrom = Math.max(0, call.headerLength - 3);
+                call.headerLength += len;
+                int end = indexOfHeaderEnd(call.headerBuf, searchFrom, call.headerLength);
+                if (end < 0) {
+                    if (call.headerLength > MAX_HEADER_SIZE) {
+                        throw new IOException("response header too large");
+                    }
+                    return false;
+                }
+                parseHeader(call, new String(call.headerBuf, 0, end, "ISO-8859-1"));
+                byte[] rest = call.headerBuf;
+                int restOff = end + 4;
+                int restLen = call.headerLength - restOff;
+                call.headerBuf = null;
+                call.headerLength = 0;
+                if (call.statusCode / 100 == 1) {
+                    // interim response, the real one follows
+                    call.isHeaderDone = false;
+                    call.headers = null;
+                    return restLen > 0 && onBytes(call, rest, restOff, restLen);
+                }
+                if (call.bodyMode == BODY_NONE) {
+                    call.isKeepAlive &= restLen == 0;
+                    return true;
+                }
+                return restLen > 0 && onBody(call, rest, restOff, restLen);
+            }
+            return onBody(call, b, off, len);
+        }
+
+        private int indexOfHeaderEnd(byte[] b, int from, int to) {
+            for (int i = from; i + 3 < to; i++) {
+                if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void parseHeader(Call call, String header) throws IOException {
+            String[] lines = header.split("\r\n");
+            String statusLine = lines[0];
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("invalid status line: " + statusLine);
+            }
+            try {
+                call.statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid status line: " + statusLine);
+            }
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            List<String> status = new ArrayList<>();
+            status.add(statusLine);
+            // same as HttpURLConnection, status line is under null key
+            headers.put(null, status);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                List<String> values = headers.get(name);
+                if (values == null) {
+                    values = new ArrayList<>();
+                    headers.put(name, values);
+                }
+                values.add(value);
+            }
+            call.headers = headers;
+            call.isHeaderDone = true;
+
+            String connection = call.getHeader("Connection");
+            if ("HTTP/1.0".equals(parts[0])) {
+                call.isKeepAlive = connection != null && connection.equalsIgnoreCase("keep-alive");
+            } else {
+                call.isKeepAlive = connection == null || !connection.equalsIgnoreCase("close");
+            }
+
+            String transferEncoding = call.getHeader("Transfer-Encoding");
+            String contentLength = call.getHeader("Content-Length");
+            if (call.statusCode / 100 == 1 || call.statusCode == 204 || call.statusCode == 304) {
+                call.bodyMode = BODY_NONE;
+            } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                call.bodyMode = BODY_CHUNKED;
+                call.chunkState = CHUNK_SIZE;
+                call.chunkLine = new StringBuilder();
+                call.body = new ByteArrayOutputStream();
+            } else if (contentLength != null) {
+                try {
+                    call.bodyRemaining = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid Content-Length: " + contentLength);
+                }
+                call.bodyMode = call.bodyRemaining > 0 ? BODY_LENGTH : BODY_NONE;
+                call.body = new ByteArrayOutputStream((int) Math.min(call.bodyRemaining, Integer.MAX_VALUE - 8));
+            } else {
+                call.bodyMode = BODY_UNTIL_CLOSE;
+                call.isKeepAlive = false;
+                call.body = new ByteArrayOutputStream();
+            }
+        }
+
+        /**
+         * @return whether body is complete
+         */
+        private boolean onBody(Call call, byte[] b, int off, int len) throws IOException {
+            switch (call.bodyMode) {
+                case BODY_LENGTH: {
+                    int n = (int) Math.min(len, call.bodyRemaining);
+                    call.body.write(b, off, n);
+                    call.bodyRemaining -= n;
+                    if (call.bodyRemaining == 0) {
+                        // anything more is not ours, the socket can't be trusted
+                        call.isKeepAlive &= n == len;
+                        return true;
+                    }
+                    return false;
+                }
+                case BODY_CHUNKED:
+                    return onChunked(call, b, off, len);
+                case BODY_UNTIL_CLOSE:
+                    call.body.write(b, off, len);
+                    return false;
+                case BODY_NONE:
+                default:
+                    return true;
+            }
+        }
+
+        private boolean onChunked(Call call, byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                switch (call.chunkState) {
+                    case CHUNK_DATA: {
+                        int n = (int) Math.min(end - i, call.bodyRemaining);
+                        call.body.write(b, i, n);
+                        i += n;
+                        call.bodyRemaining -= n;
+                        if (call.bodyRemaining == 0) {
+                            call.chunkState = CHUNK_DATA_END;
+                        }
+                        break;
+                    }
+                    case CHUNK_DATA_END:
+                        if (b[i++] == '\n') {
+                            call.chunkState = CHUNK_SIZE;
+                        }
+                        break;
+                    case CHUNK_SIZE:
+                    case CHUNK_TRAILER:
+                    default: {
+                        char c = (char) (b[i++] & 0xFF);
+                        if (c == '\r') {
+                            break;
+                        }
+                        if (c != '\n') {
+                            if (call.chunkLine.length() > MAX_HEADER_SIZE) {
+                                throw new IOException("invalid chunk");
+                            }
+                            call.chunkLine.append(c);
+                            break;
+                        }
+                        String line = call.chunkLine.toString().trim();
+                        call.chunkLine.setLength(0);
+                        if (call.chunkState == CHUNK_TRAILER) {
+                            if (line.isEmpty()) {
+                                call.isKeepAlive &= i == end;
+                                return true;
+                            }
+                            break;
+                        }
+                        int semicolon = line.indexOf(';');
+                        if (semicolon >= 0) {
+                            line = line.substring(0, semicolon).trim();
+                        }
+                        try {
+                            call.bodyRemaining = Long.parseLong(line, 16);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("invalid chunk size: " + line);
+                        }
+                        call.chunkState = call.bodyRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void onEof(Call call) throws IOException {
+            if (call.isHeaderDone && call.bodyMode == BODY_UNTIL_CLOSE) {
+                call.isKeepAlive = false;
+                onResponse(call);
+                return;
+            }
+            onFailure(call, new IOException("unexpected end of stream"));
+        }
+
+        private void onResponse(Call call) {
+            call.doneTime = HttpTimings.now();
+            releaseChannel(call, call.isKeepAlive);
+            recordLatency(call, null);
+            if (call.req.getMethod() == HttpUtil.Request.GET && isRedirect(call.statusCode)
+                    && call.redirectCount < MAX_REDIRECTS) {
+                String location = call.getHeader("Location");
+                URL target = null;
+                try {
+                    target = (location != null) ? new URL(call.url, location) : null;
+                } catch (MalformedURLException e) {
+                    e.printStackTrace();
+                }
+                // like HttpURLConnection, redirect to another protocol is not followed
+                if (target != null && target.getProtocol().equals(call.url.getProtocol())) {
+                    call.redirectCount++;
+                    setUrl(call, target);
+                    Logcat.d(TAG, "redirect to " + target);
+                    send(call);
+                    return;
+                }
+            }
+            retryOrComplete(call);
+        }
+
+        private boolean isRedirect(int statusCode) {
+            return statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307
+                    || statusCode == 308;
+        }
+
+        private void onFailure(Call call, Throwable t) {
+            boolean isStale = call.isReused && !call.isReceiving && !call.isStaleRetried;
+            releaseChannel(call, false);
+            if (isStale && !(t instanceof SocketTimeoutException)) {
+                // server closed the idle socket before we used it, not a real try
+                Logcat.d(TAG, "stale connection, retry on a new one - " + t);
+                call.isStaleRetried = true;
+                send(call);
+                return;
+            }
+            recordLatency(call, t);
+            call.statusCode = 0;
+            call.throwable = t;
+            retryOrComplete(call);
+        }
+
+        private void recordLatency(Call call, Throwable t) {
+            HttpUtil.recordLatency(call.req, call.getTimings(), call.connectedTime > 0, call.statusCode, t,
+                    call.req.getConnectionTimeout(), call.req.getSocketTimeout());
+        }
+
+        private void retryOrComplete(Call call) {
+            long delay = HttpUtil.getRetryDelay(call.req, call.attemptCount, call.statusCode, call.throwable,
+                    call.getHeader("Retry-After"));
+            if (delay < 0 || call.isCanceled) {
+                complete(call);
+                return;
+            }
+            Logcat.d(TAG, "retry after ms " + delay);
+            call.isStaleRetried = false;
+            call.wakeAt = HttpTimings.nowMillis() + delay;
+            delayedCalls.add(call);
+        }
+
+        private void complete(Call call) {
+            activeCalls.remove(call);
+            if (call.throwable != null) {
+                Logcat.w(TAG, "failed - " + call.url + ", " + call.throwable);
+            }
+            deliver(call);
+        }
+
+        private void abort(Call call) {
+            releaseChannel(call, false);
+            activeCalls.remove(call);
+            delayedCalls.remove(call);
+            call.statusCode = 0;
+            call.throwable = new InterruptedIOException("canceled");
+            deliver(call);
+        }
+
+        private void deliver(final Call call) {
+            if (call.isDelivered) {
+                // e.g. aborted while its DNS lookup was running
+                return;
+            }
+            call.isDelivered = true;
+            call.req.setCancelAction(null);
+            if (call.latch != null) {
+                call.latch.countDown();
+                return;
+            }
+            getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    call.callback.onResponse(call.buildResponse());
+                }
+            });
+        }
+
+        private void releaseChannel(Call call, boolean isReusable) {
+            SocketChannel channel = call.channel;
+            SelectionKey key = call.key;
+            call.channel = null;
+            call.key = null;
+            call.out = null;
+            if (channel == null) {
+                return;
+            }
+            if (!isReusable || maxIdleConnections == 0 || key == null || !key.isValid() || isShutdown) {
+                closeQuietly(channel);
+                return;
+            }
+            ArrayDeque<IdleChannel> queue = idleChannels.get(call.hostKey);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                idleChannels.put(call.hostKey, queue);
+            }
+            while (queue.size() >= maxIdleConnections) {
+                closeQuietly(queue.pollFirst().channel);
+            }
+            IdleChannel idle = new IdleChannel(call.hostKey, channel, key, HttpTimings.nowMillis());
+            key.attach(idle);
+            key.interestOps(SelectionKey.OP_READ);
+            queue.addLast(idle);
+        }
+
+        private IdleChannel pollIdle(String hostKey) {
+            ArrayDeque<IdleChannel> queue = idleChannels.get(hostKey);
+            if (queue == null) {
+                return null;
+            }
+            long now = HttpTimings.nowMillis();
+            IdleChannel idle;
+            // most recently used first, it's the most likely one still alive
+            while ((idle = queue.pollLast()) != null) {
+                if (now - idle.idleSince <= idleTimeout && idle.key.isValid() && idle.channel.isConnected()) {
+                    break;
+                }
+                closeQuietly(idle.channel);
+            }
+            if (queue.isEmpty()) {
+                idleChannels.remove(hostKey);
+            }
+            return idle;
+        }
+
+        private void evictIdle(long now) {
+            Iterator<ArrayDeque<IdleChannel>> queues = idleChannels.values().iterator();
+            while (queues.hasNext()) {
+                ArrayDeque<IdleChannel> queue = queues.next();
+                Iterator<IdleChannel> it = queue.iterator();
+                while (it.hasNext()) {
+                    IdleChannel idle = it.next();
+                    if (now - idle.idleSince > idleTimeout) {
+                        closeQuietly(idle.channel);
+                        it.remove();
+                    }
+                }
+                if (queue.isEmpty()) {
+                    queues.remove();
+                }
+            }
+        }
+
+        /**
+         * Also when the loop dies: it's detached first so new calls go to a new loop, then calls
+         * submitted so far fail.
+         */
+        private void close() {
+            isShutdown = true;
+            synchronized (lock) {
+                if (loop == this) {
+                    loop = null;
+                }
+            }
+            // queued calls fail in start()
+            runTasks();
+            IOException shutdown = new IOException("transport is shut down");
+            for (Call call : new ArrayList<>(activeCalls)) {
+                releaseChannel(call, false);
+                call.statusCode = 0;
+                call.throwable = shutdown;
+                deliver(call);
+            }
+            for (Call call : delayedCalls) {
+                call.statusCode = 0;
+                call.throwable = shutdown;
+                deliver(call);
+            }
+            activeCalls.clear();
+            delayedCalls.clear();
+            for (ArrayDeque<IdleChannel> queue : idleChannels.values()) {
+                for (IdleChannel idle : queue) {
+                    closeQuietly(idle.channel);
+                }
+            }
+            idleChannels.clear();
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            isClosed = true;
+        }
+    }
+
+    private byte[] buildRequest(Call call) throws IOException {
+        HttpUtil.Request req = call.req;
+        URL url = call.url;
+        boolean isPost = req.getMethod() == HttpUtil.Request.POST;
+        byte[] content = isPost ? req.getBuiltQuery().getBytes("UTF-8") : null;
+        boolean isCompress = isPost && req.isCompressBody(content.length);
+        if (isCompress) {
+            content = HttpUtil.compressBody(content);
+        }
+        call.bytesSent = (content != null) ? content.length : 0;
+
+        // later ones override, header names are case-insensitive
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Host", url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+                ? url.getHost() : url.getHost() + ":" + url.getPort());
+        headers.put("Connection", "keep-alive");
+        if (req.isAcceptCompression()) {
+            headers.put("Accept-Encoding", HttpUtil.ENCODING_GZIP + ", " + HttpUtil.ENCODING_DEFLATE);
+        }
+        if (isPost) {
+            headers.put("Charset", "UTF-8");
+            headers.put("Content-Type", "application/x-www-form-urlencoded");
+        }
+        Map<String, String> custom = req.getHeaderMap();
+        if (custom != null) {
+            for (Entry<String, String> entry : custom.entrySet()) {
+                // e.g. Base64.DEFAULT of setAuth() ends with a line feed
+                headers.put(entry.getKey().trim(), entry.getValue().trim());
+            }
+        }
+        if (isCompress) {
+            headers.put("Content-Encoding", HttpUtil.ENCODING_GZIP);
+        }
+        if (isPost) {
+            headers.put("Content-Length", String.valueOf(content.length));
+        }
+
+        String path = url.getFile();
+        StringBuilder sb = new StringBuilder();
+        sb.append(isPost ? "POST " : "GET ").append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        for (Entry<String, String> entry : headers.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        sb.append("\r\n");
+        byte[] head = sb.toString().getBytes("UTF-8");
+        if (content == null || content.length == 0) {
+            return head;
+        }
+        byte[] message = new byte[head.length + content.length];
+        System.arraycopy(head, 0, message, 0, head.length);
+        System.arraycopy(content, 0, message, head.length, content.length);
+        return message;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioHttpTransport [maxIdleConnections=" + maxIdleConnections + ", idleTimeout=" + idleTimeout
+                + ", connectCount=" + connectCount + ", reuseCount=" + reuseCount + ", fallbackCount="
+                + fallbackCount + "]";
+    }
+}
@@ -0,0 +1,16 @@
+package tw.kaneshih.simpletool.utility;
+
+/**
+ * Progress of a transfer, see {@link HttpUtil.Request#setProgressListener(ProgressListener)} and
+ * {@link HttpUtil#getFileFromUrl(String, java.io.File, int, int, int, ProgressListener, CancellationToken)}.
+ */
+public interface ProgressListener {
+    /**
+     * Called on the thread doing the transfer, at most every {@link HttpUtil#PROGRESS_INTERVAL}
+     * millisecond, and once more when the transfer is done. Keep it short.
+     *
+     * @param bytesDone  - including what a resumed download already had
+     * @param bytesTotal - -1 if unknown
+     */
+    void onProgress(long bytesDone, long bytesTotal);
+}
@@ -0,0 +1,415 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket limits of {@link HttpUtil}, so background sync and prefetch can't swamp the link
+ * of the user or hammer our backend.
+ * <ul>
+ * <li>requests per second: a request over the limit waits before it's sent</li>
+ * <li>upload / download bytes per second: the body is slowed down while it's written / read</li>
+ * </ul>
+ * Each limit is for a host and a priority: hostKey null means all hosts together, priority
+ * {@link #ANY_PRIORITY} means all priorities together. A request must pass every limit it
+ * matches, e.g.
+ * <pre>
+ * new RateLimiter()
+ *         .setRequestLimit("https://api.example.com", RateLimiter.ANY_PRIORITY, 20, 40)
+ *         .setDownloadLimit(null, HttpUtil.Request.PRIORITY_BACKGROUND, 200 * 1024, 64 * 1024);
+ * </pre>
+ * Install it with {@link HttpUtil#setRateLimiter(RateLimiter)} or per request with
+ * {@link HttpUtil.Request#setRateLimiter(RateLimiter)}. Bytes are shaped on HttpURLConnection
+ * (requests and {@link HttpUtil#getFileFromUrl(String, java.io.File)}) only; requests of
+ * {@link NioHttpTransport} follow the request limits.
+ */
+public final class RateLimiter {
+    public static final int ANY_PRIORITY = -1;
+
+    private static final String TAG = "RateLimiter";
+
+    private static final int KIND_REQUEST = 0;
+    private static final int KIND_UPLOAD = 1;
+    private static final int KIND_DOWNLOAD = 2;
+
+    // bytes taken from buckets at a time, keeps the flow smooth
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    // guarded by this
+    private final List<Rule> rules = new ArrayList<>();
+
+    private final AtomicLong delayedRequestCount = new AtomicLong();
+    private final AtomicLong requestDelayTime = new AtomicLong();
+    private final AtomicLong uploadDelayTime = new AtomicLong();
+    private final AtomicLong downloadDelayTime = new AtomicLong();
+
+    private static final class Rule {
+        private final int kind;
+        private final String hostKey;
+        private final int priority;
+        private final TokenBucket bucket;
+
+        private Rule(int kind, String hostKey, int priority, TokenBucket bucket) {
+            this.kind = kind;
+            this.hostKey = hostKey;
+            this.priority = priority;
+            this.bucket = bucket;
+        }
+
+        private boolean isSameTarget(int kind, String hostKey, int priority) {
+            return this.kind == kind && this.priority == priority
+                    && (this.hostKey == null ? hostKey == null : this.hostKey.equals(hostKey));
+        }
+
+        private boolean matches(int kind, String hostKey, int priority) {
+            return this.kind == kind && (this.priority == ANY_PRIORITY || this.priority == priority)
+                    && (this.hostKey == null || this.hostKey.equals(hostKey));
+        }
+
+        @Override
+        public String toString() {
+            return (hostKey != null ? hostKey : "*") + "/" + (priority == ANY_PRIORITY ? "*" : priority) + "="
+                    + bucket.getRatePerSecond() + "/s (burst " + bucket.getCapacity() + ")";
+        }
+    }
+
+    /**
+     * Replaces the limit of the same host and priority, if any.
+     *
+     * @param hostKey           - see {@link HttpConnectionPool#getHostKey(java.net.URL)}, null
+     *                          for all hosts together
+     * @param priority          - {@link HttpUtil.Request#PRIORITY_INTERACTIVE}, ..., or
+     *                          {@link #ANY_PRIORITY}
+     * @param requestsPerSecond - > 0
+     * @param burst             - requests which can go at once after idle, >= 1
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public RateLimiter setRequestLimit(String hostKey, int priority, double requestsPerSecond, int burst)
+            throws IllegalArgumentException {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid request limit:" + requestsPerSecond + "/s, burst " + burst);
+        }
+        putRule(KIND_REQUEST, hostKey, priority, requestsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * Replaces the limit of the same host and priority, if any.
+     *
+     * @param hostKey        - null for all hosts together
+     * @param priority       - or {@link #ANY_PRIORITY}
+     * @param bytesPerSecond - request body bytes on the wire, > 0
+     * @param burst          - bytes which can go at once after idle, >= 1
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public RateLimiter setUploadLimit(String hostKey, int priority, long bytesPerSecond, long burst)
+            throws IllegalArgumentException {
+        if (bytesPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid upload limit:" + bytesPerSecond + "/s, burst " + burst);
+        }
+        putRule(KIND_UPLOAD, hostKey, priority, bytesPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * Replaces the limit of the same host and priority, if any.
+     *
+     * @param hostKey        - null for all hosts together
+     * @param priority       - or {@link #ANY_PRIORITY}
+     * @param bytesPerSecond - response body bytes on the wire, > 0
+     * @param burst          - bytes which can go at once after idle, >= 1
+     * @return
+     * @throws IllegalArgumentException - if out of range
+     */
+    public RateLimiter setDownloadLimit(String hostKey, int priority, long bytesPerSecond, long burst)
+            throws IllegalArgumentException {
+        if (bytesPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid download limit:" + bytesPerSecond + "/s, burst " + burst);
+        }
+        putRule(KIND_DOWNLOAD, hostKey, priority, bytesPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * @param hostKey - null to remove the limits of all hosts together
+     */
+    public synchronized void removeLimits(String hostKey) {
+        Iterator<Rule> it = rules.iterator();
+        while (it.hasNext()) {
+            Rule rule = it.next();
+            if (rule.hostKey == null ? hostKey == null : rule.hostKey.equals(hostKey)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        rules.clear();
+    }
+
+    private synchronized void putRule(int kind, String hostKey, int priority, double rate, double burst) {
+        if (priority != ANY_PRIORITY
+                && (priority < HttpUtil.Request.PRIORITY_INTERACTIVE || priority > HttpUtil.Request.PRIORITY_BACKGROUND)) {
+            throw new IllegalArgumentException("invalid priority:" + priority);
+        }
+        Iterator<Rule> it = rules.iterator();
+        while (it.hasNext()) {
+            if (it.next().isSameTarget(kind, hostKey, priority)) {
+                it.remove();
+            }
+        }
+        rules.add(new Rule(kind, hostKey, priority, new TokenBucket(rate, burst)));
+    }
+
+    private synchronized List<TokenBucket> getBuckets(int kind, String hostKey, int priority) {
+        List<TokenBucket> buckets = null;
+        for (Rule rule : rules) {
+            if (rule.matches(kind, hostKey, priority)) {
+                if (buckets == null) {
+                    buckets = new ArrayList<>(2);
+                }
+                buckets.add(rule.bucket);
+            }
+        }
+        return buckets;
+    }
+
+    // -- non-blocking checks --
+
+    /**
+     * @param request
+     * @return true if sending request now would exceed a request limit
+     */
+    public boolean wouldExceed(HttpUtil.Request request) {
+        return getRequestDelay(request.getHostKey(), request.getPriority()) > 0;
+    }
+
+    /**
+     * @param hostKey
+     * @param priority
+     * @return millisecond until a request could go without exceeding, 0 if it can go now
+     */
+    public long getRequestDelay(String hostKey, int priority) {
+        return toMillis(getDelay(KIND_REQUEST, hostKey, priority, 1));
+    }
+
+    /**
+     * @param hostKey
+     * @param priority
+     * @param bytes    - capped to burst of each limit
+     * @return millisecond until bytes could be uploaded without waiting, 0 if now
+     */
+    public long getUploadDelay(String hostKey, int priority, long bytes) {
+        return toMillis(getDelay(KIND_UPLOAD, hostKey, priority, bytes));
+    }
+
+    /**
+     * @param hostKey
+     * @param priority
+     * @param bytes    - capped to burst of each limit
+     * @return millisecond until bytes could be downloaded without waiting, 0 if now
+     */
+    public long getDownloadDelay(String hostKey, int priority, long bytes) {
+        return toMillis(getDelay(KIND_DOWNLOAD, hostKey, priority, bytes));
+    }
+
+    private long getDelay(int kind, String hostKey, int priority, double count) {
+        List<TokenBucket> buckets = getBuckets(kind, hostKey, priority);
+        long delay = 0;
+        if (buckets != null) {
+            for (TokenBucket bucket : buckets) {
+                delay = Math.max(delay, bucket.getDelay(count));
+            }
+        }
+        return delay;
+    }
+
+    // -- statistics --
+
+    /**
+     * @return requests which had to wait for a request limit
+     */
+    public long getDelayedRequestCount() {
+        return delayedRequestCount.get();
+    }
+
+    /**
+     * @return sum of waits for request limits, unit is millisecond
+     */
+    public long getRequestDelayTime() {
+        return requestDelayTime.get();
+    }
+
+    /**
+     * @return sum of time request bodies were held back, unit is millisecond
+     */
+    public long getUploadDelayTime() {
+        return uploadDelayTime.get();
+    }
+
+    /**
+     * @return sum of time response bodies were held back, unit is millisecond
+     */
+    public long getDownloadDelayTime() {
+        return downloadDelayTime.get();
+    }
+
+    public void resetStatistics() {
+        delayedRequestCount.set(0);
+        requestDelayTime.set(0);
+        uploadDelayTime.set(0);
+        downloadDelayTime.set(0);
+    }
+
+    // -- for HttpUtil --
+
+    /**
+     * Take a request token from every matching limit.
+     *
+     * @return millisecond to wait before sending, 0 if none
+     */
+    long reserveRequest(String hostKey, int priority) {
+        long delay = toMillis(reserve(KIND_REQUEST, hostKey, priority, 1));
+        if (delay > 0) {
+            delayedRequestCount.incrementAndGet();
+            requestDelayTime.addAndGet(delay);
+            Logcat.d(TAG, "request delayed ms " + delay + " - " + hostKey);
+        }
+        return delay;
+    }
+
+    /**
+     * @param in
+     * @param hostKey
+     * @param priority
+     * @return in itself if no download limit matches
+     */
+    InputStream limitDownload(InputStream in, String hostKey, int priority) {
+        List<TokenBucket> buckets = getBuckets(KIND_DOWNLOAD, hostKey, priority);
+        return (buckets != null) ? new LimitedInputStream(in, buckets, downloadDelayTime) : in;
+    }
+
+    /**
+     * @param out
+     * @param hostKey
+     * @param priority
+     * @return out itself if no upload limit matches
+     */
+    OutputStream limitUpload(OutputStream out, String hostKey, int priority) {
+        List<TokenBucket> buckets = getBuckets(KIND_UPLOAD, hostKey, priority);
+        return (buckets != null) ? new LimitedOutputStream(out, buckets, uploadDelayTime) : out;
+    }
+
+    private long reserve(int kind, String hostKey, int priority, double count) {
+        List<TokenBucket> buckets = getBuckets(kind, hostKey, priority);
+        return (buckets != null) ? reserve(buckets, count) : 0;
+    }
+
+    private static long reserve(List<TokenBucket> buckets, double count) {
+        long delay = 0;
+        for (TokenBucket bucket : buckets) {
+            delay = Math.max(delay, bucket.reserve(count));
+        }
+        return delay;
+    }
+
+    private static void sleep(long nanos, AtomicLong delayTime) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        delayTime.addAndGet(toMillis(nanos));
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while rate limited");
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return (nanos + 999999) / 1000000;
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final List<TokenBucket> buckets;
+        private final AtomicLong delayTime;
+
+        private LimitedInputStream(InputStream in, List<TokenBucket> buckets, AtomicLong delayTime) {
+            super(in);
+            this.buckets = buckets;
+            this.delayTime = delayTime;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                sleep(reserve(buckets, 1), delayTime);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, Math.min(len, CHUNK_SIZE));
+            if (n > 0) {
+                sleep(reserve(buckets, n), delayTime);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, CHUNK_SIZE));
+            if (skipped > 0) {
+                sleep(reserve(buckets, skipped), delayTime);
+            }
+            return skipped;
+        }
+    }
+
+    private static final class LimitedOutputStream extends FilterOutputStream {
+        private final List<TokenBucket> buckets;
+        private final AtomicLong delayTime;
+
+        private LimitedOutputStream(OutputStream out, List<TokenBucket> buckets, AtomicLong delayTime) {
+            super(out);
+            this.buckets = buckets;
+            this.delayTime = delayTime;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            sleep(reserve(buckets, 1), delayTime);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE);
+                sleep(reserve(buckets, n), delayTime);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter [rules=" + rules + ", delayedRequestCount=" + delayedRequestCount
+                + ", requestDelayTime=" + requestDelayTime + ", uploadDelayTime=" + uploadDelayTime
+                + ", downloadDelayTime=" + downloadDelayTime + "]";
+    }
+}
@@ -0,0 +1,205 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams a request body into an OutputStream as UTF-8 through one buffer reused by the thread,
+ * without building the body as a String or byte[] first.
+ * <p>
+ * Without an OutputStream it only counts, so the exact body length can be known up front by
+ * running the same writes, see {@link #measure()}.
+ */
+final class RequestBodyWriter {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D',
+            'E', 'F'};
+
+    // one body is written at a time per thread
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+    private long count;
+
+    /**
+     * @param out - flushed by {@link #flush()}, not closed
+     */
+    RequestBodyWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = BUFFER.get();
+    }
+
+    private RequestBodyWriter() {
+        this.out = null;
+        this.buffer = null;
+    }
+
+    /**
+     * @return a writer which writes nothing, only counts
+     */
+    static RequestBodyWriter measure() {
+        return new RequestBodyWriter();
+    }
+
+    /**
+     * @return bytes written so far
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Same bytes as s.getBytes("UTF-8"), an unpaired surrogate becomes '?'.
+     *
+     * @param s
+     * @return
+     * @throws IOException
+     */
+    RequestBodyWriter writeUtf8(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                put(0xc0 | (c >> 6));
+                put(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                put(0xf0 | (codePoint >> 18));
+                put(0x80 | ((codePoint >> 12) & 0x3f));
+                put(0x80 | ((codePoint >> 6) & 0x3f));
+                put(0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired; Character.isSurrogate() is API 19
+                put('?');
+            } else {
+                put(0xe0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3f));
+                put(0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Same as URLEncoder.encode(s, "UTF-8"): letters, digits and ".-*_" are kept, space becomes
+     * '+', other UTF-8 bytes become %XX.
+     *
+     * @param s
+     * @return
+     * @throws IOException
+     */
+    RequestBodyWriter writeUrlEncoded(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                put(c);
+            } else if (c == ' ') {
+                put('+');
+            } else if (c < 0x80) {
+                putEscaped(c);
+            } else if (c < 0x800) {
+                putEscaped(0xc0 | (c >> 6));
+                putEscaped(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                putEscaped(0xf0 | (codePoint >> 18));
+                putEscaped(0x80 | ((codePoint >> 12) & 0x3f));
+                putEscaped(0x80 | ((codePoint >> 6) & 0x3f));
+                putEscaped(0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                putEscaped('?');
+            } else {
+                putEscaped(0xe0 | (c >> 12));
+                putEscaped(0x80 | ((c >> 6) & 0x3f));
+                putEscaped(0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param file - streamed through the same buffer; only its length is counted when measuring
+     * @return
+     * @throws IOException - also if file size changed after it was measured
+     */
+    RequestBodyWriter writeFile(File file) throws IOException {
+        long expected = file.length();
+        if (out == null) {
+            count += expected;
+            return this;
+        }
+        flushBuffer();
+        long written = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                written += len;
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        count += written;
+        if (written != expected) {
+            throw new IOException("file size changed during upload: " + file + ", " + written + "/" + expected);
+        }
+        return this;
+    }
+
+    /**
+     * Write out what's buffered and flush the stream.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (out == null) {
+            return;
+        }
+        flushBuffer();
+        out.flush();
+    }
+
+    private void putEscaped(int b) throws IOException {
+        put('%');
+        put(HEX[(b >> 4) & 0xf]);
+        put(HEX[b & 0xf]);
+    }
+
+    private void put(int b) throws IOException {
+        count++;
+        if (out == null) {
+            return;
+        }
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of {@link HttpUtil}: limits requests in flight, in total and per host.
+ * Requests over the limit wait in queue; when a slot is free the highest priority one goes
+ * first, FIFO within the same priority. A waiting request never blocks a request to another
+ * host which has a free slot.
+ * <p>
+ * Install it with {@link HttpUtil#setScheduler(RequestScheduler)}, priority is
+ * {@link HttpUtil.Request#setPriority(int)}.
+ */
+public final class RequestScheduler {
+    public static final int DEFAULT_MAX_REQUESTS = 64;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
+
+    private static final String TAG = "RequestScheduler";
+
+    private static final int PRIORITY_COUNT = HttpUtil.Request.PRIORITY_BACKGROUND + 1;
+
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    // guarded by this
+    private final List<ArrayDeque<Ticket>> waiting;
+    private final Map<String, Integer> inFlightPerHost = new HashMap<>();
+    private int inFlightCount;
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    public interface OnAdmittedListener {
+        /**
+         * @param ticket - admitted, call {@link #release(Ticket)} once the request is done
+         */
+        void onAdmitted(Ticket ticket);
+    }
+
+    /**
+     * A slot of one request, from {@link #schedule(String, int, OnAdmittedListener)} to
+     * {@link #release(Ticket)}.
+     */
+    public static final class Ticket {
+        private final String hostKey;
+        private final int priority;
+        private final OnAdmittedListener listener;
+        private final long enqueueTime;
+        private long waitTime;
+        private boolean isAdmitted;
+        private boolean isReleased;
+
+        private Ticket(String hostKey, int priority, OnAdmittedListener listener) {
+            this.hostKey = hostKey;
+            this.priority = priority;
+            this.listener = listener;
+            this.enqueueTime = System.nanoTime();
+        }
+
+        public String getHostKey() {
+            return hostKey;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return time spent in queue before admitted, unit is millisecond
+         */
+        public synchronized long getWaitTime() {
+            return waitTime;
+        }
+    }
+
+    public RequestScheduler() {
+        waiting = new ArrayList<>(PRIORITY_COUNT);
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            waiting.add(new ArrayDeque<Ticket>());
+        }
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_REQUESTS}
+     *
+     * @param max - max requests in flight of all hosts
+     * @return
+     * @throws IllegalArgumentException - if max < 1
+     */
+    public RequestScheduler setMaxRequests(int max) throws IllegalArgumentException {
+        if (max < 1) {
+            throw new IllegalArgumentException("invalid max requests:" + max);
+        }
+        synchronized (this) {
+            this.maxRequests = max;
+        }
+        promote();
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MAX_REQUESTS_PER_HOST}
+     *
+     * @param max - max requests in flight of one host (scheme + host + port)
+     * @return
+     * @throws IllegalArgumentException - if max < 1
+     */
+    public RequestScheduler setMaxRequestsPerHost(int max) throws IllegalArgumentException {
+        if (max < 1) {
+            throw new IllegalArgumentException("invalid max requests per host:" + max);
+        }
+        synchronized (this) {
+            this.maxRequestsPerHost = max;
+        }
+        promote();
+        return this;
+    }
+
+    public synchronized int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    public synchronized int getInFlightCount(String hostKey) {
+        Integer count = inFlightPerHost.get(hostKey);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return requests waiting for a slot now
+     */
+    public synchronized int getWaitingCount() {
+        int count = 0;
+        for (ArrayDeque<Ticket> queue : waiting) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return requests admitted so far
+     */
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /**
+     * @return requests which had to wait before admitted
+     */
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * @return sum of queue wait of all admitted requests, unit is millisecond
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime.get();
+    }
+
+    public void resetStatistics() {
+        admittedCount.set(0);
+        queuedCount.set(0);
+        totalWaitTime.set(0);
+    }
+
+    /**
+     * Non-blocking. listener is called right here if there's a free slot, otherwise on the thread
+     * which releases a slot later, so it should only hand the work over, not do it.
+     *
+     * @param hostKey  - see {@link HttpConnectionPool#getHostKey(java.net.URL)}
+     * @param priority - {@link HttpUtil.Request#PRIORITY_INTERACTIVE}, ...
+     * @param listener
+     * @return the ticket, release it to leave the queue before admitted
+     */
+    public Ticket schedule(String hostKey, @HttpUtil.Request.Priority int priority, OnAdmittedListener listener) {
+        Ticket ticket = new Ticket(hostKey, Math.max(0, Math.min(priority, PRIORITY_COUNT - 1)), listener);
+        synchronized (this) {
+            waiting.get(ticket.priority).addLast(ticket);
+        }
+        // admits it right away if it's the first one which can go
+        promote();
+        synchronized (this) {
+            if (!ticket.isAdmitted && !ticket.isReleased) {
+                queuedCount.incrementAndGet();
+                Logcat.d(TAG, "queued " + hostKey + ", priority: " + priority);
+            }
+        }
+        return ticket;
+    }
+
+    /**
+     * Blocking version of {@link #schedule(String, int, OnAdmittedListener)}.
+     *
+     * @param hostKey
+     * @param priority
+     * @return the admitted ticket
+     * @throws InterruptedException - the ticket is canceled then
+     */
+    public Ticket acquire(String hostKey, @HttpUtil.Request.Priority int priority) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Ticket ticket = schedule(hostKey, priority, new OnAdmittedListener() {
+            @Override
+            public void onAdmitted(Ticket ticket) {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            release(ticket);
+            throw e;
+        }
+        return ticket;
+    }
+
+    /**
+     * Give back the slot, or leave the queue if not admitted yet. Releasing twice is ignored.
+     *
+     * @param ticket - can be null
+     */
+    public void release(Ticket ticket) {
+        if (ticket == null) {
+            return;
+        }
+        synchronized (this) {
+            if (ticket.isReleased) {
+                return;
+            }
+            ticket.isReleased = true;
+            if (!ticket.isAdmitted) {
+                waiting.get(ticket.priority).remove(ticket);
+                return;
+            }
+            inFlightCount--;
+            Integer count = inFlightPerHost.get(ticket.hostKey);
+            if (count == null || count <= 1) {
+                inFlightPerHost.remove(ticket.hostKey);
+            } else {
+                inFlightPerHost.put(ticket.hostKey, count - 1);
+            }
+        }
+        promote();
+    }
+
+    private void promote() {
+        while (true) {
+            Ticket next = null;
+            synchronized (this) {
+                for (int i = 0; i < PRIORITY_COUNT && next == null && inFlightCount < maxRequests; i++) {
+                    Iterator<Ticket> it = waiting.get(i).iterator();
+                    while (it.hasNext()) {
+                        Ticket ticket = it.next();
+                        if (hasSlot(ticket.hostKey)) {
+                            it.remove();
+                            admit(ticket);
+                            next = ticket;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            next.listener.onAdmitted(next);
+        }
+    }
+
+    private boolean hasSlot(String hostKey) {
+        if (inFlightCount >= maxRequests) {
+            return false;
+        }
+        Integer count = inFlightPerHost.get(hostKey);
+        return count == null || count < maxRequestsPerHost;
+    }
+
+    private void admit(Ticket ticket) {
+        inFlightCount++;
+        Integer count = inFlightPerHost.get(ticket.hostKey);
+        inFlightPerHost.put(ticket.hostKey, count == null ? 1 : count + 1);
+        long waitTime = (System.nanoTime() - ticket.enqueueTime) / 1000000;
+        synchronized (ticket) {
+            ticket.isAdmitted = true;
+            ticket.waitTime = waitTime;
+        }
+        admittedCount.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RequestScheduler [maxRequests=" + maxRequests + ", maxRequestsPerHost=" + maxRequestsPerHost
+                + ", inFlightCount=" + inFlightCount + ", waitingCount=" + getWaitingCount() + ", admittedCount="
+                + admittedCount + ", queuedCount=" + queuedCount + ", totalWaitTime=" + totalWaitTime + "]";
+    }
+}
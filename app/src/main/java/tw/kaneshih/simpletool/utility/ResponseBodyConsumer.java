@@ -0,0 +1,22 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads response body straight from the connection, see
+ * {@link HttpUtil.Request#setBodyConsumer(ResponseBodyConsumer)}.
+ */
+public interface ResponseBodyConsumer {
+    /**
+     * The connection is closed (or given back to keep-alive pool) after this returns, so don't
+     * keep the stream. No need to close it or read it to the end.
+     *
+     * @param statusCode
+     * @param in            - live body stream
+     * @param contentLength - -1 if unknown
+     * @throws IOException - goes to {@link HttpUtil.Response#getThrowable()}; a 200 is not tried
+     *                     again
+     */
+    void onBody(int statusCode, InputStream in, long contentLength) throws IOException;
+}
@@ -0,0 +1,30 @@
+package tw.kaneshih.simpletool.utility;
+
+/**
+ * Decides whether and when {@link HttpUtil.Request} tries again after a failed try.
+ * <p>
+ * Max tries is still {@link HttpUtil.Request#setTryCount(int)}; a policy is only asked while
+ * there are tries left.
+ *
+ * @see BackoffRetryPolicy
+ */
+public interface RetryPolicy {
+    long NO_RETRY = -1;
+
+    /**
+     * @param request    - the request which failed
+     * @param attempt    - tries done so far, starts from 1
+     * @param statusCode - 0 if no response received
+     * @param throwable  - can be null
+     * @param retryAfter - value of "Retry-After" response header, can be null
+     * @return delay before next try in millisecond, or {@link #NO_RETRY} to give up
+     */
+    long getRetryDelay(HttpUtil.Request request, int attempt, int statusCode, Throwable throwable, String retryAfter);
+
+    /**
+     * called once a request succeeds, e.g. to refill a retry budget
+     *
+     * @param request
+     */
+    void onSuccess(HttpUtil.Request request);
+}
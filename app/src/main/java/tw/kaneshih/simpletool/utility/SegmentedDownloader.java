@@ -0,0 +1,383 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Download a large file over several connections, each fetching one byte range and writing it
+ * at its position of a preallocated file.
+ * <p>
+ * Range support is probed first; if the server doesn't support it, gives no strong ETag or
+ * Last-Modified to pin the segments to one version of the file with If-Range, or the file is too
+ * small to be worth splitting, we fall back to {@link HttpUtil#getFileFromUrl(String, File, int, int)}.
+ * Like that one, the file is renamed into place only when every segment is complete.
+ */
+public final class SegmentedDownloader {
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SEGMENT_TRY_COUNT = 3;
+
+    private static final String TAG = "SegmentedDownloader";
+
+    private static final String TEMP_SUFFIX = ".segments";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private int segmentCount = DEFAULT_SEGMENT_COUNT;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private int segmentTryCount = DEFAULT_SEGMENT_TRY_COUNT;
+    private int socketTimeout = HttpUtil.DEFAULT_SOCKET_TIMEOUT;
+    private int connectionTimeout = HttpUtil.DEFAULT_CONNECTION_TIMEOUT;
+
+    /**
+     * default is {@link #DEFAULT_SEGMENT_COUNT}
+     *
+     * @param count - max concurrent connections
+     * @return
+     * @throws IllegalArgumentException - if count < 1
+     */
+    public SegmentedDownloader setSegmentCount(int count) throws IllegalArgumentException {
+        if (count < 1) {
+            throw new IllegalArgumentException("invalid segment count:" + count);
+        }
+        this.segmentCount = count;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_MIN_SEGMENT_SIZE}; fewer segments are used for a small file
+     *
+     * @param size - unit is byte
+     * @return
+     * @throws IllegalArgumentException - if size < 1
+     */
+    public SegmentedDownloader setMinSegmentSize(long size) throws IllegalArgumentException {
+        if (size < 1) {
+            throw new IllegalArgumentException("invalid min segment size:" + size);
+        }
+        this.minSegmentSize = size;
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_SEGMENT_TRY_COUNT}; a retried segment continues from where it
+     * stopped
+     *
+     * @param tryCount
+     * @return
+     * @throws IllegalArgumentException - if tryCount < 1
+     */
+    public SegmentedDownloader setSegmentTryCount(int tryCount) throws IllegalArgumentException {
+        if (tryCount < 1) {
+            throw new IllegalArgumentException("invalid segment try count:" + tryCount);
+        }
+        this.segmentTryCount = tryCount;
+        return this;
+    }
+
+    /**
+     * default is {@link HttpUtil#DEFAULT_SOCKET_TIMEOUT}
+     *
+     * @param timeout - unit is millisecond
+     * @return
+     * @throws IllegalArgumentException - if timeout < {@link HttpUtil#TIMEOUT_VALID_MININUM}
+     */
+    public SegmentedDownloader setSocketTimeout(int timeout) throws IllegalArgumentException {
+        if (timeout < HttpUtil.TIMEOUT_VALID_MININUM) {
+            throw new IllegalArgumentException("invalid socket timeout:" + timeout);
+        }
+        this.socketTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * default is {@link HttpUtil#DEFAULT_CONNECTION_TIMEOUT}
+     *
+     * @param timeout - unit is millisecond
+     * @return
+     * @throws IllegalArgumentException - if timeout < {@link HttpUtil#TIMEOUT_VALID_MININUM}
+     */
+    public SegmentedDownloader setConnectionTimeout(int timeout) throws IllegalArgumentException {
+        if (timeout < HttpUtil.TIMEOUT_VALID_MININUM) {
+            throw new IllegalArgumentException("invalid connection timeout:" + timeout);
+        }
+        this.connectionTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Blocking, call it from a background thread.
+     *
+     * @param url  - cannot be empty
+     * @param file - cannot be null
+     * @return download result - this function won't throw exception, just return false if
+     * there's invalid argument
+     */
+    public boolean download(String url, File file) {
+        if (Validator.isEmpty(url) || Validator.isNull(file)) {
+            return false;
+        }
+        URL link;
+        try {
+            link = new URL(url);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        Probe probe = probe(link);
+        if (probe == null || Validator.isEmpty(probe.validator) || probe.total < minSegmentSize * 2
+                || segmentCount == 1) {
+            Logcat.d(TAG, "single stream - " + (probe == null ? "no range support"
+                    : Validator.isEmpty(probe.validator) ? "no validator" : "total " + probe.total));
+            return HttpUtil.getFileFromUrl(url, file, socketTimeout, connectionTimeout);
+        }
+
+        int count = (int) Math.min(segmentCount, probe.total / minSegmentSize);
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        boolean isSuccess = false;
+        RandomAccessFile raf = null;
+        ExecutorService executor = null;
+        try {
+            raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(probe.total);
+            FileChannel channel = raf.getChannel();
+
+            final AtomicBoolean isAborted = new AtomicBoolean(false);
+            final AtomicInteger threadIndex = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(count, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "SegmentedDownloadBg-" + threadIndex.incrementAndGet());
+                }
+            });
+            List<Future<Boolean>> futures = new ArrayList<>();
+            long segmentSize = (probe.total + count - 1) / count;
+            for (int i = 0; i < count; i++) {
+                long first = i * segmentSize;
+                long last = Math.min(probe.total, first + segmentSize) - 1;
+                futures.add(executor.submit(new Segment(link, probe.validator, first, last, channel, isAborted)));
+            }
+            isSuccess = true;
+            for (Future<Boolean> future : futures) {
+                if (!future.get()) {
+                    isSuccess = false;
+                    isAborted.set(true);
+                }
+            }
+            if (isSuccess) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            isSuccess = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            isSuccess = false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            isSuccess = false;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    isSuccess = false;
+                }
+            }
+        }
+
+        if (isSuccess) {
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                isSuccess = tempFile.renameTo(file);
+            }
+        }
+        if (!isSuccess) {
+            tempFile.delete();
+        }
+        return isSuccess;
+    }
+
+    private static final class Probe {
+        private long total;
+        private String validator;
+    }
+
+    /**
+     * Ask for the first byte only.
+     *
+     * @return null if Range is not supported; validator of the probe is null if there's none
+     */
+    private Probe probe(URL link) {
+        HttpURLConnection conn = null;
+        HttpConnectionPool.Connection pooled = null;
+        int statusCode = 0;
+        try {
+            pooled = HttpUtil.acquirePooledConnection(link);
+            conn = (HttpURLConnection) link.openConnection();
+            conn.setReadTimeout(socketTimeout);
+            conn.setConnectTimeout(connectionTimeout);
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            conn.setRequestProperty("Range", "bytes=0-0");
+            HttpUtil.setConnectionKeepAlive(conn, pooled);
+            conn.connect();
+
+            statusCode = conn.getResponseCode();
+            if (statusCode != HttpURLConnection.HTTP_PARTIAL) {
+                // server ignores Range and is sending the whole file, don't read it here
+                HttpUtil.abortConnection(conn, pooled);
+                conn = null;
+                return null;
+            }
+            long[] range = HttpUtil.parseContentRange(conn.getHeaderField("Content-Range"));
+            if (range == null || range[0] != 0 || range[2] < 0) {
+                return null;
+            }
+            Probe probe = new Probe();
+            probe.total = range[2];
+            // weak ETag is not allowed by If-Range
+            String etag = conn.getHeaderField("ETag");
+            probe.validator = (!Validator.isEmpty(etag) && !etag.startsWith("W/")) ? etag
+                    : conn.getHeaderField("Last-Modified");
+            return probe;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (conn != null) {
+                HttpUtil.closeConnection(conn, pooled, statusCode, false);
+            }
+        }
+    }
+
+    private final class Segment implements Callable<Boolean> {
+        private final URL link;
+        private final String validator;
+        private final long last;
+        private final FileChannel channel;
+        private final AtomicBoolean isAborted;
+        private long position;
+
+        private Segment(URL link, String validator, long first, long last, FileChannel channel,
+                        AtomicBoolean isAborted) {
+            this.link = link;
+            this.validator = validator;
+            this.position = first;
+            this.last = last;
+            this.channel = channel;
+            this.isAborted = isAborted;
+        }
+
+        @Override
+        public Boolean call() {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            for (int tryCount = 1; tryCount <= segmentTryCount && !isAborted.get(); tryCount++) {
+                Logcat.d(TAG, "segment " + position + "-" + last + " try: " + tryCount + "/" + segmentTryCount);
+                long before = position;
+                int result = fetch(buffer);
+                if (result == HttpUtil.DOWNLOAD_COMPLETE) {
+                    return true;
+                }
+                if (result == HttpUtil.DOWNLOAD_FAILED) {
+                    break;
+                }
+                if (position > before) {
+                    // progress was made, don't count it as a failed try
+                    tryCount--;
+                }
+            }
+            isAborted.set(true);
+            return false;
+        }
+
+        private int fetch(ByteBuffer buffer) {
+            HttpURLConnection conn = null;
+            HttpConnectionPool.Connection pooled = null;
+            int statusCode = 0;
+            boolean isBodyConsumed = false;
+            try {
+                pooled = HttpUtil.acquirePooledConnection(link);
+                conn = (HttpURLConnection) link.openConnection();
+                conn.setReadTimeout(socketTimeout);
+                conn.setConnectTimeout(connectionTimeout);
+                conn.setRequestProperty("Accept-Encoding", "identity");
+                conn.setRequestProperty("Range", "bytes=" + position + "-" + last);
+                // without it, segments of different versions could be put together
+                conn.setRequestProperty("If-Range", validator);
+                HttpUtil.setConnectionKeepAlive(conn, pooled);
+                conn.connect();
+
+                statusCode = conn.getResponseCode();
+                long[] range = HttpUtil.parseContentRange(conn.getHeaderField("Content-Range"));
+                if (statusCode != HttpURLConnection.HTTP_PARTIAL || range == null || range[0] != position) {
+                    // file changed on server (If-Range failed) or range not honored
+                    Logcat.w(TAG, "segment not honored: " + statusCode + " " + conn.getHeaderField("Content-Range"));
+                    HttpUtil.abortConnection(conn, pooled);
+                    conn = null;
+                    return HttpUtil.DOWNLOAD_FAILED;
+                }
+
+                InputStream in = conn.getInputStream();
+                ReadableByteChannel source = Channels.newChannel(in);
+                try {
+                    while (position <= last) {
+                        if (isAborted.get()) {
+                            HttpUtil.abortConnection(conn, pooled);
+                            conn = null;
+                            return HttpUtil.DOWNLOAD_FAILED;
+                        }
+                        buffer.clear();
+                        long remaining = last - position + 1;
+                        if (remaining < buffer.capacity()) {
+                            buffer.limit((int) remaining);
+                        }
+                        if (source.read(buffer) == -1) {
+                            break;
+                        }
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                    }
+                    // read EOF so the connection can be reused
+                    isBodyConsumed = position > last && in.read() == -1;
+                } finally {
+                    source.close();
+                }
+                return position > last ? HttpUtil.DOWNLOAD_COMPLETE : HttpUtil.DOWNLOAD_INTERRUPTED;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return HttpUtil.DOWNLOAD_INTERRUPTED;
+            } finally {
+                if (conn != null) {
+                    HttpUtil.closeConnection(conn, pooled, statusCode, isBodyConsumed);
+                }
+            }
+        }
+    }
+}
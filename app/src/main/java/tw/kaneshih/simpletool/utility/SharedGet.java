@@ -0,0 +1,76 @@
+package tw.kaneshih.simpletool.utility;
+
+/**
+ * Callers of one coalesced GET, see {@link HttpUtil.Request#setCoalescing(boolean)}: the first one
+ * runs the request, the others wait for its response. Each caller can stop waiting by itself; the
+ * request is canceled only when every caller has canceled, see {@link SharedTransfer}.
+ */
+final class SharedGet {
+    private final SharedTransfer transfer = new SharedTransfer();
+
+    // guarded by this
+    private HttpUtil.Response response;
+    private boolean isDone;
+
+    /**
+     * @return progress listener and token for the request run for all callers
+     */
+    SharedTransfer getTransfer() {
+        return transfer;
+    }
+
+    boolean isCanceled() {
+        return transfer.isCanceled();
+    }
+
+    /**
+     * @param listener    - can be null
+     * @param callerToken - non-null
+     * @return to pass to {@link #leave(SharedTransfer.Caller)}
+     */
+    SharedTransfer.Caller join(ProgressListener listener, CancellationToken callerToken) {
+        return transfer.join(listener, callerToken);
+    }
+
+    int leave(SharedTransfer.Caller caller) {
+        return transfer.leave(caller);
+    }
+
+    /**
+     * @param result - of the request, wakes up the callers waiting for it
+     */
+    synchronized void finish(HttpUtil.Response result) {
+        response = result;
+        isDone = true;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the request is done or callerToken is canceled.
+     *
+     * @param callerToken - given to {@link #join(ProgressListener, CancellationToken)}
+     * @return null if callerToken was canceled first
+     * @throws InterruptedException
+     */
+    HttpUtil.Response await(CancellationToken callerToken) throws InterruptedException {
+        Runnable wakeUp = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SharedGet.this) {
+                    SharedGet.this.notifyAll();
+                }
+            }
+        };
+        callerToken.register(wakeUp);
+        try {
+            synchronized (this) {
+                while (!isDone && !callerToken.isCanceled()) {
+                    wait();
+                }
+                return isDone ? response : null;
+            }
+        } finally {
+            callerToken.unregister(wakeUp);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Callers of one coalesced transfer, a file download or a GET: progress goes to the listener of
+ * each of them, and the transfer is canceled only when every caller has canceled. A caller without
+ * token never cancels.
+ */
+final class SharedTransfer implements ProgressListener {
+    private final CancellationToken token = new CancellationToken();
+    private final CopyOnWriteArrayList<ProgressListener> listeners = new CopyOnWriteArrayList<>();
+
+    // guarded by this
+    private int callerCount;
+    private int canceledCount;
+
+    final class Caller {
+        private final ProgressListener listener;
+        private final CancellationToken callerToken;
+        private final Runnable onCancel;
+        // guarded by SharedTransfer.this
+        private boolean isCanceled;
+        private boolean isLeft;
+
+        private Caller(ProgressListener listener, CancellationToken callerToken) {
+            this.listener = listener;
+            this.callerToken = callerToken;
+            this.onCancel = new Runnable() {
+                @Override
+                public void run() {
+                    onCallerCanceled(Caller.this);
+                }
+            };
+        }
+    }
+
+    /**
+     * @return token of the transfer, canceled once all callers have canceled
+     */
+    CancellationToken getToken() {
+        return token;
+    }
+
+    boolean isCanceled() {
+        return token.isCanceled();
+    }
+
+    /**
+     * @param listener    - can be null
+     * @param callerToken - can be null
+     * @return to pass to {@link #leave(Caller)}
+     */
+    Caller join(ProgressListener listener, CancellationToken callerToken) {
+        Caller caller = new Caller(listener, callerToken);
+        synchronized (this) {
+            callerCount++;
+        }
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        if (callerToken != null) {
+            // runs right away if it's canceled already
+            callerToken.register(caller.onCancel);
+        }
+        return caller;
+    }
+
+    /**
+     * @param caller
+     * @return callers still there
+     */
+    int leave(Caller caller) {
+        if (caller.callerToken != null) {
+            caller.callerToken.unregister(caller.onCancel);
+        }
+        if (caller.listener != null) {
+            listeners.remove(caller.listener);
+        }
+        synchronized (this) {
+            if (caller.isLeft) {
+                return callerCount;
+            }
+            caller.isLeft = true;
+            callerCount--;
+            if (caller.isCanceled) {
+                canceledCount--;
+            }
+            return callerCount;
+        }
+    }
+
+    private void onCallerCanceled(Caller caller) {
+        boolean isAllCanceled;
+        synchronized (this) {
+            if (caller.isCanceled || caller.isLeft) {
+                return;
+            }
+            caller.isCanceled = true;
+            canceledCount++;
+            isAllCanceled = canceledCount >= callerCount;
+        }
+        if (isAllCanceled) {
+            token.cancel();
+        }
+    }
+
+    @Override
+    public void onProgress(long bytesDone, long bytesTotal) {
+        for (ProgressListener listener : listeners) {
+            try {
+                listener.onProgress(bytesDone, bytesTotal);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a call once for all concurrent callers with the same key: the first caller runs it on
+ * its own thread, the others wait and get the same result.
+ *
+ * @param <V> - result type
+ */
+final class SingleFlight<V> {
+    private final Map<String, FutureTask<V>> calls = new HashMap<>();
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * @param key
+     * @param callable
+     * @return result of callable, possibly run by another caller
+     * @throws Exception - thrown by callable
+     */
+    V execute(String key, Callable<V> callable) throws Exception {
+        FutureTask<V> task;
+        boolean isOwner = false;
+        synchronized (calls) {
+            task = calls.get(key);
+            if (task == null) {
+                task = new FutureTask<>(callable);
+                calls.put(key, task);
+                isOwner = true;
+            }
+        }
+        if (isOwner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (calls) {
+                    calls.remove(key);
+                }
+            }
+        } else {
+            sharedCount.incrementAndGet();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return how many callers got the result of a call run by another caller
+     */
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+}
@@ -0,0 +1,349 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Bounded LRU cache of SSLContext built from a pinned certificate (PEM), keyed by certificate
+ * content. The same SSLSocketFactory is shared by every request with the same certificate, so
+ * the cert is parsed once and TLS sessions can be resumed.
+ */
+public final class SslContextCache {
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 32;
+    /**
+     * unit is second
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static final String TAG = "SslContextCache";
+
+    private static final int MAX_SEEN_SESSIONS = 256;
+
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+    private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+    private final LinkedHashMap<String, SSLSocketFactory> cache = new LinkedHashMap<String, SSLSocketFactory>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SSLSocketFactory> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    // session id (hex) of handshakes we've seen, to tell resumed from full up to TLS 1.2
+    private final LinkedHashMap<String, Boolean> seenSessions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SEEN_SESSIONS;
+        }
+    };
+
+    private volatile SSLSocketFactory defaultFactory;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong fullHandshakeCount = new AtomicLong();
+    private final AtomicLong resumedHandshakeCount = new AtomicLong();
+
+    /**
+     * default is {@link #DEFAULT_MAX_SIZE}
+     *
+     * @param maxSize - max certificates kept
+     * @return
+     * @throws IllegalArgumentException - if maxSize < 1
+     */
+    public SslContextCache setMaxSize(int maxSize) throws IllegalArgumentException {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("invalid max size:" + maxSize);
+        }
+        synchronized (cache) {
+            this.maxSize = maxSize;
+        }
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_SESSION_CACHE_SIZE}, applies to SSLContext created afterward
+     *
+     * @param size - TLS sessions kept per SSLContext, 0 means no limit
+     * @return
+     * @throws IllegalArgumentException - if size < 0
+     */
+    public SslContextCache setSessionCacheSize(int size) throws IllegalArgumentException {
+        if (size < 0) {
+            throw new IllegalArgumentException("invalid session cache size:" + size);
+        }
+        synchronized (cache) {
+            this.sessionCacheSize = size;
+        }
+        return this;
+    }
+
+    /**
+     * default is {@link #DEFAULT_SESSION_TIMEOUT}, applies to SSLContext created afterward
+     *
+     * @param timeout - unit is second, 0 means no limit
+     * @return
+     * @throws IllegalArgumentException - if timeout < 0
+     */
+    public SslContextCache setSessionTimeout(int timeout) throws IllegalArgumentException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("invalid session timeout:" + timeout);
+        }
+        synchronized (cache) {
+            this.sessionTimeout = timeout;
+        }
+        return this;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getFullHandshakeCount() {
+        return fullHandshakeCount.get();
+    }
+
+    public long getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    public void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        fullHandshakeCount.set(0);
+        resumedHandshakeCount.set(0);
+    }
+
+    public void evictAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * The certificate is parsed outside the lock, so a slow parse doesn't hold up requests of
+     * other certificates. If two threads build a factory for the same certificate at once, the
+     * first one put in the cache is returned to both, their TLS sessions stay shared.
+     *
+     * @param cert - PEM content
+     * @return null if cert is empty or invalid
+     */
+    public SSLSocketFactory getSocketFactory(String cert) {
+        if (Validator.isEmpty(cert)) {
+            return null;
+        }
+        int cacheSize;
+        int timeout;
+        synchronized (cache) {
+            SSLSocketFactory factory = cache.get(cert);
+            if (factory != null) {
+                hitCount.incrementAndGet();
+                return factory;
+            }
+            cacheSize = sessionCacheSize;
+            timeout = sessionTimeout;
+        }
+        missCount.incrementAndGet();
+        SSLContext context = createSSLContext(cert);
+        if (context == null) {
+            return null;
+        }
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(cacheSize);
+            sessionContext.setSessionTimeout(timeout);
+        }
+        SSLSocketFactory created = new HandshakeCountingSocketFactory(context.getSocketFactory());
+        synchronized (cache) {
+            SSLSocketFactory factory = cache.get(cert);
+            if (factory != null) {
+                // another thread won the race
+                return factory;
+            }
+            cache.put(cert, created);
+            return created;
+        }
+    }
+
+    /**
+     * @return the platform default factory, wrapped once so handshakes of requests without pinned
+     * certificate are counted and timed too; same instance every time, keep-alive sockets can be
+     * shared
+     */
+    public SSLSocketFactory getDefaultSocketFactory() {
+        if (defaultFactory == null) {
+            synchronized (cache) {
+                if (defaultFactory == null) {
+                    defaultFactory = new HandshakeCountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+                }
+            }
+        }
+        return defaultFactory;
+    }
+
+    private static SSLContext createSSLContext(String cert) {
+        ByteArrayInputStream in = new ByteArrayInputStream(cert.getBytes());
+        CertificateFactory cf;
+        try {
+            cf = CertificateFactory.getInstance("X.509");
+            Certificate ca = cf.generateCertificate(in);
+            Logcat.d(TAG, "createSSLContext - ca=" + ((X509Certificate) ca).getSubjectDN());
+
+            String keyStoreType = KeyStore.getDefaultType();
+            KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+            keyStore.load(null, null);
+            keyStore.setCertificateEntry("ca", ca);
+
+            String tmfAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(tmfAlgorithm);
+            tmf.init(keyStore);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, tmf.getTrustManagers(), null);
+            return context;
+        } catch (CertificateException e) {
+            e.printStackTrace();
+        } catch (KeyStoreException e) {
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (KeyManagementException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param session
+     * @param socketTime - when the socket was created, by {@link System#currentTimeMillis()}
+     */
+    private void onHandshakeCompleted(SSLSession session, long socketTime) {
+        String id = EncUtil.toHexString(session.getId());
+        boolean isResumed;
+        synchronized (seenSessions) {
+            isResumed = seenSessions.put(id, Boolean.TRUE) != null;
+        }
+        // TLS 1.3 gives a resumed session a new id, but it keeps the creation time
+        isResumed |= session.getCreationTime() < socketTime;
+        if (isResumed) {
+            resumedHandshakeCount.incrementAndGet();
+        } else {
+            fullHandshakeCount.incrementAndGet();
+        }
+        Logcat.d(TAG, "handshake completed - resumed: " + isResumed + ", " + session.getProtocol());
+    }
+
+    private final class HandshakeCountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        private HandshakeCountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * @param socket
+         * @param isConnected - whether TCP is connected, then TLS handshake is what comes next
+         * @return
+         */
+        private Socket watch(Socket socket, boolean isConnected) {
+            if (socket instanceof SSLSocket) {
+                final long socketTime = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        onHandshakeCompleted(event.getSession(), socketTime);
+                    }
+                });
+            }
+            if (isConnected) {
+                HttpTimings.markTlsStart();
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return watch(delegate.createSocket(s, host, port, autoClose), true);
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return watch(delegate.createSocket(), false);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return watch(delegate.createSocket(host, port), true);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return watch(delegate.createSocket(host, port, localHost, localPort), true);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return watch(delegate.createSocket(host, port), true);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return watch(delegate.createSocket(address, port, localAddress, localPort), true);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SslContextCache [maxSize=" + maxSize + ", sessionCacheSize=" + sessionCacheSize + ", sessionTimeout="
+                + sessionTimeout + ", hitCount=" + hitCount + ", missCount=" + missCount + ", fullHandshakeCount="
+                + fullHandshakeCount + ", resumedHandshakeCount=" + resumedHandshakeCount + "]";
+    }
+}
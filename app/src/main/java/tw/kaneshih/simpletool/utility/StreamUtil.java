@@ -1,6 +1,8 @@
 package tw.kaneshih.simpletool.utility;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
@@ -41,4 +43,28 @@ public class StreamUtil {
         }
         return sb.toString();
     }
+
+    /**
+     * @param is       - it'll be closed
+     * @param sizeHint - expected size to avoid growing the buffer, -1 if unknown
+     * @return non null
+     * @throws IOException
+     */
+    public static byte[] convertStreamToByteArray(InputStream is, int sizeHint) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(sizeHint > 0 ? sizeHint : BUFFER_SIZE);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                bos.write(buffer, 0, length);
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+        return bos.toByteArray();
+    }
 }
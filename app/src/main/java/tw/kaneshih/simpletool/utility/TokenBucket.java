@@ -0,0 +1,69 @@
+package tw.kaneshih.simpletool.utility;
+
+/**
+ * Classic token bucket: refills at a fixed rate up to its capacity. {@link #reserve(double)} may
+ * take more than what's there and leave the bucket in debt, the caller then waits the debt out,
+ * so a chunk larger than the capacity still goes at the configured rate.
+ */
+final class TokenBucket {
+    private final double ratePerNano;
+    private final double capacity;
+
+    // guarded by this
+    private double tokens;
+    private long refillTime;
+
+    /**
+     * @param ratePerSecond - tokens added per second, > 0
+     * @param capacity      - max tokens kept, i.e. burst, > 0
+     */
+    TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.refillTime = System.nanoTime();
+    }
+
+    double getRatePerSecond() {
+        return ratePerNano * 1e9;
+    }
+
+    double getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Non-blocking, takes nothing.
+     *
+     * @param count - capped to capacity, a larger amount could never be available at once
+     * @return nanoseconds until count tokens are there, 0 if they are now
+     */
+    synchronized long getDelay(double count) {
+        refill();
+        double missing = Math.min(count, capacity) - tokens;
+        return (missing > 0) ? (long) Math.ceil(missing / ratePerNano) : 0;
+    }
+
+    /**
+     * Take count tokens, even if there are not enough.
+     *
+     * @param count
+     * @return nanoseconds the caller should wait before going on, 0 if none
+     */
+    synchronized long reserve(double count) {
+        refill();
+        tokens -= count;
+        return (tokens < 0) ? (long) Math.ceil(-tokens / ratePerNano) : 0;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refillTime) * ratePerNano);
+        refillTime = now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TokenBucket [rate=" + getRatePerSecond() + "/s, capacity=" + capacity + ", tokens=" + tokens + "]";
+    }
+}
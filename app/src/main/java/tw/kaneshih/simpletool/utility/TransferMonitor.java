@@ -0,0 +1,165 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Progress and cancellation of one transfer: streams wrapped by it report to the
+ * {@link ProgressListener} at most every {@link HttpUtil#PROGRESS_INTERVAL} and stop with
+ * {@link InterruptedIOException} once the {@link CancellationToken} is canceled. Used by one
+ * thread at a time.
+ */
+final class TransferMonitor {
+    private static final long INTERVAL_NANOS = HttpUtil.PROGRESS_INTERVAL * 1000000L;
+
+    private final ProgressListener listener;
+    private final CancellationToken token;
+
+    private long done;
+    private long total = -1;
+    private long reportedDone = -1;
+    private long reportTime;
+
+    /**
+     * @param listener - can be null
+     * @param token    - can be null
+     */
+    TransferMonitor(ProgressListener listener, CancellationToken token) {
+        this.listener = listener;
+        this.token = token;
+    }
+
+    /**
+     * @return null if there's nothing to monitor
+     */
+    static TransferMonitor of(ProgressListener listener, CancellationToken token) {
+        return (listener != null || token != null) ? new TransferMonitor(listener, token) : null;
+    }
+
+    /**
+     * @return null if not cancelable
+     */
+    CancellationToken getToken() {
+        return token;
+    }
+
+    boolean isCanceled() {
+        return token != null && token.isCanceled();
+    }
+
+    /**
+     * Start over, e.g. for a new try.
+     *
+     * @param done  - bytes already there, e.g. of a resumed download
+     * @param total - -1 if unknown
+     */
+    void reset(long done, long total) {
+        this.done = done;
+        this.total = total;
+        this.reportTime = 0;
+    }
+
+    /**
+     * Report where the transfer is, even if the interval hasn't passed.
+     */
+    void finish() {
+        if (listener != null && done != reportedDone) {
+            report(System.nanoTime());
+        }
+    }
+
+    InputStream wrap(InputStream in) {
+        return new MonitoredInputStream(in);
+    }
+
+    OutputStream wrap(OutputStream out) {
+        return new MonitoredOutputStream(out);
+    }
+
+    private void checkCanceled() throws InterruptedIOException {
+        if (isCanceled()) {
+            throw new InterruptedIOException("canceled");
+        }
+    }
+
+    private void add(long count) {
+        done += count;
+        if (listener == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (reportTime == 0 || now - reportTime >= INTERVAL_NANOS) {
+            report(now);
+        }
+    }
+
+    private void report(long now) {
+        reportTime = now;
+        reportedDone = done;
+        try {
+            listener.onProgress(done, total);
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    private final class MonitoredInputStream extends FilterInputStream {
+        private MonitoredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCanceled();
+            int b = in.read();
+            if (b != -1) {
+                add(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCanceled();
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkCanceled();
+            long skipped = in.skip(n);
+            if (skipped > 0) {
+                add(skipped);
+            }
+            return skipped;
+        }
+    }
+
+    private final class MonitoredOutputStream extends FilterOutputStream {
+        private MonitoredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkCanceled();
+            out.write(b);
+            add(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkCanceled();
+            out.write(b, off, len);
+            add(len);
+        }
+    }
+}
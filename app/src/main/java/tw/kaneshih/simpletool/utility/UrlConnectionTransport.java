@@ -0,0 +1,66 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.support.annotation.NonNull;
+
+/**
+ * The default transport, on HttpURLConnection: one thread is blocked per request in flight.
+ * {@link #enqueue(HttpUtil.Request, Callback)} runs requests on its own thread pool.
+ */
+public final class UrlConnectionTransport implements HttpTransport {
+    public static final int DEFAULT_POOL_SIZE = 5;
+
+    private final int poolSize;
+    private volatile ExecutorService executor;
+
+    public UrlConnectionTransport() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize - threads used by {@link #enqueue(HttpUtil.Request, Callback)}
+     * @throws IllegalArgumentException - if poolSize < 1
+     */
+    public UrlConnectionTransport(int poolSize) throws IllegalArgumentException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("invalid pool size:" + poolSize);
+        }
+        this.poolSize = poolSize;
+    }
+
+    @Override
+    public HttpUtil.Response execute(HttpUtil.Request request) {
+        return HttpUtil.executeWithUrlConnection(request);
+    }
+
+    @Override
+    public void enqueue(final HttpUtil.Request request, final Callback callback) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResponse(execute(request));
+            }
+        });
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    final AtomicInteger index = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable r) {
+                            return new Thread(r, "UrlConnectionTransportBg-" + index.incrementAndGet());
+                        }
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+}
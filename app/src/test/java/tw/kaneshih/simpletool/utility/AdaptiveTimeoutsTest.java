@@ -0,0 +1,217 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Per-host timeouts of {@link AdaptiveTimeouts}, derived from samples and used by
+ * {@link HttpUtil.Request} without explicit timeouts.
+ */
+public class AdaptiveTimeoutsTest {
+    private static final String HOST_A = "http://a.example.test:80";
+    private static final String HOST_B = "http://b.example.test:80";
+
+    private LocalHttpServer server;
+    private volatile long delay;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ignored) {
+                }
+                exchange.respond(200, "ok");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.setAdaptiveTimeouts(null);
+        server.close();
+    }
+
+    @Test
+    public void notAdaptedBeforeMinSamples() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(3);
+
+        timeouts.recordFirstByte(HOST_A, 2000);
+        timeouts.recordFirstByte(HOST_A, 2000);
+        assertEquals(0, timeouts.getReadTimeout(HOST_A));
+        assertEquals(0, timeouts.getConnectTimeout(HOST_A));
+
+        timeouts.recordFirstByte(HOST_A, 2000);
+        assertTrue(timeouts.getReadTimeout(HOST_A) > 0);
+        assertEquals(0, timeouts.getConnectTimeout(HOST_A));
+    }
+
+    @Test
+    public void timeoutIsPercentileTimesMultiplier() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(1);
+        for (int i = 0; i < 20; i++) {
+            timeouts.recordConnect(HOST_A, 2000);
+        }
+
+        long percentile = timeouts.getConnectPercentile(HOST_A, AdaptiveTimeouts.DEFAULT_PERCENTILE);
+        // upper bound of a bucket about 19% wide
+        assertTrue(String.valueOf(percentile), percentile >= 2000 && percentile <= 2000 * 1.2);
+        assertEquals(2 * percentile, timeouts.getConnectTimeout(HOST_A));
+
+        // applies to samples already taken
+        timeouts.setMultiplier(3);
+        assertEquals(3 * percentile, timeouts.getConnectTimeout(HOST_A));
+    }
+
+    @Test
+    public void percentileLeavesOutliers() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(1).setPercentile(0.9)
+                .setReadTimeoutBounds(HttpUtil.TIMEOUT_VALID_MININUM, 60000);
+        for (int i = 0; i < 99; i++) {
+            timeouts.recordFirstByte(HOST_A, 2000);
+        }
+        timeouts.recordFirstByte(HOST_A, 25000);
+
+        assertTrue(timeouts.getReadTimeout(HOST_A) < 5000);
+
+        timeouts.setPercentile(1);
+        assertTrue(timeouts.getReadTimeout(HOST_A) >= 50000);
+    }
+
+    @Test
+    public void timeoutIsClampedToBounds() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(1)
+                .setConnectTimeoutBounds(4000, 10000);
+
+        timeouts.recordConnect(HOST_A, 10);
+        timeouts.recordConnect(HOST_B, 60000);
+
+        assertEquals(4000, timeouts.getConnectTimeout(HOST_A));
+        assertEquals(10000, timeouts.getConnectTimeout(HOST_B));
+    }
+
+    @Test
+    public void hostsAreKeptApart() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(1).setMaxHosts(1);
+
+        timeouts.recordFirstByte(HOST_A, 4000);
+        assertTrue(timeouts.getReadTimeout(HOST_A) >= 8000);
+        assertEquals(0, timeouts.getReadTimeout(HOST_B));
+
+        // least recently used one is dropped
+        timeouts.recordFirstByte(HOST_B, 4000);
+        assertEquals(0, timeouts.getReadTimeout(HOST_A));
+        assertTrue(timeouts.getReadTimeout(HOST_B) >= 8000);
+    }
+
+    @Test
+    public void invalidSettingIsRejected() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+        try {
+            timeouts.setPercentile(0.4);
+            fail("percentile");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            timeouts.setMultiplier(0.5f);
+            fail("multiplier");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            timeouts.setMinSamples(0);
+            fail("min samples");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            timeouts.setReadTimeoutBounds(HttpUtil.TIMEOUT_VALID_MININUM - 1, 10000);
+            fail("min timeout");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            timeouts.setConnectTimeoutBounds(5000, 4000);
+            fail("max < min");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void requestFollowsUnlessTimeoutIsSet() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(1);
+        HttpUtil.setAdaptiveTimeouts(timeouts);
+        String url = HOST_A + "/path";
+        assertEquals(HttpUtil.DEFAULT_SOCKET_TIMEOUT, get(url).getSocketTimeout());
+
+        timeouts.recordFirstByte(HOST_A, 4000);
+        timeouts.recordConnect(HOST_A, 4000);
+
+        assertEquals(timeouts.getReadTimeout(HOST_A), get(url).getSocketTimeout());
+        assertEquals(timeouts.getConnectTimeout(HOST_A), get(url).getConnectionTimeout());
+        assertEquals(HttpUtil.DEFAULT_SOCKET_TIMEOUT, get("http://b.example.test/").getSocketTimeout());
+        assertEquals(3500, get(url).setSocketTimeout(3500).getSocketTimeout());
+        assertEquals(3500, get(url).setConnectionTimeout(3500).getConnectionTimeout());
+    }
+
+    @Test
+    public void timedOutTryIsSampleOfTimeout() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(1);
+        HttpUtil.setAdaptiveTimeouts(timeouts);
+        HttpUtil.Request request = get(HOST_A + "/");
+
+        HttpUtil.recordLatency(request, new HttpTimings(), false, 0, new SocketTimeoutException(), 6000, 7000);
+        assertTrue(timeouts.getConnectPercentile(HOST_A, 1) >= 6000);
+        assertEquals(0, timeouts.getFirstBytePercentile(HOST_A, 1));
+
+        HttpUtil.recordLatency(request, new HttpTimings(), true, 0, new SocketTimeoutException(), 6000, 7000);
+        assertTrue(timeouts.getFirstBytePercentile(HOST_A, 1) >= 7000);
+
+        // other failures say nothing of latency
+        HttpUtil.recordLatency(request, new HttpTimings(), false, 0, new IOException(), 9000, 9000);
+        assertTrue(timeouts.getConnectPercentile(HOST_A, 1) < 9000);
+    }
+
+    @Test
+    public void responsesAreSampled() {
+        delay = 100;
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(3);
+        HttpUtil.setAdaptiveTimeouts(timeouts);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, get(server.getUrl("/")).execute().getStatusCode());
+        }
+
+        assertTrue(timeouts.toString(), timeouts.getFirstBytePercentile(server.getHostKey(), 0.5) >= 50);
+        // 2 x about 100 ms is below the bounds
+        assertEquals(AdaptiveTimeouts.DEFAULT_MIN_TIMEOUT, timeouts.getReadTimeout(server.getHostKey()));
+    }
+
+    @Test
+    public void fastHostGetsShorterTimeout() {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts().setMinSamples(1);
+        HttpUtil.setAdaptiveTimeouts(timeouts);
+        timeouts.recordFirstByte(server.getHostKey(), 10);
+        // slower than the derived timeout, faster than the default one
+        delay = HttpUtil.DEFAULT_SOCKET_TIMEOUT - 1000;
+
+        long start = System.currentTimeMillis();
+        HttpUtil.Response response = get(server.getUrl("/")).execute();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(String.valueOf(response.getThrowable()), response.getThrowable() instanceof SocketTimeoutException);
+        assertTrue(String.valueOf(elapsed), elapsed < delay);
+    }
+
+    private HttpUtil.Request get(String url) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(url)
+                .setUseCache(false)
+                .setTryCount(1);
+    }
+}
@@ -0,0 +1,159 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delays and decisions of {@link BackoffRetryPolicy}.
+ */
+public class BackoffRetryPolicyTest {
+    private static final int ROUNDS = 200;
+
+    private final HttpUtil.Request get = new HttpUtil.Request(HttpUtil.Request.GET);
+    private final HttpUtil.Request post = new HttpUtil.Request(HttpUtil.Request.POST);
+
+    @Test
+    public void delayIsWithinCeilingOfAttempt() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy().setBaseDelay(100).setMaxDelay(1000)
+                .setBudget(10 * ROUNDS);
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 1; attempt <= ceilings.length; attempt++) {
+            long max = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                long delay = policy.getRetryDelay(get, attempt, 503, null, null);
+                assertTrue("attempt " + attempt + ": " + delay, delay >= 0 && delay <= ceilings[attempt - 1]);
+                max = Math.max(max, delay);
+            }
+            // jitter spreads over the whole range
+            assertTrue("attempt " + attempt + ": " + max, max > ceilings[attempt - 1] / 2);
+        }
+    }
+
+    @Test
+    public void largeAttemptDoesNotOverflow() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy().setBaseDelay(100).setMaxDelay(1000);
+
+        long delay = policy.getRetryDelay(get, 100, 503, null, null);
+
+        assertTrue(delay >= 0 && delay <= 1000);
+    }
+
+    @Test
+    public void retryAfterInSeconds() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy().setMaxDelay(10000);
+
+        assertEquals(3000, policy.getRetryDelay(get, 1, 503, null, "3"));
+        assertEquals(0, policy.getRetryDelay(get, 1, 429, null, " 0 "));
+    }
+
+    @Test
+    public void retryAfterAsHttpDate() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy().setMaxDelay(10000);
+
+        long delay = policy.getRetryDelay(get, 1, 503, null, httpDate(System.currentTimeMillis() + 5000));
+        long past = policy.getRetryDelay(get, 1, 503, null, httpDate(System.currentTimeMillis() - 5000));
+
+        // the date has second precision
+        assertTrue(String.valueOf(delay), delay > 3000 && delay <= 5000);
+        assertEquals(0, past);
+    }
+
+    @Test
+    public void retryAfterLongerThanMaxDelayIsNotRetried() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy().setMaxDelay(10000).setBudget(1);
+
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(get, 1, 503, null, "11"));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(get, 1, 503, null,
+                httpDate(System.currentTimeMillis() + 60000)));
+        // giving up costs no budget
+        assertEquals(1, policy.getBudgetTokens(), 0);
+        assertEquals(10000, policy.getRetryDelay(get, 1, 503, null, "10"));
+    }
+
+    @Test
+    public void invalidRetryAfterFallsBackToBackoff() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy().setBaseDelay(100).setMaxDelay(1000);
+
+        long delay = policy.getRetryDelay(get, 1, 503, null, "soon");
+        long negative = policy.getRetryDelay(get, 1, 503, null, "-5");
+
+        assertTrue(delay >= 0 && delay <= 100);
+        assertTrue(negative >= 0 && negative <= 100);
+    }
+
+    @Test
+    public void budgetIsSpentAndRefilled() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy().setBudget(2).setBudgetRefill(0.5);
+
+        assertTrue(policy.getRetryDelay(get, 1, 503, null, null) >= 0);
+        assertTrue(policy.getRetryDelay(get, 1, 503, null, null) >= 0);
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(get, 1, 503, null, null));
+
+        policy.onSuccess(get);
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(get, 1, 503, null, null));
+        policy.onSuccess(get);
+        assertTrue(policy.getRetryDelay(get, 1, 503, null, null) >= 0);
+
+        // refill stops at budget
+        for (int i = 0; i < 10; i++) {
+            policy.onSuccess(get);
+        }
+        assertEquals(2, policy.getBudgetTokens(), 0);
+    }
+
+    @Test
+    public void nonRetryableStatus() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy();
+        int[] statuses = {400, 401, 403, 404, 409, 501};
+        for (int status : statuses) {
+            assertEquals(String.valueOf(status), RetryPolicy.NO_RETRY,
+                    policy.getRetryDelay(get, 1, status, null, null));
+        }
+        int[] retryable = {408, 429, 500, 502, 503, 504};
+        for (int status : retryable) {
+            assertTrue(String.valueOf(status), policy.getRetryDelay(get, 1, status, null, null) >= 0);
+        }
+        // only the retried ones cost budget
+        assertEquals(BackoffRetryPolicy.DEFAULT_BUDGET - retryable.length, policy.getBudgetTokens(), 1e-9);
+    }
+
+    @Test
+    public void nonRetryableThrowable() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy();
+
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(get, 1, 0, new SSLHandshakeException("bad"), null));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(get, 1, 0, new IOException("other"), null));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(get, 1, 0, null, null));
+        assertTrue(policy.getRetryDelay(get, 1, 0, new SocketTimeoutException(), null) >= 0);
+        assertTrue(policy.getRetryDelay(get, 1, 0, new SocketException("reset"), null) >= 0);
+    }
+
+    @Test
+    public void nonIdempotentOnlyWhenNotHandled() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy();
+
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(post, 1, 500, null, null));
+        assertEquals(RetryPolicy.NO_RETRY, policy.getRetryDelay(post, 1, 0, new SocketTimeoutException(), null));
+        assertTrue(policy.getRetryDelay(post, 1, 503, null, null) >= 0);
+        assertTrue(policy.getRetryDelay(post, 1, 0, new ConnectException(), null) >= 0);
+        assertTrue(policy.getRetryDelay(post.setIdempotent(true), 1, 500, null, null) >= 0);
+    }
+
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+}
@@ -0,0 +1,182 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * State changes of {@link CircuitBreaker}, alone and installed in {@link HttpUtil}.
+ */
+public class CircuitBreakerTest {
+    private static final String HOST = "http://example.test";
+
+    private LocalHttpServer server;
+    private volatile int statusCode = 503;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                if (exchange.getPath().startsWith("/hang")) {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (exchange.getPath().startsWith("/cached")) {
+                    exchange.respond(200, "cached", "Cache-Control: max-age=60");
+                    return;
+                }
+                exchange.respond(statusCode, "status " + statusCode);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.setCircuitBreaker(null);
+        HttpUtil.setCache(null);
+        server.close();
+        if (cacheDir != null) {
+            File[] files = cacheDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void opensOnFailureRateAndClosesAfterProbe() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.tryAcquire(HOST));
+            breaker.onFailure(HOST);
+        }
+
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState(HOST));
+        assertFalse(breaker.tryAcquire(HOST));
+        Thread.sleep(250);
+
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState(HOST));
+        assertTrue(breaker.tryAcquire(HOST));
+        // one probe at a time
+        assertFalse(breaker.tryAcquire(HOST));
+        breaker.onSuccess(HOST);
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState(HOST));
+    }
+
+    @Test
+    public void releasedProbeLeavesCircuitHalfOpen() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquire(HOST);
+            breaker.onFailure(HOST);
+        }
+        Thread.sleep(250);
+
+        assertTrue(breaker.tryAcquire(HOST));
+        breaker.release(HOST);
+
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState(HOST));
+        // the slot is free for the next probe
+        assertTrue(breaker.tryAcquire(HOST));
+    }
+
+    @Test
+    public void canceledProbeDoesNotCloseCircuit() throws Exception {
+        CircuitBreaker breaker = newBreaker();
+        HttpUtil.setCircuitBreaker(breaker);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(503, get("/").execute().getStatusCode());
+        }
+        assertTrue(get("/").execute().getThrowable() instanceof CircuitOpenException);
+        Thread.sleep(250);
+
+        final CancellationToken token = new CancellationToken();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                token.cancel();
+            }
+        }).start();
+        HttpUtil.Response canceled = get("/hang").setCancellationToken(token).execute();
+
+        assertEquals(0, canceled.getStatusCode());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState(server.getHostKey()));
+        // a real probe still decides
+        statusCode = 200;
+        assertEquals(200, get("/").execute().getStatusCode());
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState(server.getHostKey()));
+    }
+
+    @Test
+    public void freshCacheHitIsNotAProbe() throws Exception {
+        cacheDir = File.createTempFile("CircuitBreakerTest", "");
+        assertTrue(cacheDir.delete());
+        HttpUtil.setCache(new HttpCache(cacheDir, 1024 * 1024));
+        CircuitBreaker breaker = newBreaker();
+        HttpUtil.setCircuitBreaker(breaker);
+        assertEquals("cached", get("/cached").execute().getBody());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(503, get("/").execute().getStatusCode());
+        }
+        String hostKey = server.getHostKey();
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState(hostKey));
+        int requestCount = server.getRequestCount();
+
+        // served while open
+        HttpUtil.Response open = get("/cached").execute();
+        assertTrue(open.isFromCache());
+        assertEquals("cached", open.getBody());
+        Thread.sleep(250);
+
+        // neither closes the circuit nor holds the probe slot, also when enqueued
+        assertTrue(get("/cached").execute().isFromCache());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState(hostKey));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<HttpUtil.Response> enqueued = new AtomicReference<>();
+        get("/cached").enqueue(new HttpTransport.Callback() {
+            @Override
+            public void onResponse(HttpUtil.Response response) {
+                enqueued.set(response);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(enqueued.get().isFromCache());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState(hostKey));
+        assertEquals(requestCount, server.getRequestCount());
+
+        // the probe is still up to the host
+        assertEquals(503, get("/").execute().getStatusCode());
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState(hostKey));
+    }
+
+    private static CircuitBreaker newBreaker() {
+        return new CircuitBreaker().setWindowSize(4).setMinimumCalls(4).setOpenDuration(200);
+    }
+
+    private HttpUtil.Request get(String path) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setTryCount(1);
+    }
+}
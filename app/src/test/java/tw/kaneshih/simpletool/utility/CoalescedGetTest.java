@@ -0,0 +1,169 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * GETs of {@link HttpUtil} with {@link HttpUtil.Request#setCoalescing(boolean)}.
+ */
+public class CoalescedGetTest {
+    private LocalHttpServer server;
+    private volatile long delay = 300;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                exchange.respond(200, "body " + server.getRequestCount());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void concurrentCallersShareOneRequest() throws Exception {
+        Get first = new Get(get()).start();
+        Thread.sleep(100);
+        Get second = new Get(get()).start();
+
+        assertEquals(200, first.join().getStatusCode());
+        assertEquals(first.join().getBody(), second.join().getBody());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void canceledWaiterStopsWaitingAlone() throws Exception {
+        delay = 1000;
+        CancellationToken token = new CancellationToken();
+        Get owner = new Get(get()).start();
+        Thread.sleep(100);
+        Get waiter = new Get(get().setCancellationToken(token)).start();
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        token.cancel();
+        HttpUtil.Response canceled = waiter.join();
+
+        assertTrue((System.nanoTime() - start) / 1000000 < 300);
+        assertTrue(canceled.getThrowable() instanceof InterruptedIOException);
+        assertEquals(200, owner.join().getStatusCode());
+    }
+
+    @Test
+    public void canceledOwnerDoesNotFailWaiters() throws Exception {
+        CancellationToken token = new CancellationToken();
+        Get owner = new Get(get().setCancellationToken(token)).start();
+        Thread.sleep(100);
+        Get waiter = new Get(get()).start();
+        Thread.sleep(100);
+
+        token.cancel();
+
+        assertEquals(200, waiter.join().getStatusCode());
+        assertTrue(owner.join().getThrowable() instanceof InterruptedIOException);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void requestIsCanceledWhenAllCallersAre() throws Exception {
+        delay = 3000;
+        CancellationToken first = new CancellationToken();
+        CancellationToken second = new CancellationToken();
+        Get owner = new Get(get().setCancellationToken(first)).start();
+        Thread.sleep(100);
+        Get waiter = new Get(get().setCancellationToken(second)).start();
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        first.cancel();
+        second.cancel();
+        HttpUtil.Response ownerResponse = owner.join();
+        HttpUtil.Response waiterResponse = waiter.join();
+
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+        assertTrue(ownerResponse.getThrowable() instanceof InterruptedIOException);
+        assertTrue(waiterResponse.getThrowable() instanceof InterruptedIOException);
+    }
+
+    @Test
+    public void canceledGroupIsNotJoined() throws Exception {
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        assertTrue(get().setCancellationToken(token).execute().getThrowable() instanceof InterruptedIOException);
+
+        assertEquals(200, get().execute().getStatusCode());
+    }
+
+    @Test
+    public void failureOfTransportIsAResponse() throws Exception {
+        final RuntimeException failure = new IllegalStateException("broken transport");
+        HttpUtil.Request request = get().setTransport(new HttpTransport() {
+            @Override
+            public HttpUtil.Response execute(HttpUtil.Request request) {
+                throw failure;
+            }
+
+            @Override
+            public void enqueue(HttpUtil.Request request, Callback callback) {
+                throw failure;
+            }
+        });
+
+        HttpUtil.Response response = request.execute();
+
+        assertNotNull(response);
+        assertEquals(0, response.getStatusCode());
+        assertSame(failure, response.getThrowable());
+    }
+
+    private HttpUtil.Request get() {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl("/"))
+                .setUseCache(false)
+                .setCoalescing(true);
+    }
+
+    private static final class Get implements Runnable {
+        private final HttpUtil.Request request;
+        private final AtomicReference<HttpUtil.Response> response = new AtomicReference<>();
+        private Thread thread;
+
+        private Get(HttpUtil.Request request) {
+            this.request = request;
+        }
+
+        private Get start() {
+            thread = new Thread(this);
+            thread.start();
+            return this;
+        }
+
+        private HttpUtil.Response join() throws InterruptedException {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            return response.get();
+        }
+
+        @Override
+        public void run() {
+            response.set(request.execute());
+        }
+    }
+}
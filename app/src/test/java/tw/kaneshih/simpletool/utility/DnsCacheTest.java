@@ -0,0 +1,159 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * TTL, negative cache and refresh-ahead of {@link DnsCache}, against {@link StubDnsResolver}.
+ */
+public class DnsCacheTest {
+    private static final String HOST = "api.example.test";
+
+    private InetAddress first;
+    private InetAddress second;
+    private StubDnsResolver stub;
+
+    @Before
+    public void setUp() throws Exception {
+        first = InetAddress.getByAddress(HOST, new byte[]{10, 0, 0, 1});
+        second = InetAddress.getByAddress(HOST, new byte[]{10, 0, 0, 2});
+        stub = new StubDnsResolver().put(HOST, first);
+    }
+
+    @Test
+    public void hitWithinTtlAndLookupAgainAfterIt() throws Exception {
+        DnsCache cache = new DnsCache(stub).setTtl(200).setRefreshAhead(0);
+
+        assertEquals(first, cache.resolve(HOST)[0]);
+        assertEquals(first, cache.resolve("API.example.test")[0]);
+        assertEquals(1, stub.getLookupCount(HOST));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        stub.put(HOST, second);
+        Thread.sleep(300);
+
+        assertEquals(second, cache.resolve(HOST)[0]);
+        assertEquals(2, stub.getLookupCount(HOST));
+    }
+
+    @Test
+    public void failureIsCachedForNegativeTtl() throws Exception {
+        stub.remove(HOST);
+        DnsCache cache = new DnsCache(stub).setNegativeTtl(200);
+
+        assertUnknown(cache);
+        assertUnknown(cache);
+        assertEquals(1, stub.getLookupCount(HOST));
+        assertEquals(1, cache.getNegativeHitCount());
+
+        // the host is back, but the failure is still cached
+        stub.put(HOST, first);
+        assertUnknown(cache);
+        Thread.sleep(300);
+
+        assertEquals(first, cache.resolve(HOST)[0]);
+        assertEquals(2, stub.getLookupCount(HOST));
+    }
+
+    @Test
+    public void failureIsNotCachedWithZeroNegativeTtl() throws Exception {
+        stub.remove(HOST);
+        DnsCache cache = new DnsCache(stub).setNegativeTtl(0);
+
+        assertUnknown(cache);
+        assertUnknown(cache);
+
+        assertEquals(2, stub.getLookupCount(HOST));
+        assertEquals(0, cache.getNegativeHitCount());
+    }
+
+    @Test
+    public void hitNearExpiryIsServedStaleAndRefreshed() throws Exception {
+        DnsCache cache = new DnsCache(stub).setTtl(1000).setRefreshAhead(800);
+        cache.resolve(HOST);
+        Thread.sleep(300);
+        stub.put(HOST, second).setDelay(300);
+
+        long start = System.nanoTime();
+        InetAddress[] addresses = cache.resolve(HOST);
+
+        // answered from cache, not after the 300 ms lookup
+        assertTrue((System.nanoTime() - start) / 1000000 < 150);
+        assertEquals(first, addresses[0]);
+        assertEquals(1, cache.getRefreshCount());
+        waitForLookups(2);
+        // the refresh takes its 300 ms
+        Thread.sleep(400);
+        assertEquals(second, cache.resolve(HOST)[0]);
+        // one refresh at a time
+        assertEquals(2, stub.getLookupCount(HOST));
+    }
+
+    @Test
+    public void failedRefreshKeepsGoodEntryUntilExpiry() throws Exception {
+        DnsCache cache = new DnsCache(stub).setTtl(600).setRefreshAhead(500);
+        cache.resolve(HOST);
+        Thread.sleep(200);
+        stub.remove(HOST);
+
+        assertEquals(first, cache.resolve(HOST)[0]);
+        waitForLookups(2);
+
+        assertEquals(first, cache.resolve(HOST)[0]);
+        Thread.sleep(500);
+        assertUnknown(cache);
+    }
+
+    @Test
+    public void concurrentMissesShareOneLookup() throws Exception {
+        stub.setDelay(200);
+        final DnsCache cache = new DnsCache(stub);
+        final CountDownLatch done = new CountDownLatch(8);
+        final AtomicInteger okCount = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (first.equals(cache.resolve(HOST)[0])) {
+                            okCount.incrementAndGet();
+                        }
+                    } catch (UnknownHostException e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(8, okCount.get());
+        assertEquals(1, stub.getLookupCount(HOST));
+    }
+
+    private void waitForLookups(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && stub.getLookupCount(HOST) < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, stub.getLookupCount(HOST));
+        // let the result reach the cache
+        Thread.sleep(20);
+    }
+
+    private static void assertUnknown(DnsCache cache) {
+        try {
+            cache.resolve(HOST);
+            fail("resolved " + HOST);
+        } catch (UnknownHostException expected) {
+        }
+    }
+}
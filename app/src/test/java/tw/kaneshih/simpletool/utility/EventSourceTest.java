@@ -0,0 +1,179 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link EventSource} against a loopback server.
+ */
+public class EventSourceTest {
+    private LocalHttpServer server;
+    private EventSource source;
+    private final List<String> lastEventIds = new CopyOnWriteArrayList<>();
+    private final List<String> accepts = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        if (source != null) {
+            source.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void reconnectResumesFromLastEventId() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                lastEventIds.add(String.valueOf(exchange.getHeader("Last-Event-ID")));
+                accepts.add(exchange.getHeader("Accept"));
+                OutputStream out = exchange.respondStream(200, "Content-Type: text/event-stream; charset=utf-8");
+                if (exchange.getConnectionIndex() == 1) {
+                    // the stream ends after this, the client comes back in 100 ms
+                    write(out, "retry: 100\nid: 1\ndata: first\n\n");
+                } else {
+                    write(out, "id: 2\nevent: update\ndata: second\n\n");
+                    sleep(3000);
+                }
+            }
+        });
+        Recorder recorder = new Recorder(2);
+        source = new EventSource(get(), recorder);
+        source.open();
+
+        assertTrue(recorder.eventLatch.await(5, TimeUnit.SECONDS));
+
+        assertEquals("first", recorder.events.get(0).getData());
+        assertEquals("1", recorder.events.get(0).getId());
+        assertEquals("update", recorder.events.get(1).getType());
+        assertEquals("second", recorder.events.get(1).getData());
+        assertEquals("null", lastEventIds.get(0));
+        assertEquals("1", lastEventIds.get(1));
+        assertEquals("text/event-stream", accepts.get(0));
+        assertEquals("2", source.getLastEventId());
+        assertEquals(1, recorder.disconnectDelays.size());
+        assertEquals(100L, (long) recorder.disconnectDelays.get(0));
+        assertTrue(source.isConnected());
+    }
+
+    @Test
+    public void wrongContentTypeGivesUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                // e.g. login page of a captive portal
+                exchange.respond(200, "data: not an event\n\n", "Content-Type: text/html");
+            }
+        });
+        Recorder recorder = new Recorder(1);
+        source = new EventSource(get(), recorder).setReconnectDelay(100);
+        source.open();
+
+        assertTrue(recorder.closedLatch.await(5, TimeUnit.SECONDS));
+
+        assertTrue(recorder.events.isEmpty());
+        assertEquals(0, recorder.openCount);
+        assertEquals(-1L, (long) recorder.disconnectDelays.get(0));
+        assertTrue(recorder.lastResponse.getThrowable() instanceof ProtocolException);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void quietStreamIsNotTimedOut() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                OutputStream out = exchange.respondStream(200, "Content-Type: text/event-stream");
+                write(out, "data: first\n\n");
+                // longer than the default socket timeout of a request
+                sleep(HttpUtil.DEFAULT_SOCKET_TIMEOUT + 1000);
+                write(out, "data: second\n\n");
+                sleep(3000);
+            }
+        });
+        Recorder recorder = new Recorder(2);
+        source = new EventSource(get(), recorder);
+        source.open();
+
+        assertTrue(recorder.eventLatch.await(HttpUtil.DEFAULT_SOCKET_TIMEOUT + 5000, TimeUnit.MILLISECONDS));
+
+        assertTrue(recorder.disconnectDelays.isEmpty());
+        assertEquals(1, server.getAcceptCount());
+    }
+
+    @Test
+    public void readTimeoutOfRequestIsKept() throws Exception {
+        HttpUtil.Request set = get().setSocketTimeout(HttpUtil.TIMEOUT_VALID_MININUM + 1);
+        set.setStreamSocketTimeout(0);
+        HttpUtil.Request notSet = get();
+        notSet.setStreamSocketTimeout(0);
+
+        assertEquals(HttpUtil.TIMEOUT_VALID_MININUM + 1, set.getSocketTimeout());
+        assertEquals(0, notSet.getSocketTimeout());
+    }
+
+    private HttpUtil.Request get() {
+        String url = (server != null) ? server.getUrl("/events") : "http://127.0.0.1/events";
+        return new HttpUtil.Request(HttpUtil.Request.GET).setUrl(url);
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static final class Recorder implements EventSource.Listener {
+        private final List<EventSource.Event> events = new CopyOnWriteArrayList<>();
+        private final List<Long> disconnectDelays = new CopyOnWriteArrayList<>();
+        private final CountDownLatch eventLatch;
+        private final CountDownLatch closedLatch = new CountDownLatch(1);
+        private volatile int openCount;
+        private volatile HttpUtil.Response lastResponse;
+
+        private Recorder(int eventCount) {
+            this.eventLatch = new CountDownLatch(eventCount);
+        }
+
+        @Override
+        public void onOpen(EventSource source) {
+            openCount++;
+        }
+
+        @Override
+        public void onEvent(EventSource source, EventSource.Event event) {
+            events.add(event);
+            eventLatch.countDown();
+        }
+
+        @Override
+        public void onDisconnected(EventSource source, HttpUtil.Response response, long reconnectDelay) {
+            lastResponse = response;
+            disconnectDelays.add(reconnectDelay);
+        }
+
+        @Override
+        public void onClosed(EventSource source) {
+            closedLatch.countDown();
+        }
+    }
+}
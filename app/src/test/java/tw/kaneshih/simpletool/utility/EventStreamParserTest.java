@@ -0,0 +1,152 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of "text/event-stream" by {@link EventStreamParser}.
+ */
+public class EventStreamParserTest {
+
+    @Test
+    public void fieldsMakeAnEvent() throws Exception {
+        EventStreamParser parser = parse("event: update\nid: 7\ndata: first\ndata:second\n\n");
+
+        EventSource.Event event = parser.next();
+
+        assertEquals("update", event.getType());
+        assertEquals("7", event.getId());
+        assertEquals("first\nsecond", event.getData());
+        assertNull(parser.next());
+        assertEquals("7", parser.getLastEventId());
+    }
+
+    @Test
+    public void typeIsMessageIfNotSet() throws Exception {
+        EventStreamParser parser = parse("data: a\n\nevent: other\ndata: b\n\ndata: c\n\n");
+
+        assertEquals("message", parser.next().getType());
+        assertEquals("other", parser.next().getType());
+        assertEquals("message", parser.next().getType());
+    }
+
+    @Test
+    public void commentsAndUnknownFieldsAreIgnored() throws Exception {
+        EventStreamParser parser = parse(": heartbeat\n\n:\nfoo: bar\ndata\ndata: x\n\n");
+
+        EventSource.Event event = parser.next();
+
+        // a field name alone is a field with empty value
+        assertEquals("\nx", event.getData());
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void idIsKeptForLaterEvents() throws Exception {
+        EventStreamParser parser = new EventStreamParser(stream("data: a\n\nid: 2\n\ndata: b\n\nid\ndata: c\n\n"),
+                "1");
+
+        assertEquals("1", parser.next().getId());
+        // an event of only an id still moves the last id
+        assertEquals("2", parser.next().getId());
+        assertEquals("", parser.next().getId());
+        assertEquals("", parser.getLastEventId());
+    }
+
+    @Test
+    public void idWithNullIsIgnored() throws Exception {
+        EventStreamParser parser = parse("id: 1\ndata: a\n\nid: 2\u00003\ndata: b\n\n");
+
+        assertEquals("1", parser.next().getId());
+        assertEquals("1", parser.next().getId());
+    }
+
+    @Test
+    public void retryTakesOnlyDigits() throws Exception {
+        EventStreamParser parser = parse("retry: 2500\n\nretry: 10s\n\nretry: -1\n\n");
+
+        assertNull(parser.next());
+        assertEquals(2500, parser.getRetry());
+        assertEquals(-1, parse("retry: abc\n\n").getRetry());
+    }
+
+    @Test
+    public void everyLineEndIsTheSame() throws Exception {
+        String[] ends = {"\n", "\r", "\r\n"};
+        for (String end : ends) {
+            EventStreamParser parser = parse("id: 1" + end + "data: a" + end + "data: b" + end + end
+                    + "data: c" + end + end);
+
+            EventSource.Event event = parser.next();
+            assertEquals("a\nb", event.getData());
+            assertEquals("1", event.getId());
+            assertEquals("c", parser.next().getData());
+            assertNull(parser.next());
+        }
+    }
+
+    @Test
+    public void crlfSplitAcrossReads() throws Exception {
+        // each read gives one byte, so CR and LF come apart
+        InputStream in = new ByteArrayInputStream("data: a\r\n\r\ndata: b\r\n\r\n".getBytes("UTF-8")) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        EventStreamParser parser = new EventStreamParser(in, "");
+
+        assertEquals("a", parser.next().getData());
+        assertEquals("b", parser.next().getData());
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void leadingBomIsSkipped() throws Exception {
+        EventStreamParser parser = parse("\uFEFFdata: a\n\n");
+
+        assertEquals("a", parser.next().getData());
+    }
+
+    @Test
+    public void unfinishedEventIsDropped() throws Exception {
+        EventStreamParser parser = parse("data: a\n\ndata: b\n");
+
+        assertEquals("a", parser.next().getData());
+        assertNull(parser.next());
+    }
+
+    @Test
+    public void utf8Data() throws Exception {
+        assertEquals("\u4e2d\u6587 \u00e9", parse("data: \u4e2d\u6587 \u00e9\n\n").next().getData());
+    }
+
+    @Test
+    public void eventTooLongFails() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        String value = "0123456789012345678901234567890123456789";
+        // each line adds its value and a LF to the data
+        for (int length = 0; length <= EventStreamParser.MAX_EVENT_LENGTH; length += value.length() + 1) {
+            sb.append("data: ").append(value).append('\n');
+        }
+        sb.append('\n');
+        try {
+            parse(sb.toString()).next();
+            fail("long event not rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static EventStreamParser parse(String text) throws IOException {
+        return new EventStreamParser(stream(text), "");
+    }
+
+    private static InputStream stream(String text) throws IOException {
+        return new ByteArrayInputStream(text.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,159 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HttpUtil#getFileFromUrl(String, File)}: the target is written only when complete, and a
+ * broken download is resumed with Range / If-Range.
+ */
+public class FileDownloadTest {
+    private static final int SIZE = 64 * 1024;
+    private static final int CUT_AT = SIZE / 2;
+
+    private LocalHttpServer server;
+    private File dir;
+    private File file;
+    private File partFile;
+    private final byte[] body = new byte[SIZE];
+    private volatile String etag = "\"v1\"";
+    // how many of the next responses stop at CUT_AT of the body
+    private volatile int cutCount;
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final List<String> ifRanges = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(5).nextBytes(body);
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                String range = exchange.getHeader("Range");
+                String ifRange = exchange.getHeader("If-Range");
+                ranges.add(String.valueOf(range));
+                ifRanges.add(String.valueOf(ifRange));
+                int first = 0;
+                int status = 200;
+                String contentRange = null;
+                if (range != null && etag != null && etag.equals(ifRange)) {
+                    first = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                    status = 206;
+                    contentRange = "Content-Range: bytes " + first + "-" + (SIZE - 1) + "/" + SIZE + "\r\n";
+                }
+                OutputStream out = exchange.getRawOutput();
+                out.write(("HTTP/1.1 " + status + " OK\r\nContent-Length: " + (SIZE - first) + "\r\n"
+                        + (etag != null ? "ETag: " + etag + "\r\n" : "")
+                        + (contentRange != null ? contentRange : "") + "\r\n").getBytes("ISO-8859-1"));
+                if (cutCount > 0) {
+                    cutCount--;
+                    // like a dropped connection
+                    out.write(body, first, Math.max(0, CUT_AT - first));
+                    out.flush();
+                    exchange.close();
+                    return;
+                }
+                out.write(body, first, SIZE - first);
+                out.flush();
+            }
+        });
+        dir = File.createTempFile("FileDownloadTest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        file = new File(dir, "file");
+        partFile = new File(dir, "file.part");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void brokenDownloadIsResumed() throws Exception {
+        cutCount = 1;
+
+        assertTrue(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+
+        assertArrayEquals(body, FileUtil.getBytesFromFile(file));
+        assertEquals(Arrays.asList("null", "bytes=" + CUT_AT + "-"), ranges);
+        assertEquals("\"v1\"", ifRanges.get(1));
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void targetIsReplacedOnlyWhenComplete() throws Exception {
+        FileUtil.writeToFile("old", file, false);
+        // every try of the first call is cut at the same place
+        cutCount = 3;
+
+        assertFalse(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+
+        assertEquals("old", FileUtil.getStringFromFile(file, "UTF-8"));
+        assertArrayEquals(Arrays.copyOf(body, CUT_AT), FileUtil.getBytesFromFile(partFile));
+
+        // a later call picks up the part
+        assertTrue(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+        assertArrayEquals(body, FileUtil.getBytesFromFile(file));
+        assertEquals("bytes=" + CUT_AT + "-", ranges.get(ranges.size() - 1));
+        assertFalse(partFile.exists());
+    }
+
+    @Test
+    public void changedFileStartsOver() throws Exception {
+        cutCount = 1;
+        assertTrue(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+        cutCount = 3;
+        FileUtil.writeToFile("old", file, false);
+        assertFalse(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+        assertTrue(partFile.exists());
+
+        // If-Range no longer matches, the server sends it all
+        etag = "\"v2\"";
+        new Random(6).nextBytes(body);
+        assertTrue(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+
+        assertArrayEquals(body, FileUtil.getBytesFromFile(file));
+        assertEquals("\"v1\"", ifRanges.get(ifRanges.size() - 1));
+    }
+
+    @Test
+    public void partWithoutValidatorIsNotResumed() throws Exception {
+        etag = null;
+        cutCount = 3;
+        assertFalse(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+
+        assertTrue(HttpUtil.getFileFromUrl(server.getUrl("/file"), file));
+
+        assertArrayEquals(body, FileUtil.getBytesFromFile(file));
+        for (String range : ranges) {
+            assertEquals("null", range);
+        }
+    }
+
+    @Test
+    public void contentRangeIsParsed() {
+        assertTrue(Arrays.equals(new long[]{100, 199, 1000}, HttpUtil.parseContentRange("bytes 100-199/1000")));
+        assertTrue(Arrays.equals(new long[]{0, 0, -1}, HttpUtil.parseContentRange(" bytes 0-0/* ")));
+        assertNull(HttpUtil.parseContentRange("bytes */1000"));
+        assertNull(HttpUtil.parseContentRange("items 0-1/2"));
+        assertNull(HttpUtil.parseContentRange(null));
+    }
+}
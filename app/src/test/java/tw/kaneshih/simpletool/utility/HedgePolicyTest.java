@@ -0,0 +1,95 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hedged GETs of {@link HttpUtil} with {@link HedgePolicy}.
+ */
+public class HedgePolicyTest {
+    private LocalHttpServer server;
+    private final AtomicInteger requestIndex = new AtomicInteger();
+    // every n-th request is slow, 0 for only the first one
+    private volatile int slowEvery;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                int index = requestIndex.incrementAndGet();
+                boolean isSlow = (slowEvery == 0) ? index == 1 : index % slowEvery == 0;
+                sleep(isSlow ? 400 : 20);
+                exchange.respond(200, isSlow ? "slow" : "fast");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.setHedgePolicy(null);
+        server.close();
+    }
+
+    @Test
+    public void hedgeWinsOverStalledPrimary() throws Exception {
+        HedgePolicy policy = new HedgePolicy().setDelay(50).setPercentile(0);
+        HttpUtil.setHedgePolicy(policy);
+
+        long start = System.nanoTime();
+        HttpUtil.Response response = get().execute();
+
+        assertTrue((System.nanoTime() - start) / 1000000 < 300);
+        assertEquals("fast", response.getBody());
+        assertEquals(1, policy.getHedgeCount());
+        assertEquals(1, policy.getHedgeWonCount());
+    }
+
+    @Test
+    public void noHedgeWithoutBudget() throws Exception {
+        HedgePolicy policy = new HedgePolicy().setDelay(50).setPercentile(0).setBudget(0, 1);
+        policy.tryHedge();
+        HttpUtil.setHedgePolicy(policy);
+
+        assertEquals("slow", get().execute().getBody());
+        assertEquals(1, policy.getBudgetExhaustedCount());
+    }
+
+    @Test
+    public void delayFollowsLatencyOfPrimaries() throws Exception {
+        // 1 in 10 takes 400 ms, so p95 is in the slow tail
+        slowEvery = 10;
+        HedgePolicy policy = new HedgePolicy().setDelay(100).setMinSamples(20).setBudget(1, 100);
+        HttpUtil.setHedgePolicy(policy);
+
+        for (int i = 0; i < 60; i++) {
+            assertEquals(200, get().execute().getStatusCode());
+        }
+
+        // hedges answer in ~20 ms; if they counted, p95 would sink to the fast requests
+        long delay = policy.getHedgeDelay(server.getHostKey());
+        assertTrue("delay " + delay, delay >= 100);
+        assertTrue(policy.getHedgeWonCount() > 0);
+    }
+
+    private HttpUtil.Request get() {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl("/"))
+                .setUseCache(false)
+                .setHedging(true);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parallelism and deadline of {@link HttpBatch}.
+ */
+public class HttpBatchTest {
+    private LocalHttpServer server;
+    private UrlConnectionTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new UrlConnectionTransport(2);
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                if (exchange.getPath().startsWith("/hang")) {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                exchange.respond(200, "ok");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void responsesKeepTheOrderOfRequests() throws Exception {
+        HttpBatch batch = new HttpBatch().setParallelism(3);
+        for (int i = 0; i < 10; i++) {
+            batch.add(get("/item" + i));
+        }
+
+        List<HttpUtil.Response> responses = batch.execute();
+
+        assertEquals(10, responses.size());
+        for (HttpUtil.Response response : responses) {
+            assertEquals(200, response.getStatusCode());
+        }
+    }
+
+    @Test
+    public void deadlineCancelsRequestsInFlight() throws Exception {
+        List<HttpUtil.Request> requests = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            requests.add(get("/hang").setTryCount(1));
+        }
+
+        long start = System.nanoTime();
+        List<HttpUtil.Response> responses = new HttpBatch().setParallelism(2).setTimeout(300)
+                .addAll(requests).execute();
+
+        assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+        for (HttpUtil.Response response : responses) {
+            assertTrue(response.getThrowable() instanceof TimeoutException);
+        }
+        // the 2 sent are canceled, the other 2 never started
+        assertTrue(requests.get(0).isCanceled());
+        assertTrue(requests.get(1).isCanceled());
+        assertFalse(requests.get(2).isCanceled());
+        assertFalse(requests.get(3).isCanceled());
+
+        // both threads of the transport are free again, not stuck until the server answers
+        start = System.nanoTime();
+        assertEquals(200, get("/").execute().getStatusCode());
+        assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+    }
+
+    private HttpUtil.Request get(String path) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setTransport(transport);
+    }
+}
@@ -0,0 +1,203 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Freshness, revalidation and eviction of {@link HttpCache} installed in {@link HttpUtil}.
+ */
+public class HttpCacheTest {
+    private static final int LARGE_SIZE = 4000;
+
+    private LocalHttpServer server;
+    private File dir;
+    private HttpCache cache;
+    private final List<String> ifNoneMatches = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                String path = exchange.getPath();
+                String body = "body " + server.getRequestCount();
+                if (path.startsWith("/max-age")) {
+                    exchange.respond(200, body, "Cache-Control: max-age=1", "X-Stored: yes",
+                            "Set-Cookie: session=1");
+                } else if (path.startsWith("/expired")) {
+                    exchange.respond(200, body, "Expires: Thu, 01 Jan 1970 00:00:00 GMT");
+                } else if (path.startsWith("/etag")) {
+                    String ifNoneMatch = exchange.getHeader("If-None-Match");
+                    ifNoneMatches.add(String.valueOf(ifNoneMatch));
+                    if ("\"v1\"".equals(ifNoneMatch)) {
+                        exchange.respond(304, "", "ETag: \"v1\"", "Cache-Control: max-age=0",
+                                "X-Version: 2");
+                    } else {
+                        exchange.respond(200, body, "ETag: \"v1\"", "Cache-Control: max-age=0",
+                                "X-Version: 1", "X-Kept: yes");
+                    }
+                } else if (path.startsWith("/no-store")) {
+                    exchange.respond(200, body, "Cache-Control: no-store, max-age=60");
+                } else if (path.startsWith("/vary")) {
+                    exchange.respond(200, body, "Cache-Control: max-age=60", "Vary: User-Agent");
+                } else if (path.startsWith("/large")) {
+                    char[] chars = new char[LARGE_SIZE];
+                    Arrays.fill(chars, 'x');
+                    exchange.respond(200, new String(chars), "Cache-Control: max-age=60");
+                } else {
+                    exchange.respond(200, body, "Cache-Control: max-age=60");
+                }
+            }
+        });
+        dir = File.createTempFile("HttpCacheTest", "");
+        assertTrue(dir.delete());
+        cache = new HttpCache(dir, 1024 * 1024);
+        HttpUtil.setCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.setCache(null);
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void freshUntilMaxAge() throws Exception {
+        HttpUtil.Response first = get("/max-age").execute();
+        HttpUtil.Response second = get("/max-age").execute();
+
+        assertFalse(first.isFromCache());
+        assertTrue(second.isFromCache());
+        assertEquals(first.getBody(), second.getBody());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, cache.getHitCount());
+        Thread.sleep(1100);
+
+        // stale without validator, fetched again
+        HttpUtil.Response third = get("/max-age").execute();
+        assertFalse(third.isFromCache());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void pastExpiresIsNotServed() throws Exception {
+        get("/expired").execute();
+        HttpUtil.Response second = get("/expired").execute();
+
+        assertFalse(second.isFromCache());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void freshHitHasStoredHeaders() throws Exception {
+        get("/max-age").execute();
+
+        HttpUtil.Response hit = get("/max-age").setCollectHeader(true).execute();
+
+        assertTrue(hit.isFromCache());
+        assertEquals(Arrays.asList("yes"), hit.getHeaderByKey("X-Stored"));
+        assertEquals(Arrays.asList("max-age=1"), hit.getHeaderByKey("Cache-Control"));
+        // cookies are not replayed
+        assertNull(hit.getHeaderByKey("Set-Cookie"));
+    }
+
+    @Test
+    public void staleEntryIsRevalidatedBy304() throws Exception {
+        HttpUtil.Response first = get("/etag").execute();
+
+        HttpUtil.Response second = get("/etag").setCollectHeader(true).execute();
+
+        assertEquals(Arrays.asList("null", "\"v1\""), ifNoneMatches);
+        assertEquals(200, second.getStatusCode());
+        assertTrue(second.isFromCache());
+        assertEquals(first.getBody(), second.getBody());
+        assertEquals(1, cache.getRevalidationCount());
+        assertEquals(1, cache.getRevalidationHitCount());
+        // stored headers updated by those of the 304
+        assertEquals(Arrays.asList("2"), second.getHeaderByKey("X-Version"));
+        assertEquals(Arrays.asList("yes"), second.getHeaderByKey("X-Kept"));
+        assertEquals(Arrays.asList("2"), cache.get(server.getUrl("/etag") + "?").getHeaders().get("X-Version"));
+    }
+
+    @Test
+    public void noStoreIsNotCached() throws Exception {
+        get("/no-store").execute();
+        HttpUtil.Response second = get("/no-store").execute();
+
+        assertFalse(second.isFromCache());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void varyOnOtherHeaderIsNotCached() throws Exception {
+        get("/vary").execute();
+
+        assertFalse(get("/vary").execute().isFromCache());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void requestOfOneUserDoesNotUseCache() throws Exception {
+        get("/public").execute();
+
+        HttpUtil.Response withAuth = get("/public").addHeader("Authorization", "Bearer a").execute();
+        HttpUtil.Response withCookie = get("/private").addHeader("cookie", "session=b").execute();
+        HttpUtil.Response anonymous = get("/private").execute();
+
+        assertFalse(withAuth.isFromCache());
+        assertFalse(withCookie.isFromCache());
+        // the response for the cookie was not stored
+        assertFalse(anonymous.isFromCache());
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        // room for two entries, not three
+        cache = new HttpCache(dir, 2 * LARGE_SIZE + 1500);
+        HttpUtil.setCache(cache);
+        get("/large-a").execute();
+        get("/large-b").execute();
+        assertTrue(get("/large-a").execute().isFromCache());
+
+        get("/large-c").execute();
+
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+        assertTrue(get("/large-a").execute().isFromCache());
+        assertTrue(get("/large-c").execute().isFromCache());
+        assertFalse(get("/large-b").execute().isFromCache());
+    }
+
+    @Test
+    public void entriesSurviveNewInstance() throws Exception {
+        get("/max-age").execute();
+
+        HttpUtil.setCache(new HttpCache(dir, 1024 * 1024));
+
+        assertTrue(get("/max-age").execute().isFromCache());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    private HttpUtil.Request get(String path) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setTryCount(1);
+    }
+}
@@ -0,0 +1,174 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Limits of {@link HttpConnectionPool}, alone and installed in {@link HttpUtil} against a
+ * keep-alive server.
+ */
+public class HttpConnectionPoolTest {
+    private static final String[] PROPERTIES = {"http.keepAlive", "http.maxConnections", "http.keepAliveDuration"};
+
+    private final String[] savedProperties = new String[PROPERTIES.length];
+    private LocalHttpServer server;
+    // "Connection" header and connection index of each request
+    private final List<String> connectionHeaders = new CopyOnWriteArrayList<>();
+    private final List<Integer> connectionIndexes = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            savedProperties[i] = System.getProperty(PROPERTIES[i]);
+        }
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                connectionHeaders.add(String.valueOf(exchange.getHeader("Connection")));
+                connectionIndexes.add(exchange.getConnectionIndex());
+                if (exchange.getPath().startsWith("/close")) {
+                    exchange.respond(200, "ok", "Connection: close");
+                } else {
+                    exchange.respond(200, "ok");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.setConnectionPool(null);
+        server.close();
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (savedProperties[i] != null) {
+                System.setProperty(PROPERTIES[i], savedProperties[i]);
+            } else {
+                System.clearProperty(PROPERTIES[i]);
+            }
+        }
+    }
+
+    @Test
+    public void idleEntriesAreLimitedPerHost() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool().setMaxIdleConnections(2);
+        URL a = new URL("http://a.example.test/x");
+        URL b = new URL("http://b.example.test/x");
+        HttpConnectionPool.Connection[] conns = {pool.acquire(a), pool.acquire(a), pool.acquire(a)};
+        HttpConnectionPool.Connection other = pool.acquire(b);
+
+        for (HttpConnectionPool.Connection conn : conns) {
+            pool.release(conn, true);
+        }
+        pool.release(other, true);
+
+        assertEquals(2, pool.getIdleCount(HttpConnectionPool.getHostKey(a)));
+        assertEquals(1, pool.getIdleCount(HttpConnectionPool.getHostKey(b)));
+        assertEquals(4, pool.getIdleMissCount());
+        HttpConnectionPool.Connection reused = pool.acquire(a);
+        assertTrue(reused.wasIdle());
+        // most recently released first
+        assertSame(conns[2], reused);
+        assertEquals(2, reused.getRequestCount());
+        assertEquals(1, pool.getIdleHitCount());
+    }
+
+    @Test
+    public void notReusableIsNotKept() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        URL a = new URL("http://a.example.test/x");
+
+        pool.release(pool.acquire(a), false);
+
+        assertEquals(0, pool.getIdleCount(HttpConnectionPool.getHostKey(a)));
+        assertFalse(pool.acquire(a).wasIdle());
+    }
+
+    @Test
+    public void expiredIdleEntryIsEvicted() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool().setIdleTimeout(100);
+        URL a = new URL("http://a.example.test/x");
+        String hostKey = HttpConnectionPool.getHostKey(a);
+        pool.release(pool.acquire(a), true);
+        assertEquals(1, pool.getIdleCount(hostKey));
+
+        Thread.sleep(200);
+
+        assertEquals(0, pool.getIdleCount(hostKey));
+        assertFalse(pool.acquire(a).wasIdle());
+        assertEquals(0, pool.getIdleHitCount());
+    }
+
+    @Test
+    public void lastRequestOfConnectionSendsClose() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool().setMaxRequestsPerConnection(3);
+        HttpUtil.setConnectionPool(pool);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(200, get("/").execute().getStatusCode());
+        }
+
+        assertEquals("keep-alive", connectionHeaders.get(0).toLowerCase(Locale.US));
+        assertEquals("keep-alive", connectionHeaders.get(1).toLowerCase(Locale.US));
+        assertEquals("close", connectionHeaders.get(2).toLowerCase(Locale.US));
+        assertEquals("keep-alive", connectionHeaders.get(3).toLowerCase(Locale.US));
+        // the socket is not reused after the close
+        assertEquals(connectionIndexes.get(0), connectionIndexes.get(2));
+        assertNotEquals(connectionIndexes.get(2), connectionIndexes.get(3));
+        assertEquals(2, server.getAcceptCount());
+    }
+
+    @Test
+    public void closeFromServerIsNotKept() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        HttpUtil.setConnectionPool(pool);
+
+        get("/close").execute();
+
+        assertEquals(0, pool.getIdleCount(server.getHostKey()));
+        get("/").execute();
+        assertEquals(1, pool.getIdleCount(server.getHostKey()));
+    }
+
+    @Test
+    public void withoutPoolEveryRequestSendsClose() throws Exception {
+        get("/").execute();
+        get("/").execute();
+
+        assertEquals("close", connectionHeaders.get(0).toLowerCase(Locale.US));
+        assertEquals("close", connectionHeaders.get(1).toLowerCase(Locale.US));
+    }
+
+    @Test
+    public void removingPoolRestoresProperties() {
+        System.clearProperty("http.keepAlive");
+        System.setProperty("http.maxConnections", "7");
+        System.clearProperty("http.keepAliveDuration");
+
+        HttpUtil.setConnectionPool(new HttpConnectionPool().setMaxIdleConnections(3));
+        assertEquals("true", System.getProperty("http.keepAlive"));
+        assertEquals("3", System.getProperty("http.maxConnections"));
+        // replacing the pool keeps the values from before the first one
+        HttpUtil.setConnectionPool(new HttpConnectionPool());
+        HttpUtil.setConnectionPool(null);
+
+        assertNull(System.getProperty("http.keepAlive"));
+        assertEquals("7", System.getProperty("http.maxConnections"));
+        assertNull(System.getProperty("http.keepAliveDuration"));
+        assertNull(HttpUtil.getConnectionPool());
+    }
+
+    private HttpUtil.Request get(String path) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setUseCache(false);
+    }
+}
@@ -0,0 +1,180 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Phase accounting of {@link HttpTimings}, each phase slowed down on its own by the server.
+ */
+public class HttpTimingsTest {
+    private static final long DELAY = 200;
+    // sleep() and scheduling are not exact
+    private static final long SLACK = 50;
+    private static final int SIZE = 10000;
+
+    private LocalHttpServer server;
+    private final byte[] body = new byte[SIZE];
+    private volatile int failCount;
+
+    @Before
+    public void setUp() throws Exception {
+        Arrays.fill(body, (byte) 'x');
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                if (failCount > 0) {
+                    failCount--;
+                    exchange.respond(500, "try again");
+                    return;
+                }
+                String path = exchange.getPath();
+                if (path.startsWith("/slowFirstByte")) {
+                    sleep(DELAY);
+                    exchange.respond(200, body);
+                } else if (path.startsWith("/slowBody")) {
+                    OutputStream out = exchange.getRawOutput();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + SIZE + "\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.write(body, 0, SIZE / 2);
+                    out.flush();
+                    sleep(DELAY);
+                    out.write(body, SIZE / 2, SIZE - SIZE / 2);
+                    out.flush();
+                } else if (path.startsWith("/echo")) {
+                    exchange.respond(200, exchange.getBody());
+                } else {
+                    exchange.respond(200, body);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        HttpUtil.setScheduler(null);
+    }
+
+    @Test
+    public void connectIsSplitAtTlsStart() {
+        long ms = 1000000;
+        HttpTimings timings = new HttpTimings();
+
+        timings.setConnect(10 * ms, 30 * ms, 100 * ms);
+        assertEquals(20, timings.getConnect());
+        assertEquals(70, timings.getTls());
+
+        timings.setConnect(10 * ms, 0, 100 * ms);
+        assertEquals(90, timings.getConnect());
+        assertEquals(0, timings.getTls());
+    }
+
+    @Test
+    public void phaseWhichDidNotHappenIsZero() {
+        long ms = 1000000;
+        HttpTimings timings = new HttpTimings();
+
+        timings.setQueueWait(5);
+        timings.setWrite(0, 40 * ms);
+        timings.setFirstByte(40 * ms, 30 * ms);
+        timings.setBody(40 * ms, 60 * ms);
+
+        assertEquals(0, timings.getWrite());
+        assertEquals(0, timings.getFirstByte());
+        assertEquals(20, timings.getBody());
+        assertEquals(25, timings.getTotal());
+    }
+
+    @Test
+    public void serverDelayIsInFirstByte() throws Exception {
+        HttpTimings timings = get("/slowFirstByte").execute().getTimings();
+
+        assertEquals(1, timings.getAttempt());
+        assertTrue(timings.toString(), timings.getFirstByte() >= DELAY - SLACK);
+        assertTrue(timings.toString(), timings.getBody() < DELAY - SLACK);
+        assertTrue(timings.toString(), timings.getConnect() < DELAY - SLACK);
+        assertEquals(0, timings.getTls());
+        assertEquals(SIZE, timings.getBytesReceived());
+    }
+
+    @Test
+    public void slowTransferIsInBody() throws Exception {
+        HttpTimings timings = get("/slowBody").execute().getTimings();
+
+        assertTrue(timings.toString(), timings.getBody() >= DELAY - SLACK);
+        assertTrue(timings.toString(), timings.getFirstByte() < DELAY - SLACK);
+        assertEquals(SIZE, timings.getBytesReceived());
+        assertEquals(timings.getQueueWait() + timings.getConnect() + timings.getTls() + timings.getWrite()
+                + timings.getFirstByte() + timings.getBody(), timings.getTotal());
+    }
+
+    @Test
+    public void timingsAreOfLastTry() throws Exception {
+        failCount = 1;
+
+        HttpUtil.Response response = get("/slowFirstByte").setTryCount(2).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, response.getTimings().getAttempt());
+        // the failed try was answered at once
+        assertTrue(response.getTimings().toString(), response.getTimings().getFirstByte() >= DELAY - SLACK);
+        assertEquals(SIZE, response.getTimings().getBytesReceived());
+    }
+
+    @Test
+    public void postCountsBytesSent() throws Exception {
+        HttpUtil.Response response = new HttpUtil.Request(HttpUtil.Request.POST)
+                .setUrl(server.getUrl("/echo"))
+                .setTryCount(1)
+                .addQuery("name", "value")
+                .execute();
+
+        HttpTimings timings = response.getTimings();
+        assertEquals(200, response.getStatusCode());
+        assertEquals("name=value".length(), timings.getBytesSent());
+        assertEquals("name=value".length(), timings.getBytesReceived());
+    }
+
+    @Test
+    public void schedulerWaitIsInQueueWait() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler().setMaxRequestsPerHost(1);
+        HttpUtil.setScheduler(scheduler);
+        RequestScheduler.Ticket held = scheduler.acquire(server.getHostKey(), HttpUtil.Request.PRIORITY_INTERACTIVE);
+        final HttpUtil.Response[] response = new HttpUtil.Response[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                response[0] = get("/").execute();
+            }
+        };
+        thread.start();
+        sleep(DELAY);
+        scheduler.release(held);
+        thread.join();
+
+        HttpTimings timings = response[0].getTimings();
+        assertEquals(200, response[0].getStatusCode());
+        assertTrue(timings.toString(), timings.getQueueWait() >= DELAY - SLACK);
+        assertTrue(timings.getTotal() >= timings.getQueueWait());
+    }
+
+    private HttpUtil.Request get(String path) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setUseCache(false)
+                .setTryCount(1);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
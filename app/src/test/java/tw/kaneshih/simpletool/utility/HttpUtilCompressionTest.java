@@ -0,0 +1,196 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Response decoding of {@link HttpUtil.Request#setAcceptCompression(boolean)}, and the download
+ * benchmark with and without it.
+ */
+public class HttpUtilCompressionTest {
+    // a ~20 Mbit/s mobile link
+    private static final long THROTTLE_BYTES_PER_SECOND = 2500 * 1000;
+
+    private byte[] json;
+    private byte[] gzip;
+    private byte[] zlib;
+    private byte[] rawDeflate;
+    private LocalHttpServer server;
+    private volatile String acceptEncoding;
+
+    @Before
+    public void setUp() throws Exception {
+        json = buildJson(2000 * 1000);
+        gzip = gzip(json);
+        zlib = deflate(json, false);
+        rawDeflate = deflate(json, true);
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                acceptEncoding = exchange.getHeader("Accept-Encoding");
+                String path = exchange.getPath();
+                boolean isThrottled = path.startsWith("/slow/");
+                if (isThrottled) {
+                    path = path.substring("/slow".length());
+                }
+                if (path.startsWith("/gzip")) {
+                    send(exchange, gzip, "gzip", isThrottled);
+                } else if (path.startsWith("/zlib")) {
+                    send(exchange, zlib, "deflate", isThrottled);
+                } else if (path.startsWith("/raw-deflate")) {
+                    send(exchange, rawDeflate, "deflate", isThrottled);
+                } else {
+                    send(exchange, json, null, isThrottled);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void gzipBodyIsDecoded() throws Exception {
+        HttpUtil.Response response = get("/gzip", true).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(new String(json, "UTF-8"), response.getBody());
+        assertEquals(gzip.length, response.getCompressedLength());
+        assertEquals(json.length, response.getUncompressedLength());
+        assertTrue(acceptEncoding.contains("gzip"));
+        assertTrue(acceptEncoding.contains("deflate"));
+    }
+
+    @Test
+    public void zlibAndRawDeflateBodiesAreDecoded() throws Exception {
+        HttpUtil.Response zlibResponse = get("/zlib", true).setBodyAsBytes().execute();
+        HttpUtil.Response rawResponse = get("/raw-deflate", true).setBodyAsBytes().execute();
+
+        assertTrue(Arrays.equals(json, zlibResponse.getBodyBytes()));
+        assertEquals(zlib.length, zlibResponse.getCompressedLength());
+        assertTrue(Arrays.equals(json, rawResponse.getBodyBytes()));
+        assertEquals(rawDeflate.length, rawResponse.getCompressedLength());
+    }
+
+    @Test
+    public void identityWhenNotAccepted() throws Exception {
+        HttpUtil.Response response = get("/identity", false).execute();
+
+        assertEquals(new String(json, "UTF-8"), response.getBody());
+        assertEquals(json.length, response.getCompressedLength());
+        assertEquals(json.length, response.getUncompressedLength());
+        assertTrue(acceptEncoding == null || !acceptEncoding.contains("gzip"));
+    }
+
+    @Test
+    public void throttledBodyIsDecoded() throws Exception {
+        HttpUtil.Response gzipResponse = get("/slow/gzip", true).setBodyAsBytes().execute();
+        HttpUtil.Response zlibResponse = get("/slow/zlib", true).setBodyAsBytes().execute();
+
+        assertTrue(Arrays.equals(json, gzipResponse.getBodyBytes()));
+        assertEquals(gzip.length, gzipResponse.getCompressedLength());
+        assertTrue(Arrays.equals(json, zlibResponse.getBodyBytes()));
+        assertEquals(zlib.length, zlibResponse.getCompressedLength());
+    }
+
+    /**
+     * Download time of the same JSON on a throttled link, median of 3 runs. Numbers go to stdout.
+     * Depends on the machine, so it's run by hand.
+     */
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmarkThrottledDownload() throws Exception {
+        long identity = benchmark("/slow/identity", false, json.length);
+        long gzipTime = benchmark("/slow/gzip", true, gzip.length);
+        long deflateTime = benchmark("/slow/zlib", true, zlib.length);
+
+        // ~8x smaller on the wire, so clearly faster on a slow link
+        assertTrue(gzipTime * 3 < identity);
+        assertTrue(deflateTime * 3 < identity);
+    }
+
+    private long benchmark(String path, boolean isAcceptCompression, long wireBytes) throws Exception {
+        long[] times = new long[3];
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            HttpUtil.Response response = get(path, isAcceptCompression).execute();
+            times[i] = (System.nanoTime() - start) / 1000000;
+            assertEquals(wireBytes, response.getCompressedLength());
+            assertEquals(json.length, response.getUncompressedLength());
+        }
+        Arrays.sort(times);
+        System.out.println(String.format("%-16s %8d B on wire %6d ms", path, wireBytes, times[1]));
+        return times[1];
+    }
+
+    private HttpUtil.Request get(String path, boolean isAcceptCompression) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setSocketTimeout(30 * 1000)
+                .setAcceptCompression(isAcceptCompression);
+    }
+
+    private static void send(LocalHttpServer.Exchange exchange, byte[] body, String encoding, boolean isThrottled)
+            throws IOException {
+        String head = "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length + "\r\n"
+                + ((encoding != null) ? "Content-Encoding: " + encoding + "\r\n" : "") + "\r\n";
+        OutputStream out = exchange.getRawOutput();
+        out.write(head.getBytes("ISO-8859-1"));
+        int chunk = 16 * 1024;
+        for (int i = 0; i < body.length; i += chunk) {
+            int count = Math.min(chunk, body.length - i);
+            out.write(body, i, count);
+            if (isThrottled) {
+                try {
+                    Thread.sleep(count * 1000L / THROTTLE_BYTES_PER_SECOND);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static byte[] buildJson(int size) throws IOException {
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder("[");
+        while (sb.length() < size) {
+            sb.append("{\"id\":").append(random.nextInt(100000))
+                    .append(",\"name\":\"item-").append(random.nextInt(1000))
+                    .append("\",\"status\":\"active\",\"tags\":[\"a\",\"b\"]},");
+        }
+        sb.setCharAt(sb.length() - 1, ']');
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean isRaw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, isRaw));
+        deflate.write(data);
+        deflate.close();
+        return out.toByteArray();
+    }
+}
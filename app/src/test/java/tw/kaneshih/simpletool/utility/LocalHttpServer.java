@@ -0,0 +1,372 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Loopback HTTP/1.1 server for tests. Unlike com.sun.net.httpserver it keeps connections alive
+ * whatever the response is and lets a handler write raw bytes, e.g. chunked or endless bodies.
+ * Each connection has a thread of its own.
+ */
+final class LocalHttpServer {
+    interface Handler {
+        void handle(Exchange exchange) throws IOException;
+    }
+
+    static final class Exchange {
+        private final String method;
+        private final String path;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final int connectionIndex;
+        private final int requestIndex;
+        private final OutputStream out;
+        private boolean isResponded;
+        private boolean isClose;
+
+        private Exchange(String method, String path, Map<String, String> headers, byte[] body,
+                         int connectionIndex, int requestIndex, OutputStream out) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+            this.connectionIndex = connectionIndex;
+            this.requestIndex = requestIndex;
+            this.out = out;
+        }
+
+        String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return path with query
+         */
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @param name - case doesn't matter
+         * @return null if not sent
+         */
+        String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return which connection of the server this came on, from 1
+         */
+        int getConnectionIndex() {
+            return connectionIndex;
+        }
+
+        /**
+         * @return which request of the connection this is, from 1
+         */
+        int getRequestIndex() {
+            return requestIndex;
+        }
+
+        /**
+         * Complete response with Content-Length, the connection is kept alive.
+         *
+         * @param headers - "Name: value" pairs
+         */
+        void respond(int statusCode, byte[] body, String... headers) throws IOException {
+            StringBuilder head = new StringBuilder("HTTP/1.1 " + statusCode + " " + reason(statusCode) + "\r\n");
+            for (String header : headers) {
+                head.append(header).append("\r\n");
+            }
+            head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            if (!"HEAD".equals(method)) {
+                out.write(body);
+            }
+            out.flush();
+            isResponded = true;
+        }
+
+        void respond(int statusCode, String body, String... headers) throws IOException {
+            respond(statusCode, body.getBytes("UTF-8"), headers);
+        }
+
+        /**
+         * Response without length, the body ends when the connection is closed after the handler
+         * returns.
+         *
+         * @return where the body goes
+         */
+        OutputStream respondStream(int statusCode, String... headers) throws IOException {
+            StringBuilder head = new StringBuilder("HTTP/1.1 " + statusCode + " " + reason(statusCode) + "\r\n");
+            for (String header : headers) {
+                head.append(header).append("\r\n");
+            }
+            head.append("Connection: close\r\n\r\n");
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            out.flush();
+            isResponded = true;
+            isClose = true;
+            return out;
+        }
+
+        /**
+         * Write the response yourself; the connection is kept alive unless {@link #close()}.
+         */
+        OutputStream getRawOutput() {
+            isResponded = true;
+            return out;
+        }
+
+        /**
+         * Close the connection after the handler returns.
+         */
+        void close() {
+            isClose = true;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final boolean isSecure;
+    private final AtomicInteger acceptCount = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+    private volatile boolean isClosed;
+
+    LocalHttpServer(Handler handler) throws IOException {
+        this(handler, null);
+    }
+
+    /**
+     * @param ssl - null for plain http
+     */
+    LocalHttpServer(Handler handler, SSLContext ssl) throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        this.serverSocket = (ssl != null)
+                ? ssl.getServerSocketFactory().createServerSocket(0, 1024, loopback)
+                : new ServerSocket(0, 1024, loopback);
+        this.handler = handler;
+        this.isSecure = ssl != null;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalHttpServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getUrl(String path) {
+        return (isSecure ? "https" : "http") + "://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    String getHostKey() {
+        return (isSecure ? "https" : "http") + "://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return connections accepted so far
+     */
+    int getAcceptCount() {
+        return acceptCount.get();
+    }
+
+    /**
+     * @return requests received so far
+     */
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    void close() {
+        isClosed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!isClosed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            // head and body are separate writes, Nagle would hold the body for the delayed ACK
+            try {
+                socket.setTcpNoDelay(true);
+            } catch (IOException ignored) {
+            }
+            final int index = acceptCount.incrementAndGet();
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket, index);
+                }
+            }, "LocalHttpServer-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket, int connectionIndex) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            int requestIndex = 0;
+            while (!isClosed) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                String[] parts = requestLine.split(" ");
+                byte[] body = readBody(in, headers);
+                requestCount.incrementAndGet();
+                Exchange exchange = new Exchange(parts[0], parts.length > 1 ? parts[1] : "/", headers, body,
+                        connectionIndex, ++requestIndex, out);
+                handler.handle(exchange);
+                if (!exchange.isResponded) {
+                    exchange.respond(500, new byte[0]);
+                }
+                if (exchange.isClose || "close".equalsIgnoreCase(headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            synchronized (sockets) {
+                sockets.remove(socket);
+            }
+        }
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            while (true) {
+                String size = readLine(in);
+                if (size == null) {
+                    throw new IOException("unexpected end of chunked body");
+                }
+                int semicolon = size.indexOf(';');
+                int length = Integer.parseInt((semicolon >= 0 ? size.substring(0, semicolon) : size).trim(), 16);
+                if (length == 0) {
+                    // trailers
+                    String line;
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        // ignored
+                    }
+                    break;
+                }
+                copy(in, body, length);
+                readLine(in);
+            }
+        } else if (headers.containsKey("content-length")) {
+            copy(in, body, Long.parseLong(headers.get("content-length")));
+        }
+        return body.toByteArray();
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (length > 0) {
+            int count = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (count < 0) {
+                throw new IOException("unexpected end of body");
+            }
+            out.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+
+    /**
+     * @return line without CRLF, null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return (line.length() > 0) ? line.toString() : null;
+    }
+
+    private static String reason(int statusCode) {
+        switch (statusCode) {
+            case 200:
+                return "OK";
+            case 204:
+                return "No Content";
+            case 206:
+                return "Partial Content";
+            case 304:
+                return "Not Modified";
+            case 401:
+                return "Unauthorized";
+            case 404:
+                return "Not Found";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Status";
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multipart POST of {@link HttpUtil.Request#addFile(String, String, File)}, files streamed from
+ * disk with a length known up front.
+ */
+public class MultipartUploadTest {
+    private static final String BOUNDARY = "**********";
+
+    private LocalHttpServer server;
+    private File dir;
+    private File binary;
+    private File text;
+    private byte[] binaryBytes;
+    private final List<byte[]> bodies = new CopyOnWriteArrayList<>();
+    private volatile String contentLength;
+    private volatile String transferEncoding;
+    private volatile String contentType;
+    private volatile int failCount;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                bodies.add(exchange.getBody());
+                contentLength = exchange.getHeader("Content-Length");
+                transferEncoding = exchange.getHeader("Transfer-Encoding");
+                contentType = exchange.getHeader("Content-Type");
+                if (failCount > 0) {
+                    failCount--;
+                    exchange.respond(500, "try again");
+                } else {
+                    exchange.respond(200, "ok");
+                }
+            }
+        });
+        dir = File.createTempFile("MultipartUploadTest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        // larger than the upload buffer, so it takes several reads
+        binaryBytes = new byte[300 * 1024];
+        new Random(3).nextBytes(binaryBytes);
+        binary = new File(dir, "a.bin");
+        assertTrue(FileUtil.writeBytesToFile(binaryBytes, binary));
+        text = new File(dir, "b.txt");
+        FileUtil.writeToFile("second file", text, false);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        binary.delete();
+        text.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void fieldsAndFilesAreSentWithLength() throws Exception {
+        HttpUtil.Response response = post()
+                .addQuery("note", "hello")
+                .addFile("a", "application/octet-stream", binary)
+                .addFile("b", "text/plain", text)
+                .execute();
+
+        assertEquals(200, response.getStatusCode());
+        byte[] expected = new Multipart()
+                .field("note", "hello")
+                .file("a", "application/octet-stream", "a.bin", binaryBytes)
+                .file("b", "text/plain", "b.txt", "second file".getBytes("UTF-8"))
+                .end();
+        assertArrayEquals(expected, bodies.get(0));
+        assertEquals(String.valueOf(expected.length), contentLength);
+        assertNull(transferEncoding);
+        assertEquals("multipart/form-data; boundary=" + BOUNDARY, contentType);
+    }
+
+    @Test
+    public void setFileReplacesParts() throws Exception {
+        post().addFile("a", "application/octet-stream", binary)
+                .setFile("b", "text/plain", text)
+                .execute();
+
+        byte[] expected = new Multipart()
+                .file("b", "text/plain", "b.txt", "second file".getBytes("UTF-8"))
+                .end();
+        assertArrayEquals(expected, bodies.get(0));
+    }
+
+    @Test
+    public void retrySendsTheWholeBodyAgain() throws Exception {
+        failCount = 1;
+
+        HttpUtil.Response response = post().setTryCount(2)
+                .addFile("a", "application/octet-stream", binary)
+                .execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, bodies.size());
+        assertArrayEquals(bodies.get(0), bodies.get(1));
+        assertArrayEquals(new Multipart().file("a", "application/octet-stream", "a.bin", binaryBytes).end(),
+                bodies.get(1));
+    }
+
+    @Test
+    public void invalidFilePartIsRejected() throws Exception {
+        try {
+            new HttpUtil.Request(HttpUtil.Request.GET).addFile("a", "text/plain", text);
+            fail("GET with file");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            post().addFile("a", "text/plain", new File(dir, "missing"));
+            fail("missing file");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            post().addFile("", "text/plain", text);
+            fail("empty name");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private HttpUtil.Request post() {
+        return new HttpUtil.Request(HttpUtil.Request.POST)
+                .setUrl(server.getUrl("/upload"))
+                .setTryCount(1);
+    }
+
+    /**
+     * The body HttpUtil is expected to send, built by hand.
+     */
+    private static final class Multipart {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private Multipart field(String name, String value) throws IOException {
+            write("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value
+                    + "\r\n");
+            return this;
+        }
+
+        private Multipart file(String name, String contentType, String fileName, byte[] content)
+                throws IOException {
+            write("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\""
+                    + fileName + "\"\r\nContent-Type: " + contentType
+                    + "\r\nContent-Transfer-Encoding: binary\r\n\r\n");
+            out.write(content);
+            write("\r\n");
+            return this;
+        }
+
+        private byte[] end() throws IOException {
+            write("--" + BOUNDARY + "--");
+            return out.toByteArray();
+        }
+
+        private void write(String text) throws IOException {
+            out.write(text.getBytes("UTF-8"));
+        }
+    }
+}
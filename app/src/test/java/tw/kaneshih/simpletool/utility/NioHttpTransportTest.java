@@ -0,0 +1,252 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.channels.Selector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Response parsing and connection handling of {@link NioHttpTransport}, and its throughput
+ * against {@link UrlConnectionTransport}.
+ */
+public class NioHttpTransportTest {
+    private NioHttpTransport transport;
+    private LocalHttpServer server;
+    private volatile String lastBody;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new NioHttpTransport();
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                String path = exchange.getPath();
+                if (path.startsWith("/chunked")) {
+                    OutputStream out = exchange.getRawOutput();
+                    write(out, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+                    // split at awkward places, each write is a separate read on the client
+                    write(out, "5;ext=1\r\nhel");
+                    write(out, "lo\r\n");
+                    write(out, "7\r\n, world\r\n0\r\nX-Trailer: yes\r\n");
+                    write(out, "\r\n");
+                } else if (path.startsWith("/until-close")) {
+                    OutputStream out = exchange.respondStream(200);
+                    write(out, "no length");
+                    write(out, ", read to close");
+                } else if (path.startsWith("/post")) {
+                    lastBody = new String(exchange.getBody(), "UTF-8");
+                    exchange.respond(200, "posted");
+                } else if (path.startsWith("/silent-close")) {
+                    // keep-alive response, but the socket is closed right after it
+                    exchange.respond(200, "request " + exchange.getRequestIndex());
+                    exchange.close();
+                } else if (path.startsWith("/slow")) {
+                    sleep(50);
+                    exchange.respond(200, "slow");
+                } else if (path.startsWith("/hang")) {
+                    sleep(5000);
+                    exchange.respond(200, "late");
+                } else {
+                    exchange.respond(200, "connection " + exchange.getConnectionIndex());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        transport.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void chunkedBodyIsDecoded() throws Exception {
+        HttpUtil.Response response = get("/chunked").execute();
+
+        assertNull(response.getThrowable());
+        assertEquals(200, response.getStatusCode());
+        assertEquals("hello, world", response.getBody());
+        assertEquals(0, transport.getFallbackCount());
+    }
+
+    @Test
+    public void bodyWithoutLengthIsReadToClose() throws Exception {
+        HttpUtil.Response response = get("/until-close").execute();
+
+        assertEquals("no length, read to close", response.getBody());
+    }
+
+    @Test
+    public void keepAliveSocketIsReused() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            HttpUtil.Response response = get("/").execute();
+            assertEquals("connection 1", response.getBody());
+        }
+
+        assertEquals(1, server.getAcceptCount());
+        assertEquals(1, transport.getConnectCount());
+        assertEquals(2, transport.getReuseCount());
+    }
+
+    @Test
+    public void staleSocketIsRetriedOnNewOne() throws Exception {
+        assertEquals("request 1", get("/silent-close").execute().getBody());
+        // let the close reach the client, the idle socket is then stale
+        Thread.sleep(100);
+
+        HttpUtil.Response response = get("/silent-close").execute();
+
+        assertNull(response.getThrowable());
+        assertEquals("request 1", response.getBody());
+        assertEquals(2, server.getAcceptCount());
+    }
+
+    @Test
+    public void formPostIsSent() throws Exception {
+        HttpUtil.Response response = new HttpUtil.Request(HttpUtil.Request.POST)
+                .setUrl(server.getUrl("/post"))
+                .addQuery("name", "a b&c")
+                .addQuery("count", 3)
+                .setTransport(transport)
+                .execute();
+
+        assertEquals("posted", response.getBody());
+        assertTrue(lastBody.contains("name=a+b%26c"));
+        assertTrue(lastBody.contains("count=3"));
+    }
+
+    @Test
+    public void shutdownFailsCallsInFlightAndTransportRecovers() throws Exception {
+        final AtomicReference<HttpUtil.Response> hung = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hung.set(get("/hang").setTryCount(1).execute());
+            }
+        });
+        thread.start();
+        Thread.sleep(300);
+
+        long start = System.nanoTime();
+        transport.shutdown();
+        thread.join(2000);
+
+        assertFalse(thread.isAlive());
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+        assertTrue(hung.get().getThrowable() instanceof IOException);
+        // a new selector thread is started for the next call
+        assertEquals("connection 2", get("/").execute().getBody());
+    }
+
+    @Test
+    public void deadSelectorThreadIsReplaced() throws Exception {
+        final AtomicReference<HttpUtil.Response> hung = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hung.set(get("/hang").setTryCount(1).execute());
+            }
+        });
+        thread.start();
+        Thread.sleep(300);
+
+        // select() of the loop now throws, which kills the selector thread
+        Field loopField = NioHttpTransport.class.getDeclaredField("loop");
+        loopField.setAccessible(true);
+        Object loop = loopField.get(transport);
+        Field selectorField = loop.getClass().getDeclaredField("selector");
+        selectorField.setAccessible(true);
+        ((Selector) selectorField.get(loop)).close();
+        thread.join(2000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(hung.get().getThrowable() instanceof IOException);
+        assertNull(loopField.get(transport));
+        assertEquals(200, get("/").execute().getStatusCode());
+    }
+
+    /**
+     * 400 concurrent GETs to a server which takes 50 ms each, second round after warm-up. Numbers go
+     * to stdout. Depends on the machine, so it's run by hand.
+     */
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmarkConcurrentGets() throws Exception {
+        int count = 400;
+        UrlConnectionTransport blocking10 = new UrlConnectionTransport(10);
+        UrlConnectionTransport blocking50 = new UrlConnectionTransport(50);
+        long blockingTime = 0;
+        long blocking50Time = 0;
+        long nioTime = 0;
+        for (int round = 0; round < 2; round++) {
+            blockingTime = runConcurrent(blocking10, count);
+            blocking50Time = runConcurrent(blocking50, count);
+            nioTime = runConcurrent(transport, count);
+        }
+        System.out.println(String.format("UrlConnectionTransport, 10 threads %6d ms %5d req/s", blockingTime,
+                count * 1000 / blockingTime));
+        System.out.println(String.format("UrlConnectionTransport, 50 threads %6d ms %5d req/s", blocking50Time,
+                count * 1000 / blocking50Time));
+        System.out.println(String.format("NioHttpTransport, 1 selector thread %5d ms %5d req/s", nioTime,
+                count * 1000 / nioTime));
+
+        // 10 threads can't do better than 400 / 10 * 50 ms
+        assertTrue(blockingTime >= 2000);
+        assertTrue(nioTime < blockingTime / 2);
+    }
+
+    private long runConcurrent(HttpTransport httpTransport, int count) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger okCount = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            new HttpUtil.Request(HttpUtil.Request.GET)
+                    .setUrl(server.getUrl("/slow"))
+                    .setSocketTimeout(30 * 1000)
+                    .setTransport(httpTransport)
+                    .enqueue(new HttpTransport.Callback() {
+                        @Override
+                        public void onResponse(HttpUtil.Response response) {
+                            if (response.getStatusCode() == 200) {
+                                okCount.incrementAndGet();
+                            }
+                            latch.countDown();
+                        }
+                    });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        assertEquals(count, okCount.get());
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private HttpUtil.Request get(String path) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setTransport(transport);
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("UTF-8"));
+        out.flush();
+        sleep(20);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+}
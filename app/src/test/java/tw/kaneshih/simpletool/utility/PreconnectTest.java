@@ -0,0 +1,178 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HttpUtil#preconnect(HttpUtil.Request)} against a keep-alive HTTPS server with the pinned
+ * self-signed certificate of test resource "localhost.p12" / "localhost.pem".
+ */
+public class PreconnectTest {
+    private static final String PASSWORD = "changeit";
+
+    private static final HostnameVerifier LOOPBACK = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return "127.0.0.1".equals(hostname);
+        }
+    };
+
+    private SSLContext serverContext;
+    private String cert;
+    private volatile String lastMethod;
+    private volatile String lastAuthorization;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = getClass().getResourceAsStream("/localhost.p12");
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD.toCharArray());
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+        cert = readResource("/localhost.pem");
+        HttpUtil.setConnectionPool(new HttpConnectionPool());
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.setConnectionPool(null);
+    }
+
+    @Test
+    public void headCarriesHeadersOfRequest() throws Exception {
+        LocalHttpServer server = newServer();
+        try {
+            HttpTimings timings = HttpUtil.preconnect(get(server).addHeader("Authorization", "Bearer token"));
+
+            assertNotNull(timings);
+            assertEquals("HEAD", lastMethod);
+            assertEquals("Bearer token", lastAuthorization);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void nextRequestReusesPreconnectedSocket() throws Exception {
+        LocalHttpServer server = newServer();
+        try {
+            assertNotNull(HttpUtil.preconnect(get(server)));
+
+            HttpUtil.Response response = get(server).execute();
+
+            assertEquals(200, response.getStatusCode());
+            assertEquals(1, server.getAcceptCount());
+            assertEquals(0, response.getTimings().getConnect());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void failureReturnsNull() throws Exception {
+        LocalHttpServer server = newServer();
+        String url = server.getUrl("/");
+        server.close();
+
+        assertNull(HttpUtil.preconnect(new HttpUtil.Request(HttpUtil.Request.GET).setUrl(url)
+                .setConnectionTimeout(HttpUtil.TIMEOUT_VALID_MININUM)));
+    }
+
+    /**
+     * Time of the first GET to a new host, cold and after preconnect, average of 5 rounds after a
+     * warm-up. Each round has a server of its own, so nothing is left over. Numbers go to stdout.
+     * Timing depends on the machine, so it's run by hand and only checks the socket is reused;
+     * {@link #nextRequestReusesPreconnectedSocket()} is the default check.
+     */
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmarkFirstRequestLatency() throws Exception {
+        firstGet(false);
+        firstGet(true);
+        int rounds = 5;
+        long cold = 0;
+        long warm = 0;
+        for (int i = 0; i < rounds; i++) {
+            cold += firstGet(false);
+            warm += firstGet(true);
+        }
+        cold /= rounds;
+        warm /= rounds;
+        System.out.println(String.format("first GET, cold %8.2f ms, after preconnect %8.2f ms", cold / 1e6,
+                warm / 1e6));
+    }
+
+    /**
+     * @return nanosecond of the first GET
+     */
+    private long firstGet(boolean isPreconnect) throws Exception {
+        LocalHttpServer server = newServer();
+        try {
+            if (isPreconnect) {
+                assertNotNull(HttpUtil.preconnect(get(server)));
+            }
+            long start = System.nanoTime();
+            HttpUtil.Response response = get(server).execute();
+            long time = System.nanoTime() - start;
+            assertEquals(200, response.getStatusCode());
+            assertEquals(1, server.getAcceptCount());
+            return time;
+        } finally {
+            server.close();
+        }
+    }
+
+    private LocalHttpServer newServer() throws IOException {
+        return new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                lastMethod = exchange.getMethod();
+                lastAuthorization = exchange.getHeader("Authorization");
+                exchange.respond(200, "ok");
+            }
+        }, serverContext);
+    }
+
+    private HttpUtil.Request get(LocalHttpServer server) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl("/"))
+                .setUseCache(false)
+                .setSSLCertificate(cert)
+                .setHostnameVerifier(LOOPBACK);
+    }
+
+    private String readResource(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return out.toString("US-ASCII");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Token refill and burst of {@link RateLimiter}, on its own and shaping requests of
+ * {@link HttpUtil}.
+ */
+public class RateLimiterTest {
+    private static final String HOST_A = "http://a.example.test:80";
+    private static final String HOST_B = "http://b.example.test:80";
+    // sleep() and scheduling are not exact
+    private static final long SLACK = 50;
+    private static final int SIZE = 64 * 1024;
+
+    private LocalHttpServer server;
+    private final byte[] body = new byte[SIZE];
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(7).nextBytes(body);
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                exchange.getBody();
+                exchange.respond(200, body);
+            }
+        });
+        file = File.createTempFile("RateLimiterTest", ".bin");
+        assertTrue(FileUtil.writeBytesToFile(body, file));
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.setRateLimiter(null);
+        server.close();
+        file.delete();
+    }
+
+    @Test
+    public void burstGoesAtOnceThenRate() {
+        RateLimiter limiter = new RateLimiter().setRequestLimit(null, RateLimiter.ANY_PRIORITY, 10, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE));
+        }
+        long fourth = limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+        long fifth = limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+
+        // one token every 100 ms
+        assertTrue(String.valueOf(fourth), fourth > 100 - SLACK && fourth <= 100);
+        assertTrue(String.valueOf(fifth), fifth > 200 - SLACK && fifth <= 200);
+        assertEquals(2, limiter.getDelayedRequestCount());
+        assertEquals(fourth + fifth, limiter.getRequestDelayTime());
+    }
+
+    @Test
+    public void tokensRefillUpToBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter().setRequestLimit(null, RateLimiter.ANY_PRIORITY, 20, 2);
+        limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+        limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+        assertTrue(limiter.getRequestDelay(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE) > 0);
+
+        Thread.sleep(100);
+        assertEquals(0, limiter.getRequestDelay(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE));
+
+        // idle for 10 tokens worth, but only burst is kept
+        Thread.sleep(500);
+        assertEquals(0, limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE));
+        assertEquals(0, limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE));
+        assertTrue(limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE) > 0);
+    }
+
+    @Test
+    public void delayIsCappedToBurst() {
+        RateLimiter limiter = new RateLimiter()
+                .setDownloadLimit(null, RateLimiter.ANY_PRIORITY, 1000, 100);
+
+        assertEquals(0, limiter.getDownloadDelay(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, 100000));
+        assertEquals(0, limiter.getUploadDelay(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, 100000));
+    }
+
+    @Test
+    public void limitsMatchHostAndPriority() {
+        RateLimiter limiter = new RateLimiter()
+                .setRequestLimit(HOST_A, RateLimiter.ANY_PRIORITY, 1, 1)
+                .setRequestLimit(null, HttpUtil.Request.PRIORITY_BACKGROUND, 1, 1);
+
+        limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+        assertTrue(limiter.getRequestDelay(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE) > 0);
+        assertEquals(0, limiter.getRequestDelay(HOST_B, HttpUtil.Request.PRIORITY_INTERACTIVE));
+
+        limiter.reserveRequest(HOST_B, HttpUtil.Request.PRIORITY_BACKGROUND);
+        assertTrue(limiter.getRequestDelay(HOST_B, HttpUtil.Request.PRIORITY_BACKGROUND) > 0);
+        assertEquals(0, limiter.getRequestDelay(HOST_B, HttpUtil.Request.PRIORITY_PREFETCH));
+        // must pass both
+        assertTrue(limiter.getRequestDelay(HOST_A, HttpUtil.Request.PRIORITY_PREFETCH) > 0);
+    }
+
+    @Test
+    public void limitIsReplacedAndRemoved() {
+        RateLimiter limiter = new RateLimiter().setRequestLimit(HOST_A, RateLimiter.ANY_PRIORITY, 1, 1);
+        limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+        assertTrue(limiter.getRequestDelay(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE) > 0);
+
+        // a new bucket, full again
+        limiter.setRequestLimit(HOST_A, RateLimiter.ANY_PRIORITY, 1, 2);
+        assertEquals(0, limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE));
+        assertEquals(0, limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE));
+        assertTrue(limiter.getRequestDelay(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE) > 0);
+
+        limiter.removeLimits(HOST_A);
+        assertEquals(0, limiter.reserveRequest(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE));
+    }
+
+    @Test
+    public void invalidLimitIsRejected() {
+        RateLimiter limiter = new RateLimiter();
+        try {
+            limiter.setRequestLimit(null, RateLimiter.ANY_PRIORITY, 0, 1);
+            fail("rate");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            limiter.setUploadLimit(null, RateLimiter.ANY_PRIORITY, 1000, 0);
+            fail("burst");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            limiter.setDownloadLimit(null, 7, 1000, 1000);
+            fail("priority");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void requestsWaitForTokens() throws Exception {
+        RateLimiter limiter = new RateLimiter().setRequestLimit(server.getHostKey(), RateLimiter.ANY_PRIORITY, 5, 1);
+        HttpUtil.setRateLimiter(limiter);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, get().execute().getStatusCode());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        // the first one from burst, then one every 200 ms
+        assertTrue(String.valueOf(elapsed), elapsed >= 400 - SLACK);
+        assertEquals(2, limiter.getDelayedRequestCount());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void downloadIsShaped() throws Exception {
+        RateLimiter limiter = new RateLimiter()
+                .setDownloadLimit(null, HttpUtil.Request.PRIORITY_BACKGROUND, 100 * 1024, 16 * 1024);
+        HttpUtil.setRateLimiter(limiter);
+
+        long start = System.currentTimeMillis();
+        HttpUtil.Response response = get().setPriority(HttpUtil.Request.PRIORITY_BACKGROUND).execute();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertArrayEquals(body, response.getBodyBytes());
+        // 16 KB of burst, 48 KB at 100 KB/s
+        assertTrue(String.valueOf(elapsed), elapsed >= 480 - SLACK);
+        assertTrue(limiter.getDownloadDelayTime() >= 480 - SLACK);
+
+        // other priorities are not limited
+        start = System.currentTimeMillis();
+        get().execute();
+        assertTrue(System.currentTimeMillis() - start < 480 - SLACK);
+    }
+
+    @Test
+    public void uploadOfRequestIsShaped() throws Exception {
+        RateLimiter limiter = new RateLimiter()
+                .setUploadLimit(server.getHostKey(), RateLimiter.ANY_PRIORITY, 100 * 1024, 16 * 1024);
+
+        long start = System.currentTimeMillis();
+        HttpUtil.Response response = new HttpUtil.Request(HttpUtil.Request.POST)
+                .setUrl(server.getUrl("/upload"))
+                .setTryCount(1)
+                .setRateLimiter(limiter)
+                .addFile("a", "application/octet-stream", file)
+                .execute();
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(String.valueOf(elapsed), elapsed >= 480 - SLACK);
+        assertTrue(limiter.getUploadDelayTime() >= 480 - SLACK);
+        assertEquals(0, limiter.getDownloadDelayTime());
+    }
+
+    private HttpUtil.Request get() {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl("/"))
+                .setUseCache(false)
+                .setTryCount(1)
+                .setBodyAsBytes();
+    }
+}
@@ -0,0 +1,76 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link RequestBodyWriter} against String.getBytes("UTF-8") and URLEncoder, byte for byte.
+ */
+public class RequestBodyWriterTest {
+    private static final String[] SAMPLES = {
+            "",
+            "plain ASCII 0123456789",
+            // reserved and other ASCII
+            "a=b&c=d?e/f:g#h[i]j@k!l$m'n(o)p*q+r,s;t%u v~w\"x<y>z\\{|}^`.-_\t\r\n\u0000\u007f",
+            // 2 bytes
+            "\u0080 caf\u00e9 \u00fc\u00df \u07ff",
+            // 3 bytes, CJK and the edges around surrogates
+            "\u0800 \u4e2d\u6587\u5b57 \ud7ff \ue000 \uffff",
+            // 4 bytes, valid pairs
+            "\ud83d\ude00 \ud800\udc00 \udbff\udfff",
+            // lone surrogates
+            "\ud800 x \udc00 \ud83d",
+            "\ude00\ud83d",
+            "end high \ud800",
+    };
+
+    @Test
+    public void utf8IsSameAsGetBytes() throws Exception {
+        for (String s : SAMPLES) {
+            byte[] expected = s.getBytes("UTF-8");
+
+            assertTrue(s, Arrays.equals(expected, write(s, false)));
+            assertEquals(s, expected.length, RequestBodyWriter.measure().writeUtf8(s).getCount());
+        }
+    }
+
+    @Test
+    public void urlEncodedIsSameAsUrlEncoder() throws Exception {
+        for (String s : SAMPLES) {
+            byte[] expected = URLEncoder.encode(s, "UTF-8").getBytes("US-ASCII");
+
+            assertEquals(s, new String(expected, "US-ASCII"), new String(write(s, true), "US-ASCII"));
+            assertEquals(s, expected.length, RequestBodyWriter.measure().writeUrlEncoded(s).getCount());
+        }
+    }
+
+    @Test
+    public void bodyLongerThanBuffer() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("\u4e2d\ud83d\ude00a ");
+        }
+        String s = sb.toString();
+
+        assertTrue(Arrays.equals(s.getBytes("UTF-8"), write(s, false)));
+        assertEquals(URLEncoder.encode(s, "UTF-8"), new String(write(s, true), "US-ASCII"));
+    }
+
+    private static byte[] write(String s, boolean isUrlEncoded) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestBodyWriter writer = new RequestBodyWriter(out);
+        if (isUrlEncoded) {
+            writer.writeUrlEncoded(s);
+        } else {
+            writer.writeUtf8(s);
+        }
+        writer.flush();
+        assertEquals(out.size(), writer.getCount());
+        return out.toByteArray();
+    }
+}
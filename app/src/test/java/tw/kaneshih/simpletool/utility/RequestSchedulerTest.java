@@ -0,0 +1,216 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Limits and priority order of {@link RequestScheduler}.
+ */
+public class RequestSchedulerTest {
+    private static final String HOST_A = "http://a.example.test:80";
+    private static final String HOST_B = "http://b.example.test:80";
+    private static final String HOST_C = "http://c.example.test:80";
+
+    // names of admitted tickets, in order
+    private final List<String> admitted = new ArrayList<>();
+    private RequestScheduler.Ticket lastTicket;
+
+    @After
+    public void tearDown() {
+        HttpUtil.setScheduler(null);
+    }
+
+    @Test
+    public void perHostLimitDoesNotBlockOtherHosts() {
+        RequestScheduler scheduler = new RequestScheduler().setMaxRequestsPerHost(2);
+        RequestScheduler.Ticket a1 = schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "a1");
+        schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "a2");
+        schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "a3");
+        schedule(scheduler, HOST_B, HttpUtil.Request.PRIORITY_INTERACTIVE, "b1");
+
+        assertEquals(Arrays.asList("a1", "a2", "b1"), admitted);
+        assertEquals(2, scheduler.getInFlightCount(HOST_A));
+        assertEquals(1, scheduler.getWaitingCount());
+
+        scheduler.release(a1);
+
+        assertEquals(Arrays.asList("a1", "a2", "b1", "a3"), admitted);
+        assertEquals(2, scheduler.getInFlightCount(HOST_A));
+        assertEquals(0, scheduler.getWaitingCount());
+    }
+
+    @Test
+    public void totalLimitHoldsEveryHost() {
+        RequestScheduler scheduler = new RequestScheduler().setMaxRequests(2);
+        schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "a");
+        RequestScheduler.Ticket b = schedule(scheduler, HOST_B, HttpUtil.Request.PRIORITY_INTERACTIVE, "b");
+        schedule(scheduler, HOST_C, HttpUtil.Request.PRIORITY_INTERACTIVE, "c");
+
+        assertEquals(Arrays.asList("a", "b"), admitted);
+        assertEquals(2, scheduler.getInFlightCount());
+
+        scheduler.release(b);
+
+        assertEquals(Arrays.asList("a", "b", "c"), admitted);
+        assertEquals(2, scheduler.getInFlightCount());
+    }
+
+    @Test
+    public void higherPriorityGoesFirstFifoWithin() {
+        RequestScheduler scheduler = new RequestScheduler().setMaxRequests(1);
+        RequestScheduler.Ticket running = schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_BACKGROUND, "first");
+        schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_BACKGROUND, "background");
+        schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_PREFETCH, "prefetch");
+        schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "interactive1");
+        schedule(scheduler, HOST_B, HttpUtil.Request.PRIORITY_INTERACTIVE, "interactive2");
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.release(running);
+            running = lastTicket;
+        }
+
+        assertEquals(Arrays.asList("first", "interactive1", "interactive2", "prefetch", "background"), admitted);
+        assertEquals(4, scheduler.getQueuedCount());
+        assertEquals(5, scheduler.getAdmittedCount());
+    }
+
+    @Test
+    public void releasedWhileWaitingIsNeverAdmitted() {
+        RequestScheduler scheduler = new RequestScheduler().setMaxRequests(1);
+        RequestScheduler.Ticket running = schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "a");
+        RequestScheduler.Ticket waiting = schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "b");
+
+        scheduler.release(waiting);
+        scheduler.release(running);
+        // twice is ignored
+        scheduler.release(running);
+
+        assertEquals(Arrays.asList("a"), admitted);
+        assertEquals(0, scheduler.getInFlightCount());
+        assertEquals(0, scheduler.getWaitingCount());
+        schedule(scheduler, HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE, "c");
+        assertEquals(Arrays.asList("a", "c"), admitted);
+    }
+
+    @Test
+    public void acquireBlocksUntilSlotIsFree() throws Exception {
+        final RequestScheduler scheduler = new RequestScheduler().setMaxRequests(1);
+        RequestScheduler.Ticket running = scheduler.acquire(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+        final RequestScheduler.Ticket[] acquired = new RequestScheduler.Ticket[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = scheduler.acquire(HOST_B, HttpUtil.Request.PRIORITY_INTERACTIVE);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        assertNull(acquired[0]);
+
+        scheduler.release(running);
+        thread.join(1000);
+
+        assertNotNull(acquired[0]);
+        assertTrue(acquired[0].getWaitTime() >= 50);
+    }
+
+    @Test
+    public void interruptedAcquireLeavesQueue() throws Exception {
+        final RequestScheduler scheduler = new RequestScheduler().setMaxRequests(1);
+        scheduler.acquire(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+        final boolean[] isInterrupted = new boolean[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(HOST_A, HttpUtil.Request.PRIORITY_INTERACTIVE);
+                } catch (InterruptedException e) {
+                    isInterrupted[0] = true;
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        assertEquals(1, scheduler.getWaitingCount());
+
+        thread.interrupt();
+        thread.join(1000);
+
+        assertTrue(isInterrupted[0]);
+        assertEquals(0, scheduler.getWaitingCount());
+    }
+
+    @Test
+    public void requestsOfHttpUtilWaitForSlot() throws Exception {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                int now = concurrent.incrementAndGet();
+                synchronized (maxConcurrent) {
+                    maxConcurrent.set(Math.max(maxConcurrent.get(), now));
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                concurrent.decrementAndGet();
+                exchange.respond(200, "ok");
+            }
+        });
+        try {
+            RequestScheduler scheduler = new RequestScheduler().setMaxRequestsPerHost(1);
+            HttpUtil.setScheduler(scheduler);
+            Thread[] threads = new Thread[3];
+            final AtomicInteger okCount = new AtomicInteger();
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        HttpUtil.Response response = new HttpUtil.Request(HttpUtil.Request.GET)
+                                .setUrl(server.getUrl("/"))
+                                .setUseCache(false)
+                                .execute();
+                        if (response.getStatusCode() == 200) {
+                            okCount.incrementAndGet();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(3, okCount.get());
+            assertEquals(1, maxConcurrent.get());
+            assertEquals(3, scheduler.getAdmittedCount());
+            assertEquals(0, scheduler.getInFlightCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    private RequestScheduler.Ticket schedule(RequestScheduler scheduler, String hostKey, int priority,
+                                             final String name) {
+        return scheduler.schedule(hostKey, priority, new RequestScheduler.OnAdmittedListener() {
+            @Override
+            public void onAdmitted(RequestScheduler.Ticket ticket) {
+                admitted.add(name);
+                lastTicket = ticket;
+            }
+        });
+    }
+}
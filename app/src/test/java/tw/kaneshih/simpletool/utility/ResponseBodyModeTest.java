@@ -0,0 +1,182 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Where {@link HttpUtil.Request} puts the response body: String, byte[], file or a
+ * {@link ResponseBodyConsumer}.
+ */
+public class ResponseBodyModeTest {
+    private LocalHttpServer server;
+    private File file;
+    private byte[] binary;
+
+    @Before
+    public void setUp() throws Exception {
+        // not valid UTF-8, a String decode would change it
+        binary = new byte[100 * 1024];
+        new Random(4).nextBytes(binary);
+        final byte[] gzip = gzip(binary);
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                if (exchange.getPath().startsWith("/text")) {
+                    exchange.respond(200, "\u4e2d\u6587 text");
+                } else if (exchange.getPath().startsWith("/gzip")) {
+                    exchange.respond(200, gzip, "Content-Encoding: gzip");
+                } else {
+                    exchange.respond(200, binary);
+                }
+            }
+        });
+        file = File.createTempFile("ResponseBodyModeTest", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        file.delete();
+    }
+
+    @Test
+    public void stringIsDefault() throws Exception {
+        HttpUtil.Response response = get("/text").execute();
+
+        assertEquals("\u4e2d\u6587 text", response.getBody());
+        assertNull(response.getBodyBytes());
+        assertNull(response.getBodyBuffer());
+        assertNull(response.getBodyFile());
+    }
+
+    @Test
+    public void bytesAreKeptAsSent() throws Exception {
+        HttpUtil.Response response = get("/binary").setBodyAsBytes().execute();
+
+        assertArrayEquals(binary, response.getBodyBytes());
+        assertNull(response.getBody());
+        ByteBuffer buffer = response.getBodyBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(ByteBuffer.wrap(binary), buffer);
+        assertEquals(binary.length, response.getUncompressedLength());
+    }
+
+    @Test
+    public void fileGetsTheBody() throws Exception {
+        HttpUtil.Response response = get("/binary").setBodyFile(file).execute();
+
+        assertSame(file, response.getBodyFile());
+        assertArrayEquals(binary, FileUtil.getBytesFromFile(file));
+        assertNull(response.getBody());
+        assertNull(response.getBodyBytes());
+    }
+
+    @Test
+    public void fileGetsDecodedBody() throws Exception {
+        HttpUtil.Response response = get("/gzip").setAcceptCompression(true).setBodyFile(file).execute();
+
+        assertArrayEquals(binary, FileUtil.getBytesFromFile(file));
+        assertTrue(response.getCompressedLength() != response.getUncompressedLength());
+    }
+
+    @Test
+    public void consumerReadsTheLiveStream() throws Exception {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        final long[] length = new long[1];
+        final int[] status = new int[1];
+
+        HttpUtil.Response response = get("/binary").setBodyConsumer(new ResponseBodyConsumer() {
+            @Override
+            public void onBody(int statusCode, InputStream in, long contentLength) throws IOException {
+                status[0] = statusCode;
+                length[0] = contentLength;
+                // only a part of it, the rest is left to HttpUtil
+                byte[] buffer = new byte[1000];
+                int count;
+                while (head.size() < 1000 && (count = in.read(buffer, 0, 1000 - head.size())) != -1) {
+                    head.write(buffer, 0, count);
+                }
+            }
+        }).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(200, status[0]);
+        assertEquals(binary.length, length[0]);
+        assertArrayEquals(Arrays.copyOf(binary, 1000), head.toByteArray());
+        assertNull(response.getBody());
+        assertNull(response.getBodyBytes());
+    }
+
+    @Test
+    public void failureOfConsumerIsInResponse() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+
+        HttpUtil.Response response = get("/binary").setTryCount(2).setBodyConsumer(new ResponseBodyConsumer() {
+            @Override
+            public void onBody(int statusCode, InputStream in, long contentLength) throws IOException {
+                calls.incrementAndGet();
+                throw new IOException("consumer failed");
+            }
+        }).execute();
+
+        assertEquals("consumer failed", response.getThrowable().getMessage());
+        // a 200 is not tried again, the consumer may have acted on a part of the body
+        assertEquals(1, calls.get());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void lastModeWins() throws Exception {
+        HttpUtil.Response response = get("/binary").setBodyFile(file).setBodyAsBytes().execute();
+
+        assertArrayEquals(binary, response.getBodyBytes());
+        assertNull(response.getBodyFile());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void nullTargetIsRejected() {
+        try {
+            get("/").setBodyFile(null);
+            fail("null file");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            get("/").setBodyConsumer(null);
+            fail("null consumer");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private HttpUtil.Request get(String path) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl(path))
+                .setUseCache(false)
+                .setTryCount(1);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+}
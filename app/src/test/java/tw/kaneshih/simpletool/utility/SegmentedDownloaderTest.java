@@ -0,0 +1,135 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SegmentedDownloader} against a server which may or may not honor Range and If-Range.
+ */
+public class SegmentedDownloaderTest {
+    private static final int SIZE = 8000;
+
+    private LocalHttpServer server;
+    private File dir;
+    private File file;
+    private final byte[] body = new byte[SIZE];
+    private final byte[] changedBody = new byte[SIZE];
+    private volatile boolean isRangeSupported = true;
+    private volatile String etag = "\"v1\"";
+    // the ETag becomes "v2" at this Range request, 0 for never
+    private volatile int changeAtRange;
+    private final AtomicInteger rangeCount = new AtomicInteger();
+    private final AtomicInteger fullCount = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < SIZE; i++) {
+            body[i] = (byte) (i % 251);
+            changedBody[i] = (byte) (i % 241);
+        }
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                String range = exchange.getHeader("Range");
+                String ifRange = exchange.getHeader("If-Range");
+                String current;
+                byte[] content;
+                synchronized (SegmentedDownloaderTest.this) {
+                    if (range != null && rangeCount.incrementAndGet() == changeAtRange) {
+                        etag = "\"v2\"";
+                    }
+                    current = etag;
+                    content = "\"v2\"".equals(current) ? changedBody : body;
+                }
+                String[] headers = current != null ? new String[]{"ETag: " + current} : new String[0];
+                if (!isRangeSupported || range == null || (ifRange != null && !ifRange.equals(current))) {
+                    fullCount.incrementAndGet();
+                    exchange.respond(200, content, headers);
+                    return;
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                int first = Integer.parseInt(bounds[0]);
+                int last = bounds[1].isEmpty() ? SIZE - 1 : Math.min(SIZE - 1, Integer.parseInt(bounds[1]));
+                String[] partHeaders = Arrays.copyOf(headers, headers.length + 1);
+                partHeaders[headers.length] = "Content-Range: bytes " + first + "-" + last + "/" + SIZE;
+                exchange.respond(206, Arrays.copyOfRange(content, first, last + 1), partHeaders);
+            }
+        });
+        dir = File.createTempFile("SegmentedDownloaderTest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        file = new File(dir, "file");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void rangesAreFetchedInSegments() throws Exception {
+        assertTrue(newDownloader().download(server.getUrl("/file"), file));
+
+        assertArrayEquals(body, FileUtil.getBytesFromFile(file));
+        // probe and 4 segments
+        assertEquals(5, rangeCount.get());
+        assertEquals(0, fullCount.get());
+        assertFalse(new File(file.getPath() + ".segments").exists());
+    }
+
+    @Test
+    public void noRangeSupportFallsBackToSingleStream() throws Exception {
+        isRangeSupported = false;
+
+        assertTrue(newDownloader().download(server.getUrl("/file"), file));
+
+        assertArrayEquals(body, FileUtil.getBytesFromFile(file));
+        // the probe, then the download
+        assertEquals(2, fullCount.get());
+    }
+
+    @Test
+    public void noValidatorFallsBackToSingleStream() throws Exception {
+        etag = null;
+
+        assertTrue(newDownloader().download(server.getUrl("/file"), file));
+
+        assertArrayEquals(body, FileUtil.getBytesFromFile(file));
+        // only the probe asked for a range
+        assertEquals(1, rangeCount.get());
+        assertEquals(1, fullCount.get());
+    }
+
+    @Test
+    public void changeOfEtagMidDownloadFails() throws Exception {
+        changeAtRange = 3;
+        FileUtil.writeToFile("old", file, false);
+
+        assertFalse(newDownloader().download(server.getUrl("/file"), file));
+
+        // segments of two versions are not put together, the old file is kept
+        assertTrue(fullCount.get() > 0);
+        assertEquals("old", new String(FileUtil.getBytesFromFile(file), "UTF-8"));
+        assertFalse(new File(file.getPath() + ".segments").exists());
+    }
+
+    private SegmentedDownloader newDownloader() {
+        return new SegmentedDownloader().setSegmentCount(4).setMinSegmentSize(SIZE / 4)
+                .setSegmentTryCount(1);
+    }
+}
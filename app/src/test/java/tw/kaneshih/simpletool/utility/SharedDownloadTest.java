@@ -0,0 +1,139 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Progress and cancellation of callers sharing one download of
+ * {@link HttpUtil#getFileFromUrl(String, File, int, int, int, ProgressListener, CancellationToken)}.
+ */
+public class SharedDownloadTest {
+    private static final int SIZE = 1024 * 1024;
+    private static final int CHUNK = 16 * 1024;
+
+    private LocalHttpServer server;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                OutputStream out = exchange.respondStream(200, "Content-Length: " + SIZE);
+                byte[] chunk = new byte[CHUNK];
+                // ~640 ms in all
+                for (int i = 0; i < SIZE / CHUNK; i++) {
+                    out.write(chunk);
+                    out.flush();
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        });
+        file = File.createTempFile("SharedDownloadTest", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        file.delete();
+    }
+
+    @Test
+    public void oneCallerCancelingDoesNotStopTheOthers() throws Exception {
+        CancellationToken first = new CancellationToken();
+        Download owner = new Download(first).start();
+        Thread.sleep(100);
+        Download joiner = new Download(null).start();
+        Thread.sleep(100);
+
+        first.cancel();
+        owner.join();
+        joiner.join();
+
+        assertFalse(owner.result.get());
+        assertTrue(joiner.result.get());
+        assertEquals(SIZE, file.length());
+        assertEquals(1, server.getRequestCount());
+        // progress of the shared transfer reaches the caller who joined it
+        assertEquals(SIZE, joiner.lastDone.get());
+    }
+
+    @Test
+    public void transferStopsWhenEveryCallerCanceled() throws Exception {
+        CancellationToken first = new CancellationToken();
+        CancellationToken second = new CancellationToken();
+        Download owner = new Download(first).start();
+        Thread.sleep(100);
+        Download joiner = new Download(second).start();
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        first.cancel();
+        second.cancel();
+        owner.join();
+        joiner.join();
+
+        assertTrue((System.nanoTime() - start) / 1000000 < 300);
+        assertFalse(owner.result.get());
+        assertFalse(joiner.result.get());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void canceledCallerDoesNotSpoilTheNextDownload() throws Exception {
+        CancellationToken canceled = new CancellationToken();
+        canceled.cancel();
+        assertFalse(new Download(canceled).start().join().result.get());
+
+        assertTrue(new Download(new CancellationToken()).start().join().result.get());
+        assertEquals(SIZE, file.length());
+    }
+
+    private final class Download implements Runnable {
+        private final CancellationToken token;
+        private final AtomicBoolean result = new AtomicBoolean();
+        private final AtomicLong lastDone = new AtomicLong();
+        private Thread thread;
+
+        private Download(CancellationToken token) {
+            this.token = token;
+        }
+
+        private Download start() {
+            thread = new Thread(this);
+            thread.start();
+            return this;
+        }
+
+        private Download join() throws InterruptedException {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            return this;
+        }
+
+        @Override
+        public void run() {
+            result.set(HttpUtil.getFileFromUrl(server.getUrl("/file"), file, 10000, 10000,
+                    HttpUtil.Request.PRIORITY_PREFETCH, new ProgressListener() {
+                        @Override
+                        public void onProgress(long bytesDone, long bytesTotal) {
+                            lastDone.set(bytesDone);
+                        }
+                    }, token));
+        }
+    }
+}
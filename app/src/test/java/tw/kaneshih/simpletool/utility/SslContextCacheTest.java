@@ -0,0 +1,184 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Caching of {@link SslContextCache} per certificate, and its handshake counts against an HTTPS
+ * server with the certificate of test resource "localhost.p12" / "localhost.pem".
+ */
+public class SslContextCacheTest {
+    private static final String PASSWORD = "changeit";
+
+    private static final HostnameVerifier LOOPBACK = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return "127.0.0.1".equals(hostname);
+        }
+    };
+
+    private String cert;
+    // same certificate, different text, so a different cache key
+    private String otherCert;
+
+    @Before
+    public void setUp() throws Exception {
+        cert = readResource("/localhost.pem");
+        otherCert = cert + "\n";
+        HttpUtil.getSslContextCache().evictAll();
+        HttpUtil.getSslContextCache().resetStatistics();
+    }
+
+    @After
+    public void tearDown() {
+        HttpUtil.getSslContextCache().evictAll();
+    }
+
+    @Test
+    public void factoryIsCachedPerCertificate() {
+        SslContextCache cache = new SslContextCache();
+
+        SSLSocketFactory first = cache.getSocketFactory(cert);
+        SSLSocketFactory second = cache.getSocketFactory(cert);
+        SSLSocketFactory other = cache.getSocketFactory(otherCert);
+
+        assertNotNull(first);
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void invalidCertificateIsNotCached() {
+        SslContextCache cache = new SslContextCache();
+
+        assertNull(cache.getSocketFactory("not a certificate"));
+        assertNull(cache.getSocketFactory("not a certificate"));
+        assertNull(cache.getSocketFactory(""));
+
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        SslContextCache cache = new SslContextCache().setMaxSize(1);
+        SSLSocketFactory first = cache.getSocketFactory(cert);
+
+        cache.getSocketFactory(otherCert);
+
+        assertNotSame(first, cache.getSocketFactory(cert));
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void concurrentMissesGetTheSameFactory() throws Exception {
+        final SslContextCache cache = new SslContextCache();
+        final CountDownLatch start = new CountDownLatch(1);
+        final SSLSocketFactory[] factories = new SSLSocketFactory[8];
+        Thread[] threads = new Thread[factories.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    factories[index] = cache.getSocketFactory(cert);
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (SSLSocketFactory factory : factories) {
+            assertNotNull(factory);
+            assertSame(factories[0], factory);
+        }
+        assertEquals(factories.length, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void secondConnectionResumesSession() throws Exception {
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(LocalHttpServer.Exchange exchange) throws IOException {
+                exchange.respond(200, "ok");
+            }
+        }, newServerContext());
+        try {
+            SslContextCache cache = HttpUtil.getSslContextCache();
+            // keep-alive is off, each request has a socket of its own
+            assertEquals(200, get(server).execute().getStatusCode());
+            assertEquals(200, get(server).execute().getStatusCode());
+
+            assertEquals(2, server.getAcceptCount());
+            assertEquals(1, cache.getMissCount());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(1, cache.getFullHandshakeCount());
+            assertEquals(1, cache.getResumedHandshakeCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    private HttpUtil.Request get(LocalHttpServer server) {
+        return new HttpUtil.Request(HttpUtil.Request.GET)
+                .setUrl(server.getUrl("/"))
+                .setUseCache(false)
+                .setSSLCertificate(cert)
+                .setHostnameVerifier(LOOPBACK);
+    }
+
+    private SSLContext newServerContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = getClass().getResourceAsStream("/localhost.p12");
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private String readResource(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return out.toString("US-ASCII");
+        } finally {
+            in.close();
+        }
+    }
+}
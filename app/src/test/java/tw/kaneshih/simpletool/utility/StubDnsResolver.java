@@ -0,0 +1,92 @@
+package tw.kaneshih.simpletool.utility;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resolver answering from a fixed table instead of network; e.g. put the host of a local
+ * server, or a failure, and count lookups reaching it behind {@link DnsCache}.
+ */
+final class StubDnsResolver implements DnsResolver {
+    private final Map<String, InetAddress[]> table = new HashMap<>();
+    private final Map<String, Integer> lookupCounts = new HashMap<>();
+    private volatile long delay;
+
+    /**
+     * @param host
+     * @param addresses - at least one
+     * @return
+     * @throws IllegalArgumentException - if host is empty or no address
+     */
+    synchronized StubDnsResolver put(String host, InetAddress... addresses) throws IllegalArgumentException {
+        if (Validator.isEmpty(host) || addresses == null || addresses.length == 0) {
+            throw new IllegalArgumentException("invalid host[" + host + "] or addresses");
+        }
+        table.put(host.toLowerCase(Locale.US), addresses.clone());
+        return this;
+    }
+
+    /**
+     * Lookups of host fail from now on.
+     *
+     * @param host
+     * @return
+     */
+    synchronized StubDnsResolver remove(String host) {
+        if (host != null) {
+            table.remove(host.toLowerCase(Locale.US));
+        }
+        return this;
+    }
+
+    /**
+     * default is 0
+     *
+     * @param delay - unit is millisecond, how long each lookup takes, to simulate a slow network
+     * @return
+     * @throws IllegalArgumentException - if delay < 0
+     */
+    StubDnsResolver setDelay(long delay) throws IllegalArgumentException {
+        if (delay < 0) {
+            throw new IllegalArgumentException("invalid delay:" + delay);
+        }
+        this.delay = delay;
+        return this;
+    }
+
+    /**
+     * @param host
+     * @return how many lookups of host reached this resolver
+     */
+    synchronized int getLookupCount(String host) {
+        Integer count = lookupCounts.get(host.toLowerCase(Locale.US));
+        return count != null ? count : 0;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.US);
+        synchronized (this) {
+            Integer count = lookupCounts.get(key);
+            lookupCounts.put(key, count == null ? 1 : count + 1);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnknownHostException(host + " (interrupted)");
+            }
+        }
+        synchronized (this) {
+            InetAddress[] addresses = table.get(key);
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses.clone();
+        }
+    }
+}